@@ -0,0 +1,188 @@
+package nl.infcomtec.jllama;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits text into overlapping chunks of at most a given size for embedding.
+ *
+ * A chunk ends at the best boundary before the size limit: a blank line or a
+ * Markdown heading, else a line end, else wherever the limit falls. The next
+ * chunk starts overlap characters earlier, moved forward to a line start.
+ *
+ * @author Walter Stroebel
+ */
+public class Chunker {
+
+    public final int maxChars;
+    public final int overlap;
+
+    /**
+     * A piece of text.
+     */
+    public static class Chunk {
+
+        /**
+         * Offsets in the source text, end exclusive.
+         */
+        public final int start, end;
+        public final String text;
+        private String hash;
+
+        public Chunk(int start, int end, String text) {
+            this.start = start;
+            this.end = end;
+            this.text = text;
+        }
+
+        /**
+         * @return Content hash of the text, see Chunker.hash.
+         */
+        public String hash() {
+            if (null == hash) {
+                hash = Chunker.hash(text);
+            }
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return "Chunk{" + "start=" + start + ", end=" + end + '}';
+        }
+    }
+
+    /**
+     * New chunker.
+     *
+     * @param maxChars Largest chunk.
+     * @param overlap Characters repeated from the previous chunk, less than
+     * half of maxChars.
+     */
+    public Chunker(int maxChars, int overlap) {
+        if (maxChars < 2 || overlap < 0 || overlap >= maxChars / 2) {
+            throw new IllegalArgumentException("Bad chunk size " + maxChars + " or overlap " + overlap);
+        }
+        this.maxChars = maxChars;
+        this.overlap = overlap;
+    }
+
+    /**
+     * Split a text.
+     *
+     * @param text The text.
+     * @return The chunks, in order; none for text that is only white space.
+     */
+    public List<Chunk> chunk(CharSequence text) {
+        List<Chunk> ret = new ArrayList<>();
+        int len = text.length();
+        int start = skipBlank(text, 0);
+        while (start < len) {
+            int end = len;
+            if (len - start > maxChars) {
+                end = boundary(text, start, start + maxChars);
+            }
+            String s = text.subSequence(start, end).toString();
+            if (!s.trim().isEmpty()) {
+                ret.add(new Chunk(start, end, s));
+            }
+            if (end >= len) {
+                break;
+            }
+            int next = end - overlap;
+            if (next < end) {
+                // start the overlap at a line
+                for (int i = next; i < end; i++) {
+                    if ('\n' == text.charAt(i)) {
+                        next = i + 1;
+                        break;
+                    }
+                }
+            }
+            start = Math.max(next, start + 1);
+        }
+        return ret;
+    }
+
+    private static int skipBlank(CharSequence text, int i) {
+        while (i < text.length() && Character.isWhitespace(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Best place to end a chunk that must end at or before limit, searching
+     * back no further than half a chunk.
+     */
+    private int boundary(CharSequence text, int start, int limit) {
+        int floor = start + maxChars / 2;
+        int line = -1;
+        for (int i = limit - 1; i >= floor; i--) {
+            if ('\n' != text.charAt(i - 1)) {
+                continue;
+            }
+            // i is a line start
+            char c = text.charAt(i);
+            if ('\n' == c || '\r' == c || '#' == c) {
+                return i;
+            }
+            if (line < 0) {
+                line = i;
+            }
+        }
+        return line >= 0 ? line : limit;
+    }
+
+    /**
+     * Read a UTF-8 text file through a mapping, without an intermediate byte
+     * array; bad bytes become replacement characters.
+     *
+     * @param f The file.
+     * @return Its characters.
+     * @throws IOException If it could not be read.
+     */
+    public static CharBuffer read(File f) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r");
+                FileChannel ch = raf.getChannel()) {
+            if (0 == ch.size()) {
+                return CharBuffer.allocate(0);
+            }
+            MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                    .decode(map);
+        }
+    }
+
+    /**
+     * A content hash for skipping text that was embedded before.
+     *
+     * @param text The text.
+     * @return First 128 bits of its SHA-256, as hex.
+     */
+    public static String hash(CharSequence text) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] d = md.digest(text.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(32);
+            for (int i = 0; i < 16; i++) {
+                sb.append(Character.forDigit((d[i] >> 4) & 15, 16));
+                sb.append(Character.forDigit(d[i] & 15, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -5,6 +5,8 @@ import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import javax.imageio.ImageIO;
 
 /**
@@ -19,10 +21,12 @@ public class Embed {
 
     public static void main(String[] args) throws Exception {
         Ollama.init();
+        List<Embeddings> all = new ArrayList<>();
         for (AvailableModels.AvailableModel mod : Ollama.fetchAvailableModels(Ollama.config.lastEndpoint).models) {
             OllamaEmbeddings em = new OllamaEmbeddings(Ollama.config.lastEndpoint, mod.name);
             Embeddings embeddings = em.getEmbeddings("Why is the sky blue?");
             System.out.println(embeddings);
+            all.add(embeddings);
             BufferedImage toImage = embeddings.toImage(true);
             Image im = toImage.getScaledInstance(OUT_DIM, OUT_DIM, BufferedImage.SCALE_DEFAULT);
             toImage = new BufferedImage(OUT_DIM, OUT_CAP, BufferedImage.TYPE_INT_ARGB);
@@ -37,6 +41,13 @@ public class Embed {
             File f = File.createTempFile("emb", ".png");
             ImageIO.write(toImage, "png", f);
         }
+        if (!all.isEmpty()) {
+            // all models side by side
+            int cols = (int) Math.ceil(Math.sqrt(all.size()));
+            File f = File.createTempFile("atlas", ".png");
+            ImageIO.write(Embeddings.atlas(all, cols, OUT_DIM / 2, OUT_DIM / 2, true, false), "png", f);
+            System.out.println("Atlas in " + f);
+        }
         /*
 
         Old demo code for reference.
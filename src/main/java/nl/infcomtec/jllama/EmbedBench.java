@@ -0,0 +1,718 @@
+package nl.infcomtec.jllama;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import nl.infcomtec.vectors.ExactSearch;
+import nl.infcomtec.vectors.Hits;
+import nl.infcomtec.vectors.HnswIndex;
+import nl.infcomtec.vectors.IvfPqIndex;
+import nl.infcomtec.vectors.Pca;
+import nl.infcomtec.vectors.RandomProjection;
+import nl.infcomtec.vectors.ReducedSearch;
+import nl.infcomtec.vectors.Similarity;
+import nl.infcomtec.vectors.VectorStore;
+
+/**
+ * Embedding and retrieval benchmark.
+ *
+ * For every model the corpus chunks are embedded at each concurrency level
+ * (embeddings/sec, p50/p99 latency), then every search backend is built on
+ * the vectors and run with the labelled queries (build time, recall@k against
+ * exact search, hit rate on the labels, QPS). Results go to a CSV and a JSON
+ * file per run, so runs can be compared.
+ *
+ * Runs against an Ollama endpoint or a local mock server that embeds by
+ * feature hashing, for testing the pipeline without a GPU.
+ *
+ * @author Walter Stroebel
+ */
+public class EmbedBench {
+
+    /**
+     * One row of results. Embed rows fill the embedding fields, search rows
+     * the search fields.
+     */
+    public static class Result {
+
+        public String model;
+        /**
+         * "embed" or "search".
+         */
+        public String stage;
+        /**
+         * Search backend, null for embed rows.
+         */
+        public String backend;
+        public int concurrency;
+        public int count;
+        public int failed;
+        public int dimension;
+        public double perSecond;
+        public double p50Millis;
+        public double p99Millis;
+        public double buildMillis;
+        public double recall;
+        public double hitRate;
+        public double qps;
+
+        @Override
+        public String toString() {
+            if ("embed".equals(stage)) {
+                return String.format(Locale.ROOT, "%s embed c=%d n=%d: %.1f/s p50=%.1fms p99=%.1fms failed=%d",
+                        model, concurrency, count, perSecond, p50Millis, p99Millis, failed);
+            }
+            return String.format(Locale.ROOT, "%s %s: build=%.0fms recall=%.3f hit=%.3f qps=%.0f p99=%.2fms",
+                    model, backend, buildMillis, recall, hitRate, qps, p99Millis);
+        }
+    }
+
+    /**
+     * A query with the sources that count as a hit.
+     */
+    public static class Query {
+
+        public final String text;
+        public final Set<String> relevant;
+
+        public Query(String text, Set<String> relevant) {
+            this.text = text;
+            this.relevant = relevant;
+        }
+    }
+
+    /**
+     * A search backend under test.
+     */
+    private abstract static class Backend {
+
+        final String name;
+
+        Backend(String name) {
+            this.name = name;
+        }
+
+        abstract void build() throws Exception;
+
+        abstract Hits search(float[] q, int k);
+    }
+
+    public final String endPoint;
+    public final List<String> models = new ArrayList<>();
+    public final List<Chunker.Chunk> chunks = new ArrayList<>();
+    /**
+     * Source of every chunk, relative to the corpus root.
+     */
+    public final List<String> sources = new ArrayList<>();
+    public final List<Query> queries = new ArrayList<>();
+    public int[] concurrency = {1, 4};
+    public int k = 10;
+    /**
+     * Times to run the query set per backend for QPS.
+     */
+    public int repeat = 3;
+    public Chunker chunker = new Chunker(2000, 200);
+    public final List<Result> results = new ArrayList<>();
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    /**
+     * New benchmark.
+     *
+     * @param endPoint The Ollama endpoint.
+     */
+    public EmbedBench(String endPoint) {
+        this.endPoint = endPoint;
+    }
+
+    /**
+     * Chunk every readable file under a directory.
+     *
+     * @param root The corpus.
+     * @param filter Files to take, null for all that are not hidden.
+     * @throws IOException If a file could not be read.
+     */
+    public void addCorpus(File root, FileFilter filter) throws IOException {
+        addCorpus(root, root, filter);
+    }
+
+    private void addCorpus(File root, File dir, FileFilter filter) throws IOException {
+        File[] list = dir.listFiles();
+        if (null == list) {
+            return;
+        }
+        Arrays.sort(list);
+        String base = root.getAbsolutePath() + File.separator;
+        for (File f : list) {
+            if (f.isHidden()) {
+                continue;
+            }
+            if (f.isDirectory()) {
+                addCorpus(root, f, filter);
+            } else if (null == filter || filter.accept(f)) {
+                String src = f.getAbsolutePath().substring(base.length());
+                for (Chunker.Chunk c : chunker.chunk(Chunker.read(f))) {
+                    chunks.add(c);
+                    sources.add(src);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read labelled queries, one per line as relevant sources (comma
+     * separated, relative to the corpus root), a tab, and the query text.
+     *
+     * @param file The query file.
+     * @throws IOException If it could not be read.
+     */
+    public void addQueries(File file) throws IOException {
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            int tab = line.indexOf('\t');
+            if (tab > 0 && !line.startsWith("#")) {
+                Set<String> rel = new HashSet<>(Arrays.asList(line.substring(0, tab).split(",")));
+                queries.add(new Query(line.substring(tab + 1).trim(), rel));
+            }
+        }
+    }
+
+    /**
+     * Without a query file: take a random third of random chunks as queries,
+     * labelled with the source of the chunk.
+     *
+     * @param n Number of queries.
+     * @param seed Seed for the choice.
+     */
+    public void sampleQueries(int n, long seed) {
+        Random rnd = new Random(seed);
+        for (int i = 0; i < n && !chunks.isEmpty(); i++) {
+            int c = rnd.nextInt(chunks.size());
+            String t = chunks.get(c).text;
+            if (t.isEmpty()) {
+                continue;
+            }
+            int len = Math.max(1, t.length() / 3);
+            int from = rnd.nextInt(t.length() - len + 1);
+            Set<String> rel = new HashSet<>();
+            rel.add(sources.get(c));
+            queries.add(new Query(t.substring(from, from + len), rel));
+        }
+    }
+
+    /**
+     * Run all models.
+     *
+     * @throws Exception If a model could not be benchmarked at all.
+     */
+    public void run() throws Exception {
+        for (String model : models) {
+            run(model);
+        }
+    }
+
+    private void run(String model) throws Exception {
+        OllamaEmbeddings em = new OllamaEmbeddings(endPoint, model);
+        float[][] vectors = null;
+        for (int c : concurrency) {
+            vectors = embed(em, c);
+        }
+        if (null == vectors) {
+            return;
+        }
+        VectorStore store = null;
+        for (int i = 0; i < vectors.length; i++) {
+            if (null != vectors[i]) {
+                if (null == store) {
+                    store = new VectorStore(model, vectors[i].length);
+                }
+                store.add(vectors[i], new VectorStore.Metadata(null, sources.get(i)));
+            }
+        }
+        if (null == store || queries.isEmpty()) {
+            return;
+        }
+        float[][] qv = new float[queries.size()][];
+        for (int i = 0; i < qv.length; i++) {
+            qv[i] = em.getVector(queries.get(i).text);
+        }
+        search(model, store, qv);
+    }
+
+    /**
+     * Embed the corpus with some requests in flight.
+     *
+     * @return The vectors per chunk, null where embedding failed.
+     */
+    private float[][] embed(final OllamaEmbeddings em, int c) throws InterruptedException {
+        final int n = chunks.size();
+        final float[][] ret = new float[n][];
+        final long[] nanos = new long[n];
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        ExecutorService exec = Executors.newFixedThreadPool(c);
+        long t0 = System.nanoTime();
+        for (int t = 0; t < c; t++) {
+            exec.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = next.getAndIncrement(); i < n; i = next.getAndIncrement()) {
+                        long s = System.nanoTime();
+                        try {
+                            ret[i] = em.getVector(chunks.get(i).text);
+                        } catch (Exception ex) {
+                            failed.incrementAndGet();
+                        }
+                        nanos[i] = System.nanoTime() - s;
+                    }
+                }
+            });
+        }
+        exec.shutdown();
+        exec.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        long wall = System.nanoTime() - t0;
+        Result r = new Result();
+        r.model = em.getModel();
+        r.stage = "embed";
+        r.concurrency = c;
+        r.count = n;
+        r.failed = failed.get();
+        for (float[] v : ret) {
+            if (null != v) {
+                r.dimension = v.length;
+                break;
+            }
+        }
+        r.perSecond = (n - r.failed) * 1e9 / Math.max(1, wall);
+        r.p50Millis = percentile(nanos, 0.5) / 1e6;
+        r.p99Millis = percentile(nanos, 0.99) / 1e6;
+        report(r);
+        return ret;
+    }
+
+    private void search(String model, final VectorStore store, float[][] qv) throws Exception {
+        final Similarity.Metric metric = Similarity.Metric.COSINE;
+        final int n = store.size();
+        final int dim = store.dimension();
+        final ExactSearch exact = new ExactSearch(store, metric, pool);
+        List<Backend> backends = new ArrayList<>();
+        backends.add(new Backend("exact") {
+            @Override
+            void build() {
+            }
+
+            @Override
+            Hits search(float[] q, int k) {
+                return exact.search(q, k);
+            }
+        });
+        backends.add(new Backend("hnsw") {
+            HnswIndex index;
+
+            @Override
+            void build() {
+                index = new HnswIndex(store, metric);
+                index.build(pool);
+            }
+
+            @Override
+            Hits search(float[] q, int k) {
+                return index.search(q, k);
+            }
+        });
+        final File tmp = Files.createTempDirectory("bench").toFile();
+        if (n >= 64) {
+            backends.add(new Backend("ivfpq") {
+                IvfPqIndex index;
+
+                @Override
+                void build() {
+                    int nlist = Math.max(4, (int) Math.sqrt(n));
+                    int m = 1;
+                    for (int d = 1; d <= Math.min(64, dim / 4); d++) {
+                        if (0 == dim % d) {
+                            m = d;
+                        }
+                    }
+                    index = new IvfPqIndex(store, metric, nlist, m, tmp);
+                    index.train(64 * nlist, pool);
+                    index.addAll(pool);
+                }
+
+                @Override
+                Hits search(float[] q, int k) {
+                    return index.search(q, k, index.nprobe, 4 * k);
+                }
+            });
+            final int out = Math.max(2, Math.min(64, dim / 4));
+            backends.add(new Backend("pca" + out) {
+                ReducedSearch rs;
+
+                @Override
+                void build() {
+                    rs = new ReducedSearch(store, Pca.fit(store, out, 10000, 3, pool), metric, null, pool);
+                }
+
+                @Override
+                Hits search(float[] q, int k) {
+                    return rs.search(q, k, 10 * k);
+                }
+            });
+            backends.add(new Backend("random" + out) {
+                ReducedSearch rs;
+
+                @Override
+                void build() {
+                    rs = new ReducedSearch(store, new RandomProjection(dim, out, 42), metric, null, pool);
+                }
+
+                @Override
+                Hits search(float[] q, int k) {
+                    return rs.search(q, k, 10 * k);
+                }
+            });
+        }
+        int[][] truth = new int[qv.length][];
+        for (int i = 0; i < qv.length; i++) {
+            truth[i] = exact.search(qv[i], k).ids;
+        }
+        try {
+            for (Backend b : backends) {
+                Result r = new Result();
+                r.model = model;
+                r.stage = "search";
+                r.backend = b.name;
+                r.count = n;
+                r.dimension = dim;
+                long t0 = System.nanoTime();
+                b.build();
+                r.buildMillis = (System.nanoTime() - t0) / 1e6;
+                double recall = 0;
+                int hits = 0;
+                long[] nanos = new long[qv.length * repeat];
+                for (int rep = 0; rep < repeat; rep++) {
+                    for (int i = 0; i < qv.length; i++) {
+                        long s = System.nanoTime();
+                        Hits h = b.search(qv[i], k);
+                        nanos[rep * qv.length + i] = System.nanoTime() - s;
+                        if (0 == rep) {
+                            recall += overlap(truth[i], h.ids) / (double) Math.max(1, truth[i].length);
+                            for (int j = 0; j < h.size(); j++) {
+                                if (queries.get(i).relevant.contains(store.getMetadata(h.ids[j]).source)) {
+                                    hits++;
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                }
+                long total = 0;
+                for (long l : nanos) {
+                    total += l;
+                }
+                r.recall = recall / qv.length;
+                r.hitRate = hits / (double) qv.length;
+                r.qps = nanos.length * 1e9 / Math.max(1, total);
+                r.p50Millis = percentile(nanos, 0.5) / 1e6;
+                r.p99Millis = percentile(nanos, 0.99) / 1e6;
+                report(r);
+            }
+        } finally {
+            File[] left = tmp.listFiles();
+            if (null != left) {
+                for (File f : left) {
+                    f.delete();
+                }
+            }
+            tmp.delete();
+        }
+    }
+
+    private void report(Result r) {
+        results.add(r);
+        System.out.println(r);
+    }
+
+    private static int overlap(int[] a, int[] b) {
+        int ret = 0;
+        for (int x : a) {
+            for (int y : b) {
+                if (x == y) {
+                    ret++;
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static long percentile(long[] values, double p) {
+        if (0 == values.length) {
+            return 0;
+        }
+        long[] s = values.clone();
+        Arrays.sort(s);
+        return s[Math.max(0, (int) Math.ceil(p * s.length) - 1)];
+    }
+
+    /**
+     * Write the results as bench-(time).csv and .json.
+     *
+     * @param dir Output directory.
+     * @return The CSV file.
+     * @throws IOException If writing failed.
+     */
+    public File write(File dir) throws IOException {
+        dir.mkdirs();
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File csv = new File(dir, "bench-" + stamp + ".csv");
+        try (PrintWriter pw = new PrintWriter(csv, "UTF-8")) {
+            pw.println("model,stage,backend,concurrency,count,failed,dimension,perSecond,p50Millis,p99Millis,buildMillis,recall,hitRate,qps");
+            for (Result r : results) {
+                pw.println(String.format(Locale.ROOT, "%s,%s,%s,%d,%d,%d,%d,%.3f,%.3f,%.3f,%.1f,%.4f,%.4f,%.1f",
+                        r.model, r.stage, null == r.backend ? "" : r.backend, r.concurrency, r.count, r.failed,
+                        r.dimension, r.perSecond, r.p50Millis, r.p99Millis, r.buildMillis, r.recall, r.hitRate, r.qps));
+            }
+        }
+        Ollama.getMapper().writeValue(new File(dir, "bench-" + stamp + ".json"), results);
+        return csv;
+    }
+
+    /**
+     * Local stand-in for Ollama: /api/tags lists the models, /api/embeddings
+     * hashes the words of the prompt into a vector. A model name ending in a
+     * number gets that dimension.
+     */
+    public static class MockServer implements HttpHandler {
+
+        public final HttpServer server;
+        public final String[] models;
+        /**
+         * Delay per embedding request, to look like a real model.
+         */
+        public volatile int delayMillis;
+        private final ObjectMapper mapper = Ollama.getMapper();
+
+        /**
+         * Start a server on a free local port.
+         *
+         * @param models Model names, like "mock-384".
+         * @throws IOException If the server could not start.
+         */
+        public MockServer(String... models) throws IOException {
+            this.models = models;
+            // read once by the JDK server; without it Nagle adds 40ms per request
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/api/", this);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.start();
+        }
+
+        /**
+         * @return The endpoint URL.
+         */
+        public String endPoint() {
+            return "http://127.0.0.1:" + server.getAddress().getPort();
+        }
+
+        public void stop() {
+            server.stop(0);
+            ((ExecutorService) server.getExecutor()).shutdown();
+        }
+
+        @Override
+        public void handle(HttpExchange ex) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int status = 200;
+            try {
+                if (ex.getRequestURI().getPath().endsWith("/tags")) {
+                    sb.append("{\"models\":[");
+                    for (int i = 0; i < models.length; i++) {
+                        sb.append(i > 0 ? "," : "").append("{\"name\":\"").append(models[i]).append("\"}");
+                    }
+                    sb.append("]}");
+                } else {
+                    Embeddings.Request req = mapper.readValue(ex.getRequestBody(), Embeddings.Request.class);
+                    float[] v = embed(req.prompt, dimension(req.model));
+                    sb.append("{\"embedding\":[");
+                    for (int i = 0; i < v.length; i++) {
+                        sb.append(i > 0 ? "," : "").append(v[i]);
+                    }
+                    sb.append("]}");
+                    if (delayMillis > 0) {
+                        Thread.sleep(delayMillis);
+                    }
+                }
+            } catch (Exception any) {
+                status = 500;
+                sb.setLength(0);
+                sb.append("{\"error\":\"").append(any.getClass().getSimpleName()).append("\"}");
+            }
+            byte[] b = sb.toString().getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "application/json");
+            ex.sendResponseHeaders(status, b.length);
+            try (OutputStream os = ex.getResponseBody()) {
+                os.write(b);
+            }
+        }
+
+        private static int dimension(String model) {
+            int i = null == model ? 0 : model.length();
+            while (i > 0 && Character.isDigit(model.charAt(i - 1))) {
+                i--;
+            }
+            return null == model || i == model.length() ? 256 : Integer.parseInt(model.substring(i));
+        }
+
+        /**
+         * Signed feature hashing of the lower case words, normalized.
+         */
+        static float[] embed(String text, int dim) {
+            float[] v = new float[dim];
+            int h = 0;
+            int len = 0;
+            for (int i = 0; i <= text.length(); i++) {
+                char c = i < text.length() ? Character.toLowerCase(text.charAt(i)) : ' ';
+                if (Character.isLetterOrDigit(c)) {
+                    h = 31 * h + c;
+                    len++;
+                } else if (len > 0) {
+                    h ^= h >>> 16;
+                    h *= 0x85ebca6b;
+                    h ^= h >>> 13;
+                    v[(h & 0x7fffffff) % dim] += h < 0 ? -1 : 1;
+                    h = 0;
+                    len = 0;
+                }
+            }
+            double s = 0;
+            for (float f : v) {
+                s += f * f;
+            }
+            if (s > 0) {
+                float inv = (float) (1 / Math.sqrt(s));
+                for (int i = 0; i < dim; i++) {
+                    v[i] *= inv;
+                }
+            } else {
+                v[0] = 1;
+            }
+            return v;
+        }
+    }
+
+    /**
+     * Usage: EmbedBench [--mock] [--endpoint url] [--model name]... --corpus
+     * dir [--queries file] [--out dir] [--k n] [--concurrency 1,4,8]
+     *
+     * Without --model every model on the endpoint is run; without --queries a
+     * hundred queries are sampled from the corpus.
+     *
+     * @param args See above.
+     * @throws Exception If anything failed.
+     */
+    public static void main(String[] args) throws Exception {
+        boolean mock = false;
+        String endPoint = null;
+        List<String> models = new ArrayList<>();
+        File corpus = null;
+        File queryFile = null;
+        File out = new File("bench");
+        int k = 10;
+        int[] conc = {1, 4};
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--mock":
+                    mock = true;
+                    break;
+                case "--endpoint":
+                    endPoint = args[++i];
+                    break;
+                case "--model":
+                    models.add(args[++i]);
+                    break;
+                case "--corpus":
+                    corpus = new File(args[++i]);
+                    break;
+                case "--queries":
+                    queryFile = new File(args[++i]);
+                    break;
+                case "--out":
+                    out = new File(args[++i]);
+                    break;
+                case "--k":
+                    k = Integer.parseInt(args[++i]);
+                    break;
+                case "--concurrency":
+                    String[] parts = args[++i].split(",");
+                    conc = new int[parts.length];
+                    for (int j = 0; j < parts.length; j++) {
+                        conc[j] = Integer.parseInt(parts[j].trim());
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+        if (null == corpus) {
+            throw new IllegalArgumentException("Need --corpus dir");
+        }
+        MockServer server = null;
+        if (mock) {
+            server = new MockServer("mock-256", "mock-768");
+            endPoint = server.endPoint();
+        } else if (null == endPoint) {
+            Ollama.init();
+            endPoint = Ollama.config.lastEndpoint;
+        }
+        try {
+            EmbedBench bench = new EmbedBench(endPoint);
+            bench.k = k;
+            bench.concurrency = conc;
+            if (models.isEmpty()) {
+                AvailableModels am = Ollama.fetchAvailableModels(endPoint);
+                if (null == am) {
+                    throw new IOException("No models at " + endPoint);
+                }
+                for (AvailableModels.AvailableModel mod : am.models) {
+                    models.add(mod.name);
+                }
+            }
+            bench.models.addAll(models);
+            bench.addCorpus(corpus, null);
+            if (null != queryFile) {
+                bench.addQueries(queryFile);
+            } else {
+                bench.sampleQueries(100, 1);
+            }
+            bench.run();
+            System.out.println("Results in " + bench.write(out));
+        } finally {
+            if (null != server) {
+                server.stop();
+            }
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package nl.infcomtec.jllama;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Streaming decoder for the embedding responses of Ollama.
+ *
+ * Reads the response bytes once, skips everything but the "embedding" array
+ * and parses its numbers straight into a primitive buffer that keeps its size
+ * between calls. No response String, no boxing. One decoder per thread.
+ *
+ * Numbers with at most 15 significant digits and a small exponent take one
+ * exact division; longer ones (Go writes up to 17) are scaled in double-double
+ * and match Double.parseDouble except, rarely, by one ulp in near-halfway
+ * cases.
+ *
+ * @author Walter Stroebel
+ */
+public class EmbeddingDecoder {
+
+    private static final byte[] KEY = {'e', 'm', 'b', 'e', 'd', 'd', 'i', 'n', 'g'};
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private final byte[] buf = new byte[8192];
+    private final byte[] key = new byte[KEY.length + 1];
+    private InputStream in;
+    private int pos, lim;
+    private double[] values = new double[1024];
+    private float[] floats = new float[0];
+    private int count;
+
+    /**
+     * Decode a response.
+     *
+     * @param in The response body, not closed.
+     * @return The number of values.
+     * @throws IOException If reading failed or the response holds no
+     * embedding.
+     */
+    public int decode(InputStream in) throws IOException {
+        this.in = in;
+        pos = lim = 0;
+        count = -1;
+        try {
+            expect('{');
+            int c = skipSpace();
+            while ('}' != c) {
+                if ('"' != c) {
+                    throw new IOException("Expected a key at " + (char) c);
+                }
+                pos++;
+                boolean match = readKey();
+                expect(':');
+                if (match && '[' == skipSpace()) {
+                    pos++;
+                    readArray();
+                } else {
+                    skipValue();
+                }
+                c = skipSpace();
+                if (',' == c) {
+                    pos++;
+                    c = skipSpace();
+                }
+            }
+        } finally {
+            this.in = null;
+        }
+        if (count < 0) {
+            throw new IOException("No embedding in response");
+        }
+        return count;
+    }
+
+    /**
+     * @return Number of values of the last decode.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return The values of the last decode as a new array.
+     */
+    public double[] toDoubles() {
+        return Arrays.copyOf(values, count);
+    }
+
+    /**
+     * @return The values of the last decode as floats, in a buffer that is
+     * reused by the next call.
+     */
+    public float[] floats() {
+        if (floats.length != count) {
+            floats = new float[count];
+        }
+        for (int i = 0; i < count; i++) {
+            floats[i] = (float) values[i];
+        }
+        return floats;
+    }
+
+    private int peek() throws IOException {
+        if (pos == lim) {
+            lim = in.read(buf, 0, buf.length);
+            pos = 0;
+            if (lim <= 0) {
+                lim = 0;
+                throw new IOException("Unexpected end of response");
+            }
+        }
+        return buf[pos];
+    }
+
+    private int next() throws IOException {
+        int c = peek();
+        pos++;
+        return c;
+    }
+
+    private int skipSpace() throws IOException {
+        int c = peek();
+        while (' ' == c || '\n' == c || '\r' == c || '\t' == c) {
+            pos++;
+            c = peek();
+        }
+        return c;
+    }
+
+    private void expect(char ch) throws IOException {
+        if (ch != skipSpace()) {
+            throw new IOException("Expected " + ch + " at " + (char) peek());
+        }
+        pos++;
+    }
+
+    /**
+     * Read a key after its opening quote.
+     *
+     * @return True if it is the embedding.
+     */
+    private boolean readKey() throws IOException {
+        int n = 0;
+        for (int c = next(); '"' != c; c = next()) {
+            if ('\\' == c) {
+                next();
+                n = key.length;
+            } else if (n < key.length) {
+                key[n++] = (byte) c;
+            }
+        }
+        return KEY.length == n && Arrays.equals(KEY, 0, n, key, 0, n);
+    }
+
+    private void readArray() throws IOException {
+        count = 0;
+        int c = skipSpace();
+        if (']' == c) {
+            pos++;
+            return;
+        }
+        while (true) {
+            double d = readNumber();
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = d;
+            c = skipSpace();
+            pos++;
+            if (']' == c) {
+                return;
+            }
+            if (',' != c) {
+                throw new IOException("Expected , or ] at " + (char) c);
+            }
+            skipSpace();
+        }
+    }
+
+    private double readNumber() throws IOException {
+        boolean neg = false;
+        int c = peek();
+        if ('-' == c) {
+            neg = true;
+            pos++;
+            c = peek();
+        }
+        long m = 0;
+        int digits = 0;
+        int exp = 0;
+        boolean any = false;
+        while (c >= '0' && c <= '9') {
+            any = true;
+            if (digits < 18) {
+                m = m * 10 + (c - '0');
+                if (0 != m) {
+                    digits++;
+                }
+            } else {
+                exp++;
+            }
+            pos++;
+            c = peekOrEnd();
+        }
+        if ('.' == c) {
+            pos++;
+            c = peekOrEnd();
+            while (c >= '0' && c <= '9') {
+                any = true;
+                if (digits < 18) {
+                    m = m * 10 + (c - '0');
+                    if (0 != m) {
+                        digits++;
+                    }
+                    exp--;
+                }
+                pos++;
+                c = peekOrEnd();
+            }
+        }
+        if (!any) {
+            throw new IOException("Expected a number at " + (char) c);
+        }
+        if ('e' == c || 'E' == c) {
+            pos++;
+            c = peek();
+            boolean eneg = false;
+            if ('-' == c || '+' == c) {
+                eneg = '-' == c;
+                pos++;
+                c = peek();
+            }
+            int e = 0;
+            while (c >= '0' && c <= '9') {
+                e = Math.min(100000, e * 10 + (c - '0'));
+                pos++;
+                c = peekOrEnd();
+            }
+            exp += eneg ? -e : e;
+        }
+        double d = scale(m, exp);
+        return neg ? -d : d;
+    }
+
+    /**
+     * Peek that returns -1 at the end instead of failing, a number may end the
+     * input of a broken response and that is reported by the caller.
+     */
+    private int peekOrEnd() throws IOException {
+        if (pos == lim) {
+            lim = in.read(buf, 0, buf.length);
+            pos = 0;
+            if (lim <= 0) {
+                lim = 0;
+                return -1;
+            }
+        }
+        return buf[pos];
+    }
+
+    /**
+     * m * 10^exp. The mantissa is kept as an unevaluated sum hi + lo through
+     * steps of at most 10^22, which is exact as a double, and rounded once at
+     * the end.
+     */
+    private static double scale(long m, int exp) {
+        if (0 == m) {
+            return 0;
+        }
+        if (m < (1L << 53) && exp >= -22 && exp <= 22) {
+            // both exact, one rounding
+            return exp < 0 ? m / POW10[-exp] : m * POW10[exp];
+        }
+        double hi = m;
+        double lo = m - (long) hi;
+        while (exp < 0) {
+            int step = Math.min(22, -exp);
+            double p = POW10[step];
+            double q = hi / p;
+            lo = (Math.fma(-q, p, hi) + lo) / p;
+            hi = q;
+            exp += step;
+        }
+        while (exp > 0) {
+            int step = Math.min(22, exp);
+            double p = POW10[step];
+            double q = hi * p;
+            lo = Math.fma(hi, p, -q) + lo * p;
+            hi = q;
+            exp -= step;
+        }
+        return hi + lo;
+    }
+
+    private void skipValue() throws IOException {
+        int c = skipSpace();
+        if ('"' == c) {
+            pos++;
+            skipString();
+        } else if ('{' == c || '[' == c) {
+            int depth = 0;
+            do {
+                c = next();
+                if ('"' == c) {
+                    skipString();
+                } else if ('{' == c || '[' == c) {
+                    depth++;
+                } else if ('}' == c || ']' == c) {
+                    depth--;
+                }
+            } while (depth > 0);
+        } else {
+            // number, true, false or null
+            while (',' != c && '}' != c && ']' != c && ' ' != c && '\n' != c && '\r' != c && '\t' != c) {
+                pos++;
+                c = peek();
+            }
+        }
+    }
+
+    private void skipString() throws IOException {
+        for (int c = next(); '"' != c; c = next()) {
+            if ('\\' == c) {
+                next();
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package nl.infcomtec.jllama;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import nl.infcomtec.vectors.Pca;
+
+/**
+ * A 2-D map of embeddings: the first two principal components as a scatter
+ * plot, for the ImageViewer.
+ *
+ * @author Walter Stroebel
+ */
+public class EmbeddingMap {
+
+    private static final Color[] PALETTE = {
+        new Color(0x1f77b4), new Color(0xff7f0e), new Color(0x2ca02c), new Color(0xd62728),
+        new Color(0x9467bd), new Color(0x8c564b), new Color(0xe377c2), new Color(0x7f7f7f),
+        new Color(0xbcbd22), new Color(0x17becf)
+    };
+
+    /**
+     * Project points to 2-D and plot them.
+     *
+     * @param data The points, n * dim, back to back.
+     * @param n Number of points, at least 3.
+     * @param dim Their dimension.
+     * @param labels Text per point, or null.
+     * @param groups Colour group per point, or null.
+     * @param w Image width.
+     * @param h Image height.
+     * @return The image.
+     */
+    public static BufferedImage of(float[] data, int n, int dim, String[] labels, int[] groups, int w, int h) {
+        Pca pca = Pca.fit(data, n, dim, 2, 4, null);
+        float[] xy = new float[2 * n];
+        for (int i = 0; i < n; i++) {
+            pca.project(data, i * dim, xy, 2 * i);
+        }
+        return render(xy, n, labels, groups, w, h);
+    }
+
+    /**
+     * Plot 2-D points scaled to fit.
+     *
+     * @param xy The points, x and y back to back.
+     * @param n Number of points.
+     * @param labels Text per point, or null.
+     * @param groups Colour group per point, or null.
+     * @param w Image width.
+     * @param h Image height.
+     * @return The image.
+     */
+    public static BufferedImage render(float[] xy, int n, String[] labels, int[] groups, int w, int h) {
+        float minX = Float.POSITIVE_INFINITY, maxX = Float.NEGATIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, xy[2 * i]);
+            maxX = Math.max(maxX, xy[2 * i]);
+            minY = Math.min(minY, xy[2 * i + 1]);
+            maxY = Math.max(maxY, xy[2 * i + 1]);
+        }
+        int margin = 20;
+        float sx = (w - 2 * margin) / Math.max(1e-9f, maxX - minX);
+        float sy = (h - 2 * margin) / Math.max(1e-9f, maxY - minY);
+        BufferedImage ret = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = ret.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, w, h);
+        g.setColor(Color.LIGHT_GRAY);
+        g.setStroke(new BasicStroke(1));
+        int ox = margin + (int) ((0 - minX) * sx);
+        int oy = h - margin - (int) ((0 - minY) * sy);
+        g.drawLine(margin, oy, w - margin, oy);
+        g.drawLine(ox, margin, ox, h - margin);
+        g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 10));
+        for (int i = 0; i < n; i++) {
+            int x = margin + (int) ((xy[2 * i] - minX) * sx);
+            int y = h - margin - (int) ((xy[2 * i + 1] - minY) * sy);
+            g.setColor(null == groups ? PALETTE[0] : PALETTE[groups[i] % PALETTE.length]);
+            g.fillOval(x - 3, y - 3, 7, 7);
+            if (null != labels && null != labels[i]) {
+                g.setColor(Color.DARK_GRAY);
+                String s = labels[i].length() > 30 ? labels[i].substring(0, 30) + "..." : labels[i];
+                g.drawString(s, x + 5, y - 3);
+            }
+        }
+        g.dispose();
+        return ret;
+    }
+}
@@ -1,8 +1,12 @@
 package nl.infcomtec.jllama;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import nl.infcomtec.vectors.Similarity;
 
 /**
  * Embeddings.
@@ -13,6 +17,10 @@ public class Embeddings {
 
     public Request request;
     public Response response;
+    /**
+     * Cached statistics of response.embedding, NaN until first needed.
+     */
+    private double norm = Double.NaN, mean, centered;
 
     public static class Request {
 
@@ -66,23 +74,9 @@ public class Embeddings {
      * similarity.
      */
     public double cosineSimilarity(Embeddings other) {
-        if (!request.model.equals(other.request.model)) {
-            throw new RuntimeException("Not the same model");
-        }
-        double[] vectorA = response.embedding;
-        double[] vectorB = other.response.embedding;
-        if (vectorA == null || vectorB == null || vectorA.length != vectorB.length) {
-            throw new RuntimeException("Vectors must be non-null and of equal length");
-        }
-        double dotProduct = 0.0;
-        double normA = 0.0;
-        double normB = 0.0;
-        for (int i = 0; i < vectorA.length; i++) {
-            dotProduct += vectorA[i] * vectorB[i];
-            normA += Math.pow(vectorA[i], 2);
-            normB += Math.pow(vectorB[i], 2);
-        }
-        double denominator = Math.sqrt(normA) * Math.sqrt(normB);
+        checkComparable(other);
+        double dotProduct = Similarity.dot(response.embedding, other.response.embedding);
+        double denominator = norm() * other.norm();
 
         if (denominator == 0) {
             throw new RuntimeException("The norm of one or both vectors is 0.");
@@ -106,7 +100,17 @@ public class Embeddings {
      * match, or if the vectors are null or of different lengths.
      */
     public double euclidianDistance(Embeddings other) {
-        if (!request.model.equals(other.request.model)) {
+        checkComparable(other);
+        return Math.sqrt(Similarity.l2sq(response.embedding, other.response.embedding));
+    }
+
+    /**
+     * Model and vector checks shared by the comparisons. Embeddings from the
+     * same client share the model string, so the identity test usually avoids
+     * the string compare.
+     */
+    private void checkComparable(Embeddings other) {
+        if (request.model != other.request.model && !request.model.equals(other.request.model)) {
             throw new RuntimeException("Not the same model");
         }
         double[] vectorA = response.embedding;
@@ -114,18 +118,147 @@ public class Embeddings {
         if (vectorA == null || vectorB == null || vectorA.length != vectorB.length) {
             throw new RuntimeException("Vectors must be non-null and of equal length");
         }
-        double sumSquaredDifferences = 0.0;
-        for (int i = 0; i < vectorA.length; i++) {
-            sumSquaredDifferences += Math.pow(vectorA[i] - vectorB[i], 2);
+    }
+
+    private void stats() {
+        if (Double.isNaN(norm)) {
+            double[] v = response.embedding;
+            double sum = 0;
+            double sumSq = 0;
+            for (double d : v) {
+                sum += d;
+                sumSq += d * d;
+            }
+            mean = sum / v.length;
+            centered = Math.sqrt(Math.max(0, sumSq - v.length * mean * mean));
+            norm = Math.sqrt(sumSq);
         }
-        return Math.sqrt(sumSquaredDifferences);
     }
 
+    /**
+     * @return The L2 norm of the embedding, computed once.
+     */
+    public double norm() {
+        stats();
+        return norm;
+    }
+
+    /**
+     * Heat map of the embedding, one cell per value: red for negative, blue
+     * for positive.
+     *
+     * @param w Image width.
+     * @param h Image height.
+     * @param xf Cell width.
+     * @param yf Cell height.
+     * @param log Scale logarithmically.
+     * @return The image.
+     */
     public BufferedImage toImage(int w, int h, int xf, int yf, boolean log) {
         BufferedImage ret = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        int[] px = ((DataBufferInt) ret.getRaster().getDataBuffer()).getData();
+        int[] cells = cells(response.embedding, log, false);
+        paint(cells, px, w, 0, 0, w, h, xf, yf);
+        return ret;
+    }
+
+    /**
+     * Like toImage but three consecutive values make one cell, as red, green
+     * and blue around mid-grey.
+     *
+     * @param w Image width.
+     * @param h Image height.
+     * @param xf Cell width.
+     * @param yf Cell height.
+     * @param log Scale logarithmically.
+     * @return The image.
+     */
+    public BufferedImage toImageRGB(int w, int h, int xf, int yf, boolean log) {
+        BufferedImage ret = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        int[] px = ((DataBufferInt) ret.getRaster().getDataBuffer()).getData();
+        int[] cells = cells(response.embedding, log, true);
+        paint(cells, px, w, 0, 0, w, h, xf, yf);
+        return ret;
+    }
+
+    /**
+     * Render many embeddings as tiles of one image, in parallel. Each tile
+     * holds the square-ish heat map of toImage(boolean), with cells as large
+     * as fit, so embeddings of different models can share an atlas.
+     *
+     * @param list The embeddings, row by row.
+     * @param columns Tiles per row.
+     * @param tileW Tile width.
+     * @param tileH Tile height.
+     * @param log Scale logarithmically.
+     * @param rgb Three values per cell as in toImageRGB.
+     * @return The atlas, tile i at column i % columns, row i / columns.
+     */
+    public static BufferedImage atlas(List<Embeddings> list, int columns, int tileW, int tileH, boolean log, boolean rgb) {
+        int rows = Math.max(1, (list.size() + columns - 1) / columns);
+        int stride = columns * tileW;
+        BufferedImage ret = new BufferedImage(stride, rows * tileH, BufferedImage.TYPE_INT_ARGB);
+        int[] px = ((DataBufferInt) ret.getRaster().getDataBuffer()).getData();
+        ForkJoinPool.commonPool().invoke(new Tiles(list, 0, list.size(), columns, tileW, tileH, log, rgb, px, stride));
+        return ret;
+    }
+
+    /**
+     * Renders a range of atlas tiles; tiles never overlap so the tasks can
+     * share the pixel array.
+     */
+    private static class Tiles extends RecursiveAction {
+
+        final List<Embeddings> list;
+        final int from, to, columns, tileW, tileH, stride;
+        final boolean log, rgb;
+        final int[] px;
+
+        Tiles(List<Embeddings> list, int from, int to, int columns, int tileW, int tileH, boolean log, boolean rgb, int[] px, int stride) {
+            this.list = list;
+            this.from = from;
+            this.to = to;
+            this.columns = columns;
+            this.tileW = tileW;
+            this.tileH = tileH;
+            this.log = log;
+            this.rgb = rgb;
+            this.px = px;
+            this.stride = stride;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 4) {
+                for (int i = from; i < to; i++) {
+                    int[] cells = cells(list.get(i).response.embedding, log, rgb);
+                    int side = Math.max(1, (int) Math.round(Math.sqrt(cells.length)));
+                    int high = (cells.length + side - 1) / side;
+                    int cell = Math.max(1, Math.min(tileW / side, tileH / Math.max(1, high)));
+                    paint(cells, px, stride, (i % columns) * tileW, (i / columns) * tileH,
+                            Math.min(tileW, side * cell), tileH, cell, cell);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Tiles(list, from, mid, columns, tileW, tileH, log, rgb, px, stride),
+                    new Tiles(list, mid, to, columns, tileW, tileH, log, rgb, px, stride));
+        }
+    }
+
+    /**
+     * The packed ARGB colour of every cell. The scale factors are worked out
+     * once from the extremes, each value is then mapped with at most one log.
+     *
+     * @param e The embedding.
+     * @param log Scale logarithmically.
+     * @param rgb Three values per cell, a trailing partial cell is dropped.
+     * @return The colours.
+     */
+    static int[] cells(double[] e, boolean log, boolean rgb) {
         double min = Double.POSITIVE_INFINITY;
         double max = Double.NEGATIVE_INFINITY;
-        for (double d : response.embedding) {
+        for (double d : e) {
             min = Math.min(min, d);
             max = Math.max(max, d);
         }
@@ -133,98 +266,81 @@ public class Embeddings {
             min = Math.log(-min);
             max = Math.log(max);
         }
-        System.out.format("Count=%d, MiniMax=%.2f - %.2f\n", response.embedding.length, min, max);
-        double rf = 255.0 / min;
-        double bf = 255.0 / max;
-        int x = 0;
-        int y = 0;
-        Graphics2D gr = ret.createGraphics();
-        for (double d : response.embedding) {
-            double r, b;
-            if (log) {
-                if (d < 0) {
-                    r = Math.log(-d) * rf;
-                    b = 0;
-                } else {
-                    r = 0;
-                    b = Math.log(d) * bf;
-                }
-            } else {
-                if (d < 0) {
-                    r = -d * rf;
-                    b = 0;
-                } else {
-                    r = 0;
-                    b = d * bf;
+        double span = rgb ? 127.0 : 255.0;
+        double rf = span / min;
+        double bf = span / max;
+        if (rgb) {
+            int[] ret = new int[e.length / 3];
+            for (int c = 0; c < ret.length; c++) {
+                int argb = 0xFF000000;
+                for (int k = 0; k < 3; k++) {
+                    double d = e[3 * c + k];
+                    double v;
+                    if (log) {
+                        v = d < 0 ? 127.5 - Math.log(-d) * rf : 127.5 + Math.log(d) * bf;
+                    } else {
+                        v = 127.5 + d * (d < 0 ? rf : bf);
+                    }
+                    argb |= clamp(v) << (16 - 8 * k);
                 }
+                ret[c] = argb;
             }
-            r = Math.max(0, Math.min(255, r));
-            b = Math.max(0, Math.min(255, b));
-            Color c = new Color((int) r, 64 + (int) ((r + b) / 4), (int) b, 255);
-            gr.setColor(c);
-            gr.fillRect(x, y, xf, yf);
-            x += xf;
-            if (x >= w) {
-                x = 0;
-                y += yf;
+            return ret;
+        }
+        int[] ret = new int[e.length];
+        for (int c = 0; c < ret.length; c++) {
+            double d = e[c];
+            int r = 0;
+            int b = 0;
+            if (d < 0) {
+                r = clamp((log ? Math.log(-d) : -d) * rf);
+            } else {
+                b = clamp((log ? Math.log(d) : d) * bf);
             }
+            int g = 64 + (r + b) / 4;
+            ret[c] = 0xFF000000 | (r << 16) | (g << 8) | b;
         }
-        gr.dispose();
         return ret;
     }
 
-    public BufferedImage toImageRGB(int w, int h, int xf, int yf, boolean log) {
-        BufferedImage ret = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-        double min = Double.POSITIVE_INFINITY;
-        double max = Double.NEGATIVE_INFINITY;
-        for (double d : response.embedding) {
-            min = Math.min(min, d);
-            max = Math.max(max, d);
-        }
-        if (log) {
-            min = Math.log(-min);
-            max = Math.log(max);
-        }
-        System.out.format("Count=%d, MiniMax=%.2f - %.2f\n", response.embedding.length, min, max);
-        double rf = 127.0 / min;
-        double bf = 127.0 / max;
+    private static int clamp(double v) {
+        // NaN, from the log of zero or of a missing sign, ends up 0 as before
+        return Math.max(0, (int) Math.min(255, v));
+    }
+
+    /**
+     * Fill cells left to right, top to bottom, into a region of a pixel array,
+     * clipped to the region.
+     *
+     * @param cells Packed colours.
+     * @param px Pixels, row-major.
+     * @param stride Pixels per row of px.
+     * @param ox Region left.
+     * @param oy Region top.
+     * @param w Region width, cells wrap when they reach it.
+     * @param h Region height.
+     * @param xf Cell width.
+     * @param yf Cell height.
+     */
+    private static void paint(int[] cells, int[] px, int stride, int ox, int oy, int w, int h, int xf, int yf) {
         int x = 0;
         int y = 0;
-        Graphics2D gr = ret.createGraphics();
-        double[] rgb = new double[3];
-        int i = 0;
-        for (double d : response.embedding) {
-            if (log) {
-                if (d < 0) {
-                    rgb[i] = 127.5 - Math.log(-d) * rf;
-                } else {
-                    rgb[i] = 127.5 + Math.log(d) * bf;
-                }
-            } else {
-                if (d < 0) {
-                    rgb[i] = 127.5 + d * rf;
-                } else {
-                    rgb[i] = 127.5 + d * bf;
-                }
+        for (int c : cells) {
+            if (y >= h) {
+                break;
             }
-            i++;
-            if (3 == i) {
-                int r = Math.max(0, (int) Math.min(255, rgb[0]));
-                int g = Math.max(0, (int) Math.min(255, rgb[1]));
-                int b = Math.max(0, (int) Math.min(255, rgb[2]));
-                Color c = new Color(r, g, b);
-                gr.setColor(c);
-                gr.fillRect(x, y, xf, yf);
-                x += xf;
-                if (x >= w) {
-                    x = 0;
-                    y += yf;
-                }
-                i = 0;
+            int x1 = Math.min(w, x + xf);
+            int y1 = Math.min(h, y + yf);
+            for (int row = y; row < y1; row++) {
+                int o = (oy + row) * stride + ox;
+                Arrays.fill(px, o + x, o + x1, c);
+            }
+            x += xf;
+            if (x >= w) {
+                x = 0;
+                y += yf;
             }
         }
-        gr.dispose();
-        return ret;
     }
 
     /**
@@ -241,14 +357,9 @@ public class Embeddings {
      * or if the vectors are null or of different lengths.
      */
     public double manhattanDistance(Embeddings other) {
-        if (!request.model.equals(other.request.model)) {
-            throw new RuntimeException("Not the same model");
-        }
+        checkComparable(other);
         double[] vectorA = response.embedding;
         double[] vectorB = other.response.embedding;
-        if (vectorA == null || vectorB == null || vectorA.length != vectorB.length) {
-            throw new RuntimeException("Vectors must be non-null and of equal length");
-        }
         double sum = 0.0;
         for (int i = 0; i < vectorA.length; i++) {
             sum += Math.abs(vectorA[i] - vectorB[i]);
@@ -275,37 +386,15 @@ public class Embeddings {
      * linear relationship between the two embeddings.
      */
     public double pearsonCorrelation(Embeddings other) {
-        if (!request.model.equals(other.request.model)) {
-            throw new RuntimeException("Not the same model");
-        }
-        double[] vectorA = response.embedding;
-        double[] vectorB = other.response.embedding;
-        if (vectorA == null || vectorB == null || vectorA.length != vectorB.length) {
-            throw new RuntimeException("Vectors must be non-null and of equal length");
-        }
-        double meanA = 0.0;
-        double meanB = 0.0;
-        for (int i = 0; i < vectorA.length; i++) {
-            meanA += vectorA[i];
-            meanB += vectorB[i];
-        }
-        meanA /= vectorA.length;
-        meanB /= vectorB.length;
-
-        double sumProduct = 0.0;
-        double sumSquareA = 0.0;
-        double sumSquareB = 0.0;
-        for (int i = 0; i < vectorA.length; i++) {
-            double diffA = vectorA[i] - meanA;
-            double diffB = vectorB[i] - meanB;
-            sumProduct += diffA * diffB;
-            sumSquareA += diffA * diffA;
-            sumSquareB += diffB * diffB;
-        }
-        if (sumSquareA == 0 || sumSquareB == 0) {
+        checkComparable(other);
+        stats();
+        other.stats();
+        if (centered == 0 || other.centered == 0) {
             throw new RuntimeException("Division by zero in Pearson calculation");
         }
-        return sumProduct / (Math.sqrt(sumSquareA) * Math.sqrt(sumSquareB));
+        double sumProduct = Similarity.dot(response.embedding, other.response.embedding)
+                - response.embedding.length * mean * other.mean;
+        return sumProduct / (centered * other.centered);
     }
 
 }
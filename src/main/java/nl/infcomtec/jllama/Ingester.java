@@ -0,0 +1,698 @@
+package nl.infcomtec.jllama;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import nl.infcomtec.vectors.Hits;
+import nl.infcomtec.vectors.PersistentIndex;
+import nl.infcomtec.vectors.Similarity;
+import nl.infcomtec.vectors.VectorStore;
+
+/**
+ * Embeds a tree of text files into a PersistentIndex, one vector per chunk.
+ *
+ * Three stages connected by bounded queues: readers map and chunk files,
+ * embedders call Ollama, and one writer adds the vectors to the index. A
+ * file with the same modification time as the last time all its chunks were
+ * written is not read at all; of a changed file only the chunks with a new
+ * content hash are embedded, the chunks that are gone are deleted. New chunks
+ * that are near-duplicates (MinHash) of a chunk already in the index or on
+ * its way are dropped before they cost an embedding; their file is read
+ * again once the chunk they duplicate is deleted or fails.
+ *
+ * Those modification times are kept in a file next to the index, written
+ * after each checkpoint, so a file of which not every chunk made it before a
+ * failure or a kill is read again after a restart.
+ *
+ * @author Walter Stroebel
+ */
+public class Ingester {
+
+    private static final int MAGIC = 0x494e4753; // INGS
+    private static final int VERSION = 2;
+    /**
+     * File in the index directory with the modification time of every source
+     * of which all chunks were written, and which sources had chunks dropped
+     * as duplicates of which key.
+     */
+    public static final String SOURCES = "sources";
+    public final OllamaEmbeddings embeddings;
+    public final File indexDir;
+    public Chunker chunker = new Chunker(2000, 200);
+    /**
+     * Threads reading and chunking files.
+     */
+    public int readers = 2;
+    /**
+     * Threads waiting for embeddings; Ollama can serve several at once.
+     */
+    public int embedders = 4;
+    /**
+     * Capacity of each queue between the stages.
+     */
+    public int queueSize = 64;
+    public MinHash minHash = new MinHash();
+    /**
+     * Estimated Jaccard similarity from which chunks are duplicates, more
+     * than 1 turns duplicate detection off.
+     */
+    public double duplicateThreshold = 0.9;
+    private PersistentIndex index;
+    /**
+     * Signatures of the indexed chunks by key, and of queued chunks by a
+     * negative provisional id. Guarded by itself, null until needed.
+     */
+    private MinHash.Index dups;
+    private final AtomicInteger provisional = new AtomicInteger();
+    /**
+     * Source file to the keys of its chunks, and the newest modification time
+     * of which every chunk was written. Guarded by itself.
+     */
+    private final TreeMap<String, List<Integer>> bySource = new TreeMap<>();
+    private final TreeMap<String, Long> sourceMod = new TreeMap<>();
+    /**
+     * Key or provisional id of a chunk to the files of which a chunk was
+     * dropped as its duplicate; when it is deleted or fails those files are
+     * read again. Guarded by itself.
+     */
+    private final TreeMap<Integer, List<Pending>> dropped = new TreeMap<>();
+
+    /**
+     * What an ingest did.
+     */
+    public static class Report {
+
+        public final AtomicInteger files = new AtomicInteger();
+        public final AtomicInteger unchangedFiles = new AtomicInteger();
+        public final AtomicInteger removedFiles = new AtomicInteger();
+        public final AtomicInteger chunks = new AtomicInteger();
+        public final AtomicInteger unchangedChunks = new AtomicInteger();
+        public final AtomicInteger duplicateChunks = new AtomicInteger();
+        public final AtomicInteger embedded = new AtomicInteger();
+        public final AtomicInteger deleted = new AtomicInteger();
+        public final AtomicInteger failed = new AtomicInteger();
+        public long millis;
+
+        @Override
+        public String toString() {
+            return "Report{" + "files=" + files + ", unchangedFiles=" + unchangedFiles + ", removedFiles=" + removedFiles
+                    + ", chunks=" + chunks + ", unchangedChunks=" + unchangedChunks + ", duplicateChunks=" + duplicateChunks + ", embedded=" + embedded
+                    + ", deleted=" + deleted + ", failed=" + failed + ", millis=" + millis + '}';
+        }
+    }
+
+    /**
+     * A file being ingested: its jobs still underway plus one for the reader,
+     * and whether one of them failed.
+     */
+    private static class Pending {
+
+        final String source;
+        final long lastMod;
+        final AtomicInteger left = new AtomicInteger(1);
+        volatile boolean failed;
+
+        Pending(String source, long lastMod) {
+            this.source = source;
+            this.lastMod = lastMod;
+        }
+    }
+
+    /**
+     * A chunk on its way through the pipeline.
+     */
+    private static class Job {
+
+        final Pending file;
+        final String source;
+        final long lastMod;
+        final Chunker.Chunk chunk;
+        int[] signature;
+        int provisional;
+        float[] vector;
+
+        Job(Pending file, Chunker.Chunk chunk) {
+            this.file = file;
+            this.source = null == file ? null : file.source;
+            this.lastMod = null == file ? 0 : file.lastMod;
+            this.chunk = chunk;
+        }
+    }
+
+    private static final Job END = new Job(null, null);
+
+    /**
+     * The duplicate index, built from the stored chunks on first use.
+     */
+    private MinHash.Index dups() {
+        if (null == dups && duplicateThreshold <= 1) {
+            MinHash.Index idx = minHash.new Index();
+            if (null != index) {
+                for (int key : index.keys()) {
+                    VectorStore.Metadata meta = index.getMetadata(key);
+                    if (null != meta && null != meta.text) {
+                        idx.add(key, minHash.signature(meta.text));
+                    }
+                }
+            }
+            dups = idx;
+        }
+        return dups;
+    }
+
+    /**
+     * Forget the signature of a deleted or failed chunk, and that the files
+     * with a duplicate of it are done.
+     */
+    private void forget(int id) {
+        if (null != dups) {
+            synchronized (dups) {
+                dups.remove(id);
+            }
+        }
+        List<Pending> lost;
+        synchronized (dropped) {
+            lost = dropped.remove(id);
+        }
+        if (null != lost) {
+            synchronized (bySource) {
+                for (Pending p : lost) {
+                    p.failed = true;
+                    Long mod = sourceMod.get(p.source);
+                    if (null != mod && mod == p.lastMod) {
+                        sourceMod.remove(p.source);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A chunk of a file was dropped as a duplicate of a chunk.
+     */
+    private void dependOn(int id, Pending file) {
+        synchronized (dropped) {
+            List<Pending> list = dropped.get(id);
+            if (null == list) {
+                dropped.put(id, list = new ArrayList<>());
+            }
+            list.add(file);
+        }
+    }
+
+    /**
+     * A queued chunk got its key.
+     */
+    private void moved(int provisional, int key) {
+        synchronized (dropped) {
+            List<Pending> list = dropped.remove(provisional);
+            if (null != list) {
+                List<Pending> old = dropped.get(key);
+                if (null == old) {
+                    dropped.put(key, list);
+                } else {
+                    old.addAll(list);
+                }
+            }
+        }
+    }
+
+    /**
+     * Ingester for an index directory, picking up what is already in it.
+     *
+     * @param embeddings The model.
+     * @param indexDir Directory of the PersistentIndex.
+     * @throws IOException If an existing index could not be opened.
+     */
+    public Ingester(OllamaEmbeddings embeddings, File indexDir) throws IOException {
+        this.embeddings = embeddings;
+        this.indexDir = indexDir;
+        index = PersistentIndex.open(indexDir, Similarity.Metric.COSINE);
+        if (null != index) {
+            if (!index.model.equals(embeddings.getModel())) {
+                throw new IOException("Index in " + indexDir + " is for " + index.model);
+            }
+            for (int key : index.keys()) {
+                VectorStore.Metadata meta = index.getMetadata(key);
+                sourceOf(meta.source).add(key);
+            }
+            try {
+                readSources();
+            } catch (IOException ex) {
+                // no or bad file, every source is read once and only what is missing embedded
+                Logger.getLogger(Ingester.class.getName()).log(Level.INFO, "Rereading all sources of {0}", indexDir);
+                sourceMod.clear();
+                dropped.clear();
+            }
+        }
+    }
+
+    /**
+     * Keys of a source.
+     */
+    private List<Integer> sourceOf(String source) {
+        synchronized (bySource) {
+            List<Integer> keys = bySource.get(source);
+            if (null == keys) {
+                bySource.put(source, keys = new ArrayList<>());
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * Register the modification time of a source as done.
+     */
+    private void modified(String source, long lastMod) {
+        synchronized (bySource) {
+            Long mod = sourceMod.get(source);
+            if (null == mod || mod < lastMod) {
+                sourceMod.put(source, lastMod);
+            }
+        }
+    }
+
+    /**
+     * One job of a file done; after the last the file counts as ingested
+     * unless a job failed, then it is read again next time.
+     */
+    private void done(Pending file, boolean ok) {
+        if (!ok) {
+            file.failed = true;
+        }
+        if (0 == file.left.decrementAndGet()) {
+            // under the lock, so a duplicate lost meanwhile cannot be missed
+            synchronized (bySource) {
+                if (!file.failed) {
+                    modified(file.source, file.lastMod);
+                }
+            }
+        }
+    }
+
+    /**
+     * Bring the index up to date with all files below a directory.
+     *
+     * @param root The directory.
+     * @param filter Which files, null for all; directories are always
+     * followed except hidden ones and the index itself.
+     * @return What was done.
+     * @throws Exception If the index could not be written.
+     */
+    public synchronized Report ingest(File root, FileFilter filter) throws Exception {
+        long t0 = System.currentTimeMillis();
+        final Report report = new Report();
+        final BlockingQueue<File> fileQ = new ArrayBlockingQueue<>(queueSize);
+        final BlockingQueue<Job> embedQ = new ArrayBlockingQueue<>(queueSize);
+        final BlockingQueue<Job> writeQ = new ArrayBlockingQueue<>(queueSize);
+        final AtomicInteger readersLeft = new AtomicInteger(readers);
+        final AtomicInteger embeddersLeft = new AtomicInteger(embedders);
+        ExecutorService pool = Executors.newFixedThreadPool(readers + embedders + 1);
+        dups();
+        try {
+            for (int i = 0; i < readers; i++) {
+                pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (File f = fileQ.take(); !f.getPath().isEmpty(); f = fileQ.take()) {
+                                try {
+                                    read(f, embedQ, report);
+                                } catch (Exception ex) {
+                                    report.failed.incrementAndGet();
+                                    Logger.getLogger(Ingester.class.getName()).log(Level.SEVERE, f.getPath(), ex);
+                                }
+                            }
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            if (0 == readersLeft.decrementAndGet()) {
+                                for (int e = 0; e < embedders; e++) {
+                                    putQuietly(embedQ, END);
+                                }
+                            }
+                        }
+                    }
+                });
+            }
+            for (int i = 0; i < embedders; i++) {
+                pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (Job job = embedQ.take(); END != job; job = embedQ.take()) {
+                                try {
+                                    job.vector = embeddings.getVector(job.chunk.text);
+                                    writeQ.put(job);
+                                } catch (InterruptedException ex) {
+                                    throw ex;
+                                } catch (Exception ex) {
+                                    report.failed.incrementAndGet();
+                                    forget(job.provisional);
+                                    done(job.file, false);
+                                    Logger.getLogger(Ingester.class.getName()).log(Level.SEVERE, job.source, ex);
+                                }
+                            }
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            if (0 == embeddersLeft.decrementAndGet()) {
+                                putQuietly(writeQ, END);
+                            }
+                        }
+                    }
+                });
+            }
+            final TreeSet<String> seen = new TreeSet<>();
+            pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        walk(root, filter, fileQ, seen);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        for (int r = 0; r < readers; r++) {
+                            putQuietly(fileQ, new File(""));
+                        }
+                    }
+                }
+            });
+            // this thread is the writer
+            for (Job job = writeQ.take(); END != job; job = writeQ.take()) {
+                VectorStore.Metadata meta = new VectorStore.Metadata(job.chunk.text, job.source);
+                meta.created = System.currentTimeMillis();
+                meta.lastMod = job.lastMod;
+                if (null == index) {
+                    index = new PersistentIndex(indexDir, embeddings.getModel(), job.vector.length, Similarity.Metric.COSINE);
+                }
+                int key = index.add(job.vector, meta);
+                if (null != dups) {
+                    synchronized (dups) {
+                        dups.remove(job.provisional);
+                        dups.add(key, job.signature);
+                    }
+                    moved(job.provisional, key);
+                }
+                List<Integer> keys = sourceOf(job.source);
+                synchronized (bySource) {
+                    keys.add(key);
+                }
+                done(job.file, true);
+                report.embedded.incrementAndGet();
+            }
+            // files that are gone, also those of which every chunk was a duplicate
+            String prefix = root.getPath() + File.separator;
+            TreeSet<String> gone = new TreeSet<>();
+            synchronized (bySource) {
+                synchronized (seen) {
+                    for (String s : bySource.keySet()) {
+                        if (s.startsWith(prefix) && !seen.contains(s)) {
+                            gone.add(s);
+                        }
+                    }
+                    for (String s : sourceMod.keySet()) {
+                        if (s.startsWith(prefix) && !seen.contains(s)) {
+                            gone.add(s);
+                        }
+                    }
+                }
+            }
+            for (String s : gone) {
+                List<Integer> keys;
+                synchronized (bySource) {
+                    keys = bySource.remove(s);
+                    sourceMod.remove(s);
+                }
+                for (int key : null == keys ? new ArrayList<Integer>() : keys) {
+                    forget(key);
+                    if (index.delete(key)) {
+                        report.deleted.incrementAndGet();
+                    }
+                }
+                report.removedFiles.incrementAndGet();
+            }
+            if (null != index) {
+                index.checkpoint();
+                writeSources();
+            }
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        report.millis = System.currentTimeMillis() - t0;
+        return report;
+    }
+
+    /**
+     * Write the modification times of the sources that are done, after a
+     * checkpoint so they never claim more than the index holds.
+     */
+    private void writeSources() throws IOException {
+        TreeMap<String, Long> mods;
+        synchronized (bySource) {
+            mods = new TreeMap<>(sourceMod);
+        }
+        // only what the sources as done depend on
+        TreeMap<Integer, List<String>> deps = new TreeMap<>();
+        synchronized (dropped) {
+            for (Map.Entry<Integer, List<Pending>> e : dropped.entrySet()) {
+                List<String> list = new ArrayList<>();
+                for (Pending p : e.getValue()) {
+                    Long mod = mods.get(p.source);
+                    if (e.getKey() >= 0 && null != mod && mod == p.lastMod) {
+                        list.add(p.source);
+                    }
+                }
+                if (!list.isEmpty()) {
+                    deps.put(e.getKey(), list);
+                }
+            }
+        }
+        File file = new File(indexDir, SOURCES);
+        File tmp = new File(indexDir, SOURCES + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mods.size());
+            for (Map.Entry<String, Long> e : mods.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue());
+            }
+            out.writeInt(deps.size());
+            for (Map.Entry<Integer, List<String>> e : deps.entrySet()) {
+                out.writeInt(e.getKey());
+                out.writeInt(e.getValue().size());
+                for (String source : e.getValue()) {
+                    out.writeUTF(source);
+                }
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void readSources() throws IOException {
+        File file = new File(indexDir, SOURCES);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int version = MAGIC == in.readInt() ? in.readInt() : 0;
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Not a sources file: " + file);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                String source = in.readUTF();
+                sourceMod.put(source, in.readLong());
+            }
+            for (int i = version < 2 ? 0 : in.readInt(); i > 0; i--) {
+                int key = in.readInt();
+                for (int j = in.readInt(); j > 0; j--) {
+                    String source = in.readUTF();
+                    Long mod = sourceMod.get(source);
+                    if (null != mod) {
+                        Pending p = new Pending(source, mod);
+                        p.left.set(0);
+                        dependOn(key, p);
+                    }
+                }
+            }
+        }
+    }
+
+    private static <T> void putQuietly(BlockingQueue<T> q, T item) {
+        try {
+            q.put(item);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void walk(File dir, FileFilter filter, BlockingQueue<File> fileQ, TreeSet<String> seen) throws InterruptedException {
+        File[] list = dir.listFiles();
+        if (null == list) {
+            return;
+        }
+        for (File f : list) {
+            if (f.isDirectory()) {
+                if (!f.getName().startsWith(".") && !f.getAbsoluteFile().equals(indexDir.getAbsoluteFile())) {
+                    walk(f, filter, fileQ, seen);
+                }
+            } else if (f.isFile() && (null == filter || filter.accept(f))) {
+                synchronized (seen) {
+                    seen.add(f.getPath());
+                }
+                fileQ.put(f);
+            }
+        }
+    }
+
+    /**
+     * Chunk a file and queue the chunks that are new, delete those that are
+     * gone.
+     */
+    private void read(File f, BlockingQueue<Job> embedQ, Report report) throws Exception {
+        report.files.incrementAndGet();
+        String source = f.getPath();
+        long lastMod = f.lastModified();
+        List<Integer> old;
+        synchronized (bySource) {
+            Long mod = sourceMod.get(source);
+            if (null != mod && mod == lastMod) {
+                report.unchangedFiles.incrementAndGet();
+                return;
+            }
+            old = bySource.get(source);
+            old = null == old ? new ArrayList<Integer>() : new ArrayList<>(old);
+        }
+        Map<String, Integer> known = new HashMap<>();
+        for (int key : old) {
+            VectorStore.Metadata meta = index.getMetadata(key);
+            if (null != meta) {
+                known.put(Chunker.hash(meta.text), key);
+            }
+        }
+        List<Chunker.Chunk> chunks = chunker.chunk(Chunker.read(f));
+        report.chunks.addAndGet(chunks.size());
+        List<Chunker.Chunk> fresh = new ArrayList<>();
+        for (Chunker.Chunk c : chunks) {
+            if (null != known.remove(c.hash())) {
+                report.unchangedChunks.incrementAndGet();
+            } else {
+                fresh.add(c);
+            }
+        }
+        // the old version of an edited chunk is not a duplicate
+        List<Integer> keys = sourceOf(source);
+        for (int key : known.values()) {
+            synchronized (bySource) {
+                keys.remove((Integer) key);
+            }
+            forget(key);
+            if (index.delete(key)) {
+                report.deleted.incrementAndGet();
+            }
+        }
+        Pending file = new Pending(source, lastMod);
+        boolean ok = false;
+        try {
+            for (Chunker.Chunk c : fresh) {
+                Job job = new Job(file, c);
+                if (null != dups) {
+                    job.signature = minHash.signature(c.text);
+                    synchronized (dups) {
+                        int kept = dups.nearest(job.signature, duplicateThreshold);
+                        if (Integer.MIN_VALUE != kept) {
+                            report.duplicateChunks.incrementAndGet();
+                            dependOn(kept, file);
+                            continue;
+                        }
+                        job.provisional = provisional.decrementAndGet();
+                        dups.add(job.provisional, job.signature);
+                    }
+                }
+                file.left.incrementAndGet();
+                embedQ.put(job);
+            }
+            ok = true;
+        } finally {
+            done(file, ok);
+        }
+    }
+
+    /**
+     * Search the index for the chunks nearest to a text, collapsing
+     * near-duplicate hits into the best of them.
+     *
+     * @param text The text.
+     * @param k Maximum number of chunks.
+     * @return Metadata of the chunks, nearest first.
+     * @throws Exception If embedding or searching failed.
+     */
+    public List<VectorStore.Metadata> search(String text, int k) throws Exception {
+        List<VectorStore.Metadata> ret = new ArrayList<>();
+        PersistentIndex pi = getIndex();
+        if (null == pi) {
+            return ret;
+        }
+        float[] q = embeddings.getVector(text);
+        // ask for more, some may be collapsed
+        Hits hits = pi.search(q, duplicateThreshold <= 1 ? 3 * k : k);
+        List<VectorStore.Metadata> found = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < hits.size(); i++) {
+            VectorStore.Metadata meta = pi.getMetadata(hits.ids[i]);
+            if (null != meta) {
+                found.add(meta);
+                texts.add(null == meta.text ? "" : meta.text);
+            }
+        }
+        if (duplicateThreshold > 1) {
+            return found.subList(0, Math.min(k, found.size()));
+        }
+        for (int i : minHash.collapse(texts, duplicateThreshold)) {
+            if (ret.size() == k) {
+                break;
+            }
+            ret.add(found.get(i));
+        }
+        return ret;
+    }
+
+    /**
+     * @return The index, null until something was embedded.
+     */
+    public synchronized PersistentIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Close the index.
+     *
+     * @throws IOException If closing failed.
+     */
+    public synchronized void close() throws IOException {
+        if (null != index) {
+            index.close();
+        }
+    }
+}
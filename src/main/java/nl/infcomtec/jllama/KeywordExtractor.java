@@ -0,0 +1,204 @@
+package nl.infcomtec.jllama;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keywords for a text without asking a model: candidate phrases as in RAKE,
+ * runs of up to three content words between stop words and punctuation,
+ * scored by the TF-IDF of their words against the corpus statistics of a
+ * KeywordIndex. Those follow every change to the index, so nothing needs to
+ * be recomputed here.
+ *
+ * @author Walter Stroebel
+ */
+public class KeywordExtractor {
+
+    /**
+     * Words that make poor keywords on top of the stop words of KeywordIndex.
+     */
+    private static final Set<String> WEAK = new HashSet<>(Arrays.asList(
+            "about", "after", "again", "all", "also", "any", "because", "been", "before",
+            "being", "between", "both", "could", "did", "does", "each", "even", "example", "few",
+            "first", "further", "had", "here", "however", "including", "just", "like", "made",
+            "make", "many", "may", "might", "more", "most", "much", "must", "need", "needed",
+            "new", "now", "one", "only", "other", "our", "out", "over", "own", "same",
+            "should", "since", "some", "still", "such", "summary", "than", "them", "those",
+            "through", "too", "two", "under", "until", "use", "used", "using", "very",
+            "way", "well", "while", "within", "without", "would", "yes", "yet"));
+    /**
+     * Longest candidate phrase in words.
+     */
+    public static final int MAX_WORDS = 3;
+    /**
+     * Keywords to return at most.
+     */
+    public int max = 8;
+    private final KeywordIndex corpus;
+
+    /**
+     * Extractor with the statistics of a corpus.
+     *
+     * @param corpus The corpus, may be empty; the texts scored need not be in
+     * it.
+     */
+    public KeywordExtractor(KeywordIndex corpus) {
+        this.corpus = corpus;
+    }
+
+    /**
+     * A candidate phrase.
+     */
+    private static class Phrase {
+
+        final String text;
+        final String[] stems;
+        int count;
+        double score;
+
+        Phrase(String text, String[] stems) {
+            this.text = text;
+            this.stems = stems;
+        }
+    }
+
+    /**
+     * The keywords of a text.
+     *
+     * @param title The title, its words count double; may be null.
+     * @param text The text, may be null.
+     * @return The keywords, best first.
+     */
+    public String[] extract(String title, String text) {
+        LinkedHashMap<String, Phrase> phrases = new LinkedHashMap<>();
+        HashMap<String, int[]> tf = new HashMap<>();
+        scan(title, KeywordIndex.TITLE_WEIGHT, phrases, tf);
+        scan(text, 1, phrases, tf);
+        int n = corpus.size();
+        HashMap<String, Double> weight = new HashMap<>();
+        for (Map.Entry<String, int[]> e : tf.entrySet()) {
+            double idf = Math.log((n + 1.0) / (corpus.df(e.getKey()) + 1.0)) + 1;
+            weight.put(e.getKey(), (1 + Math.log(e.getValue()[0])) * idf);
+        }
+        List<Phrase> cand = new ArrayList<>();
+        for (Phrase p : phrases.values()) {
+            // a longer phrase has to recur to be more than a chance sequence
+            if (1 == p.stems.length || p.count > 1) {
+                for (String s : p.stems) {
+                    p.score += weight.get(s);
+                }
+                cand.add(p);
+            }
+        }
+        Collections.sort(cand, new Comparator<Phrase>() {
+            @Override
+            public int compare(Phrase a, Phrase b) {
+                return Double.compare(b.score, a.score);
+            }
+        });
+        List<String> ret = new ArrayList<>();
+        Set<String> covered = new HashSet<>();
+        for (Phrase p : cand) {
+            if (ret.size() >= max) {
+                break;
+            }
+            if (!covered.containsAll(Arrays.asList(p.stems))) {
+                covered.addAll(Arrays.asList(p.stems));
+                ret.add(p.text);
+            }
+        }
+        return ret.toArray(new String[ret.size()]);
+    }
+
+    /**
+     * Collect the candidate phrases of a text and count its words.
+     */
+    private static void scan(String text, int w, Map<String, Phrase> phrases, Map<String, int[]> tf) {
+        if (null == text) {
+            return;
+        }
+        List<String> words = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0, n = text.length(); i <= n; i++) {
+            char c = i < n ? text.charAt(i) : '.';
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(c);
+                continue;
+            }
+            if (sb.length() > 0) {
+                String word = sb.toString();
+                sb.setLength(0);
+                String low = word.toLowerCase();
+                if (low.length() < 3 || low.length() > 40 || isNumber(low)
+                        || KeywordIndex.isStop(low) || WEAK.contains(low)) {
+                    add(words, phrases, w);
+                } else {
+                    // keep the case of acronyms and CamelCase names
+                    words.add(hasInnerUpper(word) ? word : low);
+                    String stem = KeywordIndex.stem(low);
+                    int[] cnt = tf.get(stem);
+                    if (null == cnt) {
+                        tf.put(stem, new int[]{w});
+                    } else {
+                        cnt[0] += w;
+                    }
+                    if (words.size() == MAX_WORDS) {
+                        add(words, phrases, w);
+                    }
+                }
+            }
+            if (!Character.isWhitespace(c)) {
+                add(words, phrases, w);
+            }
+        }
+    }
+
+    private static void add(List<String> words, Map<String, Phrase> phrases, int w) {
+        if (words.isEmpty()) {
+            return;
+        }
+        String[] stems = new String[words.size()];
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < stems.length; i++) {
+            stems[i] = KeywordIndex.stem(words.get(i).toLowerCase());
+            key.append(stems[i]).append(' ');
+        }
+        Phrase p = phrases.get(key.toString());
+        if (null == p) {
+            StringBuilder text = new StringBuilder();
+            for (String s : words) {
+                text.append(0 == text.length() ? "" : " ").append(s);
+            }
+            p = new Phrase(text.toString(), stems);
+            phrases.put(key.toString(), p);
+        }
+        p.count += w;
+        words.clear();
+    }
+
+    private static boolean isNumber(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasInnerUpper(String s) {
+        for (int i = 1; i < s.length(); i++) {
+            if (Character.isUpperCase(s.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,621 @@
+package nl.infcomtec.jllama;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import nl.infcomtec.vectors.NodeHeap;
+
+/**
+ * Keyword search with BM25 over the knowledge base, or any other texts such
+ * as chat transcripts. An inverted index in memory, so a lookup needs no
+ * embedding round trip.
+ *
+ * Per term the postings are the gaps between document ids and the term
+ * frequencies, varint encoded and appended to as documents come in. A
+ * replaced or removed document is only marked dead; once a quarter is dead
+ * the postings are rewritten without them.
+ *
+ * Words in the title count double, keywords triple. With a file the index is
+ * kept there between runs, so only what changed meanwhile is read again.
+ *
+ * @author Walter Stroebel
+ */
+public class KeywordIndex {
+
+    private static final int MAGIC = 0x4b574958; // KWIX
+    private static final int VERSION = 1;
+    public static final int TITLE_WEIGHT = 2;
+    public static final int KEYWORD_WEIGHT = 3;
+    /**
+     * Constant of reciprocal rank fusion, 60 as in the paper by Cormack et al.
+     */
+    public static final int RRF_K = 60;
+    private static final Set<String> STOP = new HashSet<>(Arrays.asList(
+            "a", "an", "and", "are", "as", "at", "be", "but", "by", "can", "do", "for", "from",
+            "has", "have", "how", "if", "in", "into", "is", "it", "its", "not", "of", "on", "or",
+            "so", "than", "that", "the", "their", "then", "there", "these", "they", "this", "to",
+            "was", "we", "were", "what", "when", "where", "which", "who", "why", "will", "with",
+            "you", "your"));
+    /**
+     * Term frequency saturation.
+     */
+    public float k1 = 1.2f;
+    /**
+     * Document length normalisation, 0 for none.
+     */
+    public float b = 0.75f;
+    /**
+     * Where the index is kept, null if only in memory.
+     */
+    public final File file;
+    private final HashMap<String, Term> terms = new HashMap<>();
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    /**
+     * Per document id: key (null if dead), stamp, length and distinct terms.
+     */
+    private String[] keys = new String[16];
+    private long[] stamps = new long[16];
+    private int[] lengths = new int[16];
+    private Term[][] docTerms = new Term[16][];
+    private int docs;
+    private int live;
+    private long totalLength;
+    private boolean dirty;
+    private int version;
+    private float[] acc = new float[16];
+    private final NodeHeap heap = new NodeHeap(true, 16);
+    private final int[] at = new int[1];
+
+    /**
+     * Postings of one term.
+     */
+    private static class Term {
+
+        final String text;
+        byte[] data = new byte[8];
+        int size;
+        int last = -1;
+        /**
+         * Live documents with the term.
+         */
+        int df;
+        int ord;
+
+        Term(String text) {
+            this.text = text;
+        }
+
+        void add(int doc, int tf) {
+            if (size + 10 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2 + 10);
+            }
+            size = putVarint(data, size, doc - last);
+            size = putVarint(data, size, tf);
+            last = doc;
+        }
+
+        /**
+         * Rewrite without dead documents, renumbering the rest.
+         */
+        void rewrite(int[] map, int[] at) {
+            byte[] old = data;
+            int end = size;
+            data = new byte[Math.max(8, df * 3)];
+            size = 0;
+            last = -1;
+            int doc = -1;
+            at[0] = 0;
+            while (at[0] < end) {
+                doc += getVarint(old, at);
+                int tf = getVarint(old, at);
+                if (map[doc] >= 0) {
+                    add(map[doc], tf);
+                }
+            }
+        }
+    }
+
+    /**
+     * Index in memory.
+     */
+    public KeywordIndex() {
+        this.file = null;
+    }
+
+    /**
+     * Index kept in a file, picking up what an earlier run indexed.
+     *
+     * @param file The file.
+     */
+    public KeywordIndex(File file) {
+        this.file = file;
+        try {
+            read();
+        } catch (IOException ex) {
+            // no or bad index, everything gets indexed once
+            Logger.getLogger(KeywordIndex.class.getName()).log(Level.INFO, "Rebuilding {0}", file);
+            clear();
+        }
+    }
+
+    /**
+     * The words of a text as indexed: lower case letters and digits, common
+     * English words left out and plurals made singular with the S-stemmer of
+     * Harman.
+     *
+     * @param text The text, may be null.
+     * @return The words in order.
+     */
+    public static List<String> tokens(String text) {
+        List<String> ret = new ArrayList<>();
+        if (null == text) {
+            return ret;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0, n = text.length(); i <= n; i++) {
+            char c = i < n ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(Character.toLowerCase(c));
+            } else if (sb.length() > 0) {
+                if (sb.length() > 1 && sb.length() <= 40) {
+                    String w = sb.toString();
+                    if (!STOP.contains(w)) {
+                        ret.add(stem(w));
+                    }
+                }
+                sb.setLength(0);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param w A lower case word.
+     * @return true if too common to index.
+     */
+    static boolean isStop(String w) {
+        return STOP.contains(w);
+    }
+
+    /**
+     * @param w A lower case word.
+     * @return The word as indexed.
+     */
+    static String stem(String w) {
+        int n = w.length();
+        if (n > 4 && w.endsWith("ies") && !w.endsWith("eies") && !w.endsWith("aies")) {
+            return w.substring(0, n - 3) + "y";
+        }
+        if (n > 3 && w.endsWith("es") && !w.endsWith("aes") && !w.endsWith("ees") && !w.endsWith("oes")) {
+            return w.substring(0, n - 1);
+        }
+        if (n > 3 && w.endsWith("s") && !w.endsWith("us") && !w.endsWith("ss")) {
+            return w.substring(0, n - 1);
+        }
+        return w;
+    }
+
+    private static int count(Map<String, int[]> tf, String text, int weight) {
+        int n = 0;
+        for (String w : tokens(text)) {
+            int[] c = tf.get(w);
+            if (null == c) {
+                tf.put(w, new int[]{weight});
+            } else {
+                c[0] += weight;
+            }
+            n += weight;
+        }
+        return n;
+    }
+
+    /**
+     * Add a document, replacing the one with the same key.
+     *
+     * @param key The key, for instance the file name.
+     * @param stamp Tells whether the document changed, for instance lastMod.
+     * @param title The title, may be null.
+     * @param text The text, may be null.
+     * @param keywords The keywords, may be null.
+     */
+    public synchronized void put(String key, long stamp, String title, String text, String[] keywords) {
+        remove(key);
+        HashMap<String, int[]> tf = new HashMap<>();
+        int len = count(tf, title, TITLE_WEIGHT) + count(tf, text, 1);
+        if (null != keywords) {
+            for (String kw : keywords) {
+                len += count(tf, kw, KEYWORD_WEIGHT);
+            }
+        }
+        if (docs == keys.length) {
+            int cap = docs * 2;
+            keys = Arrays.copyOf(keys, cap);
+            stamps = Arrays.copyOf(stamps, cap);
+            lengths = Arrays.copyOf(lengths, cap);
+            docTerms = Arrays.copyOf(docTerms, cap);
+        }
+        int doc = docs++;
+        Term[] dt = new Term[tf.size()];
+        int i = 0;
+        for (Map.Entry<String, int[]> e : tf.entrySet()) {
+            Term t = terms.get(e.getKey());
+            if (null == t) {
+                t = new Term(e.getKey());
+                terms.put(t.text, t);
+            }
+            t.add(doc, e.getValue()[0]);
+            t.df++;
+            dt[i++] = t;
+        }
+        keys[doc] = key;
+        stamps[doc] = stamp;
+        lengths[doc] = len;
+        docTerms[doc] = dt;
+        ids.put(key, doc);
+        live++;
+        totalLength += len;
+        dirty = true;
+        version++;
+    }
+
+    /**
+     * Add a knowledge block, replacing the one with the same file name.
+     *
+     * @param name The file name.
+     * @param kb The block.
+     */
+    public void put(String name, KnowledgeBaseSystem.KnowledgeBlock kb) {
+        put(name, null == kb.lastMod ? 0 : kb.lastMod, kb.title, kb.getContent(), kb.keywords);
+    }
+
+    /**
+     * Forget a document.
+     *
+     * @param key The key.
+     * @return true if it was there.
+     */
+    public synchronized boolean remove(String key) {
+        Integer doc = ids.remove(key);
+        if (null == doc) {
+            return false;
+        }
+        for (Term t : docTerms[doc]) {
+            t.df--;
+        }
+        keys[doc] = null;
+        docTerms[doc] = null;
+        live--;
+        totalLength -= lengths[doc];
+        dirty = true;
+        version++;
+        if (docs - live > 64 && docs - live > docs / 4) {
+            compact();
+        }
+        return true;
+    }
+
+    /**
+     * Forget everything.
+     */
+    public synchronized void clear() {
+        terms.clear();
+        ids.clear();
+        Arrays.fill(keys, null);
+        Arrays.fill(docTerms, null);
+        docs = live = 0;
+        totalLength = 0;
+        dirty = true;
+        version++;
+    }
+
+    /**
+     * Drop the dead documents and the terms only they had.
+     */
+    private void compact() {
+        int[] map = new int[docs];
+        int n = 0;
+        for (int d = 0; d < docs; d++) {
+            if (null == keys[d]) {
+                map[d] = -1;
+            } else {
+                map[d] = n;
+                keys[n] = keys[d];
+                stamps[n] = stamps[d];
+                lengths[n] = lengths[d];
+                docTerms[n] = docTerms[d];
+                ids.put(keys[n], n);
+                n++;
+            }
+        }
+        Arrays.fill(keys, n, docs, null);
+        Arrays.fill(docTerms, n, docs, null);
+        docs = n;
+        for (Iterator<Term> it = terms.values().iterator(); it.hasNext();) {
+            Term t = it.next();
+            if (0 == t.df) {
+                it.remove();
+            } else {
+                t.rewrite(map, at);
+            }
+        }
+    }
+
+    /**
+     * Index the blocks that are new or changed, forget those that are gone.
+     * Writes the file if anything changed.
+     *
+     * @param blocks File name to block, as from KnowledgeBaseSystem.getAllKnown.
+     * @return Number of blocks indexed or forgotten.
+     */
+    public synchronized int update(Map<String, KnowledgeBaseSystem.KnowledgeBlock> blocks) {
+        TreeMap<String, KnowledgeBaseSystem.KnowledgeBlock> todo = new TreeMap<>();
+        List<String> gone = new ArrayList<>();
+        synchronized (blocks) {
+            for (Map.Entry<String, KnowledgeBaseSystem.KnowledgeBlock> e : blocks.entrySet()) {
+                Integer doc = ids.get(e.getKey());
+                Long lm = e.getValue().lastMod;
+                if (null == doc || stamps[doc] != (null == lm ? 0 : lm)) {
+                    todo.put(e.getKey(), e.getValue());
+                }
+            }
+            if (ids.size() + todo.size() > blocks.size()) {
+                for (String key : ids.keySet()) {
+                    if (!blocks.containsKey(key)) {
+                        gone.add(key);
+                    }
+                }
+            }
+        }
+        for (String key : gone) {
+            remove(key);
+        }
+        int n = gone.size();
+        for (Map.Entry<String, KnowledgeBaseSystem.KnowledgeBlock> e : todo.entrySet()) {
+            try {
+                put(e.getKey(), e.getValue());
+                n++;
+            } catch (RuntimeException ex) {
+                // file went away meanwhile, the next update forgets it
+                Logger.getLogger(KeywordIndex.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+        if (n > 0) {
+            flush();
+        }
+        return n;
+    }
+
+    /**
+     * Find the documents that best match the words of a query.
+     *
+     * @param query The query.
+     * @param k Maximum number of documents.
+     * @return Keys, best match first; only documents with at least one of the
+     * words.
+     */
+    public synchronized List<String> search(String query, int k) {
+        List<String> ret = new ArrayList<>();
+        if (0 == live || k <= 0) {
+            return ret;
+        }
+        if (acc.length < docs) {
+            acc = new float[keys.length];
+        }
+        float avg = (float) totalLength / live;
+        for (String w : new HashSet<>(tokens(query))) {
+            Term t = terms.get(w);
+            if (null == t || 0 == t.df) {
+                continue;
+            }
+            float idf = (float) Math.log(1 + (live - t.df + 0.5) / (t.df + 0.5));
+            int doc = -1;
+            at[0] = 0;
+            while (at[0] < t.size) {
+                doc += getVarint(t.data, at);
+                int tf = getVarint(t.data, at);
+                if (null != keys[doc]) {
+                    acc[doc] += idf * tf * (k1 + 1) / (tf + k1 * (1 - b + b * lengths[doc] / avg));
+                }
+            }
+        }
+        heap.clear();
+        for (int d = 0; d < docs; d++) {
+            if (acc[d] > 0) {
+                // max-heap on minus the score keeps the k highest
+                heap.offer(-acc[d], d, k);
+                acc[d] = 0;
+            }
+        }
+        int[] out = new int[heap.size()];
+        int n = heap.drainNearestFirst(out, null);
+        for (int i = 0; i < n; i++) {
+            ret.add(keys[out[i]]);
+        }
+        return ret;
+    }
+
+    /**
+     * Reciprocal rank fusion: an item gets 1 / (RRF_K + rank) from every
+     * ranking it is in, the highest sums come first. Uses only ranks, so
+     * rankings by unrelated scores such as BM25 and cosine can be combined.
+     *
+     * @param k Maximum number of items.
+     * @param rankings The rankings, best first.
+     * @return The fused ranking; ties in order of first appearance.
+     */
+    @SafeVarargs
+    public static List<String> fuse(int k, List<String>... rankings) {
+        final LinkedHashMap<String, Double> sum = new LinkedHashMap<>();
+        for (List<String> r : rankings) {
+            for (int i = 0; i < r.size(); i++) {
+                Double s = sum.get(r.get(i));
+                sum.put(r.get(i), (null == s ? 0 : s) + 1.0 / (RRF_K + i + 1));
+            }
+        }
+        List<String> ret = new ArrayList<>(sum.keySet());
+        Collections.sort(ret, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Double.compare(sum.get(b), sum.get(a));
+            }
+        });
+        return ret.size() > k ? new ArrayList<>(ret.subList(0, k)) : ret;
+    }
+
+    /**
+     * @return Number of documents.
+     */
+    public synchronized int size() {
+        return live;
+    }
+
+    /**
+     * Document frequency, the corpus statistic for TF-IDF.
+     *
+     * @param term A term as from tokens.
+     * @return Number of documents with the term.
+     */
+    public synchronized int df(String term) {
+        Term t = terms.get(term);
+        return null == t ? 0 : t.df;
+    }
+
+    /**
+     * @return A number that changes whenever a document is added or removed,
+     * so cached results can tell they are stale.
+     */
+    public synchronized int getVersion() {
+        return version;
+    }
+
+    /**
+     * Write the file if anything changed and there is a file.
+     */
+    public synchronized void flush() {
+        if (null == file || !dirty) {
+            return;
+        }
+        try {
+            write();
+            dirty = false;
+        } catch (IOException ex) {
+            Logger.getLogger(KeywordIndex.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private void write() throws IOException {
+        if (docs > live) {
+            compact();
+        }
+        file.getParentFile().mkdirs();
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(terms.size());
+            int ord = 0;
+            for (Term t : terms.values()) {
+                t.ord = ord++;
+                out.writeUTF(t.text);
+                out.writeInt(t.df);
+                out.writeInt(t.last);
+                out.writeInt(t.size);
+                out.write(t.data, 0, t.size);
+            }
+            out.writeInt(docs);
+            for (int d = 0; d < docs; d++) {
+                out.writeUTF(keys[d]);
+                out.writeLong(stamps[d]);
+                out.writeInt(lengths[d]);
+                out.writeInt(docTerms[d].length);
+                for (Term t : docTerms[d]) {
+                    out.writeInt(t.ord);
+                }
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void read() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (MAGIC != in.readInt() || VERSION != in.readInt()) {
+                throw new IOException("Not a keyword index: " + file);
+            }
+            Term[] byOrd = new Term[in.readInt()];
+            for (int i = 0; i < byOrd.length; i++) {
+                Term t = new Term(in.readUTF());
+                t.df = in.readInt();
+                t.last = in.readInt();
+                t.size = in.readInt();
+                t.data = new byte[t.size + 8];
+                in.readFully(t.data, 0, t.size);
+                terms.put(t.text, t);
+                byOrd[i] = t;
+            }
+            docs = live = in.readInt();
+            int cap = Math.max(16, docs);
+            keys = new String[cap];
+            stamps = new long[cap];
+            lengths = new int[cap];
+            docTerms = new Term[cap][];
+            for (int d = 0; d < docs; d++) {
+                keys[d] = in.readUTF();
+                stamps[d] = in.readLong();
+                lengths[d] = in.readInt();
+                docTerms[d] = new Term[in.readInt()];
+                for (int i = 0; i < docTerms[d].length; i++) {
+                    docTerms[d][i] = byOrd[in.readInt()];
+                }
+                ids.put(keys[d], d);
+                totalLength += lengths[d];
+            }
+        }
+    }
+
+    private static int putVarint(byte[] a, int pos, int v) {
+        while ((v & ~0x7f) != 0) {
+            a[pos++] = (byte) (v | 0x80);
+            v >>>= 7;
+        }
+        a[pos++] = (byte) v;
+        return pos;
+    }
+
+    private static int getVarint(byte[] a, int[] at) {
+        int pos = at[0];
+        int v = 0;
+        for (int shift = 0;; shift += 7) {
+            byte x = a[pos++];
+            v |= (x & 0x7f) << shift;
+            if (x >= 0) {
+                break;
+            }
+        }
+        at[0] = pos;
+        return v;
+    }
+}
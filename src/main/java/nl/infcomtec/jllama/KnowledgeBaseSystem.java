@@ -3,15 +3,27 @@ package nl.infcomtec.jllama;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JFrame;
 import javax.swing.SwingWorker;
+import nl.infcomtec.vectors.MetadataIndex;
 
 public class KnowledgeBaseSystem {
 
     public static final File KBFolder = new File(Ollama.WORK_DIR, "KB");
+    public static final File IndexFolder = new File(Ollama.WORK_DIR, "KBIndex");
     public static final ObjectMapper mapper = Ollama.getMapper();
     public static final String createTitle = "Create a short title for this session.";
     public static final String createKB = "Reflecting on our specific discussion so far,"
@@ -22,15 +34,27 @@ public class KnowledgeBaseSystem {
             + " information available in the public domain."
             + " Focus on what makes this session's content distinctive,"
             + " particularly in areas where new perspectives or insights were explored.";
-    private static final TreeMap<String, KnowledgeBlock> allKnown = new TreeMap<>();
+    private static KnowledgeStore store;
+    private static KnowledgeIndex index;
+    private static KeywordIndex keywordIndex;
+    private static RelatedGraph relatedGraph;
+    private static ExecutorService linker;
+    private static final AtomicBoolean linkPending = new AtomicBoolean();
 
     public static class KnowledgeBlock {
 
         public String title;
-        public String content;
+        /**
+         * Null while not loaded, see getContent.
+         */
+        private String content;
         public Long created, lastMod;
         public String[] keywords;
         public String[] related;
+        /**
+         * File to load the content from on first use, null if loaded.
+         */
+        private File source;
 
         // Constructor for creating a new KB from an OllamaClient session
         public KnowledgeBlock(OllamaClient client) throws Exception {
@@ -43,7 +67,11 @@ public class KnowledgeBaseSystem {
 
         // Constructor for loading a KB from a file
         public KnowledgeBlock(String filename) throws IOException {
-            File f = new File(KBFolder, filename);
+            this(new File(KBFolder, filename));
+        }
+
+        // Constructor for loading a KB from a file anywhere
+        public KnowledgeBlock(File f) throws IOException {
             KnowledgeBlock kb = mapper.readValue(
                     f,
                     KnowledgeBlock.class);
@@ -60,6 +88,16 @@ public class KnowledgeBaseSystem {
             this.related = kb.related;
         }
 
+        // Constructor for a KB from the index of a KnowledgeStore, without content
+        KnowledgeBlock(File source, String title, Long created, Long lastMod, String[] keywords, String[] related) {
+            this.source = source;
+            this.title = title;
+            this.created = created;
+            this.lastMod = lastMod;
+            this.keywords = null == keywords ? new String[]{} : keywords;
+            this.related = null == related ? new String[]{} : related;
+        }
+
         public KnowledgeBlock() {
             this.title = "Manual Knowledge Block";
             this.content = "Enter the information here.";
@@ -67,42 +105,343 @@ public class KnowledgeBaseSystem {
             this.related = new String[]{};
         }
 
+        /**
+         * @return The content, read from the block file on first use.
+         * @throws RuntimeException If the file could not be read.
+         */
+        public synchronized String getContent() {
+            if (null != source) {
+                try {
+                    content = mapper.readValue(source, KnowledgeBlock.class).content;
+                } catch (IOException ex) {
+                    throw new RuntimeException("Cannot read " + source, ex);
+                }
+                source = null;
+            }
+            return content;
+        }
+
+        public synchronized void setContent(String content) {
+            this.content = content;
+            this.source = null;
+        }
+
         // Method to save the KB to a file
         public void save(String filename) throws IOException {
-            File f = new File(KBFolder, filename);
             lastMod = System.currentTimeMillis();
+            if (null == keywords || 0 == keywords.length) {
+                keywords = new KeywordExtractor(getKeywordIndex()).extract(title, getContent());
+            }
+            write(filename, true);
+            if (null != relatedGraph) {
+                linkRelatedLater();
+            }
+        }
+
+        /**
+         * Write to a file in KBFolder as is, lastMod included, and tell the
+         * store and the keyword index.
+         *
+         * @param filename The file name.
+         * @param flush To write their indexes now, else the caller flushes.
+         */
+        void write(String filename, boolean flush) throws IOException {
+            File f = new File(KBFolder, filename);
+            if (null == lastMod) {
+                lastMod = System.currentTimeMillis();
+            }
+            if (null == created) {
+                created = lastMod;
+            }
+            getContent();
+            // created is in the JSON; the file time must change for the store to see it
             mapper.writeValue(f, this);
-            f.setLastModified(created);
+            getStore().saved(filename, this, flush);
+            saved(filename, this, flush);
+        }
+    }
+
+    /**
+     * The store of all blocks, opened and watched on first use.
+     *
+     * @return The store.
+     */
+    public static synchronized KnowledgeStore getStore() {
+        if (null == store) {
+            store = new KnowledgeStore(KBFolder, new File(IndexFolder, "blocks.idx"));
+            try {
+                store.startWatching();
+            } catch (IOException ex) {
+                // refresh then compares the folder instead
+                Logger.getLogger(KnowledgeBaseSystem.class.getName()).log(Level.SEVERE, null, ex);
+            }
         }
+        return store;
     }
 
     /**
-     * Get a map of all KnowledgeBlock objects.
+     * Get a map of all KnowledgeBlock objects. Blocks come from the index of
+     * the store, their content is read when first used.
      *
-     * @param reload To refresh the cache.
-     * @return All that is known.
+     * @param reload To catch up with changes to the folder; only what changed
+     * is read.
+     * @return All that is known, lock it to iterate.
      */
     public static TreeMap<String, KnowledgeBlock> getAllKnown(boolean reload) {
-        if (!KBFolder.exists()) {
-            KBFolder.mkdirs();
-        }
-        synchronized (allKnown) {
-            if (reload) {
-                allKnown.clear();
-                File[] kbs = KnowledgeBaseSystem.KBFolder.listFiles();
-                if (null != kbs) {
-                    for (File f : kbs) {
-                        try {
-                            KnowledgeBlock nkb = new KnowledgeBaseSystem.KnowledgeBlock(f.getName());
-                            allKnown.put(f.getName(), nkb);
-                        } catch (IOException ex) {
-                            Logger.getLogger(KnowledgeBlockFrame.class.getName()).log(Level.SEVERE, null, ex);
-                        }
+        KnowledgeStore ks = getStore();
+        if (reload) {
+            ks.refresh();
+        }
+        return ks.getBlocks();
+    }
+
+    /**
+     * The semantic index over the knowledge base, embedding with Nomic.model
+     * on the last used endpoint and kept in IndexFolder between runs.
+     *
+     * @return The index, created on first use.
+     */
+    public static synchronized KnowledgeIndex getIndex() {
+        if (null == index) {
+            OllamaEmbeddings em = new OllamaEmbeddings(Ollama.config.lastEndpoint, Nomic.model);
+            try {
+                index = new KnowledgeIndex(em, new File(IndexFolder, Nomic.model.replaceAll("[^A-Za-z0-9._-]", "_")));
+            } catch (IOException ex) {
+                Logger.getLogger(KnowledgeBaseSystem.class.getName()).log(Level.SEVERE, null, ex);
+                index = new KnowledgeIndex(em);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Find the knowledge blocks most similar to a text. Blocks that are new or
+     * changed are embedded first.
+     *
+     * @param text The text.
+     * @param k Maximum number of blocks.
+     * @return File names, most similar first.
+     * @throws Exception If embedding failed.
+     */
+    public static List<String> findSimilar(String text, int k) throws Exception {
+        return findSimilar(text, k, null);
+    }
+
+    /**
+     * Find the knowledge blocks most similar to a text among those passing a
+     * filter on file name (source), keywords, created or lastMod.
+     *
+     * @param text The text.
+     * @param k Maximum number of blocks.
+     * @param filter The filter, null for none.
+     * @return File names, most similar first.
+     * @throws Exception If embedding failed.
+     */
+    public static List<String> findSimilar(String text, int k, MetadataIndex.Filter filter) throws Exception {
+        TreeMap<String, KnowledgeBlock> all = getAllKnown(true);
+        KnowledgeIndex ki = getIndex();
+        ki.update(all);
+        return ki.findSimilar(text, k, filter);
+    }
+
+    /**
+     * The keyword index over the knowledge base, kept in IndexFolder between
+     * runs.
+     *
+     * @return The index, created on first use.
+     */
+    public static synchronized KeywordIndex getKeywordIndex() {
+        if (null == keywordIndex) {
+            keywordIndex = new KeywordIndex(new File(IndexFolder, "keywords.idx"));
+        }
+        return keywordIndex;
+    }
+
+    /**
+     * Keep the keyword index, if in use, up to date with a saved block, and
+     * the metadata in the semantic index if only that changed.
+     */
+    private static void saved(String filename, KnowledgeBlock kb, boolean flush) {
+        KeywordIndex ki;
+        KnowledgeIndex si;
+        synchronized (KnowledgeBaseSystem.class) {
+            ki = keywordIndex;
+            si = index;
+        }
+        if (null != ki) {
+            ki.put(filename, kb);
+            if (flush) {
+                ki.flush();
+            }
+        }
+        if (null != si) {
+            try {
+                si.refresh(filename, kb);
+            } catch (IOException ex) {
+                Logger.getLogger(KnowledgeBaseSystem.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Fill in the keywords of every block that has none, with a
+     * KeywordExtractor over the keyword index, in parallel. The blocks are
+     * written with their lastMod as is, their content did not change.
+     *
+     * @param pool The pool, null for the common pool.
+     * @return Number of blocks that got keywords.
+     */
+    public static int fillKeywords(ForkJoinPool pool) {
+        TreeMap<String, KnowledgeBlock> all = getAllKnown(true);
+        KeywordIndex ki = getKeywordIndex();
+        // the corpus statistics first, they need every block
+        ki.update(all);
+        List<String> names = new ArrayList<>();
+        List<KnowledgeBlock> todo = new ArrayList<>();
+        synchronized (all) {
+            for (Map.Entry<String, KnowledgeBlock> e : all.entrySet()) {
+                if (null == e.getValue().keywords || 0 == e.getValue().keywords.length) {
+                    names.add(e.getKey());
+                    todo.add(e.getValue());
+                }
+            }
+        }
+        AtomicInteger done = new AtomicInteger();
+        (null == pool ? ForkJoinPool.commonPool() : pool).invoke(
+                new FillKeywords(new KeywordExtractor(ki), names, todo, 0, names.size(), done));
+        flushIndexes();
+        return done.get();
+    }
+
+    /**
+     * Write the indexes of the store and the keyword index, after a batch
+     * of writes that did not.
+     */
+    static void flushIndexes() {
+        getStore().flush();
+        KeywordIndex ki;
+        synchronized (KnowledgeBaseSystem.class) {
+            ki = keywordIndex;
+        }
+        if (null != ki) {
+            ki.flush();
+        }
+    }
+
+    /**
+     * The related blocks graph over the knowledge base, on the semantic
+     * index.
+     *
+     * @return The graph, created on first use.
+     */
+    public static synchronized RelatedGraph getRelatedGraph() {
+        if (null == relatedGraph) {
+            relatedGraph = new RelatedGraph(getIndex(), new File(IndexFolder, "related.idx"));
+        }
+        return relatedGraph;
+    }
+
+    /**
+     * Update the related blocks in the background. Requests while one is
+     * waiting to run are taken together. Once the graph is in use, every
+     * save asks for this.
+     */
+    public static void linkRelatedLater() {
+        if (!linkPending.compareAndSet(false, true)) {
+            return;
+        }
+        ExecutorService ex;
+        synchronized (KnowledgeBaseSystem.class) {
+            if (null == linker) {
+                linker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Related blocks");
+                        t.setDaemon(true);
+                        return t;
                     }
+                });
+            }
+            ex = linker;
+        }
+        ex.execute(new Runnable() {
+            @Override
+            public void run() {
+                linkPending.set(false);
+                try {
+                    getRelatedGraph().update(getAllKnown(true), null);
+                } catch (Exception ex) {
+                    Logger.getLogger(KnowledgeBaseSystem.class.getName()).log(Level.SEVERE, null, ex);
                 }
             }
-            return allKnown;
+        });
+    }
+
+    private static class FillKeywords extends RecursiveAction {
+
+        private final KeywordExtractor extractor;
+        private final List<String> names;
+        private final List<KnowledgeBlock> todo;
+        private final int from, to;
+        private final AtomicInteger done;
+
+        FillKeywords(KeywordExtractor extractor, List<String> names, List<KnowledgeBlock> todo,
+                int from, int to, AtomicInteger done) {
+            this.extractor = extractor;
+            this.names = names;
+            this.todo = todo;
+            this.from = from;
+            this.to = to;
+            this.done = done;
         }
+
+        @Override
+        protected void compute() {
+            if (to - from > 8) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new FillKeywords(extractor, names, todo, from, mid, done),
+                        new FillKeywords(extractor, names, todo, mid, to, done));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                KnowledgeBlock kb = todo.get(i);
+                try {
+                    kb.keywords = extractor.extract(kb.title, kb.getContent());
+                    kb.write(names.get(i), false);
+                    done.incrementAndGet();
+                } catch (IOException | RuntimeException ex) {
+                    Logger.getLogger(KnowledgeBaseSystem.class.getName()).log(Level.SEVERE, names.get(i), ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the knowledge blocks that best match the words of a text, with
+     * BM25. No embedding is needed, blocks that are new or changed are
+     * indexed first.
+     *
+     * @param text The text.
+     * @param k Maximum number of blocks.
+     * @return File names, best match first.
+     */
+    public static List<String> findKeywords(String text, int k) {
+        KeywordIndex ki = getKeywordIndex();
+        ki.update(getAllKnown(true));
+        return ki.search(text, k);
+    }
+
+    /**
+     * Find the knowledge blocks for a text by both keywords and similarity,
+     * the two rankings fused by reciprocal rank.
+     *
+     * @param text The text.
+     * @param k Maximum number of blocks.
+     * @return File names, best first.
+     * @throws Exception If embedding failed.
+     */
+    public static List<String> findHybrid(String text, int k) throws Exception {
+        return KeywordIndex.fuse(k, findKeywords(text, 2 * k), findSimilar(text, 2 * k));
     }
 
     public static void createAndShowKBFrame(final JFrame parentFrame, final OllamaClient client) {
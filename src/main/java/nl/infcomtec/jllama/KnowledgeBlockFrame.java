@@ -51,7 +51,7 @@ public class KnowledgeBlockFrame extends JFrame {
 
         // Add components to the frame
         add(createTopPanel(), BorderLayout.NORTH);
-        contentTextArea.setText(kb.content);
+        contentTextArea.setText(kb.getContent());
         add(new JScrollPane(contentTextArea), BorderLayout.CENTER);
         add(createBottomPanel(), BorderLayout.SOUTH);
 
@@ -81,13 +81,15 @@ public class KnowledgeBlockFrame extends JFrame {
         relatedList.setModel(relModel);
 
         TreeSet<String> kws = new TreeSet<>();
-        for (Map.Entry<String, KnowledgeBaseSystem.KnowledgeBlock> e : ak.entrySet()) {
-            for (String kw : e.getValue().keywords) {
-                if (kws.add(kw)) {
-                    kwModel.addElement(kw);
+        synchronized (ak) {
+            for (Map.Entry<String, KnowledgeBaseSystem.KnowledgeBlock> e : ak.entrySet()) {
+                for (String kw : e.getValue().keywords) {
+                    if (kws.add(kw)) {
+                        kwModel.addElement(kw);
+                    }
                 }
+                relModel.addElement(e.getKey() + ", " + e.getValue().title);
             }
-            relModel.addElement(e.getKey() + ", " + e.getValue().title);
         }
         kwBox.add(new JScrollPane(keywordsList));
         relBox.add(new JScrollPane(relatedList));
@@ -105,7 +107,7 @@ public class KnowledgeBlockFrame extends JFrame {
             @Override
             public void actionPerformed(ActionEvent e) {
                 try {
-                    kb.content = contentTextArea.getText();
+                    kb.setContent(contentTextArea.getText());
                     List<String> kws = keywordsList.getSelectedValuesList();
                     kb.keywords = new String[kws.size()];
                     for (int i = 0; i < kws.size(); i++) {
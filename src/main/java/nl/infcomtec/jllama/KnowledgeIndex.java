@@ -0,0 +1,580 @@
+package nl.infcomtec.jllama;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import nl.infcomtec.vectors.ExactSearch;
+import nl.infcomtec.vectors.FilteredSearch;
+import nl.infcomtec.vectors.Hits;
+import nl.infcomtec.vectors.HnswIndex;
+import nl.infcomtec.vectors.KMeans;
+import nl.infcomtec.vectors.MetadataIndex;
+import nl.infcomtec.vectors.PersistentIndex;
+import nl.infcomtec.vectors.Similarity;
+import nl.infcomtec.vectors.VectorStore;
+
+/**
+ * Semantic index over the knowledge base: every KnowledgeBlock is embedded
+ * once, the vectors go in a VectorStore with an HnswIndex on top.
+ *
+ * Blocks that changed since they were embedded are embedded again, the old
+ * vector stays in the store but is skipped in results.
+ *
+ * With a directory the vectors go in a PersistentIndex instead, so a restart
+ * only embeds what changed meanwhile; replaced vectors are deleted there.
+ *
+ * @author Walter Stroebel
+ */
+public class KnowledgeIndex {
+
+    private final OllamaEmbeddings embeddings;
+    private final File dir;
+    private VectorStore store;
+    private HnswIndex index;
+    private PersistentIndex persistent;
+    private MetadataIndex metadataIndex;
+    private ExactSearch exact;
+    /**
+     * File name to its current vector id, or key when persistent.
+     */
+    private final TreeMap<String, Integer> current = new TreeMap<>();
+    /**
+     * File name to the lastMod of the block when it was embedded.
+     */
+    private final TreeMap<String, Long> embedded = new TreeMap<>();
+    /**
+     * Vector id, or key when persistent, to file name.
+     */
+    private final TreeMap<Integer, String> files = new TreeMap<>();
+    /**
+     * Bumped whenever a block is embedded or removed.
+     */
+    private int version;
+
+    /**
+     * Index in memory using an embedding model.
+     *
+     * @param embeddings The model.
+     */
+    public KnowledgeIndex(OllamaEmbeddings embeddings) {
+        this.embeddings = embeddings;
+        this.dir = null;
+    }
+
+    /**
+     * Index on disk using an embedding model, picking up what an earlier run
+     * embedded.
+     *
+     * @param embeddings The model.
+     * @param dir Directory for the index.
+     * @throws IOException If an existing index could not be opened.
+     */
+    public KnowledgeIndex(OllamaEmbeddings embeddings, File dir) throws IOException {
+        this.embeddings = embeddings;
+        this.dir = dir;
+        persistent = PersistentIndex.open(dir, Similarity.Metric.COSINE);
+        if (null != persistent) {
+            if (!persistent.model.equals(embeddings.getModel())) {
+                throw new IOException("Index in " + dir + " is for " + persistent.model);
+            }
+            for (int key : persistent.keys()) {
+                VectorStore.Metadata meta = persistent.getMetadata(key);
+                files.put(key, meta.source);
+                current.put(meta.source, key);
+                embedded.put(meta.source, meta.lastMod);
+            }
+            persistent.startBackground(60000);
+        }
+    }
+
+    /**
+     * The text that represents a block.
+     *
+     * @param kb The block.
+     * @return Title and content.
+     */
+    public static String textOf(KnowledgeBaseSystem.KnowledgeBlock kb) {
+        return kb.title + System.lineSeparator() + System.lineSeparator() + kb.getContent();
+    }
+
+    /**
+     * Embed all blocks that are new or changed, forget those that are gone.
+     *
+     * @param blocks File name to block, as from KnowledgeBaseSystem.getAllKnown.
+     * @return Number of blocks embedded.
+     * @throws Exception If embedding failed.
+     */
+    public synchronized int update(Map<String, KnowledgeBaseSystem.KnowledgeBlock> blocks) throws Exception {
+        TreeMap<String, KnowledgeBaseSystem.KnowledgeBlock> todo = new TreeMap<>();
+        synchronized (blocks) {
+            for (Map.Entry<String, KnowledgeBaseSystem.KnowledgeBlock> e : blocks.entrySet()) {
+                Long done = embedded.get(e.getKey());
+                if (null == done || !done.equals(e.getValue().lastMod)) {
+                    todo.put(e.getKey(), e.getValue());
+                }
+            }
+            for (String gone : new ArrayList<>(current.keySet())) {
+                if (!blocks.containsKey(gone)) {
+                    remove(gone);
+                }
+            }
+        }
+        for (Map.Entry<String, KnowledgeBaseSystem.KnowledgeBlock> e : todo.entrySet()) {
+            KnowledgeBaseSystem.KnowledgeBlock kb = e.getValue();
+            float[] v = embeddings.getVector(textOf(kb));
+            VectorStore.Metadata meta = metaOf(e.getKey(), kb);
+            int id;
+            if (null != dir) {
+                if (null == persistent) {
+                    persistent = new PersistentIndex(dir, embeddings.getModel(), v.length, Similarity.Metric.COSINE);
+                    persistent.startBackground(60000);
+                }
+                Integer old = current.get(e.getKey());
+                if (null != old) {
+                    persistent.delete(old);
+                    files.remove(old);
+                }
+                id = persistent.add(v, meta);
+            } else {
+                if (null == store) {
+                    store = new VectorStore(embeddings.getModel(), v.length);
+                    index = new HnswIndex(store, Similarity.Metric.COSINE);
+                }
+                store.check(embeddings.getModel(), v.length);
+                id = store.add(v, meta);
+                index.add(id);
+            }
+            files.put(id, e.getKey());
+            current.put(e.getKey(), id);
+            embedded.put(e.getKey(), kb.lastMod);
+            version++;
+        }
+        return todo.size();
+    }
+
+    private static VectorStore.Metadata metaOf(String file, KnowledgeBaseSystem.KnowledgeBlock kb) {
+        VectorStore.Metadata meta = new VectorStore.Metadata(kb.title, file);
+        meta.created = null == kb.created ? 0 : kb.created;
+        meta.lastMod = null == kb.lastMod ? 0 : kb.lastMod;
+        meta.keywords = kb.keywords;
+        return meta;
+    }
+
+    /**
+     * Take over the title and keywords of a block that was written without
+     * its lastMod changing, as when keywords are filled in, so filtered
+     * searches see them. The vector is reused, nothing is embedded; a block
+     * that is not embedded as is is left to update.
+     *
+     * @param file The file name of the block.
+     * @param kb The block.
+     * @return true if the metadata changed.
+     * @throws IOException If the persistent index could not be written.
+     */
+    public synchronized boolean refresh(String file, KnowledgeBaseSystem.KnowledgeBlock kb) throws IOException {
+        Integer id = current.get(file);
+        Long done = embedded.get(file);
+        if (null == id || null == done || !done.equals(kb.lastMod)) {
+            return false;
+        }
+        VectorStore.Metadata meta = metaOf(file, kb);
+        VectorStore.Metadata old = null != persistent ? persistent.getMetadata(id) : store.getMetadata(id);
+        if (null != old && Objects.equals(old.text, meta.text) && old.created == meta.created
+                && Arrays.equals(old.keywords, meta.keywords)) {
+            return false;
+        }
+        int nid;
+        if (null != persistent) {
+            nid = persistent.update(id, meta);
+            if (nid < 0) {
+                return false;
+            }
+            files.remove(id);
+        } else {
+            // the old vector stays in the store but is skipped, as in update
+            nid = store.add(store.copy(id, new float[store.dimension()]), meta);
+            index.add(nid);
+        }
+        files.put(nid, file);
+        current.put(file, nid);
+        return true;
+    }
+
+    /**
+     * Embed a text with the model of this index, for the searches by vector.
+     *
+     * @param text The text.
+     * @return The vector.
+     * @throws Exception If embedding failed.
+     */
+    public float[] embed(String text) throws Exception {
+        return embeddings.getVector(text);
+    }
+
+    /**
+     * Find the blocks most similar to a text.
+     *
+     * @param text The text.
+     * @param k Maximum number of blocks.
+     * @return File names, most similar first.
+     * @throws Exception If embedding the text failed.
+     */
+    public List<String> findSimilar(String text, int k) throws Exception {
+        return findSimilar(embeddings.getVector(text), k);
+    }
+
+    /**
+     * Find the blocks nearest to a vector.
+     *
+     * @param query The vector, from the same model.
+     * @param k Maximum number of blocks.
+     * @return File names, nearest first.
+     * @throws IOException If the persistent index could not be read.
+     */
+    public List<String> findSimilar(float[] query, int k) throws IOException {
+        return findSimilar(query, k, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Find the blocks nearest to a vector that are similar enough.
+     *
+     * @param query The vector, from the same model.
+     * @param k Maximum number of blocks.
+     * @param minScore Lowest cosine similarity to include.
+     * @return File names, nearest first.
+     * @throws IOException If the persistent index could not be read.
+     */
+    public synchronized List<String> findSimilar(float[] query, int k, double minScore) throws IOException {
+        List<String> ret = new ArrayList<>();
+        Hits hits;
+        if (null != persistent) {
+            hits = persistent.search(query, k + (files.size() - current.size()));
+        } else if (null != index) {
+            // replaced vectors are skipped, ask for a few more
+            hits = index.search(query, k + (files.size() - current.size()));
+        } else {
+            return ret;
+        }
+        return filesOf(hits, k, minScore);
+    }
+
+    /**
+     * Find the blocks most similar to a text among those passing a filter, on
+     * source (the file name), keywords or dates.
+     *
+     * @param text The text.
+     * @param k Maximum number of blocks.
+     * @param filter The filter, null for none.
+     * @return File names, most similar first.
+     * @throws Exception If embedding the text failed.
+     */
+    public List<String> findSimilar(String text, int k, MetadataIndex.Filter filter) throws Exception {
+        return findSimilar(embeddings.getVector(text), k, filter);
+    }
+
+    /**
+     * Find the blocks nearest to a vector among those passing a filter.
+     *
+     * @param query The vector, from the same model.
+     * @param k Maximum number of blocks.
+     * @param filter The filter, null for none.
+     * @return File names, nearest first.
+     * @throws IOException If the persistent index could not be read.
+     */
+    public synchronized List<String> findSimilar(float[] query, int k, MetadataIndex.Filter filter) throws IOException {
+        if (null == filter) {
+            return findSimilar(query, k);
+        }
+        Hits hits;
+        if (null != persistent) {
+            hits = persistent.search(query, k, filter);
+        } else if (null != index) {
+            if (null == metadataIndex) {
+                metadataIndex = new MetadataIndex(store);
+                exact = new ExactSearch(store, Similarity.Metric.COSINE);
+            }
+            BitSet allowed = metadataIndex.select(filter);
+            BitSet live = new BitSet();
+            for (int id : current.values()) {
+                live.set(id);
+            }
+            allowed.and(live);
+            hits = new FilteredSearch(exact, index).search(query, k, allowed);
+        } else {
+            return new ArrayList<>();
+        }
+        return filesOf(hits, k, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * The current vectors of some blocks, back to back.
+     */
+    private float[] vectorsOf(List<String> names) {
+        VectorStore vs = getStore();
+        int dim = vs.dimension();
+        float[] data = new float[names.size() * dim];
+        float[] v = new float[dim];
+        for (int i = 0; i < names.size(); i++) {
+            int id = current.get(names.get(i));
+            float[] src = null != persistent ? persistent.getVector(id) : vs.copy(id, v);
+            System.arraycopy(src, 0, data, i * dim, dim);
+        }
+        return data;
+    }
+
+    /**
+     * Group the blocks by topic with k-means over their vectors.
+     *
+     * @param k Number of topics, fewer if there are fewer blocks.
+     * @return File names per topic, largest topic first.
+     */
+    public synchronized List<List<String>> topics(int k) {
+        List<List<String>> ret = new ArrayList<>();
+        List<String> names = new ArrayList<>(current.keySet());
+        if (names.isEmpty()) {
+            return ret;
+        }
+        int dim = getStore().dimension();
+        float[] data = vectorsOf(names);
+        KMeans km = new KMeans(Math.min(k, names.size()), dim, null);
+        km.train(data, names.size());
+        int[] label = km.assign(data, names.size());
+        for (int c = 0; c < km.k; c++) {
+            ret.add(new ArrayList<String>());
+        }
+        for (int i = 0; i < label.length; i++) {
+            ret.get(label[i]).add(names.get(i));
+        }
+        for (Iterator<List<String>> it = ret.iterator(); it.hasNext();) {
+            if (it.next().isEmpty()) {
+                it.remove();
+            }
+        }
+        Collections.sort(ret, new Comparator<List<String>>() {
+            @Override
+            public int compare(List<String> a, List<String> b) {
+                return Integer.compare(b.size(), a.size());
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * A 2-D map of the blocks, labelled with their titles and coloured by
+     * topic.
+     *
+     * @param topics Number of topics to colour.
+     * @param w Image width.
+     * @param h Image height.
+     * @return The image, null if there are fewer than 3 blocks.
+     */
+    public synchronized BufferedImage map(int topics, int w, int h) {
+        List<String> names = new ArrayList<>(current.keySet());
+        if (names.size() < 3) {
+            return null;
+        }
+        int dim = getStore().dimension();
+        float[] data = vectorsOf(names);
+        KMeans km = new KMeans(Math.min(topics, names.size()), dim, null);
+        km.train(data, names.size());
+        int[] groups = km.assign(data, names.size());
+        String[] labels = new String[names.size()];
+        for (int i = 0; i < labels.length; i++) {
+            int id = current.get(names.get(i));
+            VectorStore.Metadata meta = null != persistent ? persistent.getMetadata(id) : store.getMetadata(id);
+            labels[i] = null == meta ? names.get(i) : meta.text;
+        }
+        return EmbeddingMap.of(data, names.size(), dim, labels, groups, w, h);
+    }
+
+    /**
+     * The files of the hits that are current vectors.
+     */
+    private List<String> filesOf(Hits hits, int k, double minScore) {
+        List<String> ret = new ArrayList<>();
+        for (int i = 0; i < hits.size() && ret.size() < k && hits.scores[i] >= minScore; i++) {
+            int id = hits.ids[i];
+            String file = files.get(id);
+            Integer cur = null == file ? null : current.get(file);
+            if (null != cur && cur == id) {
+                ret.add(file);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * The current vector of a block.
+     *
+     * @param file The file name.
+     * @return The vector, null if the block was not embedded.
+     */
+    public synchronized float[] vectorOf(String file) {
+        Integer id = current.get(file);
+        if (null == id) {
+            return null;
+        }
+        return null != persistent ? persistent.getVector(id) : store.copy(id, new float[store.dimension()]);
+    }
+
+    /**
+     * Cosine similarity of two blocks.
+     *
+     * @param a A file name.
+     * @param b Another file name.
+     * @return The similarity, minus infinity if either was not embedded.
+     */
+    public synchronized double similarity(String a, String b) {
+        float[] va = vectorOf(a);
+        float[] vb = vectorOf(b);
+        if (null == va || null == vb) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        int n = va.length;
+        double ab = Similarity.dot(va, 0, vb, 0, n);
+        double aa = Similarity.dot(va, 0, va, 0, n);
+        double bb = Similarity.dot(vb, 0, vb, 0, n);
+        return 0 == aa || 0 == bb ? 0 : ab / Math.sqrt(aa * bb);
+    }
+
+    /**
+     * The nearest other blocks of each of a batch of blocks, one search of
+     * the index per block, run in parallel.
+     *
+     * @param names The file names.
+     * @param k Maximum number of neighbours per block.
+     * @param minScore Lowest cosine similarity of a neighbour.
+     * @param pool The pool, null for the common pool.
+     * @return File name to its neighbours, nearest first; blocks that were
+     * not embedded are left out.
+     */
+    public synchronized TreeMap<String, List<String>> neighbours(List<String> names, int k, double minScore, ForkJoinPool pool) {
+        List<String> todo = new ArrayList<>();
+        List<float[]> queries = new ArrayList<>();
+        for (String name : names) {
+            float[] v = vectorOf(name);
+            if (null != v) {
+                todo.add(name);
+                queries.add(v);
+            }
+        }
+        String[][] out = new String[todo.size()][];
+        (null == pool ? ForkJoinPool.commonPool() : pool).invoke(
+                new Neighbours(todo, queries, k, minScore, out, 0, todo.size()));
+        TreeMap<String, List<String>> ret = new TreeMap<>();
+        for (int i = 0; i < out.length; i++) {
+            ret.put(todo.get(i), Arrays.asList(out[i]));
+        }
+        return ret;
+    }
+
+    /**
+     * Searches for neighbours, run while the caller holds the lock so the
+     * maps do not change; the searches themselves are thread safe.
+     */
+    private class Neighbours extends RecursiveAction {
+
+        final List<String> names;
+        final List<float[]> queries;
+        final int k;
+        final double minScore;
+        final String[][] out;
+        final int from, to;
+
+        Neighbours(List<String> names, List<float[]> queries, int k, double minScore, String[][] out, int from, int to) {
+            this.names = names;
+            this.queries = queries;
+            this.k = k;
+            this.minScore = minScore;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 16) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Neighbours(names, queries, k, minScore, out, from, mid),
+                        new Neighbours(names, queries, k, minScore, out, mid, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                // one more as the block finds itself
+                int want = k + 1 + (files.size() - current.size());
+                Hits hits;
+                try {
+                    hits = null != persistent ? persistent.search(queries.get(i), want) : index.search(queries.get(i), want);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+                List<String> found = filesOf(hits, k + 1, minScore);
+                found.remove(names.get(i));
+                if (found.size() > k) {
+                    found = found.subList(0, k);
+                }
+                out[i] = found.toArray(new String[found.size()]);
+            }
+        }
+    }
+
+    /**
+     * Forget a block, for instance because its file was deleted.
+     *
+     * @param file The file name.
+     * @throws IOException If the persistent index could not be written.
+     */
+    public synchronized void remove(String file) throws IOException {
+        Integer id = current.remove(file);
+        embedded.remove(file);
+        if (null != id) {
+            version++;
+        }
+        if (null != id && null != persistent) {
+            persistent.delete(id);
+            files.remove(id);
+        }
+    }
+
+    /**
+     * @return A number that changes whenever a block is embedded or removed,
+     * so cached results can tell they are stale.
+     */
+    public synchronized int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The vector store, null until something was embedded.
+     */
+    public synchronized VectorStore getStore() {
+        return null != persistent ? persistent.getStore() : store;
+    }
+
+    /**
+     * @return The persistent index, null when in memory or nothing was
+     * embedded yet.
+     */
+    public synchronized PersistentIndex getPersistent() {
+        return persistent;
+    }
+
+    /**
+     * @return The index, null until something was embedded.
+     */
+    public synchronized HnswIndex getIndex() {
+        return index;
+    }
+}
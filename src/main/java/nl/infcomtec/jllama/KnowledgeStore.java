@@ -0,0 +1,372 @@
+package nl.infcomtec.jllama;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The knowledge blocks of a folder, kept up to date cheaply.
+ *
+ * An index file holds per block file its size and time plus everything but
+ * the content: title, dates, keywords, related. Opening reads the index and
+ * parses only the files whose size or time differ; content is read from the
+ * block file when first asked for. While running a WatchService applies
+ * changes to the folder as they happen, so a refresh only handles what
+ * changed.
+ *
+ * The map is shared with the callers, changes are made while holding its
+ * lock.
+ *
+ * @author Walter Stroebel
+ */
+public class KnowledgeStore {
+
+    private static final int MAGIC = 0x4b424958; // KBIX
+    private static final int VERSION = 1;
+    public final File folder;
+    public final File indexFile;
+    private final TreeMap<String, KnowledgeBaseSystem.KnowledgeBlock> blocks = new TreeMap<>();
+    /**
+     * File name to its length and lastModified as last seen.
+     */
+    private final TreeMap<String, long[]> seen = new TreeMap<>();
+    private WatchService watcher;
+    private boolean dirty;
+
+    /**
+     * Open a folder, reading the index if there is one and catching up with
+     * the folder.
+     *
+     * @param folder The folder with the block files.
+     * @param indexFile The index file, outside the folder.
+     */
+    public KnowledgeStore(File folder, File indexFile) {
+        this.folder = folder;
+        this.indexFile = indexFile;
+        folder.mkdirs();
+        try {
+            readIndex();
+        } catch (IOException ex) {
+            // no or bad index, everything gets parsed once
+            Logger.getLogger(KnowledgeStore.class.getName()).log(Level.INFO, "Rebuilding {0}", indexFile);
+            blocks.clear();
+            seen.clear();
+        }
+        reconcile();
+    }
+
+    /**
+     * @return File name to block, the live map.
+     */
+    public TreeMap<String, KnowledgeBaseSystem.KnowledgeBlock> getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Catch up with the folder: pending watch events when watching, else
+     * compare the folder with what was seen.
+     */
+    public void refresh() {
+        WatchService ws;
+        synchronized (this) {
+            ws = watcher;
+        }
+        if (null == ws) {
+            reconcile();
+            return;
+        }
+        for (WatchKey key = ws.poll(); null != key; key = ws.poll()) {
+            handle(key);
+        }
+    }
+
+    /**
+     * Compare every file with what was seen and parse those that are new or
+     * changed; forget blocks whose file is gone.
+     */
+    public void reconcile() {
+        File[] list = folder.listFiles();
+        Set<String> present = new HashSet<>();
+        if (null != list) {
+            for (File f : list) {
+                if (f.isFile() && !f.isHidden()) {
+                    present.add(f.getName());
+                    load(f);
+                }
+            }
+        }
+        synchronized (blocks) {
+            for (String name : new ArrayList<>(blocks.keySet())) {
+                if (!present.contains(name)) {
+                    blocks.remove(name);
+                    seen.remove(name);
+                    dirty = true;
+                }
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Parse a block file unless it is unchanged since last seen.
+     */
+    private void load(File f) {
+        String name = f.getName();
+        long[] st = {f.length(), f.lastModified()};
+        synchronized (blocks) {
+            long[] old = seen.get(name);
+            if (null != old && old[0] == st[0] && old[1] == st[1]) {
+                return;
+            }
+        }
+        try {
+            KnowledgeBaseSystem.KnowledgeBlock kb = new KnowledgeBaseSystem.KnowledgeBlock(f);
+            synchronized (blocks) {
+                blocks.put(name, kb);
+                seen.put(name, st);
+                dirty = true;
+            }
+        } catch (IOException ex) {
+            // maybe half written, the next event or refresh tries again
+            Logger.getLogger(KnowledgeStore.class.getName()).log(Level.FINE, "Cannot read " + f, ex);
+        }
+    }
+
+    /**
+     * A block was saved to the folder by this program.
+     *
+     * @param name Its file name.
+     * @param kb The block.
+     */
+    public void saved(String name, KnowledgeBaseSystem.KnowledgeBlock kb) {
+        saved(name, kb, true);
+    }
+
+    /**
+     * A block was saved to the folder by this program.
+     *
+     * @param name Its file name.
+     * @param kb The block.
+     * @param flush To write the index now, else the caller flushes after a
+     * batch.
+     */
+    public void saved(String name, KnowledgeBaseSystem.KnowledgeBlock kb, boolean flush) {
+        File f = new File(folder, name);
+        synchronized (blocks) {
+            blocks.put(name, kb);
+            seen.put(name, new long[]{f.length(), f.lastModified()});
+            dirty = true;
+        }
+        if (flush) {
+            flush();
+        }
+    }
+
+    /**
+     * Watch the folder from a daemon thread.
+     *
+     * @throws IOException If watching is not possible.
+     */
+    public synchronized void startWatching() throws IOException {
+        if (null != watcher) {
+            return;
+        }
+        watcher = FileSystems.getDefault().newWatchService();
+        folder.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        final WatchService ws = watcher;
+        Thread watchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        handle(ws.take());
+                    }
+                } catch (InterruptedException | ClosedWatchServiceException ex) {
+                    // stopped
+                }
+            }
+        }, "KnowledgeStore watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+        // changes between opening and watching
+        reconcile();
+    }
+
+    private void handle(WatchKey key) {
+        boolean overflow = false;
+        Set<String> changed = new HashSet<>();
+        for (WatchEvent<?> ev : key.pollEvents()) {
+            if (StandardWatchEventKinds.OVERFLOW == ev.kind()) {
+                overflow = true;
+            } else {
+                changed.add(((Path) ev.context()).getFileName().toString());
+            }
+        }
+        key.reset();
+        if (overflow) {
+            reconcile();
+            return;
+        }
+        for (String name : changed) {
+            File f = new File(folder, name);
+            if (f.isFile() && !f.isHidden()) {
+                load(f);
+            } else {
+                synchronized (blocks) {
+                    if (null != blocks.remove(name)) {
+                        seen.remove(name);
+                        dirty = true;
+                    }
+                }
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Stop watching and write the index.
+     */
+    public void close() {
+        synchronized (this) {
+            if (null != watcher) {
+                try {
+                    watcher.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(KnowledgeStore.class.getName()).log(Level.SEVERE, null, ex);
+                }
+                watcher = null;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Write the index if anything changed.
+     */
+    public void flush() {
+        synchronized (blocks) {
+            if (!dirty) {
+                return;
+            }
+            try {
+                writeIndex();
+                dirty = false;
+            } catch (IOException ex) {
+                Logger.getLogger(KnowledgeStore.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        indexFile.getParentFile().mkdirs();
+        File tmp = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(blocks.size());
+            for (Map.Entry<String, KnowledgeBaseSystem.KnowledgeBlock> e : blocks.entrySet()) {
+                KnowledgeBaseSystem.KnowledgeBlock kb = e.getValue();
+                long[] st = seen.get(e.getKey());
+                writeString(out, e.getKey());
+                out.writeLong(st[0]);
+                out.writeLong(st[1]);
+                writeString(out, kb.title);
+                out.writeLong(null == kb.created ? Long.MIN_VALUE : kb.created);
+                out.writeLong(null == kb.lastMod ? Long.MIN_VALUE : kb.lastMod);
+                writeStrings(out, kb.keywords);
+                writeStrings(out, kb.related);
+            }
+        }
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void readIndex() throws IOException {
+        if (!indexFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (MAGIC != in.readInt() || VERSION != in.readInt()) {
+                throw new IOException("Not a knowledge index: " + indexFile);
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String name = readString(in);
+                long[] st = {in.readLong(), in.readLong()};
+                String title = readString(in);
+                long created = in.readLong();
+                long lastMod = in.readLong();
+                String[] keywords = readStrings(in);
+                String[] related = readStrings(in);
+                blocks.put(name, new KnowledgeBaseSystem.KnowledgeBlock(new File(folder, name), title,
+                        Long.MIN_VALUE == created ? null : created,
+                        Long.MIN_VALUE == lastMod ? null : lastMod, keywords, related));
+                seen.put(name, st);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (null == s) {
+            out.writeInt(-1);
+        } else {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) {
+            return null;
+        }
+        byte[] b = new byte[n];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] a) throws IOException {
+        out.writeInt(null == a ? -1 : a.length);
+        if (null != a) {
+            for (String s : a) {
+                writeString(out, s);
+            }
+        }
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) {
+            return null;
+        }
+        String[] ret = new String[n];
+        for (int i = 0; i < n; i++) {
+            ret[i] = readString(in);
+        }
+        return ret;
+    }
+
+}
@@ -0,0 +1,265 @@
+package nl.infcomtec.jllama;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * MinHash signatures of texts for finding near-duplicates without comparing
+ * every pair.
+ *
+ * A text becomes the set of its word shingles (runs of consecutive tokens,
+ * lower case, letters and digits only); two signatures agree in a fraction of
+ * their positions that estimates the Jaccard similarity of those sets. The
+ * Index splits signatures into bands and only compares texts that share a
+ * band, which finds pairs above about (1/bands)^(1/rows) similarity, rows
+ * being numHashes/bands: about 0.71 for 16 bands of 8.
+ *
+ * @author Walter Stroebel
+ */
+public class MinHash {
+
+    public final int numHashes;
+    public final int bands;
+    public final int shingle;
+    private final long[] seeds;
+
+    /**
+     * 128 hashes in 16 bands of 8, shingles of 3 tokens: pairs above about
+     * 0.7 similarity are found.
+     */
+    public MinHash() {
+        this(128, 16, 3);
+    }
+
+    /**
+     * Custom MinHash.
+     *
+     * @param numHashes Signature length.
+     * @param bands Number of bands, must divide numHashes.
+     * @param shingle Tokens per shingle.
+     */
+    public MinHash(int numHashes, int bands, int shingle) {
+        if (numHashes < 1 || bands < 1 || 0 != numHashes % bands || shingle < 1) {
+            throw new IllegalArgumentException("Bad MinHash " + numHashes + "/" + bands + "/" + shingle);
+        }
+        this.numHashes = numHashes;
+        this.bands = bands;
+        this.shingle = shingle;
+        this.seeds = new long[numHashes];
+        Random rnd = new Random(0x5eed);
+        for (int i = 0; i < numHashes; i++) {
+            seeds[i] = rnd.nextLong();
+        }
+    }
+
+    /**
+     * Final step of SplitMix64, a cheap good 64-bit mix.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Hashes of the tokens of a text.
+     */
+    private static long[] tokens(CharSequence text) {
+        long[] ret = new long[64];
+        int n = 0;
+        long h = 0;
+        boolean in = false;
+        for (int i = 0, len = text.length(); i <= len; i++) {
+            char c = i < len ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                h = (h ^ Character.toLowerCase(c)) * 0x100000001b3L;
+                in = true;
+            } else if (in) {
+                if (n == ret.length) {
+                    ret = Arrays.copyOf(ret, n * 2);
+                }
+                ret[n++] = h;
+                h = 0;
+                in = false;
+            }
+        }
+        return Arrays.copyOf(ret, n);
+    }
+
+    /**
+     * The signature of a text.
+     *
+     * @param text The text.
+     * @return numHashes minimums.
+     */
+    public int[] signature(CharSequence text) {
+        long[] tok = tokens(text);
+        int n = Math.max(1, tok.length - shingle + 1);
+        long[] sh = new long[n];
+        for (int s = 0; s < n; s++) {
+            long h = 0;
+            for (int t = s; t < Math.min(tok.length, s + shingle); t++) {
+                h = mix(h + tok[t]);
+            }
+            sh[s] = h;
+        }
+        int[] sig = new int[numHashes];
+        for (int i = 0; i < numHashes; i++) {
+            long seed = seeds[i];
+            int min = Integer.MAX_VALUE;
+            for (long h : sh) {
+                int v = (int) (mix(h ^ seed) >>> 33);
+                if (v < min) {
+                    min = v;
+                }
+            }
+            sig[i] = min;
+        }
+        return sig;
+    }
+
+    /**
+     * Estimated Jaccard similarity.
+     *
+     * @param a A signature.
+     * @param b Another.
+     * @return Fraction of equal positions.
+     */
+    public static double similarity(int[] a, int[] b) {
+        int eq = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b[i]) {
+                eq++;
+            }
+        }
+        return (double) eq / a.length;
+    }
+
+    /**
+     * Which of a list of texts, best first, to keep when near-duplicates are
+     * collapsed into the first of them.
+     *
+     * @param texts The texts, for instance search hits.
+     * @param threshold Similarity from which texts are duplicates.
+     * @return Indexes of the texts to keep, in order.
+     */
+    public List<Integer> collapse(List<? extends CharSequence> texts, double threshold) {
+        List<Integer> ret = new ArrayList<>();
+        List<int[]> kept = new ArrayList<>();
+        for (int i = 0; i < texts.size(); i++) {
+            int[] sig = signature(texts.get(i));
+            boolean dup = false;
+            for (int[] k : kept) {
+                if (similarity(sig, k) >= threshold) {
+                    dup = true;
+                    break;
+                }
+            }
+            if (!dup) {
+                kept.add(sig);
+                ret.add(i);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Signatures by band, for finding near-duplicates of a new text. Not
+     * thread safe.
+     */
+    public class Index {
+
+        private final HashMap<Integer, int[]> sigs = new HashMap<>();
+        private final HashMap<Long, int[]> buckets = new HashMap<>();
+
+        private long bandKey(int[] sig, int band) {
+            int rows = numHashes / bands;
+            long h = band;
+            for (int r = band * rows; r < (band + 1) * rows; r++) {
+                h = mix(h + sig[r]);
+            }
+            return h;
+        }
+
+        /**
+         * Add a signature.
+         *
+         * @param id Its id, replacing any signature with the same id.
+         * @param sig The signature.
+         */
+        public void add(int id, int[] sig) {
+            remove(id);
+            sigs.put(id, sig);
+            for (int b = 0; b < bands; b++) {
+                long key = bandKey(sig, b);
+                int[] list = buckets.get(key);
+                if (null == list) {
+                    list = new int[]{0, 0, 0, 0};
+                }
+                if (list[0] + 1 == list.length) {
+                    list = Arrays.copyOf(list, list.length * 2);
+                }
+                list[++list[0]] = id;
+                buckets.put(key, list);
+            }
+        }
+
+        /**
+         * Remove a signature.
+         *
+         * @param id Its id.
+         */
+        public void remove(int id) {
+            int[] sig = sigs.remove(id);
+            if (null == sig) {
+                return;
+            }
+            for (int b = 0; b < bands; b++) {
+                long key = bandKey(sig, b);
+                int[] list = buckets.get(key);
+                for (int i = 1; null != list && i <= list[0]; i++) {
+                    if (list[i] == id) {
+                        list[i] = list[list[0]--];
+                        if (0 == list[0]) {
+                            buckets.remove(key);
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+
+        /**
+         * The most similar signature at or above a threshold.
+         *
+         * @param sig The signature to match.
+         * @param threshold Lowest similarity.
+         * @return Its id, or Integer.MIN_VALUE if there is none.
+         */
+        public int nearest(int[] sig, double threshold) {
+            int best = Integer.MIN_VALUE;
+            double bestSim = threshold;
+            for (int b = 0; b < bands; b++) {
+                int[] list = buckets.get(bandKey(sig, b));
+                for (int i = 1; null != list && i <= list[0]; i++) {
+                    double s = similarity(sig, sigs.get(list[i]));
+                    if (s >= bestSim) {
+                        bestSim = s;
+                        best = list[i];
+                    }
+                }
+            }
+            return best;
+        }
+
+        /**
+         * @return Number of signatures.
+         */
+        public int size() {
+            return sigs.size();
+        }
+    }
+}
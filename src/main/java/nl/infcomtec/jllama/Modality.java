@@ -1,11 +1,10 @@
 package nl.infcomtec.jllama;
 
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.FileWriter;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Semaphore;
-import javax.imageio.ImageIO;
+import nl.infcomtec.tools.ImagePipe;
+import nl.infcomtec.tools.RendererPool;
 
 /**
  * Base class for modalities.
@@ -15,7 +14,9 @@ import javax.imageio.ImageIO;
  * a PlantUML description), but also any other external task, this will
  * encapsulate that action.
  *
- * An (external) tool will do the work, like generating an image.
+ * An (external) tool will do the work, like generating an image. Graphical
+ * tools get the text on stdin and write PNG to stdout, there are no temporary
+ * files involved.
  *
  * The result can be fetched using getImage() or getText() once the task is
  * done.
@@ -30,8 +31,14 @@ import javax.imageio.ImageIO;
  */
 public abstract class Modality implements Runnable {
 
-    protected File outputFile;
-    protected File pngOutputFile;
+    /**
+     * Maximum time in milliseconds an external renderer may take.
+     */
+    public static final long RENDER_TIMEOUT = 30000;
+    /**
+     * Maximum number of renderer processes per tool.
+     */
+    public static final int MAX_RENDERERS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
     protected BufferedImage image;
     protected String currentText;
     protected String outputText;
@@ -65,35 +72,49 @@ public abstract class Modality implements Runnable {
     @Override
     public void run() {
         try {
-            outputFile = File.createTempFile("temp", ".txt");
-            if (isGraphical) {
-                pngOutputFile = new File(
-                        outputFile.getParentFile(),
-                        outputFile.getName().replace(".txt", ".png"));
-            }
-            try (FileWriter writer = new FileWriter(outputFile)) {
-                writer.write(currentText);
-            }
             convert();
-            if (isGraphical) {
-                image = ImageIO.read(pngOutputFile);
-            }
         } catch (Exception any) {
             oops = any;
             outputText = any.getMessage();
         } finally {
-            if (null != outputFile) {
-                outputFile.delete();
-            }
-            outputFile = null;
-            if (null != pngOutputFile) {
-                pngOutputFile.delete();
-            }
-            pngOutputFile = null;
             done.release();
         }
     }
 
+    /**
+     * Pipe the current text through an external tool that writes PNG to
+     * stdout and set the image from that.
+     *
+     * @param cmd The command line.
+     */
+    protected void renderPipe(String... cmd) {
+        ImagePipe pipe = new ImagePipe(Ollama.WORK_DIR, RENDER_TIMEOUT);
+        image = pipe.render(currentText, cmd);
+        if (null == image) {
+            String msg = pipe.timedOut
+                    ? cmd[0] + " timed out after " + RENDER_TIMEOUT + " ms"
+                    : cmd[0] + " failed, rc=" + pipe.exitCode;
+            oops = new RuntimeException(msg + System.lineSeparator() + pipe.getErrors());
+            outputText = oops.getMessage();
+        }
+    }
+
+    /**
+     * Render the current text with a pooled renderer and set the image from
+     * that.
+     *
+     * @param pool The renderers for the tool.
+     */
+    protected void renderPooled(RendererPool pool) {
+        try {
+            image = pool.render(currentText, RENDER_TIMEOUT);
+        } catch (Exception ex) {
+            image = null;
+            oops = ex;
+            outputText = ex.getMessage();
+        }
+    }
+
     /**
      * Get the image produced.
      *
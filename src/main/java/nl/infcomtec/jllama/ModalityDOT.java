@@ -1,17 +1,27 @@
 package nl.infcomtec.jllama;
 
 import java.util.concurrent.ExecutorService;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import static nl.infcomtec.jllama.Ollama.WORK_DIR;
+import nl.infcomtec.tools.RendererPool;
 
 /**
- * Converts text to image if text is valid PlantUML.
+ * Converts text to image if text is valid GraphViz.
  *
  * @author Walter Stroebel
  */
 public class ModalityDOT extends Modality {
 
+    /**
+     * Graphviz starts fast and has no multi-graph pipe mode, the pool just
+     * limits how many run at the same time.
+     */
+    private static final RendererPool renderers = new RendererPool("Graphviz", MAX_RENDERERS,
+            new RendererPool.Factory() {
+        @Override
+        public RendererPool.Renderer create() throws Exception {
+            return new RendererPool.OneShot(Ollama.WORK_DIR, "dot", "-Tpng");
+        }
+    });
+
     public ModalityDOT(ExecutorService pool, String currentText) {
         super(pool, currentText);
     }
@@ -20,16 +30,7 @@ public class ModalityDOT extends Modality {
     protected void convert() {
 
         // Run Graphviz
-        try {
-            ProcessBuilder pb = new ProcessBuilder("dot", "-Tpng", "-o",
-                    pngOutputFile.getAbsolutePath(),
-                    outputFile.getAbsolutePath());
-            pb.directory(WORK_DIR);
-            Process process = pb.start();
-            process.waitFor();
-        } catch (Exception e) {
-            Logger.getLogger(Ollama.class.getName()).log(Level.SEVERE, null, e);
-        }
+        renderPooled(renderers);
     }
 
 }
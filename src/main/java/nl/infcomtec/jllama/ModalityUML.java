@@ -1,10 +1,8 @@
 package nl.infcomtec.jllama;
 
 import java.util.concurrent.ExecutorService;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import javax.imageio.ImageIO;
-import static nl.infcomtec.jllama.Ollama.WORK_DIR;
+import nl.infcomtec.tools.PlantUmlRenderer;
+import nl.infcomtec.tools.RendererPool;
 
 /**
  * Converts text to image if text is valid PlantUML.
@@ -13,6 +11,18 @@ import static nl.infcomtec.jllama.Ollama.WORK_DIR;
  */
 public class ModalityUML extends Modality {
 
+    /**
+     * PlantUML processes kept running in pipe mode, the first one includes a
+     * JVM start so it gets extra time.
+     */
+    private static final RendererPool renderers = new RendererPool("PlantUML", MAX_RENDERERS,
+            new RendererPool.Factory() {
+        @Override
+        public RendererPool.Renderer create() throws Exception {
+            return new PlantUmlRenderer(Ollama.WORK_DIR, 3 * RENDER_TIMEOUT, "plantuml");
+        }
+    });
+
     public ModalityUML(ExecutorService pool, String currentText) {
         super(pool, currentText);
     }
@@ -21,15 +31,7 @@ public class ModalityUML extends Modality {
     protected void convert() {
 
         // Run PlantUML with PNG output
-        try {
-            ProcessBuilder pb = new ProcessBuilder("plantuml", "-tpng", outputFile.getAbsolutePath());
-            pb.directory(WORK_DIR);
-            Process process = pb.start();
-            process.waitFor();
-            image = ImageIO.read(pngOutputFile);
-        } catch (Exception e) {
-            Logger.getLogger(Ollama.class.getName()).log(Level.SEVERE, null, e);
-        }
+        renderPooled(renderers);
     }
 
 }
@@ -1,8 +1,7 @@
 package nl.infcomtec.jllama;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileFilter;
 import java.io.FilenameFilter;
 import javax.imageio.ImageIO;
 
@@ -29,43 +28,27 @@ public class Nomic {
         ImageIO.write(embeddings.toImageRGB(640, 640, 40, 40, false), "png", new File(nd, "normRGB.png"));
     }
 
+    /**
+     * Embed all Java sources below ~/nomic into an index in ~/nomic/index;
+     * a second run only embeds what changed.
+     */
     public static void main(String[] args) throws Exception {
         File nd = new File(System.getProperty("user.home"), "nomic");
         Ollama.init();
         OllamaEmbeddings em = new OllamaEmbeddings(Ollama.config.lastEndpoint, model);
         cleanup(nd);
-        File[] java = nd.listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                return name.endsWith(".java");
-            }
-        });
-        StringBuilder sb = new StringBuilder();
-        int n = 0;
-        Embeddings last = null;
-        for (File f : java) {
-            Statistics stats = new Statistics();
-            try (BufferedReader bfr = new BufferedReader(new FileReader(f))) {
-                for (String s = bfr.readLine(); null != s; s = bfr.readLine()) {
-                    s = s.trim();
-                    while (sb.length() + s.length() > 5000) {
-                        int nl = sb.indexOf("\n");
-                        if (nl < 0) {
-                            sb.setLength(0);
-                            break;
-                        }
-                        sb.delete(0, nl + 1);
-                    }
-                    sb.append(s);
-                    sb.append(System.lineSeparator());
-                    Embeddings embeddings = em.getEmbeddings(sb.toString());
-                    if (null != last) {
-                        stats.rolling(last.cosineSimilarity(embeddings));
-                    }
-                    last = embeddings;
+        Ingester ingester = new Ingester(em, new File(nd, "index"));
+        try {
+            Ingester.Report report = ingester.ingest(nd, new FileFilter() {
+                @Override
+                public boolean accept(File f) {
+                    return f.getName().endsWith(".java");
                 }
-                System.out.println(stats);
-            }
+            });
+            System.out.println(report);
+            System.out.println(ingester.getIndex());
+        } finally {
+            ingester.close();
         }
     }
 
@@ -22,6 +22,8 @@ import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
@@ -57,13 +59,20 @@ import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
+import javax.swing.JTextPane;
 import javax.swing.JToolBar;
 import javax.swing.SwingWorker;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 import javax.swing.text.html.HTMLEditorKit;
 import javax.swing.text.html.StyleSheet;
 import nl.infcomtec.simpleimage.ImageObject;
 import nl.infcomtec.simpleimage.ImageViewer;
-import nl.infcomtec.tools.PandocConverter;
+import nl.infcomtec.tools.MarkdownRenderer;
+import nl.infcomtec.tools.MarkdownStyler;
 
 /**
  * This is a FULL Ollama chat window. It allows you to chat with any available
@@ -88,9 +97,9 @@ public class OllamaChatFrame {
     private final JToolBar buttons;
 
     /**
-     * The text area displaying the chat conversation.
+     * The text pane displaying the chat conversation, the text is Markdown.
      */
-    private final JTextArea chat;
+    private final JTextPane chat;
 
     /**
      * The text area for user input.
@@ -191,6 +200,10 @@ public class OllamaChatFrame {
      * The previously uploaded image.
      */
     private final AtomicReference<BufferedImage> uplImage = new AtomicReference<>();
+    /**
+     * Retrieval over the knowledge base, null when not in use.
+     */
+    private Retriever retriever;
     /**
      * Last directory used to upload image from.
      */
@@ -212,7 +225,7 @@ public class OllamaChatFrame {
         this.hosts = new JComboBox<>();
         this.buttons = new JToolBar();
         this.input = new JTextArea(4, 80);
-        this.chat = new JTextArea();
+        this.chat = new JTextPane();
         frame = new JFrame("Ollama chat");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         Container cont = frame.getContentPane();
@@ -220,8 +233,7 @@ public class OllamaChatFrame {
         buttonBar();
         createMenuBar();
         cont.add(buttons, BorderLayout.NORTH);
-        chat.setLineWrap(true);
-        chat.setWrapStyleWord(true);
+        new MarkdownStyler(chat);
         final JPopupMenu popupMenu = new JPopupMenu();
         JMenuItem copy = new JMenuItem(new AbstractAction("Copy") {
             @Override
@@ -441,7 +453,54 @@ public class OllamaChatFrame {
                     }
                 };
                 pane.setEditorKit(kit);
-                pane.setText(new PandocConverter().convertMarkdownToHTML(markDown));
+                pane.setEditable(false);
+                final MarkdownRenderer renderer = new MarkdownRenderer();
+                renderer.append(markDown);
+                pane.setText(renderer.getHtml());
+                // follow the chat, the renderer only re-parses the last open block
+                final Timer refresh = new Timer(250, new ActionListener() {
+                    @Override
+                    public void actionPerformed(ActionEvent ae) {
+                        pane.setText(renderer.getHtml());
+                    }
+                });
+                refresh.setRepeats(false);
+                final DocumentListener follow = new DocumentListener() {
+                    @Override
+                    public void insertUpdate(DocumentEvent de) {
+                        try {
+                            if (de.getOffset() + de.getLength() == de.getDocument().getLength()) {
+                                renderer.append(de.getDocument().getText(de.getOffset(), de.getLength()));
+                            } else {
+                                renderer.reset();
+                                renderer.append(chat.getText());
+                            }
+                        } catch (BadLocationException ex) {
+                            Logger.getLogger(OllamaChatFrame.class.getName()).log(Level.SEVERE, null, ex);
+                        }
+                        refresh.restart();
+                    }
+
+                    @Override
+                    public void removeUpdate(DocumentEvent de) {
+                        renderer.reset();
+                        renderer.append(chat.getText());
+                        refresh.restart();
+                    }
+
+                    @Override
+                    public void changedUpdate(DocumentEvent de) {
+                        // attributes only
+                    }
+                };
+                chat.getDocument().addDocumentListener(follow);
+                html.addWindowListener(new WindowAdapter() {
+                    @Override
+                    public void windowClosed(WindowEvent we) {
+                        chat.getDocument().removeDocumentListener(follow);
+                        refresh.stop();
+                    }
+                });
                 html.getContentPane().add(new JScrollPane(pane), BorderLayout.CENTER);
                 html.pack();
                 html.setVisible(true);
@@ -500,6 +559,103 @@ public class OllamaChatFrame {
                 KnowledgeBaseSystem.createAndShowKBFrame(frame, client);
             }
         }));
+        actionMenu.add(new JMenuItem(new AbstractAction("Knowledge Base map") {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                new SwingWorker<BufferedImage, Void>() {
+                    @Override
+                    protected BufferedImage doInBackground() throws Exception {
+                        KnowledgeIndex ki = KnowledgeBaseSystem.getIndex();
+                        ki.update(KnowledgeBaseSystem.getAllKnown(false));
+                        return ki.map(8, 1200, 900);
+                    }
+
+                    @Override
+                    protected void done() {
+                        try {
+                            BufferedImage img = get();
+                            if (null != img) {
+                                new ImageViewer(img).getScalePanFrame().setTitle("Knowledge Base map");
+                            }
+                        } catch (Exception ex) {
+                            Logger.getLogger(OllamaChatFrame.class.getName()).log(Level.SEVERE, null, ex);
+                        }
+                    }
+                }.execute();
+            }
+        }));
+        actionMenu.add(new JMenuItem(new AbstractAction("Fill in Knowledge Base keywords") {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                new SwingWorker<Integer, Void>() {
+                    @Override
+                    protected Integer doInBackground() throws Exception {
+                        return KnowledgeBaseSystem.fillKeywords(null);
+                    }
+
+                    @Override
+                    protected void done() {
+                        try {
+                            JOptionPane.showMessageDialog(frame, get() + " blocks got keywords.");
+                        } catch (Exception ex) {
+                            Logger.getLogger(OllamaChatFrame.class.getName()).log(Level.SEVERE, null, ex);
+                        }
+                    }
+                }.execute();
+            }
+        }));
+        actionMenu.add(new JMenuItem(new AbstractAction("Link related Knowledge Base blocks") {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                new SwingWorker<Integer, Void>() {
+                    @Override
+                    protected Integer doInBackground() throws Exception {
+                        return KnowledgeBaseSystem.getRelatedGraph().update(KnowledgeBaseSystem.getAllKnown(true), null);
+                    }
+
+                    @Override
+                    protected void done() {
+                        try {
+                            JOptionPane.showMessageDialog(frame, get() + " blocks got other related blocks.");
+                        } catch (Exception ex) {
+                            Logger.getLogger(OllamaChatFrame.class.getName()).log(Level.SEVERE, null, ex);
+                        }
+                    }
+                }.execute();
+            }
+        }));
+        actionMenu.add(new JCheckBoxMenuItem(new AbstractAction("Answer with the Knowledge Base") {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                final JCheckBoxMenuItem item = (JCheckBoxMenuItem) ae.getSource();
+                if (!item.isSelected()) {
+                    retriever = null;
+                    client.retriever = null;
+                    return;
+                }
+                // opening the indexes reads files, not on the event thread
+                new SwingWorker<Retriever, Void>() {
+                    @Override
+                    protected Retriever doInBackground() throws Exception {
+                        return new Retriever();
+                    }
+
+                    @Override
+                    protected void done() {
+                        try {
+                            Retriever r = get();
+                            if (item.isSelected()) {
+                                retriever = r;
+                                client.retriever = r;
+                            }
+                        } catch (Exception ex) {
+                            item.setSelected(false);
+                            Logger.getLogger(OllamaChatFrame.class.getName()).log(Level.SEVERE, null, ex);
+                        }
+                    }
+                }.execute();
+            }
+        }));
         actionMenu.add(new JMenuItem(new AbstractAction("Model testing (grade school reading test)") {
             @Override
             public void actionPerformed(ActionEvent ae) {
@@ -666,6 +822,20 @@ public class OllamaChatFrame {
         }
     }
 
+    /**
+     * Add text at the end of the chat, styling follows in the background.
+     *
+     * @param text The text to add.
+     */
+    private void appendChat(String text) {
+        Document doc = chat.getDocument();
+        try {
+            doc.insertString(doc.getLength(), text, null);
+        } catch (BadLocationException ex) {
+            Logger.getLogger(OllamaChatFrame.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
     /**
      * Called on the dispatch thread to show the frame.
      */
@@ -714,7 +884,7 @@ public class OllamaChatFrame {
          */
         private void askModel(final String source, final String question) {
             if (!question.isEmpty()) {
-                chat.append(source + question);
+                appendChat(source + question);
                 SwingWorker<Response, StreamedResponse> sw = new SwingWorker<Response, StreamedResponse>() {
 
                     OllamaClient.StreamListener listener = new OllamaClient.StreamListener() {
@@ -733,6 +903,10 @@ public class OllamaChatFrame {
                         try {
                             Response resp = get();
                             updateSideBar(resp);
+                            Retriever r = client.retriever;
+                            if (null != r && !r.lastUsed.isEmpty()) {
+                                appendChat("\n\n*Knowledge used: " + String.join(", ", r.lastUsed) + "*");
+                            }
                             if (autoMode.get()) {
                                 List<Modality> mods = Ollama.handleOutput(pool, resp.response);
                                 if (!mods.isEmpty()) {
@@ -755,7 +929,7 @@ public class OllamaChatFrame {
                     @Override
                     protected void process(List<StreamedResponse> chunks) {
                         for (StreamedResponse sr : chunks) {
-                            chat.append(sr.response);
+                            appendChat(sr.response);
                             chat.setCaretPosition(chat.getDocument().getLength());
                         }
                         chunks.clear();
@@ -779,7 +953,7 @@ public class OllamaChatFrame {
                         }
                     }
                 };
-                chat.append("\n\n### Answer\n\n");
+                appendChat("\n\n### Answer\n\n");
                 sw.execute();
             }
         }
@@ -821,6 +995,7 @@ public class OllamaChatFrame {
                 }
                 models.invalidate();
                 client = new OllamaClient(selHost);
+                client.retriever = retriever;
             }
         }
     }
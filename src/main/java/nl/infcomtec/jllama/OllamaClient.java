@@ -10,9 +10,13 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.imageio.ImageIO;
 
 /**
@@ -33,6 +37,14 @@ public class OllamaClient {
      * The name of the currently active model.
      */
     public String curModel = "";
+    /**
+     * Retrieval stage for asked questions, null for none.
+     */
+    public volatile Retriever retriever;
+    /**
+     * Keyword index over the interactions of all sessions, keyed model#n.
+     */
+    public final KeywordIndex transcripts = new KeywordIndex();
 
     /**
      * Constructs an OllamaClient instance with the given endpoint.
@@ -56,6 +68,7 @@ public class OllamaClient {
      */
     public void clear() {
         sessions.clear();
+        transcripts.clear();
         newModel(curModel);
     }
 
@@ -167,17 +180,41 @@ public class OllamaClient {
      * Add a response to the current model session.
      *
      * @param rq The Request object containing the request details.
+     * @param question The prompt as asked, without knowledge put in front,
+     * for the transcript index.
      * @param resp The Response object containing the response details.
      */
-    private void addResponse(Request rq, Response resp) {
+    private void addResponse(Request rq, String question, Response resp) {
         LinkedList<ModelInteraction> get = getInter();
         if (null == get) {
             get = new LinkedList<>();
             getSession().interactions = get;
         }
+        transcripts.put(curModel + "#" + get.size(), System.currentTimeMillis(), question, resp.response, null);
         get.add(new ModelInteraction(rq, resp));
     }
 
+    /**
+     * Find the interactions whose question or response best match the words of
+     * a text, over all sessions.
+     *
+     * @param text The text.
+     * @param k Maximum number of interactions.
+     * @return The interactions, best match first.
+     */
+    public List<ModelInteraction> searchTranscripts(String text, int k) {
+        List<ModelInteraction> ret = new ArrayList<>();
+        for (String key : transcripts.search(text, k)) {
+            int hash = key.lastIndexOf('#');
+            ModelSession ms = sessions.get(key.substring(0, hash));
+            int n = Integer.parseInt(key.substring(hash + 1));
+            if (null != ms && null != ms.interactions && n < ms.interactions.size()) {
+                ret.add(ms.interactions.get(n));
+            }
+        }
+        return ret;
+    }
+
     /**
      * Send a prompt to the specified model and get the response.
      *
@@ -205,16 +242,32 @@ public class OllamaClient {
         ObjectMapper mapper = Ollama.getMapper();
         Request rq = new Request();
         rq.model = model;
-        rq.prompt = prompt;
+        rq.prompt = augment(prompt);
         rq.context = getContext();
         setReqImages(images, rq);
         String requestBody = mapper.writeValueAsString(rq);
         String response = sendRequest(requestBody);
         Response resp = mapper.readValue(response, Response.class);
-        addResponse(rq, resp);
+        addResponse(rq, prompt, resp);
         return resp;
     }
 
+    /**
+     * Put relevant knowledge in front of a prompt, if there is a retriever.
+     * Retrieval problems are logged, the question is then asked as is.
+     */
+    private String augment(String prompt) {
+        Retriever r = retriever;
+        if (null != r) {
+            try {
+                return r.augment(prompt);
+            } catch (Exception ex) {
+                Logger.getLogger(OllamaClient.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return prompt;
+    }
+
     /**
      * Check if a dialog is in progress.
      *
@@ -320,13 +373,13 @@ public class OllamaClient {
 
         Request rq = new Request();
         rq.model = model;
-        rq.prompt = prompt;
+        rq.prompt = augment(prompt);
         rq.stream = true;
         rq.context = getContext();
         setReqImages(images, rq);
         String requestBody = mapper.writeValueAsString(rq);
         Response resp = sendRequestWithStreaming(requestBody, listener);
-        addResponse(rq, resp);
+        addResponse(rq, prompt, resp);
         return resp;
     }
 
@@ -1,11 +1,10 @@
 package nl.infcomtec.jllama;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import nl.infcomtec.vectors.VectorStore;
 
 public class OllamaEmbeddings {
 
@@ -13,6 +12,12 @@ public class OllamaEmbeddings {
     private final String model;
     private final String endPoint;
     private final String API_EMBED;
+    private final ThreadLocal<EmbeddingDecoder> decoders = new ThreadLocal<EmbeddingDecoder>() {
+        @Override
+        protected EmbeddingDecoder initialValue() {
+            return new EmbeddingDecoder();
+        }
+    };
 
     public OllamaEmbeddings(String endPoint, String model) {
         this.endPoint = endPoint;
@@ -20,35 +25,78 @@ public class OllamaEmbeddings {
         API_EMBED = endPoint + EMBED;
     }
 
+    /**
+     * @return The model used.
+     */
+    public String getModel() {
+        return model;
+    }
+
+    /**
+     * Embed a text and add the vector to a store.
+     *
+     * @param prompt The text.
+     * @param store Where to put the vector, must be for the same model.
+     * @param meta Metadata for the vector, may be null; the prompt is used as
+     * its text if it has none.
+     * @return The id of the vector in the store.
+     * @throws Exception If the embedding failed or does not fit the store.
+     */
+    public int getEmbeddings(String prompt, VectorStore store, VectorStore.Metadata meta) throws Exception {
+        EmbeddingDecoder dec = fetch(prompt);
+        store.check(model, dec.size());
+        if (null == meta) {
+            meta = new VectorStore.Metadata(prompt, null);
+        } else if (null == meta.text) {
+            meta.text = prompt;
+        }
+        return store.add(dec.floats(), meta);
+    }
+
+    /**
+     * Embed a text as floats, the way the vector stores keep them.
+     *
+     * @param prompt The text.
+     * @return A new vector.
+     * @throws Exception If the embedding failed.
+     */
+    public float[] getVector(String prompt) throws Exception {
+        return fetch(prompt).floats().clone();
+    }
+
     public Embeddings getEmbeddings(String prompt) throws Exception {
+        Embeddings ret = new Embeddings();
+        ret.request = new Embeddings.Request();
+        ret.request.model = model;
+        ret.request.prompt = prompt;
+        ret.response = new Embeddings.Response();
+        ret.response.embedding = fetch(prompt).toDoubles();
+        return ret;
+    }
+
+    /**
+     * Run the request, decoding into this thread's decoder.
+     */
+    private EmbeddingDecoder fetch(String prompt) throws Exception {
+        Embeddings.Request req = new Embeddings.Request();
+        req.model = model;
+        req.prompt = prompt;
+        String requestBody = Ollama.getMapper().writeValueAsString(req);
+        EmbeddingDecoder dec = decoders.get();
         try {
             // on rare occasions Ollama dies (out of memory?), try twice
-            ObjectMapper mapper = Ollama.getMapper();
-            Embeddings ret = new Embeddings();
-            ret.request = new Embeddings.Request();
-            ret.request.model = model;
-            ret.request.prompt = prompt;
-            String requestBody = mapper.writeValueAsString(ret.request);
-            String response = sendRequest(requestBody);
-            ret.response = mapper.readValue(response, Embeddings.Response.class);
-            return ret;
+            sendRequest(requestBody, dec);
+            return dec;
         } catch (Exception any) {
             System.err.println("First attempt failed: " + any.getMessage());
             // give ollama a moment to restart
             Thread.sleep(10000);
         }
-        ObjectMapper mapper = Ollama.getMapper();
-        Embeddings ret = new Embeddings();
-        ret.request = new Embeddings.Request();
-        ret.request.model = model;
-        ret.request.prompt = prompt;
-        String requestBody = mapper.writeValueAsString(ret.request);
-        String response = sendRequest(requestBody);
-        ret.response = mapper.readValue(response, Embeddings.Response.class);
-        return ret;
+        sendRequest(requestBody, dec);
+        return dec;
     }
 
-    private String sendRequest(String requestBody) throws Exception {
+    private void sendRequest(String requestBody, EmbeddingDecoder dec) throws Exception {
         URL url = new URL(API_EMBED);
         HttpURLConnection con = (HttpURLConnection) url.openConnection();
         con.setRequestMethod("POST");
@@ -60,13 +108,8 @@ public class OllamaEmbeddings {
             os.write(input, 0, input.length);
         }
 
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(con.getInputStream(), "utf-8"))) {
-            StringBuilder response = new StringBuilder();
-            String responseLine;
-            while ((responseLine = br.readLine()) != null) {
-                response.append(responseLine.trim());
-            }
-            return response.toString();
+        try (InputStream is = con.getInputStream()) {
+            dec.decode(is);
         } finally {
             con.disconnect();
         }
@@ -0,0 +1,219 @@
+package nl.infcomtec.jllama;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fills KnowledgeBlock.related with the nearest other blocks by embedding,
+ * those at least minScore similar, nearest first. The computed list replaces
+ * whatever was there.
+ *
+ * The first run searches the neighbours of every block with the index, in
+ * parallel. After that only the neighbourhoods a change touches are searched
+ * again: the new or edited block, the blocks that listed a changed or removed
+ * block, and the blocks a changed block now comes closer to than their
+ * weakest neighbour. The last are found by comparing with every block, which
+ * for a few changes is much cheaper than searching all neighbourhoods.
+ *
+ * The lastMod of every block as linked is kept in a file, so a restart only
+ * handles what changed meanwhile. Blocks are written with their lastMod as
+ * is, so this does not cause embedding again.
+ *
+ * @author Walter Stroebel
+ */
+public class RelatedGraph {
+
+    private static final int MAGIC = 0x4b42524c; // KBRL
+    private static final int VERSION = 1;
+    /**
+     * Maximum number of related blocks.
+     */
+    public int k = 5;
+    /**
+     * Lowest cosine similarity of a related block; depends on the model.
+     */
+    public double minScore = 0.6;
+    public final File file;
+    private final KnowledgeIndex index;
+    /**
+     * File name to the lastMod of the block when its neighbours were found.
+     */
+    private final TreeMap<String, Long> linked = new TreeMap<>();
+
+    /**
+     * Graph over the blocks of an index.
+     *
+     * @param index The index.
+     * @param file Where to keep what was linked, null for nowhere.
+     */
+    public RelatedGraph(KnowledgeIndex index, File file) {
+        this.index = index;
+        this.file = file;
+        try {
+            read();
+        } catch (IOException ex) {
+            // no or bad file, everything gets linked once
+            Logger.getLogger(RelatedGraph.class.getName()).log(Level.INFO, "Rebuilding {0}", file);
+            linked.clear();
+        }
+    }
+
+    /**
+     * Embed what is new or changed and update the related blocks of every
+     * neighbourhood that changed.
+     *
+     * @param blocks File name to block, as from KnowledgeBaseSystem.getAllKnown.
+     * @param pool The pool for the searches, null for the common pool.
+     * @return Number of blocks that got other related blocks.
+     * @throws Exception If embedding failed.
+     */
+    public synchronized int update(Map<String, KnowledgeBaseSystem.KnowledgeBlock> blocks, ForkJoinPool pool) throws Exception {
+        index.update(blocks);
+        TreeMap<String, String[]> related = new TreeMap<>();
+        TreeMap<String, Long> stamps = new TreeMap<>();
+        Set<String> changed = new TreeSet<>();
+        Set<String> gone = new TreeSet<>();
+        synchronized (blocks) {
+            for (Map.Entry<String, KnowledgeBaseSystem.KnowledgeBlock> e : blocks.entrySet()) {
+                KnowledgeBaseSystem.KnowledgeBlock kb = e.getValue();
+                long lm = null == kb.lastMod ? 0 : kb.lastMod;
+                related.put(e.getKey(), null == kb.related ? new String[0] : kb.related);
+                stamps.put(e.getKey(), lm);
+                Long done = linked.get(e.getKey());
+                if (null == done || done != lm) {
+                    changed.add(e.getKey());
+                }
+            }
+            for (String name : linked.keySet()) {
+                if (!blocks.containsKey(name)) {
+                    gone.add(name);
+                }
+            }
+        }
+        if (changed.isEmpty() && gone.isEmpty()) {
+            return 0;
+        }
+        Set<String> todo = new TreeSet<>(changed);
+        for (Map.Entry<String, String[]> e : related.entrySet()) {
+            for (String r : e.getValue()) {
+                if (changed.contains(r) || gone.contains(r)) {
+                    todo.add(e.getKey());
+                }
+            }
+        }
+        if (changed.size() > related.size() / 8) {
+            // about as cheap to search every neighbourhood
+            todo.addAll(related.keySet());
+        } else {
+            // a block belongs with every block it is closer to than their weakest
+            TreeMap<String, Double> weakest = new TreeMap<>();
+            for (String x : changed) {
+                for (Map.Entry<String, String[]> e : related.entrySet()) {
+                    String y = e.getKey();
+                    if (todo.contains(y)) {
+                        continue;
+                    }
+                    double sim = index.similarity(x, y);
+                    if (sim < minScore) {
+                        continue;
+                    }
+                    Double w = weakest.get(y);
+                    if (null == w) {
+                        String[] ry = e.getValue();
+                        w = ry.length < k ? Double.NEGATIVE_INFINITY : index.similarity(y, ry[ry.length - 1]);
+                        weakest.put(y, w);
+                    }
+                    if (sim > w) {
+                        todo.add(y);
+                    }
+                }
+            }
+        }
+        TreeMap<String, List<String>> found = index.neighbours(new ArrayList<>(todo), k, minScore, pool);
+        int n = 0;
+        for (String name : todo) {
+            KnowledgeBaseSystem.KnowledgeBlock kb;
+            synchronized (blocks) {
+                kb = blocks.get(name);
+            }
+            List<String> nb = found.get(name);
+            if (null == kb || null == nb) {
+                continue;
+            }
+            String[] rel = nb.toArray(new String[nb.size()]);
+            if (!Arrays.equals(rel, kb.related)) {
+                kb.related = rel;
+                try {
+                    kb.write(name, false);
+                    n++;
+                } catch (IOException | RuntimeException ex) {
+                    Logger.getLogger(RelatedGraph.class.getName()).log(Level.SEVERE, name, ex);
+                }
+            }
+        }
+        for (String name : changed) {
+            linked.put(name, stamps.get(name));
+        }
+        for (String name : gone) {
+            linked.remove(name);
+        }
+        KnowledgeBaseSystem.flushIndexes();
+        try {
+            write();
+        } catch (IOException ex) {
+            Logger.getLogger(RelatedGraph.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return n;
+    }
+
+    private void write() throws IOException {
+        if (null == file) {
+            return;
+        }
+        file.getParentFile().mkdirs();
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(linked.size());
+            for (Map.Entry<String, Long> e : linked.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue());
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void read() throws IOException {
+        if (null == file || !file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (MAGIC != in.readInt() || VERSION != in.readInt()) {
+                throw new IOException("Not a related blocks file: " + file);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                String name = in.readUTF();
+                linked.put(name, in.readLong());
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package nl.infcomtec.jllama;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Retrieval stage for the chat: finds the knowledge blocks nearest to a
+ * question and puts as much of them as the token budget allows in front of
+ * it. With a keyword index the blocks that match its words are fused in by
+ * reciprocal rank, which catches names and identifiers that embeddings miss.
+ *
+ * Question vectors and search results are cached; results only as long as
+ * the index has not changed, so a repeated or re-sent question costs neither
+ * an embedding nor a search.
+ *
+ * @author Walter Stroebel
+ */
+public class Retriever {
+
+    public static final String PREAMBLE = "Use the following knowledge from earlier sessions"
+            + " where it is relevant to the question.";
+    /**
+     * Blocks to consider per question.
+     */
+    public int k = 4;
+    /**
+     * Lowest cosine similarity of a block to the question to be used; depends
+     * on the model, 0 or less takes the k nearest whatever they are. Blocks
+     * matching by keyword are not held to it.
+     */
+    public double minScore = 0.45;
+    /**
+     * Tokens the knowledge may take in the prompt.
+     */
+    public int tokenBudget = 1500;
+    /**
+     * Rough size of a token, close enough for English and code.
+     */
+    public double charsPerToken = 4;
+    /**
+     * Titles of the blocks used for the last question.
+     */
+    public volatile List<String> lastUsed = Collections.emptyList();
+    private final KnowledgeIndex index;
+    private final KeywordIndex keywords;
+    private final Map<String, KnowledgeBaseSystem.KnowledgeBlock> blocks;
+    private final LinkedHashMap<String, float[]> vectors = lru(256);
+    private final LinkedHashMap<String, List<String>> found = lru(256);
+    private int foundVersion = -1;
+    private int foundKeywords = -1;
+    private int foundK;
+    private double foundMin;
+
+    /**
+     * Retrieval over the knowledge base of KnowledgeBaseSystem.
+     */
+    public Retriever() {
+        this(KnowledgeBaseSystem.getIndex(), KnowledgeBaseSystem.getKeywordIndex(),
+                KnowledgeBaseSystem.getAllKnown(true));
+    }
+
+    /**
+     * Retrieval over any set of blocks.
+     *
+     * @param index The index, updated from the blocks before every search.
+     * @param blocks File name to block, may change meanwhile.
+     */
+    public Retriever(KnowledgeIndex index, Map<String, KnowledgeBaseSystem.KnowledgeBlock> blocks) {
+        this(index, null, blocks);
+    }
+
+    /**
+     * Hybrid retrieval over any set of blocks.
+     *
+     * @param index The index, updated from the blocks before every search.
+     * @param keywords The keyword index, likewise; null for none.
+     * @param blocks File name to block, may change meanwhile.
+     */
+    public Retriever(KnowledgeIndex index, KeywordIndex keywords, Map<String, KnowledgeBaseSystem.KnowledgeBlock> blocks) {
+        this.index = index;
+        this.keywords = keywords;
+        this.blocks = blocks;
+    }
+
+    private static <V> LinkedHashMap<String, V> lru(final int max) {
+        return new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > max;
+            }
+        };
+    }
+
+    /**
+     * The blocks nearest to a question.
+     *
+     * @param question The question.
+     * @return File names, nearest first.
+     * @throws Exception If embedding failed.
+     */
+    public synchronized List<String> retrieve(String question) throws Exception {
+        String key = question.trim();
+        index.update(blocks);
+        int kwVersion = -1;
+        if (null != keywords) {
+            keywords.update(blocks);
+            kwVersion = keywords.getVersion();
+        }
+        if (foundVersion != index.getVersion() || foundKeywords != kwVersion
+                || foundK != k || foundMin != minScore) {
+            found.clear();
+            foundVersion = index.getVersion();
+            foundKeywords = kwVersion;
+            foundK = k;
+            foundMin = minScore;
+        }
+        List<String> ret = found.get(key);
+        if (null == ret) {
+            float[] q = vectors.get(key);
+            if (null == q) {
+                q = index.embed(key);
+                vectors.put(key, q);
+            }
+            ret = index.findSimilar(q, k, minScore);
+            if (null != keywords) {
+                ret = KeywordIndex.fuse(k, ret, keywords.search(key, k));
+            }
+            found.put(key, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * The nearest blocks as Markdown, nearest first, cut off at the token
+     * budget. A block that does not fit is cut at a line or sentence end if
+     * a useful part fits.
+     *
+     * @param question The question.
+     * @return The knowledge, empty if none.
+     * @throws Exception If embedding failed.
+     */
+    public String knowledge(String question) throws Exception {
+        // nothing stale if retrieving fails
+        lastUsed = Collections.emptyList();
+        int room = (int) (tokenBudget * charsPerToken);
+        StringBuilder sb = new StringBuilder();
+        List<String> used = new ArrayList<>();
+        for (String name : retrieve(question)) {
+            KnowledgeBaseSystem.KnowledgeBlock kb;
+            synchronized (blocks) {
+                kb = blocks.get(name);
+            }
+            String content = null == kb ? null : kb.getContent();
+            if (null == content) {
+                continue;
+            }
+            String head = "## " + kb.title + "\n\n";
+            int left = room - sb.length() - head.length() - 2;
+            if (left >= content.length()) {
+                sb.append(head).append(content.trim()).append("\n\n");
+                used.add(kb.title);
+            } else {
+                int cut = cut(content, left);
+                if (cut > 0) {
+                    sb.append(head).append(content, 0, cut).append(" ...\n\n");
+                    used.add(kb.title);
+                }
+                break;
+            }
+        }
+        lastUsed = used;
+        return sb.toString();
+    }
+
+    /**
+     * Where to cut a text to at most max chars: the last paragraph, line or
+     * sentence end, 0 if that leaves too little to be of use.
+     */
+    private static int cut(String text, int max) {
+        if (max < 200) {
+            return 0;
+        }
+        int at = text.lastIndexOf("\n\n", max);
+        if (at < max / 2) {
+            at = Math.max(text.lastIndexOf('\n', max), text.lastIndexOf(". ", max - 1) + 1);
+        }
+        return at < max / 2 ? max : at;
+    }
+
+    /**
+     * The question with the relevant knowledge in front, or as is if there is
+     * none.
+     *
+     * @param question The question.
+     * @return The prompt.
+     * @throws Exception If embedding failed.
+     */
+    public String augment(String question) throws Exception {
+        String kn = knowledge(question);
+        if (kn.isEmpty()) {
+            return question;
+        }
+        return PREAMBLE + "\n\n" + kn + "### Question\n\n" + question;
+    }
+}
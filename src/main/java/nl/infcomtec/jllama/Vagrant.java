@@ -93,10 +93,9 @@ public class Vagrant extends ToolManager {
                 if (exitCode != 0) {
                     log("Running vagrant failed, rc=", Integer.toString(exitCode));
                 }
-                if (stdoutStream instanceof ByteArrayOutputStream) {
-                    log("Vagrant start up:", EOLN,
-                            new String(((ByteArrayOutputStream) stdoutStream).toByteArray(), StandardCharsets.UTF_8));
-                    stdoutStream = null;
+                byte[] startUp = getStdoutBytes();
+                if (null != startUp) {
+                    log("Vagrant start up:", EOLN, new String(startUp, StandardCharsets.UTF_8));
                 } else {
                     log("Vagrant start up:", Objects.toString(stdoutStream));
                 }
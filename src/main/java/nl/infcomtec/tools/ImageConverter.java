@@ -2,7 +2,6 @@ package nl.infcomtec.tools;
 
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -55,8 +54,8 @@ public class ImageConverter extends ToolManager {
         internalRun();
         if (exitCode != 0) {
             output = null;
-        } else if (stdoutStream instanceof ByteArrayOutputStream) {
-            output = ((ByteArrayOutputStream) stdoutStream).toByteArray();
+        } else {
+            output = getStdoutBytes();
         }
     }
 
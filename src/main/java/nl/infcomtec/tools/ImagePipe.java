@@ -0,0 +1,78 @@
+package nl.infcomtec.tools;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+/**
+ * Runs a tool that reads its source text from stdin and writes an image to
+ * stdout, like "dot -Tpng" or "plantuml -pipe".
+ *
+ * Nothing touches the file system, the image is decoded straight from the
+ * captured output.
+ *
+ * @author Walter Stroebel.
+ */
+public class ImagePipe extends ToolManager {
+
+    private BufferedImage output;
+
+    /**
+     * Set up a pipe.
+     *
+     * @param workDir Directory to run the tool in, null for a temporary one.
+     * @param timeout Maximum render time in milliseconds, zero or less to wait
+     * forever.
+     */
+    public ImagePipe(File workDir, long timeout) {
+        if (null != workDir) {
+            setWorkingDir(workDir);
+        }
+        setTimeout(timeout);
+    }
+
+    /**
+     * Source to image.
+     *
+     * @param source Text for the tool.
+     * @param cmd The command line.
+     * @return The image or null if the tool failed.
+     */
+    public BufferedImage render(String source, String... cmd) {
+        setInput(source);
+        stderrBuilder.setLength(0);
+        setCommand(cmd);
+        run();
+        return output;
+    }
+
+    @Override
+    public void run() {
+        output = null;
+        internalRun();
+        byte[] bytes = getStdoutBytes();
+        if (exitCode == 0 && null != bytes) {
+            try (ByteArrayInputStream bais = new ByteArrayInputStream(bytes)) {
+                output = ImageIO.read(bais);
+            } catch (IOException ex) {
+                stderrBuilder.append(ex.getMessage()).append(System.lineSeparator());
+            }
+        }
+    }
+
+    /**
+     * @return the output
+     */
+    public BufferedImage getOutput() {
+        return output;
+    }
+
+    /**
+     * @return Anything the tool wrote to stderr.
+     */
+    public String getErrors() {
+        return stderrBuilder.toString();
+    }
+}
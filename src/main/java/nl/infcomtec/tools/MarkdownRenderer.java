@@ -0,0 +1,458 @@
+package nl.infcomtec.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process Markdown to HTML, meant for live display of chat output.
+ *
+ * Markdown can be fed in pieces (like streamed tokens). Blocks that can no
+ * longer change are rendered once and kept as HTML; only the last, still open,
+ * block is parsed again on the next piece. The HTML is simple enough for the
+ * Swing HTMLEditorKit. For export to other formats use PandocConverter.
+ *
+ * Supported: ATX headings, fenced code, block quotes, (nested) lists,
+ * horizontal rules, paragraphs, and inline code, bold, italic, links and
+ * images.
+ *
+ * @author Walter Stroebel.
+ */
+public class MarkdownRenderer {
+
+    private static final Pattern FENCE = Pattern.compile("^ {0,3}(`{3,}|~{3,})\\s*([^`\\s]*).*$");
+    private static final Pattern HEADING = Pattern.compile("^ {0,3}(#{1,6})(?:\\s+(.*?))?\\s*#*\\s*$");
+    private static final Pattern RULE = Pattern.compile("^ {0,3}([-*_])(\\s*\\1){2,}\\s*$");
+    private static final Pattern ITEM = Pattern.compile("^(\\s*)([-*+]|\\d{1,9}[.)])(\\s+|$)(.*)$");
+    private static final Pattern QUOTE = Pattern.compile("^ {0,3}> ?(.*)$");
+
+    private enum Kind {
+        PARAGRAPH, HEADING, CODE, RULE, QUOTE, LIST
+    }
+
+    /**
+     * A range of lines forming one block.
+     */
+    private static class Block {
+
+        final Kind kind;
+        final int start;
+        int end;
+
+        Block(Kind kind, int start) {
+            this.kind = kind;
+            this.start = start;
+            this.end = start + 1;
+        }
+    }
+
+    /**
+     * HTML of the blocks that are finished.
+     */
+    private final StringBuilder closed = new StringBuilder();
+    /**
+     * Markdown of the last block(s) that might still change.
+     */
+    private final StringBuilder open = new StringBuilder();
+    /**
+     * Cached HTML of the open part, null if it needs rendering.
+     */
+    private String openHtml = "";
+
+    /**
+     * Convert a complete Markdown text.
+     *
+     * @param markdown Markdown.
+     * @return HTML document.
+     */
+    public static String toHtml(String markdown) {
+        MarkdownRenderer r = new MarkdownRenderer();
+        r.append(markdown);
+        return r.getHtml();
+    }
+
+    /**
+     * Add more Markdown, for instance the next streamed tokens.
+     *
+     * @param text Markdown.
+     */
+    public synchronized void append(String text) {
+        if (null == text || text.isEmpty()) {
+            return;
+        }
+        open.append(text);
+        openHtml = null;
+        int lastNl = open.lastIndexOf("\n");
+        if (lastNl < 0) {
+            return;
+        }
+        // only complete lines can end a block; all blocks but the last are done
+        String[] lines = open.substring(0, lastNl).split("\n", -1);
+        List<Block> blocks = parse(lines);
+        if (blocks.size() > 1) {
+            Block last = blocks.get(blocks.size() - 1);
+            render(lines, blocks.subList(0, blocks.size() - 1), closed);
+            int cut = 0;
+            for (int i = 0; i < last.start; i++) {
+                cut += lines[i].length() + 1;
+            }
+            open.delete(0, cut);
+        }
+    }
+
+    /**
+     * Start over.
+     */
+    public synchronized void reset() {
+        closed.setLength(0);
+        open.setLength(0);
+        openHtml = "";
+    }
+
+    /**
+     * @return The HTML for everything appended so far, without html/body
+     * tags.
+     */
+    public synchronized String getBody() {
+        if (null == openHtml) {
+            String text = open.toString();
+            if (text.endsWith("\n")) {
+                text = text.substring(0, text.length() - 1);
+            }
+            String[] lines = text.split("\n", -1);
+            StringBuilder sb = new StringBuilder();
+            render(lines, parse(lines), sb);
+            openHtml = sb.toString();
+        }
+        return closed + openHtml;
+    }
+
+    /**
+     * @return The HTML document for everything appended so far.
+     */
+    public String getHtml() {
+        return "<html><body>\n" + getBody() + "</body></html>\n";
+    }
+
+    private static boolean isBlank(String line) {
+        return line.trim().isEmpty();
+    }
+
+    /**
+     * @return true if both lines are list items of the same kind, bullet or
+     * numbered.
+     */
+    private static boolean sameListKind(String a, String b) {
+        Matcher ma = ITEM.matcher(a);
+        Matcher mb = ITEM.matcher(b);
+        return ma.matches() && mb.matches()
+                && Character.isDigit(ma.group(2).charAt(0)) == Character.isDigit(mb.group(2).charAt(0));
+    }
+
+    private static int indent(String line) {
+        int n = 0;
+        while (n < line.length() && line.charAt(n) == ' ') {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Split lines into blocks. Blank lines are left out, they only separate.
+     */
+    private static List<Block> parse(String[] lines) {
+        List<Block> ret = new ArrayList<>();
+        int i = 0;
+        while (i < lines.length) {
+            String line = lines[i];
+            if (isBlank(line)) {
+                i++;
+                continue;
+            }
+            Matcher m = FENCE.matcher(line);
+            if (m.matches()) {
+                String fence = m.group(1);
+                Block b = new Block(Kind.CODE, i++);
+                while (i < lines.length) {
+                    String t = lines[i++].trim();
+                    if (t.startsWith(fence) && t.replace(fence.substring(0, 1), "").isEmpty()) {
+                        break;
+                    }
+                }
+                b.end = i;
+                ret.add(b);
+            } else if (HEADING.matcher(line).matches()) {
+                ret.add(new Block(Kind.HEADING, i++));
+            } else if (RULE.matcher(line).matches()) {
+                ret.add(new Block(Kind.RULE, i++));
+            } else if (QUOTE.matcher(line).matches()) {
+                Block b = new Block(Kind.QUOTE, i++);
+                while (i < lines.length && !isBlank(lines[i])) {
+                    i++;
+                }
+                b.end = i;
+                ret.add(b);
+            } else if (ITEM.matcher(line).matches()) {
+                Block b = new Block(Kind.LIST, i++);
+                int base = indent(line);
+                while (i < lines.length) {
+                    String l = lines[i];
+                    if (isBlank(l)) {
+                        // a blank line only continues the list if more list follows
+                        int j = i;
+                        while (j < lines.length && isBlank(lines[j])) {
+                            j++;
+                        }
+                        if (j < lines.length && (indent(lines[j]) > base
+                                || (indent(lines[j]) == base && sameListKind(line, lines[j])))) {
+                            i = j;
+                            continue;
+                        }
+                        break;
+                    }
+                    if (indent(l) <= base && ITEM.matcher(l).matches() && !sameListKind(line, l)) {
+                        break;
+                    }
+                    if (indent(l) <= base && !ITEM.matcher(l).matches()
+                            && (FENCE.matcher(l).matches() || HEADING.matcher(l).matches()
+                            || RULE.matcher(l).matches() || QUOTE.matcher(l).matches())) {
+                        break;
+                    }
+                    i++;
+                }
+                b.end = i;
+                ret.add(b);
+            } else {
+                Block b = new Block(Kind.PARAGRAPH, i++);
+                while (i < lines.length && !isBlank(lines[i])
+                        && !FENCE.matcher(lines[i]).matches()
+                        && !HEADING.matcher(lines[i]).matches()
+                        && !RULE.matcher(lines[i]).matches()
+                        && !QUOTE.matcher(lines[i]).matches()
+                        && !ITEM.matcher(lines[i]).matches()) {
+                    i++;
+                }
+                b.end = i;
+                ret.add(b);
+            }
+        }
+        return ret;
+    }
+
+    private static void render(String[] lines, List<Block> blocks, StringBuilder out) {
+        for (Block b : blocks) {
+            switch (b.kind) {
+                case HEADING: {
+                    Matcher m = HEADING.matcher(lines[b.start]);
+                    m.matches();
+                    int level = m.group(1).length();
+                    out.append("<h").append(level).append('>');
+                    inline(null == m.group(2) ? "" : m.group(2), out);
+                    out.append("</h").append(level).append(">\n");
+                    break;
+                }
+                case RULE:
+                    out.append("<hr>\n");
+                    break;
+                case CODE: {
+                    Matcher m = FENCE.matcher(lines[b.start]);
+                    m.matches();
+                    String fence = m.group(1);
+                    int end = b.end;
+                    if (end - 1 > b.start && lines[end - 1].trim().startsWith(fence)) {
+                        end--;
+                    }
+                    out.append("<pre><code>");
+                    for (int i = b.start + 1; i < end; i++) {
+                        escape(lines[i], out);
+                        out.append('\n');
+                    }
+                    out.append("</code></pre>\n");
+                    break;
+                }
+                case QUOTE: {
+                    String[] inner = new String[b.end - b.start];
+                    for (int i = b.start; i < b.end; i++) {
+                        Matcher m = QUOTE.matcher(lines[i]);
+                        inner[i - b.start] = m.matches() ? m.group(1) : lines[i];
+                    }
+                    out.append("<blockquote>\n");
+                    render(inner, parse(inner), out);
+                    out.append("</blockquote>\n");
+                    break;
+                }
+                case LIST:
+                    renderList(lines, b, out);
+                    break;
+                default: {
+                    out.append("<p>");
+                    for (int i = b.start; i < b.end; i++) {
+                        String l = lines[i];
+                        inline(l.trim(), out);
+                        if (i + 1 < b.end) {
+                            out.append(l.endsWith("  ") ? "<br>\n" : "\n");
+                        }
+                    }
+                    out.append("</p>\n");
+                }
+            }
+        }
+    }
+
+    private static void renderList(String[] lines, Block b, StringBuilder out) {
+        Matcher first = ITEM.matcher(lines[b.start]);
+        first.matches();
+        int base = first.group(1).length();
+        boolean ordered = Character.isDigit(first.group(2).charAt(0));
+        out.append(ordered ? "<ol>\n" : "<ul>\n");
+        int i = b.start;
+        while (i < b.end) {
+            Matcher m = ITEM.matcher(lines[i]);
+            m.matches();
+            int contentIndent = m.group(1).length() + m.group(2).length() + m.group(3).length();
+            List<String> item = new ArrayList<>();
+            item.add(m.group(4));
+            i++;
+            while (i < b.end) {
+                String l = lines[i];
+                Matcher n = ITEM.matcher(l);
+                if (!isBlank(l) && n.matches() && n.group(1).length() <= base) {
+                    break;
+                }
+                int strip = Math.min(indent(l), Math.max(contentIndent, base + 2));
+                item.add(l.substring(Math.min(strip, l.length())));
+                i++;
+            }
+            while (item.size() > 1 && isBlank(item.get(item.size() - 1))) {
+                item.remove(item.size() - 1);
+            }
+            out.append("<li>");
+            if (item.size() == 1) {
+                inline(item.get(0).trim(), out);
+            } else {
+                String[] inner = item.toArray(new String[item.size()]);
+                List<Block> blocks = parse(inner);
+                if (!blocks.isEmpty() && blocks.get(0).kind == Kind.PARAGRAPH && !item.contains("")) {
+                    // tight item: no paragraph tags around the first part
+                    Block p = blocks.remove(0);
+                    for (int k = p.start; k < p.end; k++) {
+                        inline(inner[k].trim(), out);
+                        out.append(k + 1 < p.end ? "\n" : "");
+                    }
+                    out.append('\n');
+                }
+                render(inner, blocks, out);
+            }
+            out.append("</li>\n");
+        }
+        out.append(ordered ? "</ol>\n" : "</ul>\n");
+    }
+
+    /**
+     * HTML escape.
+     */
+    private static void escape(CharSequence s, StringBuilder out) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '"':
+                    out.append("&quot;");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    /**
+     * Inline markup: code spans, bold, italic, links and images.
+     */
+    private static void inline(String s, StringBuilder out) {
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length() && "\\`*_{}[]()#+-.!<>|~".indexOf(s.charAt(i + 1)) >= 0) {
+                escape(s.substring(i + 1, i + 2), out);
+                i += 2;
+                continue;
+            }
+            if (c == '`') {
+                int run = 1;
+                while (i + run < s.length() && s.charAt(i + run) == '`') {
+                    run++;
+                }
+                String ticks = s.substring(i, i + run);
+                int close = s.indexOf(ticks, i + run);
+                if (close > 0) {
+                    out.append("<code>");
+                    escape(s.substring(i + run, close).trim(), out);
+                    out.append("</code>");
+                    i = close + run;
+                    continue;
+                }
+                escape(ticks, out);
+                i += run;
+                continue;
+            }
+            if ((c == '*' || c == '_') && i + 1 < s.length()) {
+                boolean strong = s.charAt(i + 1) == c;
+                String delim = strong ? s.substring(i, i + 2) : s.substring(i, i + 1);
+                boolean wordBefore = i > 0 && Character.isLetterOrDigit(s.charAt(i - 1));
+                int from = i + delim.length();
+                int close = s.indexOf(delim, from + 1);
+                if (c == '_' && wordBefore) {
+                    close = -1;
+                }
+                if (close > from && !Character.isWhitespace(s.charAt(from))
+                        && !Character.isWhitespace(s.charAt(close - 1))) {
+                    out.append(strong ? "<b>" : "<i>");
+                    inline(s.substring(from, close), out);
+                    out.append(strong ? "</b>" : "</i>");
+                    i = close + delim.length();
+                    continue;
+                }
+            }
+            if (c == '[' || (c == '!' && i + 1 < s.length() && s.charAt(i + 1) == '[')) {
+                boolean image = c == '!';
+                int open = image ? i + 1 : i;
+                int closeText = s.indexOf("](", open);
+                int closeUrl = closeText < 0 ? -1 : s.indexOf(')', closeText + 2);
+                if (closeText > 0 && closeUrl > 0 && s.indexOf(']', open + 1) == closeText) {
+                    String text = s.substring(open + 1, closeText);
+                    String url = s.substring(closeText + 2, closeUrl).trim();
+                    int sp = url.indexOf(' ');
+                    if (sp > 0) {
+                        url = url.substring(0, sp);
+                    }
+                    if (image) {
+                        out.append("<img src=\"");
+                        escape(url, out);
+                        out.append("\" alt=\"");
+                        escape(text, out);
+                        out.append("\">");
+                    } else {
+                        out.append("<a href=\"");
+                        escape(url, out);
+                        out.append("\">");
+                        inline(text, out);
+                        out.append("</a>");
+                    }
+                    i = closeUrl + 1;
+                    continue;
+                }
+            }
+            escape(s.substring(i, i + 1), out);
+            i++;
+        }
+    }
+}
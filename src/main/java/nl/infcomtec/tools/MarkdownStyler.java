@@ -0,0 +1,425 @@
+package nl.infcomtec.tools;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.swing.JTextPane;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Style;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyledDocument;
+
+/**
+ * Incremental Markdown styling of a text pane, while the text keeps being the
+ * raw Markdown.
+ *
+ * <ul>
+ * <li>The state that carries over lines (inside a code fence or not) is
+ * remembered per line start, so an edit is restyled from the start of its line
+ * until the state converges with what was there before. For streamed output
+ * that is just the newly appended text.</li>
+ * <li>Tokenising happens on a background thread, which reads the document
+ * under its read lock with Document.render.</li>
+ * <li>The resulting style runs are applied on the EDT by a timer with a fixed
+ * time budget per tick, so long answers never freeze the pane.</li>
+ * </ul>
+ *
+ * @author Walter Stroebel.
+ */
+public class MarkdownStyler implements DocumentListener {
+
+    /**
+     * Time in nanoseconds the EDT may spend applying styles per tick.
+     */
+    public static final long FRAME_BUDGET = 4000000L;
+    /**
+     * Tick interval in milliseconds.
+     */
+    public static final int FRAME_MILLIS = 16;
+    public static final String PLAIN = "md-plain";
+    public static final String HEADING = "md-heading";
+    public static final String SUBHEADING = "md-subheading";
+    public static final String CODE = "md-code";
+    public static final String FENCE = "md-fence";
+    public static final String QUOTE = "md-quote";
+    public static final String MARKER = "md-marker";
+    public static final String BOLD = "md-bold";
+    private static final Pattern FENCE_LINE = Pattern.compile("^ {0,3}(`{3,}|~{3,}).*$");
+    private static final Pattern HEADING_LINE = Pattern.compile("^ {0,3}(#{1,6})\\s.*$");
+    private static final Pattern ITEM_LINE = Pattern.compile("^(\\s*)([-*+]|\\d{1,9}[.)])\\s.*$");
+    private static final Pattern QUOTE_LINE = Pattern.compile("^ {0,3}>.*$");
+    private static final ExecutorService tokenizer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "MarkdownStyler");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * One styled stretch of text.
+     */
+    private static class Run {
+
+        final int offset;
+        final int length;
+        final String style;
+        final int generation;
+
+        Run(int offset, int length, String style, int generation) {
+            this.offset = offset;
+            this.length = length;
+            this.style = style;
+            this.generation = generation;
+        }
+    }
+
+    private final StyledDocument doc;
+    private final Timer applier;
+    private final ConcurrentLinkedQueue<Run> pending = new ConcurrentLinkedQueue<>();
+    /**
+     * Line start offset to the open fence at that point ("" if none).
+     */
+    private final TreeMap<Integer, String> checkpoints = new TreeMap<>();
+    private int damageFrom = Integer.MAX_VALUE;
+    private int damageTo = -1;
+    private int inFlightFrom = Integer.MAX_VALUE;
+    private boolean scheduled;
+    /**
+     * Bumped on every edit that is not an append; runs from an older
+     * generation are dropped.
+     */
+    private volatile int generation;
+
+    /**
+     * Attach to a text pane.
+     *
+     * @param pane The pane, its font is the base for the styles.
+     */
+    public MarkdownStyler(JTextPane pane) {
+        this.doc = pane.getStyledDocument();
+        Font font = pane.getFont();
+        Style plain = doc.addStyle(PLAIN, null);
+        StyleConstants.setFontFamily(plain, font.getFamily());
+        StyleConstants.setFontSize(plain, font.getSize());
+        Style s = doc.addStyle(HEADING, plain);
+        StyleConstants.setBold(s, true);
+        StyleConstants.setFontSize(s, Math.round(font.getSize() * 1.3f));
+        StyleConstants.setForeground(s, new Color(204, 120, 50));
+        s = doc.addStyle(SUBHEADING, plain);
+        StyleConstants.setBold(s, true);
+        StyleConstants.setForeground(s, new Color(204, 120, 50));
+        s = doc.addStyle(CODE, plain);
+        StyleConstants.setFontFamily(s, Font.MONOSPACED);
+        StyleConstants.setForeground(s, new Color(165, 194, 97));
+        StyleConstants.setBackground(s, new Color(43, 43, 43));
+        s = doc.addStyle(FENCE, s);
+        StyleConstants.setForeground(s, new Color(128, 128, 128));
+        s = doc.addStyle(QUOTE, plain);
+        StyleConstants.setItalic(s, true);
+        StyleConstants.setForeground(s, new Color(150, 150, 150));
+        s = doc.addStyle(MARKER, plain);
+        StyleConstants.setBold(s, true);
+        StyleConstants.setForeground(s, new Color(104, 151, 187));
+        s = doc.addStyle(BOLD, plain);
+        StyleConstants.setBold(s, true);
+        checkpoints.put(0, "");
+        applier = new Timer(FRAME_MILLIS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+                applySome();
+            }
+        });
+        doc.addDocumentListener(this);
+        damage(0, doc.getLength());
+    }
+
+    /**
+     * Stop styling.
+     */
+    public void detach() {
+        doc.removeDocumentListener(this);
+        applier.stop();
+        pending.clear();
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent de) {
+        int off = de.getOffset();
+        int len = de.getLength();
+        if (off + len != doc.getLength()) {
+            edited(off, len);
+        }
+        damage(off, off + len);
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent de) {
+        edited(de.getOffset(), -de.getLength());
+        damage(de.getOffset(), de.getOffset());
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent de) {
+        // our own attribute changes
+    }
+
+    /**
+     * Something other than an append: shift the remembered line states and
+     * make sure nothing queued or in progress for the old text gets lost.
+     */
+    private synchronized void edited(int offset, int delta) {
+        generation++;
+        int lostFrom = inFlightFrom;
+        int lostTo = inFlightFrom == Integer.MAX_VALUE ? -1 : doc.getLength() - delta;
+        for (Iterator<Run> it = pending.iterator(); it.hasNext();) {
+            Run r = it.next();
+            lostFrom = Math.min(lostFrom, r.offset);
+            lostTo = Math.max(lostTo, r.offset + r.length);
+            it.remove();
+        }
+        TreeMap<Integer, String> shifted = new TreeMap<>(checkpoints.headMap(offset, true));
+        for (Map.Entry<Integer, String> e : checkpoints.tailMap(offset, false).entrySet()) {
+            int pos = e.getKey() + delta;
+            if (pos > offset) {
+                shifted.put(pos, e.getValue());
+            }
+        }
+        checkpoints.clear();
+        checkpoints.putAll(shifted);
+        if (damageTo >= 0) {
+            damageFrom = shift(damageFrom, offset, delta);
+            damageTo = shift(damageTo, offset, delta);
+        }
+        if (lostTo >= 0) {
+            damage(shift(lostFrom, offset, delta), shift(lostTo, offset, delta));
+        }
+    }
+
+    /**
+     * @return The position after an edit of delta characters at offset.
+     */
+    private static int shift(int pos, int offset, int delta) {
+        if (pos <= offset) {
+            return pos;
+        }
+        return Math.max(offset, pos + delta);
+    }
+
+    private synchronized void damage(int from, int to) {
+        damageFrom = Math.min(damageFrom, from);
+        damageTo = Math.max(damageTo, to);
+        if (!scheduled) {
+            scheduled = true;
+            tokenizer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    tokenize();
+                }
+            });
+        }
+    }
+
+    /**
+     * Background: restyle from the damaged line until the end of the damage,
+     * and beyond that until the line state matches the remembered one.
+     */
+    private void tokenize() {
+        int from;
+        int to;
+        int gen;
+        Map.Entry<Integer, String> start;
+        synchronized (this) {
+            scheduled = false;
+            from = damageFrom;
+            to = damageTo;
+            gen = generation;
+            damageFrom = Integer.MAX_VALUE;
+            damageTo = -1;
+            start = checkpoints.floorEntry(from);
+            if (null == start) {
+                start = new AbstractMap.SimpleEntry<>(0, "");
+            }
+            inFlightFrom = start.getKey();
+        }
+        try {
+            final int base = start.getKey();
+            final String[] read = new String[1];
+            // length and text in one go under the read lock, so no append
+            // from the EDT lands in between
+            doc.render(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        read[0] = doc.getText(base, Math.max(0, doc.getLength() - base));
+                    } catch (BadLocationException ex) {
+                        // the document shrunk under us, that edit scheduled a new pass
+                    }
+                }
+            });
+            String text = read[0];
+            if (null == text) {
+                return;
+            }
+            String fence = start.getValue();
+            List<Run> batch = new ArrayList<>();
+            int pos = 0;
+            while (pos < text.length()) {
+                int nl = text.indexOf('\n', pos);
+                int end = nl < 0 ? text.length() : nl + 1;
+                fence = styleLine(text, pos, end, base, fence, gen, batch);
+                if (batch.size() > 256) {
+                    pending.addAll(batch);
+                    batch.clear();
+                    startApplier();
+                }
+                pos = end;
+                if (nl >= 0) {
+                    int lineStart = base + end;
+                    synchronized (this) {
+                        if (gen != generation) {
+                            break;
+                        }
+                        String old = checkpoints.put(lineStart, fence);
+                        if (lineStart > to && fence.equals(old)) {
+                            break;
+                        }
+                    }
+                }
+            }
+            pending.addAll(batch);
+            startApplier();
+        } catch (Exception any) {
+            Logger.getLogger(MarkdownStyler.class.getName()).log(Level.SEVERE, null, any);
+        } finally {
+            synchronized (this) {
+                inFlightFrom = Integer.MAX_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Style one line.
+     *
+     * @return The open fence after this line, "" if none.
+     */
+    private String styleLine(String text, int start, int end, int base, String fence, int gen, List<Run> out) {
+        String line = text.substring(start, text.charAt(end - 1) == '\n' ? end - 1 : end);
+        String trimmed = line.trim();
+        int off = base + start;
+        int len = end - start;
+        if (!fence.isEmpty()) {
+            if (trimmed.startsWith(fence) && trimmed.replace(fence.substring(0, 1), "").isEmpty()) {
+                out.add(new Run(off, len, FENCE, gen));
+                return "";
+            }
+            out.add(new Run(off, len, CODE, gen));
+            return fence;
+        }
+        Matcher m = FENCE_LINE.matcher(trimmed);
+        if (m.matches()) {
+            out.add(new Run(off, len, FENCE, gen));
+            return m.group(1);
+        }
+        m = HEADING_LINE.matcher(line);
+        if (m.matches()) {
+            out.add(new Run(off, len, m.group(1).length() <= 2 ? HEADING : SUBHEADING, gen));
+            return "";
+        }
+        if (QUOTE_LINE.matcher(line).matches()) {
+            out.add(new Run(off, len, QUOTE, gen));
+            return "";
+        }
+        int i = 0;
+        m = ITEM_LINE.matcher(line);
+        if (m.matches()) {
+            i = m.end(2);
+            out.add(new Run(off, i, MARKER, gen));
+        }
+        // inline code and bold
+        int plainFrom = i;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            int close = -1;
+            String style = null;
+            int open = 0;
+            if (c == '`') {
+                close = line.indexOf('`', i + 1);
+                style = CODE;
+                open = 1;
+            } else if (c == '*' && i + 1 < line.length() && line.charAt(i + 1) == '*') {
+                close = line.indexOf("**", i + 2);
+                style = BOLD;
+                open = 2;
+            }
+            if (close > i) {
+                if (i > plainFrom) {
+                    out.add(new Run(off + plainFrom, i - plainFrom, PLAIN, gen));
+                }
+                out.add(new Run(off + i, close + open - i, style, gen));
+                i = close + open;
+                plainFrom = i;
+            } else {
+                i++;
+            }
+        }
+        if (len > plainFrom) {
+            out.add(new Run(off + plainFrom, len - plainFrom, PLAIN, gen));
+        }
+        return "";
+    }
+
+    private void startApplier() {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (!applier.isRunning()) {
+                    applier.start();
+                }
+            }
+        });
+    }
+
+    /**
+     * EDT: apply queued runs until the frame budget is used.
+     */
+    private void applySome() {
+        long deadline = System.nanoTime() + FRAME_BUDGET;
+        int docLen = doc.getLength();
+        Run r;
+        while (null != (r = pending.peek())) {
+            pending.poll();
+            if (r.generation == generation && r.offset < docLen) {
+                int len = Math.min(r.length, docLen - r.offset);
+                doc.setCharacterAttributes(r.offset, len, doc.getStyle(r.style), true);
+            }
+            if (System.nanoTime() > deadline) {
+                return;
+            }
+        }
+        applier.stop();
+        if (!pending.isEmpty()) {
+            applier.start();
+        }
+    }
+}
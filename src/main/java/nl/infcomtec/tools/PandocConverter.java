@@ -1,12 +1,14 @@
 package nl.infcomtec.tools;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.nio.charset.StandardCharsets;
 
 /**
  * Uses Pandoc to convert between text formats like Markdown and HTML.
  *
+ * Every call starts a pandoc process; for displaying Markdown use the
+ * in-process MarkdownRenderer, this is meant for export and other formats.
+ *
  * @author Walter Stroebel.
  */
 public class PandocConverter extends ToolManager {
@@ -96,9 +98,9 @@ public class PandocConverter extends ToolManager {
         if (exitCode != 0) {
             output = "Running pandoc failed, rc=" + exitCode;
         } else {
-
-            if (stdoutStream instanceof ByteArrayOutputStream) {
-                output = new String(((ByteArrayOutputStream) stdoutStream).toByteArray(), StandardCharsets.UTF_8);
+            byte[] bytes = getStdoutBytes();
+            if (null != bytes) {
+                output = new String(bytes, StandardCharsets.UTF_8);
             }
         }
     }
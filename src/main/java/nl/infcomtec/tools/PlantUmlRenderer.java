@@ -0,0 +1,242 @@
+package nl.infcomtec.tools;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.imageio.ImageIO;
+
+/**
+ * A PlantUML process kept running in pipe mode.
+ *
+ * PlantUML reads diagrams from stdin until it sees @enduml, writes the PNG to
+ * stdout and then a delimiter line. This avoids a JVM start for every diagram.
+ * A source with several diagrams gets an image and delimiter for each; only
+ * the first is returned, the others are read and dropped so the next caller
+ * does not get them.
+ *
+ * @author Walter Stroebel.
+ */
+public class PlantUmlRenderer implements RendererPool.Renderer {
+
+    /**
+     * Written by PlantUML after each image.
+     */
+    public static final String DELIMITER = "@@JLLAMA-PLANTUML-END@@";
+    /**
+     * Tiny diagram used to check a new process works.
+     */
+    public static final String PING = "@startuml\nA -> B\n@enduml\n";
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final int MAX_CHUNK = 64 << 20;
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "PlantUML watchdog");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final Process process;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final StringBuffer errors = new StringBuffer();
+
+    /**
+     * Start a PlantUML process and check it with a tiny diagram.
+     *
+     * @param workDir Directory to run PlantUML in.
+     * @param startupTimeout Maximum time in milliseconds for the first
+     * diagram, this includes the JVM start.
+     * @param command How to start PlantUML, for instance "plantuml" or "java",
+     * "-jar", "plantuml.jar".
+     * @throws Exception If PlantUML did not start or failed the check.
+     */
+    public PlantUmlRenderer(File workDir, long startupTimeout, String... command) throws Exception {
+        List<String> cmd = new ArrayList<>(Arrays.asList(command));
+        cmd.addAll(Arrays.asList("-tpng", "-pipe", "-pipedelimitor", DELIMITER));
+        ProcessBuilder pb = new ProcessBuilder(cmd);
+        if (null != workDir) {
+            workDir.mkdirs();
+            pb.directory(workDir);
+        }
+        process = pb.start();
+        in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        out = process.getOutputStream();
+        Thread drain = new Thread("PlantUML stderr") {
+            @Override
+            public void run() {
+                try (BufferedReader br = new BufferedReader(new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
+                    for (String line = br.readLine(); null != line; line = br.readLine()) {
+                        if (errors.length() < 4096) {
+                            errors.append(line).append(System.lineSeparator());
+                        }
+                    }
+                } catch (IOException ex) {
+                    // process is gone
+                }
+            }
+        };
+        drain.setDaemon(true);
+        drain.start();
+        try {
+            render(PING, startupTimeout);
+        } catch (Exception ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public synchronized BufferedImage render(String source, long timeout) throws Exception {
+        if (!source.endsWith("\n")) {
+            source = source + "\n";
+        }
+        errors.setLength(0);
+        final AtomicBoolean killed = new AtomicBoolean(false);
+        ScheduledFuture<?> kill = watchdog.schedule(new Runnable() {
+            @Override
+            public void run() {
+                killed.set(true);
+                ProcessEngine.destroyTree(process);
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        try {
+            out.write(source.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            BufferedImage first = null;
+            RendererPool.BadSource bad = null;
+            for (int i = 0, n = diagrams(source); i < n; i++) {
+                try {
+                    BufferedImage img = readImage();
+                    if (0 == i) {
+                        first = img;
+                    }
+                } catch (RendererPool.BadSource ex) {
+                    if (0 == i) {
+                        bad = ex;
+                    }
+                }
+            }
+            if (null != bad) {
+                throw bad;
+            }
+            return first;
+        } catch (IOException ex) {
+            if (killed.get()) {
+                throw new RendererPool.BadSource("PlantUML timed out after " + timeout + " ms");
+            }
+            throw ex;
+        } finally {
+            kill.cancel(false);
+        }
+    }
+
+    /**
+     * @return Number of outputs PlantUML writes for a source: one per @start
+     * line, at least one.
+     */
+    private static int diagrams(String source) {
+        int n = 0;
+        for (String line : source.split("\n")) {
+            if (line.trim().startsWith("@start")) {
+                n++;
+            }
+        }
+        return Math.max(1, n);
+    }
+
+    /**
+     * Reads one PNG by walking its chunks up to IEND, then the delimiter. If
+     * PlantUML wrote text instead that is reported as a bad source.
+     */
+    private BufferedImage readImage() throws Exception {
+        byte[] head = new byte[PNG_SIGNATURE.length];
+        in.readFully(head);
+        if (!Arrays.equals(head, PNG_SIGNATURE)) {
+            String text = skipToDelimiter(head);
+            throw new RendererPool.BadSource(text.trim() + System.lineSeparator() + errors);
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream(32768);
+        png.write(head);
+        byte[] type = new byte[4];
+        while (true) {
+            int len = in.readInt();
+            if (len < 0 || len > MAX_CHUNK) {
+                throw new IOException("PlantUML output out of sync, chunk length " + len);
+            }
+            in.readFully(type);
+            byte[] data = new byte[len + 4]; // chunk data plus CRC
+            in.readFully(data);
+            png.write(len >>> 24);
+            png.write(len >>> 16);
+            png.write(len >>> 8);
+            png.write(len);
+            png.write(type);
+            png.write(data);
+            if (type[0] == 'I' && type[1] == 'E' && type[2] == 'N' && type[3] == 'D') {
+                break;
+            }
+        }
+        skipToDelimiter(new byte[0]);
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(png.toByteArray())) {
+            return ImageIO.read(bais);
+        }
+    }
+
+    /**
+     * @param prefix Bytes already read.
+     * @return Everything read before the delimiter line.
+     */
+    private String skipToDelimiter(byte[] prefix) throws IOException {
+        StringBuilder all = new StringBuilder();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int i = 0;; i++) {
+            int c = i < prefix.length ? prefix[i] & 0xFF : in.read();
+            if (c < 0) {
+                throw new IOException("PlantUML stopped");
+            }
+            if (c == '\n') {
+                String s = new String(line.toByteArray(), StandardCharsets.UTF_8);
+                if (s.trim().equals(DELIMITER)) {
+                    return all.toString();
+                }
+                all.append(s).append('\n');
+                line.reset();
+            } else {
+                line.write(c);
+            }
+        }
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return process.isAlive();
+    }
+
+    @Override
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException ex) {
+            // we are stopping anyway
+        }
+        process.destroy();
+    }
+}
@@ -0,0 +1,228 @@
+package nl.infcomtec.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared machinery for running external processes.
+ *
+ * <ul>
+ * <li>stdin and stderr are pumped by a shared pool of daemon threads, stdout
+ * is pumped by the calling thread; no threads are created per process.</li>
+ * <li>The number of processes running at the same time is bounded.</li>
+ * <li>A timeout kills the process and all of its descendants.</li>
+ * <li>Temporary files and directories go into one registry that is cleaned up
+ * by a single shutdown hook.</li>
+ * </ul>
+ *
+ * @author Walter Stroebel.
+ */
+public class ProcessEngine {
+
+    /**
+     * Maximum number of processes running at the same time.
+     */
+    public static final int MAX_PROCESSES = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    /**
+     * Maximum number of stderr characters kept per run.
+     */
+    public static final int MAX_STDERR = 65536;
+    private static final Semaphore running = new Semaphore(MAX_PROCESSES, true);
+    private static final LinkedList<File> cleanup = new LinkedList<>();
+    private static File tempRoot;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ThreadFactory daemons = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ProcessEngine-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+    private static final ExecutorService pumps = Executors.newCachedThreadPool(daemons);
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(daemons);
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                synchronized (cleanup) {
+                    for (File f : cleanup) {
+                        ToolManager.deleteAll(f);
+                    }
+                    cleanup.clear();
+                }
+            }
+        });
+    }
+
+    /**
+     * Outcome of a run.
+     */
+    public static class Execution {
+
+        public int exitCode;
+        public boolean timedOut;
+    }
+
+    /**
+     * Register a file or directory for deletion at exit.
+     *
+     * @param f File or directory.
+     */
+    public static void deleteOnExit(File f) {
+        synchronized (cleanup) {
+            cleanup.add(f);
+        }
+    }
+
+    /**
+     * Create a new, empty, temporary directory that will be deleted at exit.
+     *
+     * @param prefix Name prefix.
+     * @return The directory.
+     * @throws IOException If it could not be created.
+     */
+    public static File createTempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(getTempRoot().toPath(), prefix).toFile();
+    }
+
+    /**
+     * Create a new temporary file that will be deleted at exit.
+     *
+     * @param prefix Name prefix.
+     * @param suffix Name suffix.
+     * @return The file.
+     * @throws IOException If it could not be created.
+     */
+    public static File createTempFile(String prefix, String suffix) throws IOException {
+        return Files.createTempFile(getTempRoot().toPath(), prefix, suffix).toFile();
+    }
+
+    private static synchronized File getTempRoot() throws IOException {
+        if (null == tempRoot || !tempRoot.isDirectory()) {
+            tempRoot = Files.createTempDirectory("ToolManagerTempDir").toFile();
+            deleteOnExit(tempRoot);
+        }
+        return tempRoot;
+    }
+
+    /**
+     * Kill a process and everything it started.
+     *
+     * @param p The process.
+     */
+    public static void destroyTree(Process p) {
+        for (ProcessHandle child : p.descendants().toArray(ProcessHandle[]::new)) {
+            child.destroyForcibly();
+        }
+        p.destroyForcibly();
+    }
+
+    /**
+     * Run a process to completion.
+     *
+     * @param pb The process to start.
+     * @param input Bytes for stdin, may be null.
+     * @param stdout Receives stdout, should be bounded (see SpillBuffer).
+     * @param stderr Receives stderr up to MAX_STDERR characters, lines are
+     * also echoed to System.err.
+     * @param timeoutMillis Maximum run time, zero or less for no limit.
+     * @return The outcome.
+     * @throws Exception If the process could not be started or the wait was
+     * interrupted.
+     */
+    public static Execution run(ProcessBuilder pb, final byte[] input, OutputStream stdout,
+            final StringBuilder stderr, long timeoutMillis) throws Exception {
+        Execution ret = new Execution();
+        running.acquire();
+        try {
+            final Process p = pb.start();
+            final AtomicBoolean killed = new AtomicBoolean(false);
+            ScheduledFuture<?> kill = null;
+            if (timeoutMillis > 0) {
+                kill = watchdog.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        killed.set(true);
+                        destroyTree(p);
+                    }
+                }, timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            Future<?> errPump = pumps.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try (BufferedReader br = new BufferedReader(new InputStreamReader(p.getErrorStream(), StandardCharsets.UTF_8))) {
+                        for (String line = br.readLine(); null != line; line = br.readLine()) {
+                            System.err.println(line);
+                            synchronized (stderr) {
+                                if (stderr.length() < MAX_STDERR) {
+                                    stderr.append(line).append(System.lineSeparator());
+                                }
+                            }
+                        }
+                    } catch (IOException e) {
+                        // process was killed
+                    }
+                }
+            });
+            if (null != input) {
+                pumps.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try (OutputStream os = p.getOutputStream()) {
+                            os.write(input);
+                        } catch (IOException e) {
+                            // process did not read all input, or was killed
+                        }
+                    }
+                });
+            } else {
+                p.getOutputStream().close();
+            }
+            try (InputStream is = p.getInputStream()) {
+                byte[] buffer = new byte[8192];
+                for (int read = is.read(buffer); read >= 0; read = is.read(buffer)) {
+                    stdout.write(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                if (!killed.get()) {
+                    destroyTree(p);
+                    throw e;
+                }
+            }
+            ret.exitCode = p.waitFor();
+            errPump.get();
+            if (null != kill) {
+                kill.cancel(false);
+            }
+            ret.timedOut = killed.get();
+            if (ret.timedOut) {
+                synchronized (stderr) {
+                    stderr.append("Killed after ").append(timeoutMillis).append(" ms")
+                            .append(System.lineSeparator());
+                }
+            }
+            return ret;
+        } finally {
+            running.release();
+        }
+    }
+}
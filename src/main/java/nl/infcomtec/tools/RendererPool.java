@@ -0,0 +1,219 @@
+package nl.infcomtec.tools;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.LinkedList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded pool of (possibly long-lived) renderer processes.
+ *
+ * Workers are created on demand up to the maximum and kept for reuse. A worker
+ * is health checked each time it is borrowed and discarded after any failure;
+ * a failed render is retried once on a fresh worker, so a crashed process just
+ * costs one restart.
+ *
+ * @author Walter Stroebel.
+ */
+public class RendererPool implements AutoCloseable {
+
+    /**
+     * A single renderer, for instance one running process.
+     */
+    public interface Renderer extends AutoCloseable {
+
+        /**
+         * Render source text to an image.
+         *
+         * @param source The source text.
+         * @param timeout Maximum time in milliseconds.
+         * @return The image.
+         * @throws BadSource If the source could not be rendered.
+         * @throws Exception If the renderer itself failed; it will be
+         * discarded.
+         */
+        BufferedImage render(String source, long timeout) throws Exception;
+
+        /**
+         * @return true if this renderer can still be used.
+         */
+        boolean isHealthy();
+
+        @Override
+        void close();
+    }
+
+    /**
+     * The renderer is fine, the source text is not.
+     */
+    public static class BadSource extends Exception {
+
+        public BadSource(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Creates renderers for the pool.
+     */
+    public interface Factory {
+
+        Renderer create() throws Exception;
+    }
+
+    private final String name;
+    private final Factory factory;
+    private final Semaphore permits;
+    private final LinkedList<Renderer> idle = new LinkedList<>();
+    private boolean closed;
+
+    /**
+     * Create a pool.
+     *
+     * @param name For logging.
+     * @param maxWorkers Maximum number of concurrent renderers.
+     * @param factory To create (and re-create) renderers.
+     */
+    public RendererPool(String name, int maxWorkers, Factory factory) {
+        this.name = name;
+        this.factory = factory;
+        this.permits = new Semaphore(Math.max(1, maxWorkers), true);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                RendererPool.this.close();
+            }
+        });
+    }
+
+    /**
+     * Render using an idle or new worker.
+     *
+     * @param source The source text.
+     * @param timeout Maximum time in milliseconds, also used as the maximum
+     * time to wait for a free worker.
+     * @return The image.
+     * @throws BadSource If the source could not be rendered.
+     * @throws Exception If the render failed twice or no worker became
+     * available in time.
+     */
+    public BufferedImage render(String source, long timeout) throws Exception {
+        if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+            throw new RuntimeException(name + ": no renderer available after " + timeout + " ms");
+        }
+        try {
+            Exception last = null;
+            for (int attempt = 0; attempt < 2; attempt++) {
+                Renderer r = borrow();
+                try {
+                    BufferedImage ret = r.render(source, timeout);
+                    giveBack(r);
+                    return ret;
+                } catch (BadSource ex) {
+                    giveBack(r);
+                    throw ex;
+                } catch (Exception ex) {
+                    Logger.getLogger(RendererPool.class.getName()).log(Level.WARNING,
+                            name + ": renderer failed, restarting", ex);
+                    r.close();
+                    last = ex;
+                }
+            }
+            throw last;
+        } finally {
+            permits.release();
+        }
+    }
+
+    private Renderer borrow() throws Exception {
+        synchronized (idle) {
+            if (closed) {
+                throw new IllegalStateException(name + " is closed");
+            }
+            while (!idle.isEmpty()) {
+                Renderer r = idle.removeFirst();
+                if (r.isHealthy()) {
+                    return r;
+                }
+                r.close();
+            }
+        }
+        return factory.create();
+    }
+
+    private void giveBack(Renderer r) {
+        synchronized (idle) {
+            if (!closed && r.isHealthy()) {
+                idle.addFirst(r);
+                return;
+            }
+        }
+        r.close();
+    }
+
+    /**
+     * @return Number of idle workers.
+     */
+    public int idleCount() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    /**
+     * Stop all idle workers, busy ones are stopped when they are returned.
+     */
+    @Override
+    public void close() {
+        synchronized (idle) {
+            closed = true;
+            for (Renderer r : idle) {
+                r.close();
+            }
+            idle.clear();
+        }
+    }
+
+    /**
+     * Renderer that starts a new process for every render, for tools that
+     * start fast and have no multi-document mode (like Graphviz).
+     */
+    public static class OneShot implements Renderer {
+
+        private final String[] cmd;
+        private final File workDir;
+
+        public OneShot(File workDir, String... cmd) {
+            this.workDir = workDir;
+            this.cmd = cmd;
+        }
+
+        @Override
+        public BufferedImage render(String source, long timeout) throws Exception {
+            ImagePipe pipe = new ImagePipe(workDir, timeout);
+            BufferedImage ret = pipe.render(source, cmd);
+            if (pipe.timedOut) {
+                // nothing to restart, so blame the source
+                throw new BadSource(cmd[0] + " timed out after " + timeout + " ms");
+            }
+            if (null == ret) {
+                throw new BadSource(cmd[0] + " failed, rc=" + pipe.exitCode
+                        + System.lineSeparator() + pipe.getErrors());
+            }
+            return ret;
+        }
+
+        @Override
+        public boolean isHealthy() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // nothing is kept running
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package nl.infcomtec.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+/**
+ * Output buffer that keeps small output in memory, moves larger output to a
+ * temporary file and drops anything beyond a hard limit.
+ *
+ * @author Walter Stroebel.
+ */
+public class SpillBuffer extends OutputStream {
+
+    /**
+     * Default amount kept in memory.
+     */
+    public static final int DEFAULT_MEMORY = 8 << 20;
+    /**
+     * Default hard limit.
+     */
+    public static final long DEFAULT_LIMIT = 1L << 30;
+    private final int memoryLimit;
+    private final long hardLimit;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private File file;
+    private OutputStream fileOut;
+    private long size;
+    private boolean truncated;
+
+    /**
+     * Buffer with the default limits.
+     */
+    public SpillBuffer() {
+        this(DEFAULT_MEMORY, DEFAULT_LIMIT);
+    }
+
+    /**
+     * Buffer with explicit limits.
+     *
+     * @param memoryLimit Bytes kept in memory before spilling to a file.
+     * @param hardLimit Bytes kept in total, anything beyond is dropped.
+     */
+    public SpillBuffer(int memoryLimit, long hardLimit) {
+        this.memoryLimit = memoryLimit;
+        this.hardLimit = hardLimit;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (size + len > hardLimit) {
+            truncated = true;
+            len = (int) (hardLimit - size);
+            if (len <= 0) {
+                return;
+            }
+        }
+        if (null != memory && memory.size() + len > memoryLimit) {
+            file = ProcessEngine.createTempFile("spill", ".out");
+            fileOut = new BufferedOutputStream(new FileOutputStream(file), 65536);
+            memory.writeTo(fileOut);
+            memory = null;
+        }
+        if (null != memory) {
+            memory.write(b, off, len);
+        } else {
+            fileOut.write(b, off, len);
+        }
+        size += len;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (null != fileOut) {
+            fileOut.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (null != fileOut) {
+            fileOut.close();
+            fileOut = null;
+        }
+    }
+
+    /**
+     * @return Number of bytes kept.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return true if output was dropped because of the hard limit.
+     */
+    public synchronized boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return The spill file or null if everything is in memory.
+     */
+    public synchronized File getFile() {
+        return file;
+    }
+
+    /**
+     * @return Everything kept, as bytes.
+     * @throws IOException If the spill file could not be read or is too big
+     * for an array.
+     */
+    public synchronized byte[] toByteArray() throws IOException {
+        if (null != memory) {
+            return memory.toByteArray();
+        }
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IOException("Output too large for memory: " + size);
+        }
+        flush();
+        return Files.readAllBytes(file.toPath());
+    }
+
+    /**
+     * @return Everything kept, as a stream.
+     * @throws IOException If the spill file could not be opened.
+     */
+    public synchronized InputStream openInputStream() throws IOException {
+        if (null != memory) {
+            return new ByteArrayInputStream(memory.toByteArray());
+        }
+        flush();
+        return new FileInputStream(file);
+    }
+
+    /**
+     * Drop the contents, including any spill file.
+     */
+    public synchronized void reset() {
+        try {
+            close();
+        } catch (IOException ex) {
+            // we are discarding anyway
+        }
+        if (null != file) {
+            file.delete();
+            file = null;
+        }
+        memory = new ByteArrayOutputStream();
+        size = 0;
+        truncated = false;
+    }
+}
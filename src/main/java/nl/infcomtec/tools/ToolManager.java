@@ -1,15 +1,10 @@
 package nl.infcomtec.tools;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.List;
 
 /*!
@@ -54,17 +49,29 @@ public abstract class ToolManager implements Runnable {
                     deleteAll(file);
                 }
             }
-        } else {
-            fileOrDir.delete();
         }
+        fileOrDir.delete();
     }
 
     private byte[] inBytes;
     private ProcessBuilder pb;
     protected File workingDir;
+    /**
+     * Set if workingDir is a temporary directory made for a run.
+     */
+    private boolean tempDir;
     protected OutputStream stdoutStream;
+    private boolean userStdout;
     protected StringBuilder stderrBuilder = new StringBuilder();
     public int exitCode;
+    /**
+     * Maximum run time in milliseconds, zero or less means wait forever.
+     */
+    protected long timeoutMillis = 0;
+    /**
+     * Set if the last run was killed because it exceeded the timeout.
+     */
+    public boolean timedOut;
 
     protected void setWorkingDir(File dir) {
         if (!dir.exists()) {
@@ -91,6 +98,17 @@ public abstract class ToolManager implements Runnable {
 
     public void setOutput(OutputStream out) {
         stdoutStream = out;
+        userStdout = null != out;
+    }
+
+    /**
+     * Limit the run time of the tool.
+     *
+     * @param millis Maximum run time in milliseconds, zero or less to wait
+     * forever.
+     */
+    public void setTimeout(long millis) {
+        timeoutMillis = millis;
     }
 
     protected void setCommand(List<String> cmd) {
@@ -108,92 +126,67 @@ public abstract class ToolManager implements Runnable {
         return pb.command().toString();
     }
 
+    /**
+     * Run the command through the ProcessEngine. Unless an output stream was
+     * set, stdout goes into a fresh SpillBuffer for every run; the one of the
+     * previous run is dropped. Without a working directory the tool runs in
+     * a temporary one that is deleted when it is done.
+     */
     protected void internalRun() {
         if (null == pb) {
             throw new RuntimeException(NO_COMMAND_SPECIFIED);
         }
         if (null == workingDir) {
             try {
-                Path tempDir = Files.createTempDirectory("ToolManagerTempDir");
-                workingDir = tempDir.toFile();
-                Runtime.getRuntime().addShutdownHook(new Thread() {
-                    @Override
-                    public void run() {
-                        deleteAll(workingDir);
-                    }
-                });
+                workingDir = ProcessEngine.createTempDir("tool");
+                tempDir = true;
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
         pb.directory(workingDir);
-        if (null == stdoutStream) {
-            stdoutStream = new ByteArrayOutputStream();
+        if (!userStdout) {
+            if (stdoutStream instanceof SpillBuffer) {
+                ((SpillBuffer) stdoutStream).reset();
+            }
+            stdoutStream = new SpillBuffer();
         }
         try {
-            final Process p = pb.start();
-
-            // Thread to handle stdout
-            Thread stdoutThread = new Thread() {
-                @Override
-                public void run() {
-                    try (InputStream is = p.getInputStream()) {
-                        byte[] buffer = new byte[1024];
-                        int read;
-                        while ((read = is.read(buffer)) != -1) {
-                            stdoutStream.write(buffer, 0, read);
-                        }
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
-            };
-
-            // Thread to handle stderr
-            Thread stderrThread = new Thread() {
-                @Override
-                public void run() {
-                    try (BufferedReader br = new BufferedReader(new InputStreamReader(p.getErrorStream()))) {
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            System.err.println(line);
-                            stderrBuilder.append(line).append(System.lineSeparator());
-                        }
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
-            };
-
-            stdoutThread.start();
-            stderrThread.start();
-
-            // Thread to handle input, if any
-            if (inBytes != null) {
-                // Spawn a thread to manage input
-                new Thread() {
-                    @Override
-                    public void run() {
-                        try (OutputStream os = p.getOutputStream()) {
-                            os.write(inBytes);
-                            p.getOutputStream().close();
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
-                }.start();
-            } else {
-                p.getOutputStream().close();
-            }
-
-            // Wait for the process to complete
-            exitCode = p.waitFor();
-
-            // Wait for stdout and stderr threads to complete
-            stdoutThread.join();
-            stderrThread.join();
+            ProcessEngine.Execution ex = ProcessEngine.run(pb, inBytes, stdoutStream, stderrBuilder, timeoutMillis);
+            exitCode = ex.exitCode;
+            timedOut = ex.timedOut;
         } catch (Exception ex) {
             throw new RuntimeException(ex);
+        } finally {
+            if (tempDir) {
+                deleteAll(workingDir);
+                workingDir = null;
+                tempDir = false;
+            }
+        }
+    }
+
+    /**
+     * Get the captured stdout of the last run. A SpillBuffer is dropped once
+     * read, with its spill file, so that can be done only once.
+     *
+     * @return The bytes, or null if stdout went to a stream set by the caller,
+     * was already read or could not be read back.
+     */
+    protected byte[] getStdoutBytes() {
+        if (stdoutStream instanceof SpillBuffer) {
+            SpillBuffer sb = (SpillBuffer) stdoutStream;
+            stdoutStream = null;
+            try {
+                return sb.toByteArray();
+            } catch (IOException ex) {
+                stderrBuilder.append(ex.getMessage()).append(System.lineSeparator());
+            } finally {
+                sb.reset();
+            }
+        } else if (stdoutStream instanceof ByteArrayOutputStream) {
+            return ((ByteArrayOutputStream) stdoutStream).toByteArray();
         }
+        return null;
     }
 }
@@ -41,7 +41,7 @@ public class UniversalDisplay extends JFrame {
             isHMTL = isHTML();
             if (!isHMTL) {
                 isText = isMostlyText(data);
-                htmlContent = new PandocConverter().convertMarkdownToHTML(asString);
+                htmlContent = MarkdownRenderer.toHtml(asString);
             } else {
                 isText = false;
                 htmlContent = asString;
@@ -0,0 +1,244 @@
+package nl.infcomtec.vectors;
+
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Brute force top-k search over a VectorStore, split over a fork-join pool.
+ *
+ * Exact, so it is the reference for measuring the recall of the approximate
+ * indexes, and for a few tens of thousands of vectors it is fast enough to use
+ * directly. Every leaf task scores its slice of the ids with the Similarity
+ * kernels into a bounded NodeHeap, the heaps are merged on the way up.
+ *
+ * The scores are the same as those of the Embeddings methods: cosine
+ * similarity, Euclidean distance, dot product and so on.
+ *
+ * @author Walter Stroebel
+ */
+public class ExactSearch {
+
+    /**
+     * Ids per leaf task.
+     */
+    public static final int LEAF = 4096;
+    public final VectorStore store;
+    public final Similarity.Metric metric;
+    private final ForkJoinPool pool;
+    private final ThreadLocal<Similarity> sims = new ThreadLocal<Similarity>() {
+        @Override
+        protected Similarity initialValue() {
+            return new Similarity(store, metric);
+        }
+    };
+
+    /**
+     * Search on the common pool.
+     *
+     * @param store The vectors.
+     * @param metric How to compare them.
+     */
+    public ExactSearch(VectorStore store, Similarity.Metric metric) {
+        this(store, metric, null);
+    }
+
+    /**
+     * Search on a specific pool.
+     *
+     * @param store The vectors.
+     * @param metric How to compare them.
+     * @param pool The pool, null for the common pool.
+     */
+    public ExactSearch(VectorStore store, Similarity.Metric metric, ForkJoinPool pool) {
+        this.store = store;
+        this.metric = metric;
+        this.pool = null == pool ? ForkJoinPool.commonPool() : pool;
+    }
+
+    /**
+     * The k nearest vectors.
+     *
+     * @param query The query.
+     * @param k How many.
+     * @return The hits, nearest first.
+     */
+    public Hits search(float[] query, int k) {
+        return search(query, k, 0, store.size());
+    }
+
+    /**
+     * The k nearest vectors within a range of ids.
+     *
+     * @param query The query.
+     * @param k How many.
+     * @param from First id.
+     * @param to One past the last id.
+     * @return The hits, nearest first.
+     */
+    public Hits search(float[] query, int k, int from, int to) {
+        store.check(null, query.length);
+        if (from >= to || k <= 0) {
+            return new Hits(new int[0], new float[0]);
+        }
+        return Hits.from(pool.invoke(new One(query, k, from, to)), metric);
+    }
+
+    /**
+     * The k nearest among the vectors whose id is set in a bitmap, only those
+     * are scored.
+     *
+     * @param query The query.
+     * @param k How many.
+     * @param allowed The ids to consider.
+     * @return The hits, nearest first.
+     */
+    public Hits search(float[] query, int k, BitSet allowed) {
+        store.check(null, query.length);
+        int to = Math.min(store.size(), allowed.length());
+        if (to <= 0 || k <= 0) {
+            return new Hits(new int[0], new float[0]);
+        }
+        return Hits.from(pool.invoke(new Subset(query, k, 0, to, allowed)), metric);
+    }
+
+    /**
+     * The k nearest vectors for each of a batch of queries. Each stored vector
+     * is read once per block of queries, much cheaper than separate searches.
+     *
+     * @param queries The queries.
+     * @param k How many per query.
+     * @return The hits per query, nearest first.
+     */
+    public Hits[] search(float[][] queries, int k) {
+        for (float[] q : queries) {
+            store.check(null, q.length);
+        }
+        Hits[] ret = new Hits[queries.length];
+        NodeHeap[] heaps = store.size() > 0 && k > 0
+                ? pool.invoke(new Batch(queries, k, 0, store.size()))
+                : null;
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = null == heaps ? new Hits(new int[0], new float[0]) : Hits.from(heaps[i], metric);
+        }
+        return ret;
+    }
+
+    /**
+     * Move everything from one bounded heap into another.
+     */
+    private static NodeHeap merge(NodeHeap into, NodeHeap from, int k) {
+        for (int i = 0; i < from.size(); i++) {
+            into.offer(from.keyAt(i), from.idAt(i), k);
+        }
+        return into;
+    }
+
+    private class One extends RecursiveTask<NodeHeap> {
+
+        final float[] query;
+        final int k, from, to;
+
+        One(float[] query, int k, int from, int to) {
+            this.query = query;
+            this.k = k;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected NodeHeap compute() {
+            if (to - from <= LEAF) {
+                NodeHeap heap = new NodeHeap(true, k);
+                float[] scores = new float[to - from];
+                sims.get().score(query, from, to, scores, 0);
+                for (int i = 0; i < scores.length; i++) {
+                    heap.offer(Similarity.toDistance(metric, scores[i]), from + i, k);
+                }
+                return heap;
+            }
+            int mid = (from + to) >>> 1;
+            One right = new One(query, k, mid, to);
+            right.fork();
+            NodeHeap left = new One(query, k, from, mid).compute();
+            return merge(left, right.join(), k);
+        }
+    }
+
+    private class Subset extends RecursiveTask<NodeHeap> {
+
+        final float[] query;
+        final int k, from, to;
+        final BitSet allowed;
+
+        Subset(float[] query, int k, int from, int to, BitSet allowed) {
+            this.query = query;
+            this.k = k;
+            this.from = from;
+            this.to = to;
+            this.allowed = allowed;
+        }
+
+        @Override
+        protected NodeHeap compute() {
+            if (to - from <= LEAF) {
+                NodeHeap heap = new NodeHeap(true, k);
+                float[] scores = new float[to - from];
+                Similarity sim = sims.get();
+                // score runs of consecutive ids in one go
+                for (int a = allowed.nextSetBit(from); a >= 0 && a < to;) {
+                    int b = Math.min(allowed.nextClearBit(a), to);
+                    sim.score(query, a, b, scores, 0);
+                    for (int i = 0; i < b - a; i++) {
+                        heap.offer(Similarity.toDistance(metric, scores[i]), a + i, k);
+                    }
+                    a = b < to ? allowed.nextSetBit(b) : -1;
+                }
+                return heap;
+            }
+            int mid = (from + to) >>> 1;
+            Subset right = new Subset(query, k, mid, to, allowed);
+            right.fork();
+            NodeHeap left = new Subset(query, k, from, mid, allowed).compute();
+            return merge(left, right.join(), k);
+        }
+    }
+
+    private class Batch extends RecursiveTask<NodeHeap[]> {
+
+        final float[][] queries;
+        final int k, from, to;
+
+        Batch(float[][] queries, int k, int from, int to) {
+            this.queries = queries;
+            this.k = k;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected NodeHeap[] compute() {
+            if (to - from <= LEAF) {
+                NodeHeap[] heaps = new NodeHeap[queries.length];
+                float[][] scores = sims.get().score(queries, from, to);
+                for (int q = 0; q < queries.length; q++) {
+                    NodeHeap heap = heaps[q] = new NodeHeap(true, k);
+                    float[] row = scores[q];
+                    for (int i = 0; i < row.length; i++) {
+                        heap.offer(Similarity.toDistance(metric, row[i]), from + i, k);
+                    }
+                }
+                return heaps;
+            }
+            int mid = (from + to) >>> 1;
+            Batch right = new Batch(queries, k, mid, to);
+            right.fork();
+            NodeHeap[] left = new Batch(queries, k, from, mid).compute();
+            NodeHeap[] r = right.join();
+            for (int q = 0; q < left.length; q++) {
+                merge(left[q], r[q], k);
+            }
+            return left;
+        }
+    }
+}
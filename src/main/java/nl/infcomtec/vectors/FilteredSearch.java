@@ -0,0 +1,72 @@
+package nl.infcomtec.vectors;
+
+import java.util.BitSet;
+
+/**
+ * Top-k search restricted to a set of ids, usually from a MetadataIndex.
+ *
+ * Filtering after a plain search loses results and filtering by scanning
+ * everything is slow, so the plan depends on how many ids are allowed. Few
+ * allowed ids, or a small fraction of the store, are scanned exactly; that
+ * is cheap because only they are scored, and a graph walk would have to
+ * visit about ef / selectivity nodes to find enough of them. Otherwise the
+ * graph is walked with the filter, the candidate list grown by the inverse
+ * of the selectivity.
+ *
+ * @author Walter Stroebel
+ */
+public class FilteredSearch {
+
+    public final ExactSearch exact;
+    public final HnswIndex graph;
+    /**
+     * Below this many allowed ids, scan them.
+     */
+    public int bruteForceBelow = 10000;
+    /**
+     * Below this fraction of allowed ids, scan them.
+     */
+    public double minSelectivity = 0.05;
+    /**
+     * Cap on the candidate list size of a filtered graph walk.
+     */
+    public int maxEf = 4096;
+
+    /**
+     * Filtered search over a store.
+     *
+     * @param exact Exact search on the store.
+     * @param graph Graph over the same store, null to always scan.
+     */
+    public FilteredSearch(ExactSearch exact, HnswIndex graph) {
+        this.exact = exact;
+        this.graph = graph;
+    }
+
+    /**
+     * The k nearest allowed vectors.
+     *
+     * @param query The query.
+     * @param k How many.
+     * @param allowed The ids to consider.
+     * @return The hits, nearest first.
+     */
+    public Hits search(float[] query, int k, BitSet allowed) {
+        int card = allowed.cardinality();
+        if (0 == card || k <= 0) {
+            return new Hits(new int[0], new float[0]);
+        }
+        int n = exact.store.size();
+        double selectivity = (double) card / Math.max(1, n);
+        if (null == graph || card < bruteForceBelow || selectivity < minSelectivity) {
+            return exact.search(query, k, allowed);
+        }
+        int ef = (int) Math.min(maxEf, Math.max(graph.efSearch, k) / selectivity);
+        Hits ret = graph.search(query, k, ef, allowed);
+        if (ret.size() < Math.min(k, card)) {
+            // the walk got stuck among filtered nodes
+            return exact.search(query, k, allowed);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,52 @@
+package nl.infcomtec.vectors;
+
+import java.util.Arrays;
+
+/**
+ * Result of a nearest neighbour search: ids and scores, nearest first.
+ *
+ * Scores are those of the metric used, so higher is closer for cosine and lower
+ * is closer for L2.
+ *
+ * @author Walter Stroebel
+ */
+public class Hits {
+
+    public final int[] ids;
+    public final float[] scores;
+
+    public Hits(int[] ids, float[] scores) {
+        this.ids = ids;
+        this.scores = scores;
+    }
+
+    /**
+     * @return Number of hits.
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Collect a heap of internal distances, see Similarity.toDistance.
+     *
+     * @param heap The heap, emptied by this.
+     * @param metric Metric the distances came from.
+     * @return The hits.
+     */
+    public static Hits from(NodeHeap heap, Similarity.Metric metric) {
+        int n = heap.size();
+        int[] ids = new int[n];
+        float[] scores = new float[n];
+        heap.drainNearestFirst(ids, scores);
+        for (int i = 0; i < n; i++) {
+            scores[i] = Similarity.fromDistance(metric, scores[i]);
+        }
+        return new Hits(ids, scores);
+    }
+
+    @Override
+    public String toString() {
+        return "Hits{" + "ids=" + Arrays.toString(ids) + ", scores=" + Arrays.toString(scores) + '}';
+    }
+}
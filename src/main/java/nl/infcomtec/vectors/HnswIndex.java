@@ -0,0 +1,612 @@
+package nl.infcomtec.vectors;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hierarchical Navigable Small World graph over the vectors of a VectorStore,
+ * for approximate nearest neighbour search in roughly logarithmic time.
+ *
+ * Nodes are the store ids. Every node has a random top layer, each layer is a
+ * proximity graph with at most M links per node (2 * M on the bottom layer).
+ * A search descends greedily from the top layer and does a best-first search
+ * with a candidate list of size ef on the bottom layer.
+ *
+ * Inserts may run concurrently: every node's link lists are guarded by the
+ * node itself, the entry point by the index. Searches run concurrently with
+ * inserts and see every node that was fully linked before they started.
+ *
+ * @author Walter Stroebel
+ */
+public class HnswIndex {
+
+    private static final int MAGIC = 0x484E5357; // "HNSW"
+    private static final int VERSION = 1;
+    public final VectorStore store;
+    public final Similarity.Metric metric;
+    /**
+     * Maximum links per node above the bottom layer.
+     */
+    public final int M;
+    /**
+     * Candidate list size while inserting.
+     */
+    public final int efConstruction;
+    /**
+     * Default candidate list size while searching, at least k is used.
+     */
+    public volatile int efSearch = 64;
+    private final double levelFactor;
+    /**
+     * links[id][layer] = {count, neighbour, neighbour, ...}, null if the id is
+     * not in the index (yet). Synchronize on links[id] to read or change.
+     */
+    private volatile int[][][] links = new int[1024][][];
+    private final Object growLock = new Object();
+    private final AtomicInteger count = new AtomicInteger();
+    private int entry = -1;
+    private int maxLevel = -1;
+    private final ThreadLocal<Searcher> searchers = new ThreadLocal<Searcher>() {
+        @Override
+        protected Searcher initialValue() {
+            return new Searcher();
+        }
+    };
+
+    /**
+     * An empty index.
+     *
+     * @param store The vectors.
+     * @param metric How to compare them.
+     * @param M Maximum links per node, 16 is a sensible default.
+     * @param efConstruction Candidate list size while inserting, 200 is a
+     * sensible default; higher is slower to build but gives better recall.
+     */
+    public HnswIndex(VectorStore store, Similarity.Metric metric, int M, int efConstruction) {
+        if (M < 2) {
+            throw new IllegalArgumentException("M must be at least 2: " + M);
+        }
+        this.store = store;
+        this.metric = metric;
+        this.M = M;
+        this.efConstruction = Math.max(M, efConstruction);
+        this.levelFactor = 1.0 / Math.log(M);
+    }
+
+    /**
+     * An index with the default M of 16 and efConstruction of 200.
+     *
+     * @param store The vectors.
+     * @param metric How to compare them.
+     */
+    public HnswIndex(VectorStore store, Similarity.Metric metric) {
+        this(store, metric, 16, 200);
+    }
+
+    /**
+     * @return Number of indexed vectors.
+     */
+    public int size() {
+        return count.get();
+    }
+
+    /**
+     * @param id A store id.
+     * @return true if it is in the index.
+     */
+    public boolean contains(int id) {
+        int[][][] l = links;
+        return id >= 0 && id < l.length && null != l[id];
+    }
+
+    private int maxLinks(int layer) {
+        return 0 == layer ? 2 * M : M;
+    }
+
+    /**
+     * Per thread scratch space.
+     */
+    private class Searcher {
+
+        final Similarity sim = new Similarity(store, metric);
+        final float[] vec = new float[store.dimension()];
+        final float[] other = new float[store.dimension()];
+        int[] visited = new int[1024];
+        int generation;
+        final NodeHeap candidates = new NodeHeap(false, 256);
+        final NodeHeap results = new NodeHeap(true, 256);
+        int[] nbrs = new int[2 * M + 1];
+        final int[] scan = new int[2 * M + 1];
+
+        void newVisit(int capacity) {
+            if (visited.length < capacity) {
+                visited = new int[Math.max(capacity, visited.length * 2)];
+                generation = 0;
+            }
+            if (++generation == 0) {
+                Arrays.fill(visited, 0);
+                generation = 1;
+            }
+        }
+
+        float distance(Similarity.Query q, int id) {
+            return Similarity.toDistance(metric, sim.score(q, id));
+        }
+
+        /**
+         * Copy the neighbours of a node on a layer into nbrs.
+         *
+         * @return The number of neighbours.
+         */
+        int neighbours(int id, int layer) {
+            int[][] node = links[id];
+            synchronized (node) {
+                if (layer >= node.length) {
+                    return 0;
+                }
+                int[] l = node[layer];
+                int n = l[0];
+                System.arraycopy(l, 1, nbrs, 0, n);
+                return n;
+            }
+        }
+
+        /**
+         * Greedy walk to the closest node on a layer.
+         */
+        int greedy(Similarity.Query q, int ep, int layer) {
+            float best = distance(q, ep);
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                int n = neighbours(ep, layer);
+                for (int i = 0; i < n; i++) {
+                    int c = nbrs[i];
+                    float d = distance(q, c);
+                    if (d < best) {
+                        best = d;
+                        ep = c;
+                        changed = true;
+                    }
+                }
+            }
+            return ep;
+        }
+
+        /**
+         * Best-first search on a layer, leaves the ef nearest in results.
+         * With a filter the walk still goes through every node, but only
+         * allowed ones become results.
+         */
+        void searchLayer(Similarity.Query q, int ep, int ef, int layer, BitSet allowed) {
+            newVisit(links.length);
+            candidates.clear();
+            results.clear();
+            float d = distance(q, ep);
+            visited[ep] = generation;
+            candidates.push(d, ep);
+            if (null == allowed || allowed.get(ep)) {
+                results.push(d, ep);
+            }
+            while (!candidates.isEmpty()) {
+                float cd = candidates.topKey();
+                int c = candidates.topId();
+                if (results.size() >= ef && cd > results.topKey()) {
+                    break;
+                }
+                candidates.pop();
+                int n = neighbours(c, layer);
+                System.arraycopy(nbrs, 0, scan, 0, n);
+                for (int i = 0; i < n; i++) {
+                    int e = scan[i];
+                    if (e >= visited.length) {
+                        // added by another thread after we started
+                        visited = Arrays.copyOf(visited, Math.max(e + 1, visited.length * 2));
+                    }
+                    if (visited[e] == generation) {
+                        continue;
+                    }
+                    visited[e] = generation;
+                    float ed = distance(q, e);
+                    if (results.size() < ef || ed < results.topKey()) {
+                        candidates.push(ed, e);
+                        if (null == allowed || allowed.get(e)) {
+                            results.offer(ed, e, ef);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * The neighbour selection heuristic: walk the candidates nearest
+         * first and keep one only if it is closer to the base than to any
+         * neighbour kept so far. That spreads the links over directions
+         * instead of clustering them.
+         *
+         * @param ids Candidates, sorted nearest first.
+         * @param dists Their distance to the base.
+         * @param n Number of candidates.
+         * @param max Links wanted.
+         * @param out Receives the kept ids.
+         * @return Number kept.
+         */
+        int select(int[] ids, float[] dists, int n, int max, int[] out) {
+            if (n <= max) {
+                System.arraycopy(ids, 0, out, 0, n);
+                return n;
+            }
+            int kept = 0;
+            Similarity.Query[] keptQ = new Similarity.Query[max];
+            for (int i = 0; i < n && kept < max; i++) {
+                int c = ids[i];
+                boolean good = true;
+                for (int j = 0; j < kept; j++) {
+                    if (distance(keptQ[j], c) < dists[i]) {
+                        good = false;
+                        break;
+                    }
+                }
+                if (good) {
+                    keptQ[kept] = sim.prepare(store.copy(c, new float[store.dimension()]));
+                    out[kept++] = c;
+                }
+            }
+            // fill up with the nearest rejects, a node should not end up
+            // with too few links
+            for (int i = 0; i < n && kept < max; i++) {
+                boolean in = false;
+                for (int j = 0; j < kept; j++) {
+                    if (out[j] == ids[i]) {
+                        in = true;
+                        break;
+                    }
+                }
+                if (!in) {
+                    out[kept++] = ids[i];
+                }
+            }
+            return kept;
+        }
+    }
+
+    /**
+     * Add a store id to the index. Safe to call from several threads, but each
+     * id must be added only once.
+     *
+     * @param id The id.
+     */
+    public void add(int id) {
+        if (id < 0 || id >= store.size()) {
+            throw new IndexOutOfBoundsException("No vector " + id + ", store size is " + store.size());
+        }
+        int level = (int) (-Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * levelFactor);
+        int[][] node = new int[level + 1][];
+        for (int l = 0; l <= level; l++) {
+            node[l] = new int[maxLinks(l) + 1];
+        }
+        synchronized (growLock) {
+            if (id >= links.length) {
+                links = Arrays.copyOf(links, Math.max(id + 1, links.length * 2));
+            }
+            if (null != links[id]) {
+                throw new IllegalStateException("Already indexed: " + id);
+            }
+            links[id] = node;
+        }
+        int ep;
+        int top;
+        synchronized (this) {
+            ep = entry;
+            top = maxLevel;
+            if (ep < 0) {
+                entry = id;
+                maxLevel = level;
+                count.incrementAndGet();
+                return;
+            }
+        }
+        Searcher s = searchers.get();
+        Similarity.Query q = s.sim.prepare(store.copy(id, s.vec));
+        for (int l = top; l > level; l--) {
+            ep = s.greedy(q, ep, l);
+        }
+        int[] ids = new int[efConstruction];
+        float[] dists = new float[efConstruction];
+        int[] chosen = new int[2 * M];
+        for (int l = Math.min(level, top); l >= 0; l--) {
+            s.searchLayer(q, ep, efConstruction, l, null);
+            int n = s.results.drainNearestFirst(ids, dists);
+            ep = ids[0];
+            int k = s.select(ids, dists, n, M, chosen);
+            synchronized (node) {
+                System.arraycopy(chosen, 0, node[l], 1, k);
+                node[l][0] = k;
+            }
+            for (int i = 0; i < k; i++) {
+                link(s, chosen[i], id, l);
+            }
+        }
+        count.incrementAndGet();
+        if (level > top) {
+            synchronized (this) {
+                if (level > maxLevel) {
+                    maxLevel = level;
+                    entry = id;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a back link from a neighbour to a new node, pruning the neighbour's
+     * links with the heuristic when it has too many.
+     */
+    private void link(Searcher s, int from, int to, int layer) {
+        int[][] node = links[from];
+        int max = maxLinks(layer);
+        synchronized (node) {
+            int[] l = node[layer];
+            int n = l[0];
+            if (n < max) {
+                l[n + 1] = to;
+                l[0] = n + 1;
+                return;
+            }
+            Similarity.Query q = s.sim.prepare(store.copy(from, s.other));
+            NodeHeap h = new NodeHeap(false, n + 1);
+            for (int i = 1; i <= n; i++) {
+                h.push(s.distance(q, l[i]), l[i]);
+            }
+            h.push(s.distance(q, to), to);
+            int[] ids = new int[n + 1];
+            float[] dists = new float[n + 1];
+            int m = h.drainNearestFirst(ids, dists);
+            int[] out = new int[max];
+            int k = s.select(ids, dists, m, max, out);
+            System.arraycopy(out, 0, l, 1, k);
+            l[0] = k;
+        }
+    }
+
+    /**
+     * Add every store id that is not indexed yet, in parallel.
+     *
+     * @param pool The pool to build on, null for the common pool.
+     */
+    public void build(ForkJoinPool pool) {
+        final int from = highestIndexed() + 1;
+        final int to = store.size();
+        if (from >= to) {
+            return;
+        }
+        if (null == pool) {
+            pool = ForkJoinPool.commonPool();
+        }
+        pool.invoke(new Build(from, to));
+    }
+
+    private int highestIndexed() {
+        int[][][] l = links;
+        for (int i = Math.min(l.length, store.size()) - 1; i >= 0; i--) {
+            if (null != l[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private class Build extends RecursiveAction {
+
+        private static final int LEAF = 256;
+        final int from, to;
+
+        Build(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= LEAF) {
+                for (int i = from; i < to; i++) {
+                    if (!contains(i)) {
+                        add(i);
+                    }
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Build(from, mid), new Build(mid, to));
+            }
+        }
+    }
+
+    /**
+     * The k approximately nearest vectors.
+     *
+     * @param query The query vector.
+     * @param k How many.
+     * @return The hits, nearest first.
+     */
+    public Hits search(float[] query, int k) {
+        return search(query, k, efSearch);
+    }
+
+    /**
+     * The k approximately nearest vectors.
+     *
+     * @param query The query vector.
+     * @param k How many.
+     * @param ef Candidate list size, higher is slower but more accurate.
+     * @return The hits, nearest first.
+     */
+    public Hits search(float[] query, int k, int ef) {
+        return search(query, k, ef, null);
+    }
+
+    /**
+     * The k approximately nearest vectors among those set in a bitmap. The
+     * fewer are allowed, the larger ef must be; see FilteredSearch.
+     *
+     * @param query The query vector.
+     * @param k How many.
+     * @param ef Candidate list size, higher is slower but more accurate.
+     * @param allowed The ids that may be returned, null for all.
+     * @return The hits, nearest first.
+     */
+    public Hits search(float[] query, int k, int ef, BitSet allowed) {
+        int ep;
+        int top;
+        synchronized (this) {
+            ep = entry;
+            top = maxLevel;
+        }
+        if (ep < 0) {
+            return new Hits(new int[0], new float[0]);
+        }
+        Searcher s = searchers.get();
+        Similarity.Query q = s.sim.prepare(query);
+        for (int l = top; l > 0; l--) {
+            ep = s.greedy(q, ep, l);
+        }
+        s.searchLayer(q, ep, Math.max(k, ef), 0, allowed);
+        while (s.results.size() > k) {
+            s.results.pop();
+        }
+        return Hits.from(s.results, metric);
+    }
+
+    /**
+     * Write the graph to a file. The vectors are not included, they belong to
+     * the store.
+     *
+     * @param file The file.
+     * @throws IOException If writing failed.
+     */
+    public void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536))) {
+            save(out);
+        }
+    }
+
+    /**
+     * Write the graph to a stream, for embedding it in another file.
+     *
+     * @param out The stream, left open.
+     * @throws IOException If writing failed.
+     */
+    public synchronized void save(DataOutputStream out) throws IOException {
+        int[][][] l = links;
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(metric.name());
+        out.writeInt(M);
+        out.writeInt(efConstruction);
+        out.writeInt(store.dimension());
+        out.writeInt(entry);
+        out.writeInt(maxLevel);
+        int n = highestIndexed() + 1;
+        out.writeInt(n);
+        for (int id = 0; id < n; id++) {
+            int[][] node = l[id];
+            if (null == node) {
+                out.writeByte(-1);
+                continue;
+            }
+            synchronized (node) {
+                out.writeByte(node.length - 1);
+                for (int[] layer : node) {
+                    out.writeShort(layer[0]);
+                    for (int i = 1; i <= layer[0]; i++) {
+                        out.writeInt(layer[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a graph written by save.
+     *
+     * @param file The file.
+     * @param store The store it was built on, holding at least the indexed
+     * vectors.
+     * @return The index.
+     * @throws IOException If reading failed or the file does not fit the
+     * store.
+     */
+    public static HnswIndex load(File file, VectorStore store) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            return load(in, store);
+        }
+    }
+
+    /**
+     * Read a graph written by save from a stream.
+     *
+     * @param in The stream, left open.
+     * @param store The store it was built on, holding at least the indexed
+     * vectors.
+     * @return The index.
+     * @throws IOException If reading failed or the graph does not fit the
+     * store.
+     */
+    public static HnswIndex load(DataInputStream in, VectorStore store) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not an HNSW index");
+        }
+        Similarity.Metric metric = Similarity.Metric.valueOf(in.readUTF());
+        int m = in.readInt();
+        int efc = in.readInt();
+        int dim = in.readInt();
+        if (dim != store.dimension()) {
+            throw new IOException("Index dimension " + dim + " does not match store " + store.dimension());
+        }
+        HnswIndex ret = new HnswIndex(store, metric, m, efc);
+        ret.entry = in.readInt();
+        ret.maxLevel = in.readInt();
+        int n = in.readInt();
+        if (n > store.size()) {
+            throw new IOException("Index has " + n + " vectors, store only " + store.size());
+        }
+        int[][][] l = new int[Math.max(n, 1024)][][];
+        int cnt = 0;
+        for (int id = 0; id < n; id++) {
+            int level = in.readByte();
+            if (level < 0) {
+                continue;
+            }
+            int[][] node = new int[level + 1][];
+            for (int lv = 0; lv <= level; lv++) {
+                int[] layer = new int[ret.maxLinks(lv) + 1];
+                layer[0] = in.readShort();
+                for (int i = 1; i <= layer[0]; i++) {
+                    layer[i] = in.readInt();
+                }
+                node[lv] = layer;
+            }
+            l[id] = node;
+            cnt++;
+        }
+        ret.links = l;
+        ret.count.set(cnt);
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        return "HnswIndex{" + "metric=" + metric + ", M=" + M + ", efConstruction=" + efConstruction + ", size=" + count + ", maxLevel=" + maxLevel + '}';
+    }
+}
@@ -0,0 +1,689 @@
+package nl.infcomtec.vectors;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted file index with product quantization (IVF-PQ), for collections
+ * that do not fit in memory even as int8.
+ *
+ * A coarse k-means splits the vectors into nlist lists. Within a list each
+ * vector is stored as the residual to its list centroid, cut into m
+ * sub-vectors, each replaced by the index of the nearest of 256 sub-centroids
+ * (one byte). A 768 dimension vector with m = 96 takes 96 bytes plus a 4 byte
+ * id instead of 3072 bytes.
+ *
+ * A search visits the nprobe lists whose centroids are nearest to the query.
+ * Per list it fills a table with the distance from each query sub-vector to
+ * every sub-centroid, after which the distance to a stored vector is m table
+ * lookups (asymmetric distance computation). The best candidates can be
+ * re-ranked against the exact vectors in the store.
+ *
+ * The codes live in a file in the index directory, each list as one or more
+ * segments mapped into memory separately and scanned in place. Vectors added
+ * after the last flush are kept in memory until the next one, which appends
+ * a segment to every list that grew; once a list has MAX_SEGMENTS the file is
+ * rewritten with one segment per list.
+ *
+ * Supported metrics are L2 and cosine, for cosine all vectors are normalized
+ * first.
+ *
+ * @author Walter Stroebel
+ */
+public class IvfPqIndex {
+
+    private static final int MAGIC = 0x49565051; // "IVPQ", one segment per list
+    private static final int MAGIC2 = 0x49565032; // "IVP2", segments
+    /**
+     * Segments a list may have before a flush rewrites the codes file.
+     */
+    public static final int MAX_SEGMENTS = 8;
+    /**
+     * Sub-centroids per sub-quantizer, one byte per code.
+     */
+    public static final int KSUB = 256;
+    private static final String META = "ivfpq.meta";
+    private static final String CODES = "ivfpq.codes";
+    public final VectorStore store;
+    public final Similarity.Metric metric;
+    public final int nlist;
+    public final int m;
+    public final int dsub;
+    public final File dir;
+    /**
+     * Lists searched by default.
+     */
+    public volatile int nprobe = 8;
+    private final int dim;
+    private int ksub;
+    private float[] coarse;
+    private float[][] books;
+    private int indexed;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * Flushed part per list in segments, each the ids (int, little endian)
+     * followed by the codes.
+     */
+    private ByteBuffer[][] mapped;
+    private long[][] segOffsets;
+    private int[][] segCounts;
+    private int[] mappedCounts;
+    private int[][] tailIds;
+    private byte[][] tailCodes;
+    private int[] tailCounts;
+
+    /**
+     * New, untrained index.
+     *
+     * @param store The vectors.
+     * @param metric L2 or COSINE.
+     * @param nlist Number of lists, about the square root of the expected
+     * collection size is a good start.
+     * @param m Number of sub-quantizers, must divide the dimension. More is
+     * more accurate and bigger.
+     * @param dir Directory for the index files.
+     */
+    public IvfPqIndex(VectorStore store, Similarity.Metric metric, int nlist, int m, File dir) {
+        if (Similarity.Metric.L2 != metric && Similarity.Metric.COSINE != metric) {
+            throw new IllegalArgumentException("IVF-PQ supports L2 and COSINE, not " + metric);
+        }
+        this.dim = store.dimension();
+        if (m < 1 || 0 != dim % m) {
+            throw new IllegalArgumentException("m must divide the dimension " + dim + ": " + m);
+        }
+        this.store = store;
+        this.metric = metric;
+        this.nlist = nlist;
+        this.m = m;
+        this.dsub = dim / m;
+        this.dir = dir;
+        dir.mkdirs();
+    }
+
+    /**
+     * @return Bytes per indexed vector, code plus id.
+     */
+    public int bytesPerVector() {
+        return m + 4;
+    }
+
+    /**
+     * @return Number of indexed vectors.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            int n = 0;
+            if (null != mappedCounts) {
+                for (int i = 0; i < nlist; i++) {
+                    n += mappedCounts[i] + tailCounts[i];
+                }
+            }
+            return n;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * A store vector as the index sees it, normalized for cosine.
+     */
+    private float[] load(int id, float[] dst, int off) {
+        float[] v = store.copy(id, new float[dim]);
+        if (Similarity.Metric.COSINE == metric) {
+            normalize(v);
+        }
+        System.arraycopy(v, 0, dst, off, dim);
+        return dst;
+    }
+
+    private static void normalize(float[] v) {
+        double sq = 0;
+        for (float f : v) {
+            sq += f * f;
+        }
+        if (sq > 0) {
+            float inv = (float) (1 / Math.sqrt(sq));
+            for (int i = 0; i < v.length; i++) {
+                v[i] *= inv;
+            }
+        }
+    }
+
+    /**
+     * Train the coarse centroids and the codebooks on a random sample of the
+     * store. Clears the index.
+     *
+     * @param sampleSize Vectors to train on, at least nlist; 50 to 100 per
+     * list is plenty.
+     * @param pool Pool for k-means, null for the common pool.
+     */
+    public void train(int sampleSize, ForkJoinPool pool) {
+        int n = Math.min(sampleSize, store.size());
+        if (n < nlist) {
+            throw new IllegalArgumentException("Need at least " + nlist + " vectors to train, have " + n);
+        }
+        int[] ids = KMeans.sample(store.size(), n, new Random(1));
+        float[] data = new float[n * dim];
+        for (int i = 0; i < n; i++) {
+            load(ids[i], data, i * dim);
+        }
+        KMeans km = new KMeans(nlist, dim, pool);
+        float[] c = km.train(data, n);
+        int[] list = km.assign(data, n);
+        for (int i = 0; i < n; i++) {
+            int off = i * dim;
+            int co = list[i] * dim;
+            for (int d = 0; d < dim; d++) {
+                data[off + d] -= c[co + d];
+            }
+        }
+        int ks = Math.min(KSUB, n);
+        float[][] b = new float[m][];
+        float[] sub = new float[n * dsub];
+        for (int j = 0; j < m; j++) {
+            for (int i = 0; i < n; i++) {
+                System.arraycopy(data, i * dim + j * dsub, sub, i * dsub, dsub);
+            }
+            KMeans skm = new KMeans(ks, dsub, pool);
+            skm.seed = j;
+            b[j] = skm.train(sub, n);
+        }
+        lock.writeLock().lock();
+        try {
+            coarse = c;
+            books = b;
+            ksub = ks;
+            indexed = 0;
+            initLists();
+            new File(dir, CODES).delete();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Encode all store vectors that are not in the index yet, in parallel.
+     * They are searchable right away and written to disk by flush.
+     *
+     * @param pool The pool, null for the common pool.
+     * @return Number of vectors added.
+     */
+    public synchronized int addAll(ForkJoinPool pool) {
+        if (null == coarse) {
+            throw new IllegalStateException("Train the index first");
+        }
+        final int from = indexed;
+        final int to = store.size();
+        if (from >= to) {
+            return 0;
+        }
+        final int[] lists = new int[to - from];
+        final byte[] codes = new byte[(to - from) * m];
+        (null == pool ? ForkJoinPool.commonPool() : pool).invoke(new Encode(from, to, from, lists, codes));
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < lists.length; i++) {
+                int l = lists[i];
+                int n = tailCounts[l];
+                if (n == tailIds[l].length) {
+                    tailIds[l] = Arrays.copyOf(tailIds[l], n * 2);
+                    tailCodes[l] = Arrays.copyOf(tailCodes[l], n * 2 * m);
+                }
+                tailIds[l][n] = from + i;
+                System.arraycopy(codes, i * m, tailCodes[l], n * m, m);
+                tailCounts[l] = n + 1;
+            }
+            indexed = to;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return to - from;
+    }
+
+    private class Encode extends RecursiveAction {
+
+        private static final int LEAF = 512;
+        final int from, to, base;
+        final int[] lists;
+        final byte[] codes;
+
+        Encode(int from, int to, int base, int[] lists, byte[] codes) {
+            this.from = from;
+            this.to = to;
+            this.base = base;
+            this.lists = lists;
+            this.codes = codes;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LEAF) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Encode(from, mid, base, lists, codes), new Encode(mid, to, base, lists, codes));
+                return;
+            }
+            float[] v = new float[dim];
+            for (int id = from; id < to; id++) {
+                load(id, v, 0);
+                int l = nearest(coarse, nlist, v, 0, dim);
+                int co = l * dim;
+                for (int d = 0; d < dim; d++) {
+                    v[d] -= coarse[co + d];
+                }
+                int i = id - base;
+                lists[i] = l;
+                for (int j = 0; j < m; j++) {
+                    codes[i * m + j] = (byte) nearest(books[j], ksub, v, j * dsub, dsub);
+                }
+            }
+        }
+    }
+
+    private static int nearest(float[] centroids, int k, float[] v, int off, int d) {
+        int best = 0;
+        float bestD = Float.POSITIVE_INFINITY;
+        for (int c = 0; c < k; c++) {
+            float x = Similarity.l2sq(v, off, centroids, c * d, d);
+            if (x < bestD) {
+                bestD = x;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private void initLists() {
+        mapped = new ByteBuffer[nlist][0];
+        segOffsets = new long[nlist][0];
+        segCounts = new int[nlist][0];
+        mappedCounts = new int[nlist];
+        tailIds = new int[nlist][16];
+        tailCodes = new byte[nlist][16 * m];
+        tailCounts = new int[nlist];
+    }
+
+    /**
+     * Write the in-memory vectors to the codes file, as a new segment per list
+     * that grew, and the parameters to the meta file. When a list would get
+     * more than MAX_SEGMENTS the whole file is rewritten instead.
+     *
+     * @throws IOException If writing failed.
+     */
+    public void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (null == coarse) {
+                throw new IllegalStateException("Train the index first");
+            }
+            boolean rewrite = false;
+            for (int l = 0; l < nlist; l++) {
+                if (tailCounts[l] > 0 && segCounts[l].length >= MAX_SEGMENTS) {
+                    rewrite = true;
+                }
+            }
+            if (rewrite) {
+                rewrite();
+            } else {
+                append();
+            }
+            writeMeta();
+            for (int l = 0; l < nlist; l++) {
+                tailCounts[l] = 0;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void writeTail(DataOutputStream out, int l) throws IOException {
+        ByteBuffer le = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < tailCounts[l]; i++) {
+            le.putInt(0, tailIds[l][i]);
+            out.write(le.array());
+        }
+    }
+
+    /**
+     * Add the in-memory vectors at the end of the codes file; what is mapped
+     * stays valid.
+     */
+    private void append() throws IOException {
+        File f = new File(dir, CODES);
+        long pos = f.length();
+        long[] offsets = new long[nlist];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f, true), 1 << 16))) {
+            for (int l = 0; l < nlist; l++) {
+                if (tailCounts[l] > 0) {
+                    offsets[l] = pos;
+                    writeTail(out, l);
+                    out.write(tailCodes[l], 0, tailCounts[l] * m);
+                    pos += (long) tailCounts[l] * (4 + m);
+                }
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r");
+                FileChannel ch = raf.getChannel()) {
+            for (int l = 0; l < nlist; l++) {
+                if (tailCounts[l] > 0) {
+                    int s = segCounts[l].length;
+                    segOffsets[l] = Arrays.copyOf(segOffsets[l], s + 1);
+                    segCounts[l] = Arrays.copyOf(segCounts[l], s + 1);
+                    mapped[l] = Arrays.copyOf(mapped[l], s + 1);
+                    segOffsets[l][s] = offsets[l];
+                    segCounts[l][s] = tailCounts[l];
+                    mapped[l][s] = map(ch, offsets[l], tailCounts[l]);
+                    mappedCounts[l] += tailCounts[l];
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a new codes file with one segment per list and map that.
+     */
+    private void rewrite() throws IOException {
+        File tmp = new File(dir, CODES + ".tmp");
+        long[] offsets = new long[nlist];
+        int[] counts = new int[nlist];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            long pos = 0;
+            for (int l = 0; l < nlist; l++) {
+                offsets[l] = pos;
+                counts[l] = mappedCounts[l] + tailCounts[l];
+                for (int s = 0; s < mapped[l].length; s++) {
+                    byte[] ids = new byte[segCounts[l][s] * 4];
+                    ByteBuffer b = mapped[l][s].duplicate();
+                    b.position(0);
+                    b.get(ids);
+                    out.write(ids);
+                }
+                writeTail(out, l);
+                for (int s = 0; s < mapped[l].length; s++) {
+                    byte[] codes = new byte[segCounts[l][s] * m];
+                    ByteBuffer b = mapped[l][s].duplicate();
+                    b.position(segCounts[l][s] * 4);
+                    b.get(codes);
+                    out.write(codes);
+                }
+                out.write(tailCodes[l], 0, tailCounts[l] * m);
+                pos += (long) counts[l] * (4 + m);
+            }
+        }
+        Files.move(tmp.toPath(), new File(dir, CODES).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        for (int l = 0; l < nlist; l++) {
+            segOffsets[l] = 0 == counts[l] ? new long[0] : new long[]{offsets[l]};
+            segCounts[l] = 0 == counts[l] ? new int[0] : new int[]{counts[l]};
+        }
+        mapAll();
+    }
+
+    private void writeMeta() throws IOException {
+        File tmp = new File(dir, META + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC2);
+            out.writeUTF(metric.name());
+            out.writeInt(dim);
+            out.writeInt(nlist);
+            out.writeInt(m);
+            out.writeInt(ksub);
+            out.writeInt(indexed);
+            for (float f : coarse) {
+                out.writeFloat(f);
+            }
+            for (float[] b : books) {
+                for (float f : b) {
+                    out.writeFloat(f);
+                }
+            }
+            for (int l = 0; l < nlist; l++) {
+                out.writeInt(segCounts[l].length);
+                for (int s = 0; s < segCounts[l].length; s++) {
+                    out.writeLong(segOffsets[l][s]);
+                    out.writeInt(segCounts[l][s]);
+                }
+            }
+        }
+        Files.move(tmp.toPath(), new File(dir, META).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private ByteBuffer map(FileChannel ch, long offset, int count) throws IOException {
+        long len = (long) count * (4 + m);
+        return 0 == len ? ByteBuffer.allocate(0)
+                : ch.map(FileChannel.MapMode.READ_ONLY, offset, len).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void mapAll() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, CODES), "r");
+                FileChannel ch = raf.getChannel()) {
+            for (int l = 0; l < nlist; l++) {
+                mapped[l] = new ByteBuffer[segCounts[l].length];
+                mappedCounts[l] = 0;
+                for (int s = 0; s < mapped[l].length; s++) {
+                    mapped[l][s] = map(ch, segOffsets[l][s], segCounts[l][s]);
+                    mappedCounts[l] += segCounts[l][s];
+                }
+            }
+        }
+    }
+
+    /**
+     * Open an index written by flush.
+     *
+     * @param dir The index directory.
+     * @param store The store it was built on.
+     * @return The index; call addAll to index vectors added to the store since.
+     * @throws IOException If reading failed or the index does not fit the
+     * store.
+     */
+    public static IvfPqIndex open(File dir, VectorStore store) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(dir, META)), 1 << 16))) {
+            int magic = in.readInt();
+            if (magic != MAGIC && magic != MAGIC2) {
+                throw new IOException("Not an IVF-PQ index: " + dir);
+            }
+            Similarity.Metric metric = Similarity.Metric.valueOf(in.readUTF());
+            int dim = in.readInt();
+            if (dim != store.dimension()) {
+                throw new IOException("Index dimension " + dim + " does not match store " + store.dimension());
+            }
+            int nlist = in.readInt();
+            int m = in.readInt();
+            IvfPqIndex ret = new IvfPqIndex(store, metric, nlist, m, dir);
+            ret.ksub = in.readInt();
+            ret.indexed = in.readInt();
+            if (ret.indexed > store.size()) {
+                throw new IOException("Index has " + ret.indexed + " vectors, store only " + store.size());
+            }
+            ret.coarse = new float[nlist * dim];
+            for (int i = 0; i < ret.coarse.length; i++) {
+                ret.coarse[i] = in.readFloat();
+            }
+            ret.books = new float[m][ret.ksub * ret.dsub];
+            for (float[] b : ret.books) {
+                for (int i = 0; i < b.length; i++) {
+                    b[i] = in.readFloat();
+                }
+            }
+            ret.initLists();
+            for (int l = 0; l < nlist; l++) {
+                int segs = MAGIC == magic ? 1 : in.readInt();
+                ret.segOffsets[l] = new long[segs];
+                ret.segCounts[l] = new int[segs];
+                for (int s = 0; s < segs; s++) {
+                    ret.segOffsets[l][s] = in.readLong();
+                    ret.segCounts[l][s] = in.readInt();
+                }
+            }
+            ret.mapAll();
+            return ret;
+        }
+    }
+
+    /**
+     * Search with the default nprobe and no re-ranking.
+     *
+     * @param query The query.
+     * @param k How many.
+     * @return The hits, nearest first.
+     */
+    public Hits search(float[] query, int k) {
+        return search(query, k, nprobe, 0);
+    }
+
+    /**
+     * Search.
+     *
+     * @param query The query.
+     * @param k How many.
+     * @param nprobe Number of lists to visit.
+     * @param rerank Candidates to re-rank against the exact vectors, 0 for
+     * none.
+     * @return The hits, nearest first.
+     */
+    public Hits search(float[] query, int k, int nprobe, int rerank) {
+        store.check(null, query.length);
+        float[] q = query.clone();
+        if (Similarity.Metric.COSINE == metric) {
+            normalize(q);
+        }
+        int candidates = Math.max(k, rerank);
+        NodeHeap heap = new NodeHeap(true, candidates);
+        lock.readLock().lock();
+        try {
+            if (null == coarse) {
+                return new Hits(new int[0], new float[0]);
+            }
+            NodeHeap probes = new NodeHeap(true, nprobe);
+            for (int l = 0; l < nlist; l++) {
+                probes.offer(Similarity.l2sq(q, 0, coarse, l * dim, dim), l, nprobe);
+            }
+            float[] r = new float[dim];
+            float[] table = new float[m * ksub];
+            for (int p = 0; p < probes.size(); p++) {
+                int l = probes.idAt(p);
+                int co = l * dim;
+                for (int d = 0; d < dim; d++) {
+                    r[d] = q[d] - coarse[co + d];
+                }
+                for (int j = 0; j < m; j++) {
+                    for (int c = 0; c < ksub; c++) {
+                        table[j * ksub + c] = Similarity.l2sq(r, j * dsub, books[j], c * dsub, dsub);
+                    }
+                }
+                for (int s = 0; s < mapped[l].length; s++) {
+                    scan(table, mapped[l][s], segCounts[l][s], heap, candidates);
+                }
+                if (tailCounts[l] > 0) {
+                    scan(table, tailCodes[l], tailCounts[l], tailIds[l], heap, candidates);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (rerank > 0) {
+            Similarity sim = new Similarity(store, metric);
+            Similarity.Query sq = sim.prepare(query);
+            NodeHeap best = new NodeHeap(true, k);
+            for (int i = 0; i < heap.size(); i++) {
+                int id = heap.idAt(i);
+                best.offer(Similarity.toDistance(metric, sim.score(sq, id)), id, k);
+            }
+            return Hits.from(best, metric);
+        }
+        int n = heap.size();
+        int[] ids = new int[n];
+        float[] d2 = new float[n];
+        heap.drainNearestFirst(ids, d2);
+        float[] scores = new float[Math.min(n, k)];
+        for (int i = 0; i < scores.length; i++) {
+            // squared distance between unit vectors is 2 - 2 cos
+            scores[i] = Similarity.Metric.L2 == metric ? (float) Math.sqrt(d2[i]) : 1 - d2[i] / 2;
+        }
+        return new Hits(Arrays.copyOf(ids, scores.length), scores);
+    }
+
+    /**
+     * Asymmetric distance for every code in the memory part of a list.
+     */
+    private void scan(float[] table, byte[] codes, int n, int[] ids, NodeHeap heap, int k) {
+        for (int i = 0; i < n; i++) {
+            int base = i * m;
+            float d = 0;
+            for (int j = 0; j < m; j++) {
+                d += table[j * ksub + (codes[base + j] & 0xFF)];
+            }
+            if (heap.size() < k || d < heap.topKey()) {
+                heap.offer(d, ids[i], k);
+            }
+        }
+    }
+
+    /**
+     * Asymmetric distance for every code in a mapped segment, read in place
+     * with absolute gets so nothing is copied to the heap.
+     */
+    private void scan(float[] table, ByteBuffer seg, int n, NodeHeap heap, int k) {
+        int codes = n * 4;
+        for (int i = 0; i < n; i++) {
+            int base = codes + i * m;
+            float d = 0;
+            for (int j = 0; j < m; j++) {
+                d += table[j * ksub + (seg.get(base + j) & 0xFF)];
+            }
+            if (heap.size() < k || d < heap.topKey()) {
+                heap.offer(d, seg.getInt(i * 4), k);
+            }
+        }
+    }
+
+    /**
+     * Average recall@k against exact search, for choosing nlist, m, nprobe and
+     * rerank for a collection.
+     *
+     * @param queries Test queries, typically a sample of the store.
+     * @param k The k.
+     * @param nprobe Lists to visit.
+     * @param rerank Candidates to re-rank, 0 for none.
+     * @return The fraction of the true k nearest that were found.
+     */
+    public double recall(float[][] queries, int k, int nprobe, int rerank) {
+        Hits[] truth = new ExactSearch(store, metric).search(queries, k);
+        long found = 0;
+        long total = 0;
+        for (int i = 0; i < queries.length; i++) {
+            Hits got = search(queries[i], k, nprobe, rerank);
+            int[] t = truth[i].ids.clone();
+            Arrays.sort(t);
+            for (int id : got.ids) {
+                if (Arrays.binarySearch(t, id) >= 0) {
+                    found++;
+                }
+            }
+            total += t.length;
+        }
+        return 0 == total ? 1 : (double) found / total;
+    }
+
+    @Override
+    public String toString() {
+        return "IvfPqIndex{" + "metric=" + metric + ", nlist=" + nlist + ", m=" + m + ", ksub=" + ksub + ", size=" + size() + ", bytesPerVector=" + bytesPerVector() + '}';
+    }
+}
@@ -0,0 +1,534 @@
+package nl.infcomtec.vectors;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * k-means on float vectors, with the heavy steps split over a fork-join pool.
+ *
+ * Two ways to train. Lloyd's algorithm on points stored back to back in one
+ * array, stopping when almost no point changes cluster or the centroids stop
+ * moving. Mini-batch k-means straight from a VectorStore, which only reads
+ * random batches and so handles stores far larger than an array can hold.
+ * Both seed the centroids with k-means++ on a sample of the points.
+ *
+ * Distances are squared Euclidean. Finding the nearest centroid uses
+ * |c|^2 - 2 x.c, the |x|^2 term does not change the winner. An empty cluster
+ * is re-seeded with the point that is furthest from its centroid, any further
+ * empty ones with random points.
+ *
+ * @author Walter Stroebel
+ */
+public class KMeans {
+
+    /**
+     * Points per leaf task.
+     */
+    public static final int LEAF = 2048;
+    public final int k;
+    public final int dim;
+    /**
+     * Maximum number of Lloyd iterations.
+     */
+    public int maxIterations = 25;
+    /**
+     * Lloyd stops when at most this fraction of the points changed cluster.
+     */
+    public double tolerance = 1e-3;
+    /**
+     * Points per mini-batch.
+     */
+    public int batchSize = 1024;
+    /**
+     * Maximum number of mini-batches.
+     */
+    public int maxBatches = 300;
+    /**
+     * Mini-batch training stops after this many batches without a better
+     * smoothed inertia.
+     */
+    public int patience = 10;
+    /**
+     * k-means++ seeding looks at this many points per cluster at most; false
+     * seeds with random points.
+     */
+    public int seedSample = 32;
+    public boolean plusPlus = true;
+    /**
+     * Seed for the initial centroids, for repeatable results.
+     */
+    public long seed = 42;
+    /**
+     * The centroids, k * dim, back to back. Null until trained.
+     */
+    public float[] centroids;
+    /**
+     * Mean squared distance of a point to its centroid in the last
+     * assignment (Lloyd) or the smoothed batch value (mini-batch).
+     */
+    public double inertia;
+    /**
+     * Iterations or batches the last training took.
+     */
+    public int iterations;
+    private float[] cnorms;
+    private final ForkJoinPool pool;
+
+    /**
+     * New k-means.
+     *
+     * @param k Number of clusters.
+     * @param dim Dimension of the points.
+     * @param pool The pool for the parallel steps, null for the common pool.
+     */
+    public KMeans(int k, int dim, ForkJoinPool pool) {
+        if (k < 1 || dim < 1) {
+            throw new IllegalArgumentException("Need k and dim of at least 1: " + k + ", " + dim);
+        }
+        this.k = k;
+        this.dim = dim;
+        this.pool = null == pool ? ForkJoinPool.commonPool() : pool;
+    }
+
+    /**
+     * Cluster points with Lloyd's algorithm.
+     *
+     * @param data The points, n * dim, back to back.
+     * @param n Number of points, at least k.
+     * @return The centroids.
+     */
+    public float[] train(float[] data, int n) {
+        if (n < k) {
+            throw new IllegalArgumentException("Need at least " + k + " points, got " + n);
+        }
+        Random rnd = new Random(seed);
+        initialize(data, n, rnd);
+        int[] assigned = new int[n];
+        Arrays.fill(assigned, -1);
+        iterations = 0;
+        while (iterations < maxIterations) {
+            iterations++;
+            Assignment a = pool.invoke(new Assign(data, 0, n, assigned));
+            inertia = a.inertia / n;
+            float shift = update(data, n, assigned, a, rnd);
+            if (a.changed <= tolerance * n || 0 == shift) {
+                break;
+            }
+        }
+        return centroids;
+    }
+
+    /**
+     * Cluster the vectors of a store with mini-batch k-means: every batch
+     * moves the centroids of its points towards them with a step of one over
+     * the number of points the centroid has seen.
+     *
+     * @param store The store, holding at least k vectors.
+     * @return The centroids.
+     */
+    public float[] train(VectorStore store) {
+        int n = store.size();
+        if (n < k) {
+            throw new IllegalArgumentException("Need at least " + k + " vectors, got " + n);
+        }
+        store.check(null, dim);
+        Random rnd = new Random(seed);
+        int m = Math.min(n, plusPlus ? Math.max(k, seedSample * k) : k);
+        int[] ids = sample(n, m, rnd);
+        Arrays.sort(ids);
+        float[] sample = new float[m * dim];
+        float[] v = new float[dim];
+        for (int i = 0; i < m; i++) {
+            System.arraycopy(store.copy(ids[i], v), 0, sample, i * dim, dim);
+        }
+        initialize(sample, m, rnd);
+        int b = Math.min(batchSize, n);
+        float[] batch = new float[b * dim];
+        int[] labels = new int[b];
+        long[] seen = new long[k];
+        double smooth = Double.NaN;
+        double best = Double.POSITIVE_INFINITY;
+        int stale = 0;
+        iterations = 0;
+        while (iterations < maxBatches && stale < patience) {
+            iterations++;
+            for (int i = 0; i < b; i++) {
+                System.arraycopy(store.copy(rnd.nextInt(n), v), 0, batch, i * dim, dim);
+            }
+            Arrays.fill(labels, -1);
+            Assignment a = pool.invoke(new Assign(batch, 0, b, labels));
+            for (int i = 0; i < b; i++) {
+                int c = labels[i];
+                float eta = 1f / ++seen[c];
+                int co = c * dim;
+                int po = i * dim;
+                for (int d = 0; d < dim; d++) {
+                    centroids[co + d] += eta * (batch[po + d] - centroids[co + d]);
+                }
+            }
+            norms();
+            double bi = a.inertia / b;
+            smooth = Double.isNaN(smooth) ? bi : 0.9 * smooth + 0.1 * bi;
+            if (smooth < best * (1 - tolerance)) {
+                best = smooth;
+                stale = 0;
+            } else {
+                stale++;
+            }
+        }
+        inertia = smooth;
+        return centroids;
+    }
+
+    /**
+     * Initial centroids, k-means++ or random points.
+     */
+    private void initialize(float[] data, int n, Random rnd) {
+        centroids = new float[k * dim];
+        if (!plusPlus) {
+            int[] pick = sample(n, k, rnd);
+            for (int c = 0; c < k; c++) {
+                System.arraycopy(data, pick[c] * dim, centroids, c * dim, dim);
+            }
+            norms();
+            return;
+        }
+        int m = Math.min(n, Math.max(k, seedSample * k));
+        float[] pts = data;
+        if (m < n) {
+            int[] pick = sample(n, m, rnd);
+            pts = new float[m * dim];
+            for (int i = 0; i < m; i++) {
+                System.arraycopy(data, pick[i] * dim, pts, i * dim, dim);
+            }
+        }
+        float[] dist = new float[m];
+        Arrays.fill(dist, Float.POSITIVE_INFINITY);
+        int pick = rnd.nextInt(m);
+        for (int c = 0; c < k; c++) {
+            System.arraycopy(pts, pick * dim, centroids, c * dim, dim);
+            if (c == k - 1) {
+                break;
+            }
+            double sum = pool.invoke(new Nearer(pts, dist, c * dim, 0, m));
+            // next centroid with probability proportional to D^2
+            double r = rnd.nextDouble() * sum;
+            pick = -1;
+            for (int i = 0; i < m; i++) {
+                r -= dist[i];
+                if (r <= 0 && dist[i] > 0) {
+                    pick = i;
+                    break;
+                }
+            }
+            if (pick < 0) {
+                // all points coincide with a centroid, or rounding ran out
+                pick = rnd.nextInt(m);
+            }
+        }
+        norms();
+    }
+
+    /**
+     * Squared norm of every centroid.
+     */
+    private void norms() {
+        if (null == cnorms) {
+            cnorms = new float[k];
+        }
+        for (int c = 0; c < k; c++) {
+            cnorms[c] = Similarity.dot(centroids, c * dim, centroids, c * dim, dim);
+        }
+    }
+
+    /**
+     * k distinct random ints below n.
+     */
+    static int[] sample(int n, int k, Random rnd) {
+        int[] all = new int[n];
+        for (int i = 0; i < n; i++) {
+            all[i] = i;
+        }
+        for (int i = 0; i < k; i++) {
+            int j = i + rnd.nextInt(n - i);
+            int t = all[i];
+            all[i] = all[j];
+            all[j] = t;
+        }
+        return Arrays.copyOf(all, k);
+    }
+
+    /**
+     * New centroids as the mean of their points, empty ones get the worst
+     * fitting point.
+     *
+     * @return How far the centroids moved, squared and summed.
+     */
+    private float update(float[] data, int n, int[] assigned, Assignment a, Random rnd) {
+        int leaf = Math.max(LEAF, n / (4 * pool.getParallelism()));
+        Sums s = pool.invoke(new Sum(data, assigned, 0, n, leaf));
+        int reseed = a.worst;
+        float shift = 0;
+        float[] old = centroids.clone();
+        for (int c = 0; c < k; c++) {
+            int co = c * dim;
+            if (0 == s.counts[c]) {
+                System.arraycopy(data, reseed * dim, centroids, co, dim);
+                reseed = rnd.nextInt(n);
+            } else {
+                for (int d = 0; d < dim; d++) {
+                    centroids[co + d] = (float) (s.sums[co + d] / s.counts[c]);
+                }
+            }
+            shift += Similarity.l2sq(old, co, centroids, co, dim);
+        }
+        norms();
+        return shift;
+    }
+
+    /**
+     * The nearest centroid of a point.
+     *
+     * @param v Array holding the point.
+     * @param off Where it starts.
+     * @return The centroid index.
+     */
+    public int nearest(float[] v, int off) {
+        if (null == cnorms) {
+            norms();
+        }
+        int best = 0;
+        float bestD = Float.POSITIVE_INFINITY;
+        for (int c = 0; c < k; c++) {
+            float d = cnorms[c] - 2 * Similarity.dot(v, off, centroids, c * dim, dim);
+            if (d < bestD) {
+                bestD = d;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Nearest centroid for many points, in parallel.
+     *
+     * @param data The points, n * dim, back to back.
+     * @param n Number of points.
+     * @return The centroid index per point.
+     */
+    public int[] assign(float[] data, int n) {
+        int[] ret = new int[n];
+        Arrays.fill(ret, -1);
+        pool.invoke(new Assign(data, 0, n, ret));
+        return ret;
+    }
+
+    /**
+     * Nearest centroid for every vector in a store, in parallel.
+     *
+     * @param store The store.
+     * @return The centroid index per id.
+     */
+    public int[] assign(VectorStore store) {
+        store.check(null, dim);
+        int[] ret = new int[store.size()];
+        pool.invoke(new AssignStore(store, 0, ret.length, ret));
+        return ret;
+    }
+
+    /**
+     * What an assignment pass found.
+     */
+    private static class Assignment {
+
+        int changed;
+        int worst;
+        float worstD = -1;
+        double inertia;
+
+        Assignment add(Assignment o) {
+            changed += o.changed;
+            inertia += o.inertia;
+            if (o.worstD > worstD) {
+                worstD = o.worstD;
+                worst = o.worst;
+            }
+            return this;
+        }
+    }
+
+    private class Assign extends RecursiveTask<Assignment> {
+
+        final float[] data;
+        final int from, to;
+        final int[] assigned;
+
+        Assign(float[] data, int from, int to, int[] assigned) {
+            this.data = data;
+            this.from = from;
+            this.to = to;
+            this.assigned = assigned;
+        }
+
+        @Override
+        protected Assignment compute() {
+            if (to - from <= LEAF) {
+                Assignment a = new Assignment();
+                for (int p = from; p < to; p++) {
+                    int po = p * dim;
+                    int best = nearest(data, po);
+                    // the real distance, for inertia and the worst point
+                    float bestD = Similarity.l2sq(data, po, centroids, best * dim, dim);
+                    if (assigned[p] != best) {
+                        assigned[p] = best;
+                        a.changed++;
+                    }
+                    a.inertia += bestD;
+                    if (bestD > a.worstD) {
+                        a.worstD = bestD;
+                        a.worst = p;
+                    }
+                }
+                return a;
+            }
+            int mid = (from + to) >>> 1;
+            Assign right = new Assign(data, mid, to, assigned);
+            right.fork();
+            Assignment left = new Assign(data, from, mid, assigned).compute();
+            return left.add(right.join());
+        }
+    }
+
+    private class AssignStore extends RecursiveTask<Void> {
+
+        final VectorStore store;
+        final int from, to;
+        final int[] assigned;
+
+        AssignStore(VectorStore store, int from, int to, int[] assigned) {
+            this.store = store;
+            this.from = from;
+            this.to = to;
+            this.assigned = assigned;
+        }
+
+        @Override
+        protected Void compute() {
+            if (to - from <= LEAF) {
+                int tile = Math.max(1, Similarity.TILE_FLOATS / dim);
+                float[] buf = new float[tile * dim];
+                for (int t = from; t < to; t += tile) {
+                    int cnt = Math.min(tile, to - t);
+                    store.read(t, cnt, buf);
+                    for (int i = 0; i < cnt; i++) {
+                        assigned[t + i] = nearest(buf, i * dim);
+                    }
+                }
+                return null;
+            }
+            int mid = (from + to) >>> 1;
+            AssignStore right = new AssignStore(store, mid, to, assigned);
+            right.fork();
+            new AssignStore(store, from, mid, assigned).compute();
+            right.join();
+            return null;
+        }
+    }
+
+    /**
+     * Per-cluster sums and counts.
+     */
+    private class Sums {
+
+        final double[] sums = new double[k * dim];
+        final int[] counts = new int[k];
+
+        Sums add(Sums o) {
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] += o.sums[i];
+            }
+            for (int c = 0; c < k; c++) {
+                counts[c] += o.counts[c];
+            }
+            return this;
+        }
+    }
+
+    private class Sum extends RecursiveTask<Sums> {
+
+        final float[] data;
+        final int[] assigned;
+        final int from, to, leaf;
+
+        Sum(float[] data, int[] assigned, int from, int to, int leaf) {
+            this.data = data;
+            this.assigned = assigned;
+            this.from = from;
+            this.to = to;
+            this.leaf = leaf;
+        }
+
+        @Override
+        protected Sums compute() {
+            if (to - from <= leaf) {
+                Sums s = new Sums();
+                for (int p = from; p < to; p++) {
+                    int c = assigned[p];
+                    s.counts[c]++;
+                    int po = p * dim;
+                    int co = c * dim;
+                    for (int d = 0; d < dim; d++) {
+                        s.sums[co + d] += data[po + d];
+                    }
+                }
+                return s;
+            }
+            int mid = (from + to) >>> 1;
+            Sum right = new Sum(data, assigned, mid, to, leaf);
+            right.fork();
+            Sums left = new Sum(data, assigned, from, mid, leaf).compute();
+            return left.add(right.join());
+        }
+    }
+
+    /**
+     * k-means++ step: lower each point's distance to the new centroid and sum
+     * them.
+     */
+    private class Nearer extends RecursiveTask<Double> {
+
+        final float[] pts;
+        final float[] dist;
+        final int co, from, to;
+
+        Nearer(float[] pts, float[] dist, int co, int from, int to) {
+            this.pts = pts;
+            this.dist = dist;
+            this.co = co;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Double compute() {
+            if (to - from <= LEAF) {
+                double sum = 0;
+                for (int i = from; i < to; i++) {
+                    float d = Similarity.l2sq(pts, i * dim, centroids, co, dim);
+                    if (d < dist[i]) {
+                        dist[i] = d;
+                    }
+                    sum += dist[i];
+                }
+                return sum;
+            }
+            int mid = (from + to) >>> 1;
+            Nearer right = new Nearer(pts, dist, co, mid, to);
+            right.fork();
+            double left = new Nearer(pts, dist, co, from, mid).compute();
+            return left + right.join();
+        }
+    }
+}
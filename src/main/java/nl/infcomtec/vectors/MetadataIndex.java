@@ -0,0 +1,220 @@
+package nl.infcomtec.vectors;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Bitmaps and columns over the metadata of a VectorStore, to turn a filter
+ * into the set of ids it allows before searching.
+ *
+ * Sources and keywords map to a bitmap of ids, created and lastMod are kept in
+ * long columns that are scanned for ranges. Keywords are matched ignoring
+ * case. Vectors added to the store are picked up on the next call.
+ *
+ * @author Walter Stroebel
+ */
+public class MetadataIndex {
+
+    public final VectorStore store;
+    private int indexed;
+    private long[] created = new long[1024];
+    private long[] lastMod = new long[1024];
+    private final HashMap<String, BitSet> sources = new HashMap<>();
+    private final HashMap<String, BitSet> keywords = new HashMap<>();
+
+    /**
+     * What to allow. Unset parts do not restrict; sets allow any of their
+     * members, ranges include from and exclude to.
+     */
+    public static class Filter {
+
+        public Set<String> sources;
+        public Set<String> keywords;
+        public long createdFrom = Long.MIN_VALUE;
+        public long createdTo = Long.MAX_VALUE;
+        public long lastModFrom = Long.MIN_VALUE;
+        public long lastModTo = Long.MAX_VALUE;
+
+        /**
+         * @param s Allowed sources, added to those already allowed.
+         * @return this.
+         */
+        public Filter source(String... s) {
+            if (null == sources) {
+                sources = new TreeSet<>();
+            }
+            sources.addAll(Arrays.asList(s));
+            return this;
+        }
+
+        /**
+         * @param k Allowed keywords, added to those already allowed.
+         * @return this.
+         */
+        public Filter keyword(String... k) {
+            if (null == keywords) {
+                keywords = new TreeSet<>();
+            }
+            keywords.addAll(Arrays.asList(k));
+            return this;
+        }
+
+        /**
+         * @param from First allowed creation time.
+         * @param to First creation time no longer allowed.
+         * @return this.
+         */
+        public Filter created(long from, long to) {
+            createdFrom = from;
+            createdTo = to;
+            return this;
+        }
+
+        /**
+         * @param from First allowed modification time.
+         * @param to First modification time no longer allowed.
+         * @return this.
+         */
+        public Filter lastMod(long from, long to) {
+            lastModFrom = from;
+            lastModTo = to;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return "Filter{" + "sources=" + sources + ", keywords=" + keywords + ", created=" + createdFrom + ".." + createdTo + ", lastMod=" + lastModFrom + ".." + lastModTo + '}';
+        }
+    }
+
+    /**
+     * Index the metadata of a store.
+     *
+     * @param store The store.
+     */
+    public MetadataIndex(VectorStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Index the vectors added since the last call.
+     */
+    public synchronized void sync() {
+        int n = store.size();
+        if (n > created.length) {
+            created = Arrays.copyOf(created, Math.max(n, created.length * 2));
+            lastMod = Arrays.copyOf(lastMod, created.length);
+        }
+        for (int id = indexed; id < n; id++) {
+            VectorStore.Metadata m = store.getMetadata(id);
+            if (null == m) {
+                continue;
+            }
+            created[id] = m.created;
+            lastMod[id] = m.lastMod;
+            if (null != m.source) {
+                bits(sources, m.source).set(id);
+            }
+            if (null != m.keywords) {
+                for (String k : m.keywords) {
+                    if (null != k) {
+                        bits(keywords, k.toLowerCase(Locale.ROOT)).set(id);
+                    }
+                }
+            }
+        }
+        indexed = n;
+    }
+
+    private static BitSet bits(HashMap<String, BitSet> map, String key) {
+        BitSet b = map.get(key);
+        if (null == b) {
+            map.put(key, b = new BitSet());
+        }
+        return b;
+    }
+
+    /**
+     * @param source A source.
+     * @return A copy of the ids with that source.
+     */
+    public synchronized BitSet source(String source) {
+        sync();
+        BitSet b = sources.get(source);
+        return null == b ? new BitSet() : (BitSet) b.clone();
+    }
+
+    /**
+     * @param keyword A keyword.
+     * @return A copy of the ids with that keyword.
+     */
+    public synchronized BitSet keyword(String keyword) {
+        sync();
+        BitSet b = keywords.get(keyword.toLowerCase(Locale.ROOT));
+        return null == b ? new BitSet() : (BitSet) b.clone();
+    }
+
+    /**
+     * @return All distinct sources.
+     */
+    public synchronized Set<String> sources() {
+        sync();
+        return new TreeSet<>(sources.keySet());
+    }
+
+    /**
+     * The ids a filter allows.
+     *
+     * @param f The filter, null allows everything.
+     * @return A new bitmap.
+     */
+    public synchronized BitSet select(Filter f) {
+        sync();
+        BitSet ret = new BitSet(indexed);
+        ret.set(0, indexed);
+        if (null == f) {
+            return ret;
+        }
+        if (null != f.sources) {
+            BitSet any = new BitSet();
+            for (String s : f.sources) {
+                BitSet b = sources.get(s);
+                if (null != b) {
+                    any.or(b);
+                }
+            }
+            ret.and(any);
+        }
+        if (null != f.keywords) {
+            BitSet any = new BitSet();
+            for (String k : f.keywords) {
+                BitSet b = keywords.get(k.toLowerCase(Locale.ROOT));
+                if (null != b) {
+                    any.or(b);
+                }
+            }
+            ret.and(any);
+        }
+        boolean byCreated = f.createdFrom != Long.MIN_VALUE || f.createdTo != Long.MAX_VALUE;
+        boolean byLastMod = f.lastModFrom != Long.MIN_VALUE || f.lastModTo != Long.MAX_VALUE;
+        if (byCreated || byLastMod) {
+            for (int id = ret.nextSetBit(0); id >= 0; id = ret.nextSetBit(id + 1)) {
+                if (byCreated && (created[id] < f.createdFrom || created[id] >= f.createdTo)) {
+                    ret.clear(id);
+                } else if (byLastMod && (lastMod[id] < f.lastModFrom || lastMod[id] >= f.lastModTo)) {
+                    ret.clear(id);
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MetadataIndex{" + "indexed=" + indexed + ", sources=" + sources.size() + ", keywords=" + keywords.size() + '}';
+    }
+}
@@ -0,0 +1,198 @@
+package nl.infcomtec.vectors;
+
+import java.util.Arrays;
+
+/**
+ * Binary heap of (distance, id) pairs in two primitive arrays, no boxing and
+ * no garbage once it has grown to its working size.
+ *
+ * A min-heap has the smallest distance on top, a max-heap the largest. A
+ * bounded max-heap is the usual way to keep the k nearest: push while not
+ * full, after that replace the top when something closer comes along.
+ *
+ * @author Walter Stroebel
+ */
+public class NodeHeap {
+
+    private final boolean max;
+    private float[] keys;
+    private int[] ids;
+    private int size;
+
+    /**
+     * New heap.
+     *
+     * @param max true for a max-heap, false for a min-heap.
+     * @param capacity Initial capacity, it grows as needed.
+     */
+    public NodeHeap(boolean max, int capacity) {
+        this.max = max;
+        this.keys = new float[Math.max(1, capacity)];
+        this.ids = new int[keys.length];
+    }
+
+    /**
+     * @return Number of entries.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if empty.
+     */
+    public boolean isEmpty() {
+        return 0 == size;
+    }
+
+    /**
+     * Remove everything, keeps the arrays.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return The distance on top.
+     */
+    public float topKey() {
+        return keys[0];
+    }
+
+    /**
+     * @return The id on top.
+     */
+    public int topId() {
+        return ids[0];
+    }
+
+    /**
+     * The distance of an entry in heap order, for walking all entries.
+     *
+     * @param i Index, 0 to size - 1.
+     * @return The distance.
+     */
+    public float keyAt(int i) {
+        return keys[i];
+    }
+
+    /**
+     * The id of an entry in heap order, for walking all entries.
+     *
+     * @param i Index, 0 to size - 1.
+     * @return The id.
+     */
+    public int idAt(int i) {
+        return ids[i];
+    }
+
+    private boolean above(float a, float b) {
+        return max ? a > b : a < b;
+    }
+
+    /**
+     * Add an entry.
+     *
+     * @param key The distance.
+     * @param id The id.
+     */
+    public void push(float key, int id) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        int i = size++;
+        while (i > 0) {
+            int p = (i - 1) >>> 1;
+            if (!above(key, keys[p])) {
+                break;
+            }
+            keys[i] = keys[p];
+            ids[i] = ids[p];
+            i = p;
+        }
+        keys[i] = key;
+        ids[i] = id;
+    }
+
+    /**
+     * Keep at most k entries: push if not full, else replace the top if this
+     * one is nearer. Only makes sense on a max-heap.
+     *
+     * @param key The distance.
+     * @param id The id.
+     * @param k The bound.
+     * @return true if the entry was kept.
+     */
+    public boolean offer(float key, int id, int k) {
+        if (size < k) {
+            push(key, id);
+            return true;
+        }
+        if (above(keys[0], key)) {
+            replaceTop(key, id);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remove the top entry.
+     */
+    public void pop() {
+        size--;
+        if (size > 0) {
+            siftDown(keys[size], ids[size]);
+        }
+    }
+
+    /**
+     * Replace the top entry and restore heap order.
+     *
+     * @param key The distance.
+     * @param id The id.
+     */
+    public void replaceTop(float key, int id) {
+        siftDown(key, id);
+    }
+
+    private void siftDown(float key, int id) {
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int c = 2 * i + 1;
+            int r = c + 1;
+            if (r < size && above(keys[r], keys[c])) {
+                c = r;
+            }
+            if (!above(keys[c], key)) {
+                break;
+            }
+            keys[i] = keys[c];
+            ids[i] = ids[c];
+            i = c;
+        }
+        keys[i] = key;
+        ids[i] = id;
+    }
+
+    /**
+     * Empty the heap into arrays, nearest first.
+     *
+     * @param outIds Receives the ids, at least size long.
+     * @param outKeys Receives the distances, at least size long, may be null.
+     * @return The number of entries.
+     */
+    public int drainNearestFirst(int[] outIds, float[] outKeys) {
+        int n = size;
+        for (int i = 0; i < n; i++) {
+            int at = max ? n - 1 - i : i;
+            outIds[at] = ids[0];
+            if (null != outKeys) {
+                outKeys[at] = keys[0];
+            }
+            pop();
+        }
+        return n;
+    }
+}
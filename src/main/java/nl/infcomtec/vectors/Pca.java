@@ -0,0 +1,389 @@
+package nl.infcomtec.vectors;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Principal component analysis fitted with randomized subspace iteration.
+ *
+ * A random in x (out + OVERSAMPLE) basis is multiplied by the covariance of a
+ * sample a few times, orthonormalizing in between, which turns it into the
+ * dominant subspace; the small covariance in that subspace is then solved
+ * exactly with Jacobi rotations. Each multiplication is one parallel pass over
+ * the sample, the covariance matrix itself is never formed.
+ *
+ * Projections are centered on the sample mean, so distances carry over but
+ * dot products do not; candidates for any metric are searched with L2.
+ *
+ * @author Walter Stroebel
+ */
+public class Pca extends Projection {
+
+    /**
+     * Extra basis vectors while fitting, for accuracy in the last components.
+     */
+    public static final int OVERSAMPLE = 10;
+    /**
+     * Sample rows per leaf task.
+     */
+    public static final int LEAF = 512;
+    public final float[] mean;
+    /**
+     * The components, out rows of in, strongest first.
+     */
+    public final float[] components;
+    /**
+     * Variance along each component.
+     */
+    public final double[] variance;
+    /**
+     * Variance of the sample over all dimensions.
+     */
+    public double totalVariance;
+    private final float[] offsets;
+
+    private Pca(int in, int out) {
+        super(in, out);
+        mean = new float[in];
+        components = new float[out * in];
+        variance = new double[out];
+        offsets = new float[out];
+    }
+
+    /**
+     * Fit on a random sample of a store.
+     *
+     * @param store The store.
+     * @param out Number of components.
+     * @param sampleSize Vectors to sample, at most the store size is used.
+     * @param iterations Power iterations, 2 to 4 is usually enough.
+     * @param pool Pool for the passes over the sample, null for the common
+     * pool.
+     * @return The fitted PCA.
+     */
+    public static Pca fit(VectorStore store, int out, int sampleSize, int iterations, ForkJoinPool pool) {
+        int n = Math.min(sampleSize, store.size());
+        int in = store.dimension();
+        int[] ids = KMeans.sample(store.size(), n, new Random(7));
+        Arrays.sort(ids);
+        float[] data = new float[n * in];
+        float[] v = new float[in];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(store.copy(ids[i], v), 0, data, i * in, in);
+        }
+        return fit(data, n, in, out, iterations, pool);
+    }
+
+    /**
+     * Fit on points stored back to back.
+     *
+     * @param data The points, n * in.
+     * @param n Number of points, more than out.
+     * @param in Their dimension.
+     * @param out Number of components.
+     * @param iterations Power iterations.
+     * @param pool Pool for the passes over the points, null for the common
+     * pool.
+     * @return The fitted PCA.
+     */
+    public static Pca fit(float[] data, int n, int in, int out, int iterations, ForkJoinPool pool) {
+        if (n <= out) {
+            throw new IllegalArgumentException("Need more than " + out + " points, got " + n);
+        }
+        if (null == pool) {
+            pool = ForkJoinPool.commonPool();
+        }
+        Pca ret = new Pca(in, out);
+        double[] sum = new double[in];
+        for (int p = 0; p < n; p++) {
+            for (int d = 0; d < in; d++) {
+                sum[d] += data[p * in + d];
+            }
+        }
+        for (int d = 0; d < in; d++) {
+            ret.mean[d] = (float) (sum[d] / n);
+        }
+        int l = Math.min(in, out + OVERSAMPLE);
+        // basis in column-major: q[c * in + d]
+        double[] q = new double[l * in];
+        Random rnd = new Random(11);
+        for (int i = 0; i < q.length; i++) {
+            q[i] = rnd.nextGaussian();
+        }
+        orthonormalize(q, l, in);
+        for (int it = 0; it < iterations; it++) {
+            q = pool.invoke(new Cov(ret.mean, data, in, q, l, 0, n));
+            orthonormalize(q, l, in);
+        }
+        // covariance inside the subspace: (XQ)^T (XQ)
+        double[] small = pool.invoke(new Small(ret.mean, data, in, q, l, 0, n));
+        double[] vecs = new double[l * l];
+        double[] vals = jacobi(small, l, vecs);
+        Integer[] order = new Integer[l];
+        for (int i = 0; i < l; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(vals[b], vals[a]);
+            }
+        });
+        for (int o = 0; o < out; o++) {
+            int e = order[o];
+            ret.variance[o] = vals[e] / (n - 1);
+            for (int d = 0; d < in; d++) {
+                double s = 0;
+                for (int c = 0; c < l; c++) {
+                    s += q[c * in + d] * vecs[c * l + e];
+                }
+                ret.components[o * in + d] = (float) s;
+            }
+            ret.offsets[o] = Similarity.dot(ret.mean, 0, ret.components, o * in, in);
+        }
+        double total = 0;
+        for (int p = 0; p < n; p++) {
+            total += Similarity.l2sq(data, p * in, ret.mean, 0, in);
+        }
+        ret.totalVariance = total / (n - 1);
+        return ret;
+    }
+
+    /**
+     * Modified Gram-Schmidt on l columns of length in.
+     */
+    private static void orthonormalize(double[] q, int l, int in) {
+        for (int c = 0; c < l; c++) {
+            int co = c * in;
+            for (int p = 0; p < c; p++) {
+                int po = p * in;
+                double dot = 0;
+                for (int d = 0; d < in; d++) {
+                    dot += q[co + d] * q[po + d];
+                }
+                for (int d = 0; d < in; d++) {
+                    q[co + d] -= dot * q[po + d];
+                }
+            }
+            double norm = 0;
+            for (int d = 0; d < in; d++) {
+                norm += q[co + d] * q[co + d];
+            }
+            norm = Math.sqrt(norm);
+            if (norm < 1e-12) {
+                // degenerate, data has fewer dimensions than asked
+                Arrays.fill(q, co, co + in, 0);
+                continue;
+            }
+            for (int d = 0; d < in; d++) {
+                q[co + d] /= norm;
+            }
+        }
+    }
+
+    /**
+     * Eigenvalues and eigenvectors of a symmetric matrix by cyclic Jacobi
+     * rotations.
+     *
+     * @param a The matrix, row-major, destroyed.
+     * @param n Its size.
+     * @param v Receives the eigenvectors as columns, row-major.
+     * @return The eigenvalues.
+     */
+    private static double[] jacobi(double[] a, int n, double[] v) {
+        Arrays.fill(v, 0);
+        for (int i = 0; i < n; i++) {
+            v[i * n + i] = 1;
+        }
+        for (int sweep = 0; sweep < 100; sweep++) {
+            double off = 0;
+            double diag = 0;
+            for (int i = 0; i < n; i++) {
+                diag += a[i * n + i] * a[i * n + i];
+                for (int j = i + 1; j < n; j++) {
+                    off += a[i * n + j] * a[i * n + j];
+                }
+            }
+            if (off <= 1e-24 * diag) {
+                break;
+            }
+            for (int p = 0; p < n; p++) {
+                for (int r = p + 1; r < n; r++) {
+                    double apr = a[p * n + r];
+                    if (Math.abs(apr) < 1e-300) {
+                        continue;
+                    }
+                    double theta = (a[r * n + r] - a[p * n + p]) / (2 * apr);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (0 == theta) {
+                        t = 1;
+                    }
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+                    for (int k = 0; k < n; k++) {
+                        double akp = a[k * n + p];
+                        double akr = a[k * n + r];
+                        a[k * n + p] = c * akp - s * akr;
+                        a[k * n + r] = s * akp + c * akr;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        double apk = a[p * n + k];
+                        double ark = a[r * n + k];
+                        a[p * n + k] = c * apk - s * ark;
+                        a[r * n + k] = s * apk + c * ark;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        double vkp = v[k * n + p];
+                        double vkr = v[k * n + r];
+                        v[k * n + p] = c * vkp - s * vkr;
+                        v[k * n + r] = s * vkp + c * vkr;
+                    }
+                }
+            }
+        }
+        double[] ret = new double[n];
+        for (int i = 0; i < n; i++) {
+            ret[i] = a[i * n + i];
+        }
+        return ret;
+    }
+
+    /**
+     * One pass X^T X Q over a range of centered rows.
+     */
+    private static class Cov extends RecursiveTask<double[]> {
+
+        final float[] mean;
+        final float[] data;
+        final int in, l, from, to;
+        final double[] q;
+
+        Cov(float[] mean, float[] data, int in, double[] q, int l, int from, int to) {
+            this.mean = mean;
+            this.data = data;
+            this.in = in;
+            this.q = q;
+            this.l = l;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (to - from <= LEAF) {
+                double[] y = new double[l * in];
+                double[] x = new double[in];
+                for (int p = from; p < to; p++) {
+                    for (int d = 0; d < in; d++) {
+                        x[d] = data[p * in + d] - mean[d];
+                    }
+                    for (int c = 0; c < l; c++) {
+                        int co = c * in;
+                        double z = 0;
+                        for (int d = 0; d < in; d++) {
+                            z += x[d] * q[co + d];
+                        }
+                        for (int d = 0; d < in; d++) {
+                            y[co + d] += z * x[d];
+                        }
+                    }
+                }
+                return y;
+            }
+            int mid = (from + to) >>> 1;
+            Cov right = new Cov(mean, data, in, q, l, mid, to);
+            right.fork();
+            double[] left = new Cov(mean, data, in, q, l, from, mid).compute();
+            double[] r = right.join();
+            for (int i = 0; i < left.length; i++) {
+                left[i] += r[i];
+            }
+            return left;
+        }
+    }
+
+    /**
+     * (XQ)^T (XQ) over a range of centered rows.
+     */
+    private static class Small extends RecursiveTask<double[]> {
+
+        final float[] mean;
+        final float[] data;
+        final int in, l, from, to;
+        final double[] q;
+
+        Small(float[] mean, float[] data, int in, double[] q, int l, int from, int to) {
+            this.mean = mean;
+            this.data = data;
+            this.in = in;
+            this.q = q;
+            this.l = l;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (to - from <= LEAF) {
+                double[] b = new double[l * l];
+                double[] z = new double[l];
+                for (int p = from; p < to; p++) {
+                    for (int c = 0; c < l; c++) {
+                        int co = c * in;
+                        double s = 0;
+                        for (int d = 0; d < in; d++) {
+                            s += (data[p * in + d] - mean[d]) * q[co + d];
+                        }
+                        z[c] = s;
+                    }
+                    for (int i = 0; i < l; i++) {
+                        for (int j = 0; j < l; j++) {
+                            b[i * l + j] += z[i] * z[j];
+                        }
+                    }
+                }
+                return b;
+            }
+            int mid = (from + to) >>> 1;
+            Small right = new Small(mean, data, in, q, l, mid, to);
+            right.fork();
+            double[] left = new Small(mean, data, in, q, l, from, mid).compute();
+            double[] r = right.join();
+            for (int i = 0; i < left.length; i++) {
+                left[i] += r[i];
+            }
+            return left;
+        }
+    }
+
+    @Override
+    public void project(float[] src, int so, float[] dst, int doff) {
+        for (int o = 0; o < out; o++) {
+            dst[doff + o] = Similarity.dot(src, so, components, o * in, in) - offsets[o];
+        }
+    }
+
+    @Override
+    public Similarity.Metric reducedMetric(Similarity.Metric metric) {
+        return Similarity.Metric.L2;
+    }
+
+    /**
+     * @return Fraction of the sample variance the components explain.
+     */
+    public double explained() {
+        double s = 0;
+        for (double d : variance) {
+            s += d;
+        }
+        return 0 == totalVariance ? 0 : s / totalVariance;
+    }
+
+    @Override
+    public String toString() {
+        return "Pca{" + "in=" + in + ", out=" + out + ", explained=" + explained() + '}';
+    }
+}
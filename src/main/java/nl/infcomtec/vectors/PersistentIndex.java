@@ -0,0 +1,1023 @@
+package nl.infcomtec.vectors;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A vector collection that lives on disk and opens without reading it.
+ *
+ * The directory holds a generation directory named in CURRENT. A generation
+ * has the VectorStore segment files with the packed vectors, a snapshot file
+ * (index.vix) and a write-ahead log (index.wal). The snapshot has a fixed
+ * header followed by the per-vector statistics, the keys, a tombstone bitmap,
+ * a metadata offset table, the metadata and optionally an HNSW graph. Opening
+ * maps the segments and the snapshot sections, nothing is parsed or copied
+ * except the log, which only holds what happened since the last snapshot.
+ *
+ * Every vector has a key that never changes, search results and the public
+ * methods use keys. Adds and deletes go to the log first; a delete only sets a
+ * tombstone. A checkpoint writes a new snapshot and shortens the log, a
+ * compaction copies the live vectors to a new generation. Both run without
+ * blocking readers for more than the final swap, and can be left to a
+ * background thread.
+ *
+ * @author Walter Stroebel
+ */
+public class PersistentIndex {
+
+    private static final int MAGIC = 0x56495846; // "VIXF"
+    private static final int VERSION = 1;
+    private static final int HEADER = 256;
+    private static final byte WAL_ADD = 1;
+    private static final byte WAL_DELETE = 2;
+    public static final String CURRENT = "CURRENT";
+    public static final String VIX = "index.vix";
+    public static final String WAL = "index.wal";
+    /**
+     * Log size that triggers a background checkpoint.
+     */
+    public static long checkpointBytes = 64L << 20;
+    /**
+     * Fraction of deleted vectors that triggers a background compaction.
+     */
+    public static double compactFraction = 0.2;
+    public final File dir;
+    public final String model;
+    public final int dim;
+    public final Similarity.Metric metric;
+    /**
+     * Force the log to disk on every change, slower but survives power loss.
+     */
+    public volatile boolean durable;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object rewriteLock = new Object();
+    private Generation gen;
+    private ScheduledExecutorService background;
+
+    /**
+     * Open an index, creating it if the directory has none.
+     *
+     * @param dir The directory.
+     * @param model The embedding model.
+     * @param dim The vector dimension.
+     * @param metric Metric for searching.
+     * @throws IOException If the index could not be read or does not match.
+     */
+    public PersistentIndex(File dir, String model, int dim, Similarity.Metric metric) throws IOException {
+        this.dir = dir;
+        this.model = model;
+        this.dim = dim;
+        this.metric = metric;
+        dir.mkdirs();
+        File cur = new File(dir, CURRENT);
+        if (!cur.exists()) {
+            File g = new File(dir, "gen-00001");
+            g.mkdirs();
+            writeVix(new File(g, VIX), new VectorStore(model, dim), 0, new int[0], new BitSet(), 0, null);
+            writeCurrent(g);
+        }
+        String name = new String(Files.readAllBytes(cur.toPath()), StandardCharsets.UTF_8).trim();
+        gen = new Generation(new File(dir, name));
+    }
+
+    /**
+     * Open an existing index, taking model and dimension from its snapshot.
+     *
+     * @param dir The directory.
+     * @param metric Metric for searching.
+     * @return The index, null if the directory has none.
+     * @throws IOException If the index could not be read.
+     */
+    public static PersistentIndex open(File dir, Similarity.Metric metric) throws IOException {
+        File cur = new File(dir, CURRENT);
+        if (!cur.exists()) {
+            return null;
+        }
+        String name = new String(Files.readAllBytes(cur.toPath()), StandardCharsets.UTF_8).trim();
+        ByteBuffer h = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel ch = FileChannel.open(new File(new File(dir, name), VIX).toPath(), StandardOpenOption.READ)) {
+            while (h.hasRemaining() && ch.read(h) >= 0) {
+            }
+        }
+        if (h.getInt(0) != MAGIC || h.getInt(4) != VERSION) {
+            throw new IOException("Not an index snapshot: " + dir);
+        }
+        byte[] mb = new byte[h.getInt(96)];
+        h.position(100);
+        h.get(mb);
+        return new PersistentIndex(dir, new String(mb, StandardCharsets.UTF_8), h.getInt(8), metric);
+    }
+
+    /**
+     * One snapshot plus log, mapped.
+     */
+    private class Generation {
+
+        final File dir;
+        final VectorStore store;
+        final int baseCount;
+        final IntBuffer baseKeys;
+        final LongBuffer baseTomb;
+        final long graphOff, graphLen;
+        int[] keys = new int[64];
+        int keyCount;
+        final BitSet deleted = new BitSet();
+        int deletedCount;
+        int nextKey;
+        HnswIndex graph;
+        ExactSearch exact;
+        MetadataIndex meta;
+        FileChannel wal;
+
+        Generation(File dir) throws IOException {
+            this.dir = dir;
+            try (RandomAccessFile raf = new RandomAccessFile(new File(dir, VIX), "r");
+                    FileChannel ch = raf.getChannel()) {
+                ByteBuffer h = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER).order(ByteOrder.LITTLE_ENDIAN);
+                if (h.getInt(0) != MAGIC || h.getInt(4) != VERSION) {
+                    throw new IOException("Not an index snapshot: " + dir);
+                }
+                int d = h.getInt(8);
+                int count = h.getInt(12);
+                nextKey = h.getInt(16);
+                deletedCount = h.getInt(24);
+                byte[] mb = new byte[h.getInt(96)];
+                h.position(100);
+                h.get(mb);
+                String m = new String(mb, StandardCharsets.UTF_8);
+                if (d != dim || !m.equals(model)) {
+                    throw new IOException("Index is for " + m + "/" + d + ", not " + model + "/" + dim);
+                }
+                baseCount = count;
+                FloatBuffer stats = map(ch, h.getLong(32), count * 12L).asFloatBuffer();
+                baseKeys = map(ch, h.getLong(40), count * 4L).asIntBuffer();
+                baseTomb = map(ch, h.getLong(48), ((count + 63) / 64) * 8L).asLongBuffer();
+                LongBuffer offs = map(ch, h.getLong(56), (count + 1) * 8L).asLongBuffer();
+                ByteBuffer blob = map(ch, h.getLong(64), h.getLong(72)).order(ByteOrder.BIG_ENDIAN);
+                graphOff = h.getLong(80);
+                graphLen = h.getLong(88);
+                store = new VectorStore(model, dim, dir, count, stats, new MetaTable(offs, blob, count));
+            }
+            exact = new ExactSearch(store, metric);
+            File wf = new File(dir, WAL);
+            wal = FileChannel.open(wf.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            replay(this);
+            wal.position(wal.size());
+        }
+
+        int key(int id) {
+            return id < baseCount ? baseKeys.get(id) : keys[id - baseCount];
+        }
+
+        int idOf(int key) {
+            int lo = 0;
+            int hi = baseCount - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int k = baseKeys.get(mid);
+                if (k < key) {
+                    lo = mid + 1;
+                } else if (k > key) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            int i = Arrays.binarySearch(keys, 0, keyCount, key);
+            return i >= 0 ? baseCount + i : -1;
+        }
+
+        boolean isDeleted(int id) {
+            if (deleted.get(id)) {
+                return true;
+            }
+            return id < baseCount && 0 != ((baseTomb.get(id >>> 6) >>> (id & 63)) & 1);
+        }
+
+        int add(int key, float[] v, VectorStore.Metadata meta) {
+            int id = store.add(v, meta);
+            if (keyCount == keys.length) {
+                keys = Arrays.copyOf(keys, keyCount * 2);
+            }
+            keys[keyCount++] = key;
+            nextKey = Math.max(nextKey, key + 1);
+            if (null != graph) {
+                graph.add(id);
+            }
+            return id;
+        }
+
+        boolean delete(int key) {
+            int id = idOf(key);
+            if (id < 0 || isDeleted(id)) {
+                return false;
+            }
+            deleted.set(id);
+            deletedCount++;
+            return true;
+        }
+
+        synchronized MetadataIndex metadataIndex() {
+            if (null == meta) {
+                meta = new MetadataIndex(store);
+            }
+            return meta;
+        }
+
+        BitSet tombstones(int count) {
+            BitSet ret = new BitSet(count);
+            for (int id = 0; id < count; id++) {
+                if (isDeleted(id)) {
+                    ret.set(id);
+                }
+            }
+            return ret;
+        }
+    }
+
+    private static ByteBuffer map(FileChannel ch, long off, long len) throws IOException {
+        if (len > Integer.MAX_VALUE) {
+            throw new IOException("Section too large to map: " + len);
+        }
+        return ch.map(FileChannel.MapMode.READ_ONLY, off, len).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Metadata decoded on demand from the mapped snapshot.
+     */
+    private static class MetaTable extends AbstractList<VectorStore.Metadata> {
+
+        final LongBuffer offs;
+        final ByteBuffer blob;
+        final int count;
+
+        MetaTable(LongBuffer offs, ByteBuffer blob, int count) {
+            this.offs = offs;
+            this.blob = blob;
+            this.count = count;
+        }
+
+        @Override
+        public VectorStore.Metadata get(int i) {
+            long a = offs.get(i);
+            long b = offs.get(i + 1);
+            if (a == b) {
+                return null;
+            }
+            ByteBuffer r = blob.duplicate();
+            r.limit((int) b).position((int) a);
+            return readMeta(r);
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (null == s) {
+            out.writeInt(-1);
+        } else {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int n = in.getInt();
+        if (n < 0) {
+            return null;
+        }
+        byte[] b = new byte[n];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Metadata as bytes, nothing for null.
+     */
+    private static byte[] metaBytes(VectorStore.Metadata m) throws IOException {
+        if (null == m) {
+            return new byte[0];
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        writeString(out, m.text);
+        writeString(out, m.source);
+        out.writeLong(m.created);
+        out.writeLong(m.lastMod);
+        if (null == m.keywords) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(m.keywords.length);
+            for (String k : m.keywords) {
+                writeString(out, k);
+            }
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private static VectorStore.Metadata readMeta(ByteBuffer in) {
+        VectorStore.Metadata m = new VectorStore.Metadata();
+        m.text = readString(in);
+        m.source = readString(in);
+        m.created = in.getLong();
+        m.lastMod = in.getLong();
+        int n = in.getInt();
+        if (n >= 0) {
+            m.keywords = new String[n];
+            for (int i = 0; i < n; i++) {
+                m.keywords[i] = readString(in);
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Little endian writes on a big endian DataOutputStream.
+     */
+    private static class LeOut {
+
+        final DataOutputStream out;
+        long pos;
+
+        LeOut(DataOutputStream out, long pos) {
+            this.out = out;
+            this.pos = pos;
+        }
+
+        void putInt(int v) throws IOException {
+            out.writeInt(Integer.reverseBytes(v));
+            pos += 4;
+        }
+
+        void putLong(long v) throws IOException {
+            out.writeLong(Long.reverseBytes(v));
+            pos += 8;
+        }
+
+        void putFloat(float v) throws IOException {
+            putInt(Float.floatToRawIntBits(v));
+        }
+
+        void put(byte[] b) throws IOException {
+            out.write(b);
+            pos += b.length;
+        }
+
+        long align() throws IOException {
+            while (0 != (pos & 7)) {
+                out.write(0);
+                pos++;
+            }
+            return pos;
+        }
+    }
+
+    /**
+     * Write a snapshot of the first count vectors of a store.
+     */
+    private void writeVix(File file, VectorStore store, int count, int[] keys, BitSet tomb, int nextKey, HnswIndex graph) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        long[] sections = new long[8];
+        int tombCount = 0;
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+            LeOut out = new LeOut(dos, 0);
+            out.put(new byte[HEADER]);
+            sections[0] = out.align();
+            for (int id = 0; id < count; id++) {
+                out.putFloat(store.norm(id));
+                out.putFloat(store.mean(id));
+                out.putFloat(store.centeredNorm(id));
+            }
+            sections[1] = out.align();
+            for (int id = 0; id < count; id++) {
+                out.putInt(keys[id]);
+            }
+            sections[2] = out.align();
+            long[] words = tomb.toLongArray();
+            for (int w = 0; w < (count + 63) / 64; w++) {
+                out.putLong(w < words.length ? words[w] : 0);
+            }
+            tombCount = tomb.get(0, Math.max(count, 0)).cardinality();
+            sections[3] = out.align();
+            // offsets first, so metadata is encoded twice; cheaper than
+            // holding all of it in memory
+            long at = 0;
+            for (int id = 0; id < count; id++) {
+                out.putLong(at);
+                at += metaBytes(store.getMetadata(id)).length;
+            }
+            out.putLong(at);
+            if (at > Integer.MAX_VALUE) {
+                throw new IOException("Metadata too large for one snapshot: " + at);
+            }
+            sections[4] = out.align();
+            sections[5] = at;
+            for (int id = 0; id < count; id++) {
+                out.put(metaBytes(store.getMetadata(id)));
+            }
+            sections[6] = out.align();
+            if (null != graph) {
+                dos.flush();
+                long before = fos.getChannel().position();
+                graph.save(dos);
+                dos.flush();
+                out.pos += fos.getChannel().position() - before;
+            }
+            sections[7] = out.pos - sections[6];
+            dos.flush();
+            fos.getFD().sync();
+        }
+        byte[] mb = model.getBytes(StandardCharsets.UTF_8);
+        if (mb.length > HEADER - 100) {
+            throw new IOException("Model name too long: " + model);
+        }
+        ByteBuffer h = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        h.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, store.dimension()).putInt(12, count);
+        h.putInt(16, nextKey).putInt(20, metric.ordinal()).putInt(24, tombCount);
+        h.putLong(32, sections[0]).putLong(40, sections[1]).putLong(48, sections[2]);
+        h.putLong(56, sections[3]).putLong(64, sections[4]).putLong(72, sections[5]);
+        h.putLong(80, sections[6]).putLong(88, sections[7]);
+        h.putInt(96, mb.length);
+        h.position(100);
+        h.put(mb);
+        h.position(0);
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+                FileChannel ch = raf.getChannel()) {
+            ch.write(h, 0);
+            ch.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void writeCurrent(File genDir) throws IOException {
+        File tmp = new File(dir, CURRENT + ".tmp");
+        Files.write(tmp.toPath(), genDir.getName().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), new File(dir, CURRENT).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Append a record to the log: length, CRC32, payload.
+     */
+    private void log(Generation g, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer b = ByteBuffer.allocate(8 + payload.length);
+        b.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        while (b.hasRemaining()) {
+            g.wal.write(b);
+        }
+        if (durable) {
+            g.wal.force(false);
+        }
+    }
+
+    /**
+     * Apply the log of a generation, stops at the first torn or corrupt record
+     * and cuts it off.
+     */
+    private void replay(Generation g) throws IOException {
+        FileChannel ch = g.wal;
+        long size = ch.size();
+        if (0 == size) {
+            return;
+        }
+        ByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        long good = 0;
+        float[] v = new float[dim];
+        while (b.remaining() >= 8) {
+            int len = b.getInt();
+            int crc = b.getInt();
+            if (len < 1 || len > b.remaining()) {
+                break;
+            }
+            byte[] payload = new byte[len];
+            b.get(payload);
+            CRC32 c = new CRC32();
+            c.update(payload);
+            if ((int) c.getValue() != crc) {
+                break;
+            }
+            ByteBuffer p = ByteBuffer.wrap(payload);
+            byte type = p.get();
+            int key = p.getInt();
+            if (WAL_ADD == type) {
+                for (int i = 0; i < dim; i++) {
+                    v[i] = p.getFloat();
+                }
+                VectorStore.Metadata meta = p.hasRemaining() ? readMeta(p) : null;
+                if (g.idOf(key) < 0) {
+                    g.add(key, v, meta);
+                }
+            } else if (WAL_DELETE == type) {
+                g.delete(key);
+            }
+            good = size - b.remaining();
+        }
+        if (good < size) {
+            Logger.getLogger(PersistentIndex.class.getName()).log(Level.WARNING,
+                    "Dropping {0} bytes of incomplete log in {1}", new Object[]{size - good, g.dir});
+            ch.truncate(good);
+        }
+    }
+
+    /**
+     * Add a vector.
+     *
+     * @param vector The vector.
+     * @param meta Its metadata, may be null.
+     * @return Its key.
+     * @throws IOException If the log could not be written.
+     */
+    public int add(float[] vector, VectorStore.Metadata meta) throws IOException {
+        if (vector.length != dim) {
+            throw new RuntimeException("Vector length " + vector.length + " does not match dimension " + dim);
+        }
+        byte[] mb = metaBytes(meta);
+        ByteBuffer p = ByteBuffer.allocate(5 + dim * 4 + mb.length);
+        lock.writeLock().lock();
+        try {
+            int key = gen.nextKey;
+            p.put(WAL_ADD).putInt(key);
+            for (float f : vector) {
+                p.putFloat(f);
+            }
+            p.put(mb);
+            log(gen, p.array());
+            gen.add(key, vector, meta);
+            return key;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Delete a vector.
+     *
+     * @param key Its key.
+     * @return false if there was no such (live) vector.
+     * @throws IOException If the log could not be written.
+     */
+    public boolean delete(int key) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!gen.delete(key)) {
+                return false;
+            }
+            log(gen, ByteBuffer.allocate(5).put(WAL_DELETE).putInt(key).array());
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Give a vector other metadata. It is added again with the same vector
+     * under a new key and the old key is deleted, like any change going
+     * through the log, so the metadata index picks it up.
+     *
+     * @param key Its key.
+     * @param meta The new metadata, may be null.
+     * @return The new key, -1 if there was no such (live) vector.
+     * @throws IOException If the log could not be written.
+     */
+    public int update(int key, VectorStore.Metadata meta) throws IOException {
+        lock.writeLock().lock();
+        try {
+            float[] v = getVector(key);
+            if (null == v) {
+                return -1;
+            }
+            int ret = add(v, meta);
+            delete(key);
+            return ret;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param key A key.
+     * @return Its metadata, null if deleted or unknown.
+     */
+    public VectorStore.Metadata getMetadata(int key) {
+        lock.readLock().lock();
+        try {
+            int id = gen.idOf(key);
+            return id < 0 || gen.isDeleted(id) ? null : gen.store.getMetadata(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param key A key.
+     * @return A copy of its vector, null if deleted or unknown.
+     */
+    public float[] getVector(int key) {
+        lock.readLock().lock();
+        try {
+            int id = gen.idOf(key);
+            return id < 0 || gen.isDeleted(id) ? null : gen.store.copy(id, new float[dim]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Number of live vectors.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return gen.store.size() - gen.deletedCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The keys of all live vectors, ascending.
+     */
+    public int[] keys() {
+        lock.readLock().lock();
+        try {
+            int n = gen.store.size();
+            int[] ret = new int[n - gen.deletedCount];
+            int i = 0;
+            for (int id = 0; id < n; id++) {
+                if (!gen.isDeleted(id)) {
+                    ret[i++] = gen.key(id);
+                }
+            }
+            return ret;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The store of the current generation. It is replaced by checkpoints and
+     * compactions, so do not hold on to it, and its ids are not keys.
+     *
+     * @return The store.
+     */
+    public VectorStore getStore() {
+        lock.readLock().lock();
+        try {
+            return gen.store;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Build an HNSW graph over all vectors, saved with the next checkpoint
+     * and kept up to date on adds.
+     */
+    public void buildGraph() {
+        lock.writeLock().lock();
+        try {
+            if (null == gen.graph) {
+                gen.graph = new HnswIndex(gen.store, metric);
+            }
+            gen.graph.build(null);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The graph, loaded from the snapshot on first use.
+     */
+    private HnswIndex graph() throws IOException {
+        lock.readLock().lock();
+        try {
+            if (null != gen.graph || 0 == gen.graphLen) {
+                return gen.graph;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            if (null == gen.graph && gen.graphLen > 0) {
+                try (FileInputStream fis = new FileInputStream(new File(gen.dir, VIX))) {
+                    fis.getChannel().position(gen.graphOff);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(fis, 1 << 16));
+                    gen.graph = HnswIndex.load(in, gen.store);
+                }
+                // vectors added after the snapshot
+                gen.graph.build(null);
+            }
+            return gen.graph;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The k nearest live vectors, through the graph if there is one.
+     *
+     * @param query The query.
+     * @param k How many.
+     * @return Hits with keys, not ids, nearest first.
+     * @throws IOException If the graph could not be loaded.
+     */
+    public Hits search(float[] query, int k) throws IOException {
+        HnswIndex g = graph();
+        lock.readLock().lock();
+        try {
+            int n = gen.store.size();
+            int want = Math.min(n, k + Math.min(gen.deletedCount, 4 * k));
+            while (true) {
+                Hits h = null == g || gen.graph != g
+                        ? gen.exact.search(query, want)
+                        : g.search(query, want, Math.max(g.efSearch, want));
+                int[] keys = new int[k];
+                float[] scores = new float[k];
+                int found = 0;
+                for (int i = 0; i < h.size() && found < k; i++) {
+                    if (!gen.isDeleted(h.ids[i])) {
+                        keys[found] = gen.key(h.ids[i]);
+                        scores[found++] = h.scores[i];
+                    }
+                }
+                if (found == k || want >= n) {
+                    return new Hits(Arrays.copyOf(keys, found), Arrays.copyOf(scores, found));
+                }
+                want = Math.min(n, want * 2);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The k nearest live vectors that pass a metadata filter, see
+     * FilteredSearch. The metadata is indexed on first use.
+     *
+     * @param query The query.
+     * @param k How many.
+     * @param filter The filter.
+     * @return Hits with keys, not ids, nearest first.
+     * @throws IOException If the graph could not be loaded.
+     */
+    public Hits search(float[] query, int k, MetadataIndex.Filter filter) throws IOException {
+        HnswIndex g = graph();
+        lock.readLock().lock();
+        try {
+            BitSet allowed = gen.metadataIndex().select(filter);
+            for (int id = allowed.nextSetBit(0); id >= 0; id = allowed.nextSetBit(id + 1)) {
+                if (gen.isDeleted(id)) {
+                    allowed.clear(id);
+                }
+            }
+            Hits h = new FilteredSearch(gen.exact, gen.graph == g ? g : null).search(query, k, allowed);
+            int[] keys = new int[h.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = gen.key(h.ids[i]);
+            }
+            return new Hits(keys, h.scores);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Write a new snapshot of the current generation and shorten the log.
+     *
+     * @throws IOException If writing failed.
+     */
+    public void checkpoint() throws IOException {
+        rewrite(false);
+    }
+
+    /**
+     * Copy the live vectors to a new generation, dropping the deleted ones.
+     * A graph is not carried over, call buildGraph again if wanted.
+     *
+     * @throws IOException If writing failed.
+     */
+    public void compact() throws IOException {
+        rewrite(true);
+    }
+
+    private void rewrite(boolean compact) throws IOException {
+        synchronized (rewriteLock) {
+            Generation g;
+            int count;
+            int[] keys;
+            BitSet tomb;
+            long logPos;
+            int nextKey;
+            HnswIndex graph;
+            lock.writeLock().lock();
+            try {
+                g = gen;
+                count = g.store.size();
+                keys = new int[count];
+                for (int id = 0; id < count; id++) {
+                    keys[id] = g.key(id);
+                }
+                tomb = g.tombstones(count);
+                logPos = g.wal.position();
+                nextKey = g.nextKey;
+                graph = compact ? null : g.graph;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            // ids below count do not change any more, no lock needed
+            File target = g.dir;
+            if (compact) {
+                String name = g.dir.getName();
+                int n = Integer.parseInt(name.substring(name.indexOf('-') + 1)) + 1;
+                target = new File(dir, String.format("gen-%05d", n));
+                deleteDir(target);
+                target.mkdirs();
+                VectorStore ns = new VectorStore(model, dim, target);
+                int[] nk = new int[count];
+                float[] v = new float[dim];
+                for (int id = 0; id < count; id++) {
+                    if (!tomb.get(id)) {
+                        nk[ns.size()] = keys[id];
+                        ns.add(g.store.copy(id, v), g.store.getMetadata(id));
+                    }
+                }
+                ns.force();
+                writeVix(new File(target, VIX), ns, ns.size(), nk, new BitSet(), nextKey, null);
+            } else {
+                g.store.force();
+                writeVix(new File(target, VIX), g.store, count, keys, tomb, nextKey, graph);
+            }
+            lock.writeLock().lock();
+            try {
+                // carry over what was logged since the snapshot started
+                File tail = new File(target, WAL + ".tmp");
+                try (FileChannel out = FileChannel.open(tail.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    long end = g.wal.size();
+                    long pos = logPos;
+                    while (pos < end) {
+                        pos += g.wal.transferTo(pos, end - pos, out);
+                    }
+                    out.force(true);
+                }
+                g.wal.close();
+                Files.move(tail.toPath(), new File(target, WAL).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Generation ng = new Generation(target);
+                if (compact) {
+                    writeCurrent(target);
+                }
+                gen = ng;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (compact) {
+                deleteDir(g.dir);
+            }
+        }
+    }
+
+    private static void deleteDir(File d) {
+        File[] files = d.listFiles();
+        if (null != files) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        d.delete();
+    }
+
+    /**
+     * @return Bytes in the log of the current generation.
+     */
+    public long logSize() {
+        lock.readLock().lock();
+        try {
+            return gen.wal.size();
+        } catch (IOException ex) {
+            return 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Fraction of the stored vectors that are deleted.
+     */
+    public double deletedFraction() {
+        lock.readLock().lock();
+        try {
+            int n = gen.store.size();
+            return 0 == n ? 0 : (double) gen.deletedCount / n;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Check now and then whether a checkpoint or compaction is due and run it
+     * on a background thread.
+     *
+     * @param periodMillis Time between checks.
+     */
+    public synchronized void startBackground(long periodMillis) {
+        if (null != background) {
+            return;
+        }
+        background = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "PersistentIndex " + dir.getName());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        background.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (deletedFraction() > compactFraction) {
+                        compact();
+                    } else if (logSize() > checkpointBytes) {
+                        checkpoint();
+                    }
+                } catch (Exception ex) {
+                    Logger.getLogger(PersistentIndex.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the background thread and close the log. Everything logged is
+     * kept, the next open replays it.
+     *
+     * @throws IOException If closing failed.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (null != background) {
+                background.shutdown();
+                try {
+                    background.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                background = null;
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            gen.wal.force(true);
+            gen.wal.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.readLock().lock();
+        try {
+            return "PersistentIndex{" + "dir=" + gen.dir + ", model=" + model + ", dim=" + dim + ", size=" + (gen.store.size() - gen.deletedCount) + ", deleted=" + gen.deletedCount + ", graph=" + (null != gen.graph || gen.graphLen > 0) + '}';
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package nl.infcomtec.vectors;
+
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A linear map from in to out dimensions, the same for stored vectors and
+ * queries.
+ *
+ * @author Walter Stroebel
+ */
+public abstract class Projection {
+
+    /**
+     * Vectors per leaf task when projecting a store.
+     */
+    public static final int LEAF = 1024;
+    public final int in;
+    public final int out;
+
+    protected Projection(int in, int out) {
+        if (in < 1 || out < 1 || out > in) {
+            throw new IllegalArgumentException("Cannot project " + in + " to " + out + " dimensions");
+        }
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * Project one vector.
+     *
+     * @param src Array holding the vector.
+     * @param so Where it starts.
+     * @param dst Array receiving the projection.
+     * @param doff Where it goes.
+     */
+    public abstract void project(float[] src, int so, float[] dst, int doff);
+
+    /**
+     * Metric to use in the projected space for candidates of a search in the
+     * original space with a metric.
+     *
+     * @param metric The original metric.
+     * @return The metric in the projected space.
+     */
+    public Similarity.Metric reducedMetric(Similarity.Metric metric) {
+        return metric;
+    }
+
+    /**
+     * Project one vector.
+     *
+     * @param v The vector.
+     * @return Its projection.
+     */
+    public float[] project(float[] v) {
+        if (v.length != in) {
+            throw new RuntimeException("Vector length " + v.length + " does not match " + in);
+        }
+        float[] ret = new float[out];
+        project(v, 0, ret, 0);
+        return ret;
+    }
+
+    /**
+     * Project the vectors of a store from an id on into another store, so
+     * that the ids match.
+     *
+     * @param src The store to project.
+     * @param dst The store receiving the projections, holding exactly from
+     * vectors.
+     * @param pool Pool for the projecting, null for the common pool.
+     */
+    public void project(VectorStore src, VectorStore dst, ForkJoinPool pool) {
+        src.check(null, in);
+        dst.check(null, out);
+        if (null == pool) {
+            pool = ForkJoinPool.commonPool();
+        }
+        int block = LEAF * Math.max(1, pool.getParallelism());
+        float[] buf = new float[block * out];
+        float[] v = new float[out];
+        for (int from = dst.size(); from < src.size(); from = dst.size()) {
+            int n = Math.min(block, src.size() - from);
+            pool.invoke(new Block(src, from, n, buf, 0));
+            for (int i = 0; i < n; i++) {
+                System.arraycopy(buf, i * out, v, 0, out);
+                dst.add(v, null);
+            }
+        }
+    }
+
+    /**
+     * Project a whole store.
+     *
+     * @param src The store.
+     * @param mapDir Directory for the new store, null for direct memory.
+     * @param pool Pool for the projecting, null for the common pool.
+     * @return A new store with the projections, same ids, no metadata.
+     */
+    public VectorStore project(VectorStore src, File mapDir, ForkJoinPool pool) {
+        VectorStore ret = null == mapDir
+                ? new VectorStore(src.getModel(), out)
+                : new VectorStore(src.getModel(), out, mapDir);
+        project(src, ret, pool);
+        return ret;
+    }
+
+    private class Block extends RecursiveAction {
+
+        final VectorStore src;
+        final int from, n, off;
+        final float[] buf;
+
+        Block(VectorStore src, int from, int n, float[] buf, int off) {
+            this.src = src;
+            this.from = from;
+            this.n = n;
+            this.buf = buf;
+            this.off = off;
+        }
+
+        @Override
+        protected void compute() {
+            if (n <= LEAF) {
+                int tile = Math.max(1, Similarity.TILE_FLOATS / in);
+                float[] t = new float[tile * in];
+                for (int i = 0; i < n; i += tile) {
+                    int cnt = Math.min(tile, n - i);
+                    src.read(from + i, cnt, t);
+                    for (int j = 0; j < cnt; j++) {
+                        project(t, j * in, buf, (off + i + j) * out);
+                    }
+                }
+                return;
+            }
+            int half = n >>> 1;
+            invokeAll(new Block(src, from, half, buf, off), new Block(src, from + half, n - half, buf, off + half));
+        }
+    }
+}
@@ -0,0 +1,540 @@
+package nl.infcomtec.vectors;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Compact copy of the vectors of a VectorStore: int8 with a per-vector scale
+ * and offset (a quarter of float32) or float16 (half of float32).
+ *
+ * The idea is to scan the small codes, which fit in memory and cache where the
+ * float32 store may not, and only touch the full precision vectors to re-rank
+ * the best few hundred candidates. The store can then live in memory-mapped
+ * files and mostly stay on disk.
+ *
+ * The kernels work on the codes directly. For int8 the query is quantized to
+ * 16 bit integers, the products are summed in an int (which the JIT vectorizes,
+ * unlike a float sum) and the scales and offset are applied once per vector.
+ * float16 codes go through a 64K entry lookup table. Norms and means come from
+ * the store, they were computed on the exact vectors.
+ *
+ * @author Walter Stroebel
+ */
+public class QuantizedVectors {
+
+    private static final int MAGIC = 0x51564543; // "QVEC"
+    /**
+     * Vectors per chunk.
+     */
+    public static final int CHUNK = 4096;
+    /**
+     * Ids per leaf task when searching.
+     */
+    public static final int LEAF = 8192;
+    /**
+     * float16 to float32, indexed by the 16 bits.
+     */
+    private static final float[] HALF = new float[65536];
+
+    static {
+        for (int i = 0; i < HALF.length; i++) {
+            HALF[i] = fromHalf((short) i);
+        }
+    }
+
+    /**
+     * The supported encodings.
+     */
+    public enum Encoding {
+        /**
+         * One signed byte per component plus a scale and offset per vector.
+         */
+        INT8,
+        /**
+         * IEEE 754 half precision per component.
+         */
+        FLOAT16
+    }
+
+    public final VectorStore store;
+    public final Encoding encoding;
+    private final int dim;
+    private volatile byte[][] bytes = new byte[0][];
+    private volatile short[][] halves = new short[0][];
+    private volatile float[] scales = new float[CHUNK];
+    private volatile float[] mids = new float[CHUNK];
+    private volatile int size;
+
+    /**
+     * Empty quantized copy, call sync to fill it.
+     *
+     * @param store The vectors.
+     * @param encoding How to encode them.
+     */
+    public QuantizedVectors(VectorStore store, Encoding encoding) {
+        this.store = store;
+        this.encoding = encoding;
+        this.dim = store.dimension();
+    }
+
+    /**
+     * @return Number of encoded vectors.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Approximate memory used by the codes.
+     */
+    public long bytesUsed() {
+        long perVector = Encoding.INT8 == encoding ? dim + 8 : dim * 2;
+        return perVector * size;
+    }
+
+    /**
+     * Encode the vectors that were added to the store since the last call.
+     *
+     * @return Number of vectors encoded.
+     */
+    public synchronized int sync() {
+        int from = size;
+        int to = store.size();
+        float[] v = new float[dim];
+        for (int id = from; id < to; id++) {
+            int chunk = id / CHUNK;
+            int base = (id % CHUNK) * dim;
+            store.copy(id, v);
+            if (Encoding.INT8 == encoding) {
+                if (chunk >= bytes.length) {
+                    byte[][] grown = Arrays.copyOf(bytes, chunk + 1);
+                    grown[chunk] = new byte[CHUNK * dim];
+                    bytes = grown;
+                }
+                if (id >= scales.length) {
+                    mids = Arrays.copyOf(mids, scales.length * 2);
+                    scales = Arrays.copyOf(scales, scales.length * 2);
+                }
+                encodeInt8(v, bytes[chunk], base, id);
+            } else {
+                if (chunk >= halves.length) {
+                    short[][] grown = Arrays.copyOf(halves, chunk + 1);
+                    grown[chunk] = new short[CHUNK * dim];
+                    halves = grown;
+                }
+                short[] dst = halves[chunk];
+                for (int i = 0; i < dim; i++) {
+                    dst[base + i] = toHalf(v[i]);
+                }
+            }
+            size = id + 1;
+        }
+        return to - from;
+    }
+
+    /**
+     * Map min..max onto -127..127, the value is mid + scale * code.
+     */
+    private void encodeInt8(float[] v, byte[] dst, int base, int id) {
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (float f : v) {
+            min = Math.min(min, f);
+            max = Math.max(max, f);
+        }
+        float mid = (max + min) / 2;
+        float scale = (max - min) / 254;
+        float inv = 0 == scale ? 0 : 1 / scale;
+        for (int i = 0; i < dim; i++) {
+            int c = Math.round((v[i] - mid) * inv);
+            dst[base + i] = (byte) Math.max(-127, Math.min(127, c));
+        }
+        mids[id] = mid;
+        scales[id] = scale;
+    }
+
+    /**
+     * Decode a vector.
+     *
+     * @param id The id.
+     * @param dst Receives the approximate vector.
+     * @return dst.
+     */
+    public float[] decode(int id, float[] dst) {
+        checkId(id);
+        int base = (id % CHUNK) * dim;
+        if (Encoding.INT8 == encoding) {
+            byte[] src = bytes[id / CHUNK];
+            float mid = mids[id];
+            float scale = scales[id];
+            for (int i = 0; i < dim; i++) {
+                dst[i] = mid + scale * src[base + i];
+            }
+        } else {
+            short[] src = halves[id / CHUNK];
+            for (int i = 0; i < dim; i++) {
+                dst[i] = HALF[src[base + i] & 0xFFFF];
+            }
+        }
+        return dst;
+    }
+
+    private void checkId(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("No encoded vector " + id + ", size is " + size);
+        }
+    }
+
+    /**
+     * Query prepared for the int8 kernel: q[i] is about scale * a[i].
+     */
+    private class IntQuery {
+
+        final short[] a;
+        final float scale;
+
+        IntQuery(float[] q) {
+            // keep the int sum from overflowing: dim * 127 * max < 2^31
+            int max = (int) Math.min(Short.MAX_VALUE, Integer.MAX_VALUE / (127L * dim));
+            float maxAbs = 0;
+            for (float f : q) {
+                maxAbs = Math.max(maxAbs, Math.abs(f));
+            }
+            a = new short[dim];
+            scale = 0 == maxAbs ? 0 : maxAbs / max;
+            float inv = 0 == maxAbs ? 0 : max / maxAbs;
+            for (int i = 0; i < dim; i++) {
+                a[i] = (short) Math.round(q[i] * inv);
+            }
+        }
+    }
+
+    /**
+     * Dot product of the query with the codes of a vector, decoded.
+     *
+     * @param q The query.
+     * @param qSum Sum of the query components.
+     * @param iq The query for the int8 kernel, null for float16.
+     * @param id The vector.
+     * @return The approximate dot product.
+     */
+    private float dot(float[] q, float qSum, IntQuery iq, int id) {
+        int base = (id % CHUNK) * dim;
+        if (Encoding.INT8 == encoding) {
+            byte[] c = bytes[id / CHUNK];
+            short[] a = iq.a;
+            int sum = 0;
+            for (int i = 0; i < dim; i++) {
+                sum += a[i] * c[base + i];
+            }
+            return mids[id] * qSum + scales[id] * iq.scale * sum;
+        }
+        short[] c = halves[id / CHUNK];
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (int e = dim & ~3; i < e; i += 4) {
+            int x = base + i;
+            s0 += q[i] * HALF[c[x] & 0xFFFF];
+            s1 += q[i + 1] * HALF[c[x + 1] & 0xFFFF];
+            s2 += q[i + 2] * HALF[c[x + 2] & 0xFFFF];
+            s3 += q[i + 3] * HALF[c[x + 3] & 0xFFFF];
+        }
+        for (; i < dim; i++) {
+            s0 += q[i] * HALF[c[base + i] & 0xFFFF];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    private float l1(float[] q, int id) {
+        int base = (id % CHUNK) * dim;
+        float s = 0;
+        if (Encoding.INT8 == encoding) {
+            byte[] c = bytes[id / CHUNK];
+            float mid = mids[id];
+            float scale = scales[id];
+            for (int i = 0; i < dim; i++) {
+                s += Math.abs(q[i] - (mid + scale * c[base + i]));
+            }
+        } else {
+            short[] c = halves[id / CHUNK];
+            for (int i = 0; i < dim; i++) {
+                s += Math.abs(q[i] - HALF[c[base + i] & 0xFFFF]);
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Approximate score of a query against a range of encoded vectors.
+     *
+     * @param metric The metric.
+     * @param query The query.
+     * @param from First id.
+     * @param to One past the last id.
+     * @param out Receives the scores, out[0] is for from.
+     */
+    public void score(Similarity.Metric metric, float[] query, int from, int to, float[] out) {
+        store.check(null, query.length);
+        if (to > size) {
+            throw new IndexOutOfBoundsException("Only " + size + " vectors encoded, call sync()");
+        }
+        double sum = 0;
+        double sumSq = 0;
+        for (float f : query) {
+            sum += f;
+            sumSq += f * f;
+        }
+        float qSum = (float) sum;
+        float qNormSq = (float) sumSq;
+        float qNorm = (float) Math.sqrt(sumSq);
+        float qMean = (float) (sum / dim);
+        float qCentered = (float) Math.sqrt(Math.max(0, sumSq - dim * (sum / dim) * (sum / dim)));
+        IntQuery iq = Encoding.INT8 == encoding ? new IntQuery(query) : null;
+        for (int id = from; id < to; id++) {
+            float s;
+            switch (metric) {
+                case COSINE: {
+                    float d = qNorm * store.norm(id);
+                    s = 0 == d ? 0 : dot(query, qSum, iq, id) / d;
+                    break;
+                }
+                case DOT:
+                    s = dot(query, qSum, iq, id);
+                    break;
+                case PEARSON: {
+                    float d = qCentered * store.centeredNorm(id);
+                    s = 0 == d ? 0 : (dot(query, qSum, iq, id) - dim * qMean * store.mean(id)) / d;
+                    break;
+                }
+                case L2: {
+                    float n = store.norm(id);
+                    s = (float) Math.sqrt(Math.max(0, qNormSq + n * n - 2 * dot(query, qSum, iq, id)));
+                    break;
+                }
+                case L1:
+                    s = l1(query, id);
+                    break;
+                default:
+                    throw new RuntimeException("Unknown metric " + metric);
+            }
+            out[id - from] = s;
+        }
+    }
+
+    /**
+     * Search the codes, then re-rank the best candidates with the float32
+     * vectors.
+     *
+     * @param metric The metric.
+     * @param query The query.
+     * @param k How many.
+     * @param rerank How many candidates to re-rank, at least k; 0 to return
+     * the approximate scores without re-ranking.
+     * @return The hits, nearest first.
+     */
+    public Hits search(Similarity.Metric metric, float[] query, int k, int rerank) {
+        int n = size;
+        if (0 == n || k <= 0) {
+            return new Hits(new int[0], new float[0]);
+        }
+        int candidates = 0 == rerank ? k : Math.max(k, rerank);
+        NodeHeap heap = ForkJoinPool.commonPool().invoke(new Scan(metric, query, candidates, 0, n));
+        if (0 == rerank) {
+            return Hits.from(heap, metric);
+        }
+        Similarity sim = new Similarity(store, metric);
+        Similarity.Query q = sim.prepare(query);
+        NodeHeap best = new NodeHeap(true, k);
+        for (int i = 0; i < heap.size(); i++) {
+            int id = heap.idAt(i);
+            best.offer(Similarity.toDistance(metric, sim.score(q, id)), id, k);
+        }
+        return Hits.from(best, metric);
+    }
+
+    private class Scan extends RecursiveTask<NodeHeap> {
+
+        final Similarity.Metric metric;
+        final float[] query;
+        final int k, from, to;
+
+        Scan(Similarity.Metric metric, float[] query, int k, int from, int to) {
+            this.metric = metric;
+            this.query = query;
+            this.k = k;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected NodeHeap compute() {
+            if (to - from <= LEAF) {
+                NodeHeap heap = new NodeHeap(true, k);
+                float[] scores = new float[to - from];
+                score(metric, query, from, to, scores);
+                for (int i = 0; i < scores.length; i++) {
+                    heap.offer(Similarity.toDistance(metric, scores[i]), from + i, k);
+                }
+                return heap;
+            }
+            int mid = (from + to) >>> 1;
+            Scan right = new Scan(metric, query, k, mid, to);
+            right.fork();
+            NodeHeap left = new Scan(metric, query, k, from, mid).compute();
+            NodeHeap r = right.join();
+            for (int i = 0; i < r.size(); i++) {
+                left.offer(r.keyAt(i), r.idAt(i), k);
+            }
+            return left;
+        }
+    }
+
+    /**
+     * Write the codes to a file.
+     *
+     * @param file The file.
+     * @throws IOException If writing failed.
+     */
+    public synchronized void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(encoding.name());
+            out.writeInt(dim);
+            out.writeInt(size);
+            for (int id = 0; id < size; id++) {
+                int base = (id % CHUNK) * dim;
+                if (Encoding.INT8 == encoding) {
+                    out.writeFloat(mids[id]);
+                    out.writeFloat(scales[id]);
+                    out.write(bytes[id / CHUNK], base, dim);
+                } else {
+                    short[] c = halves[id / CHUNK];
+                    for (int i = 0; i < dim; i++) {
+                        out.writeShort(c[base + i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Read codes written by save.
+     *
+     * @param file The file.
+     * @param store The store they were made from.
+     * @return The quantized vectors, call sync to add any vectors added to
+     * the store since.
+     * @throws IOException If reading failed or the file does not fit.
+     */
+    public static QuantizedVectors load(File file, VectorStore store) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not quantized vectors: " + file);
+            }
+            QuantizedVectors ret = new QuantizedVectors(store, Encoding.valueOf(in.readUTF()));
+            int dim = in.readInt();
+            int n = in.readInt();
+            if (dim != store.dimension() || n > store.size()) {
+                throw new IOException("Quantized vectors do not fit the store: " + file);
+            }
+            int chunks = (n + CHUNK - 1) / CHUNK;
+            if (Encoding.INT8 == ret.encoding) {
+                ret.bytes = new byte[chunks][CHUNK * dim];
+                ret.mids = new float[Math.max(CHUNK, n)];
+                ret.scales = new float[ret.mids.length];
+            } else {
+                ret.halves = new short[chunks][CHUNK * dim];
+            }
+            for (int id = 0; id < n; id++) {
+                int base = (id % CHUNK) * dim;
+                if (Encoding.INT8 == ret.encoding) {
+                    ret.mids[id] = in.readFloat();
+                    ret.scales[id] = in.readFloat();
+                    in.readFully(ret.bytes[id / CHUNK], base, dim);
+                } else {
+                    short[] c = ret.halves[id / CHUNK];
+                    for (int i = 0; i < dim; i++) {
+                        c[base + i] = in.readShort();
+                    }
+                }
+            }
+            ret.size = n;
+            return ret;
+        }
+    }
+
+    /**
+     * float32 to float16, round to nearest even.
+     *
+     * @param f The value.
+     * @return The half precision bits.
+     */
+    public static short toHalf(float f) {
+        int bits = Float.floatToRawIntBits(f);
+        int sign = (bits >>> 16) & 0x8000;
+        int exp = (bits >>> 23) & 0xFF;
+        int mant = bits & 0x7FFFFF;
+        if (255 == exp) {
+            return (short) (sign | 0x7C00 | (0 != mant ? 0x200 : 0));
+        }
+        int e = exp - 127 + 15;
+        if (e >= 31) {
+            return (short) (sign | 0x7C00);
+        }
+        if (e <= 0) {
+            if (e < -10) {
+                return (short) sign;
+            }
+            mant |= 0x800000;
+            int shift = 14 - e;
+            int h = mant >> shift;
+            int rem = mant & ((1 << shift) - 1);
+            int half = 1 << (shift - 1);
+            if (rem > half || (rem == half && 0 != (h & 1))) {
+                h++;
+            }
+            return (short) (sign | h);
+        }
+        int h = sign | (e << 10) | (mant >> 13);
+        int rem = mant & 0x1FFF;
+        if (rem > 0x1000 || (rem == 0x1000 && 0 != (h & 1))) {
+            // a carry into the exponent is exactly right, up to infinity
+            h++;
+        }
+        return (short) h;
+    }
+
+    /**
+     * float16 to float32.
+     *
+     * @param h The half precision bits.
+     * @return The value.
+     */
+    public static float fromHalf(short h) {
+        int sign = (h & 0x8000) << 16;
+        int exp = (h >>> 10) & 0x1F;
+        int mant = h & 0x3FF;
+        if (0 == exp) {
+            float v = mant * 0x1p-24f;
+            return 0 != sign ? -v : v;
+        }
+        if (31 == exp) {
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mant << 13));
+        }
+        return Float.intBitsToFloat(sign | ((exp + 112) << 23) | (mant << 13));
+    }
+
+    @Override
+    public String toString() {
+        return "QuantizedVectors{" + "encoding=" + encoding + ", dim=" + dim + ", size=" + size + ", bytes=" + bytesUsed() + '}';
+    }
+}
@@ -0,0 +1,73 @@
+package nl.infcomtec.vectors;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Very sparse random projection (Li, Hastie and Church): every output is the
+ * scaled sum of about sqrt(in) inputs, half of them negated. Distances and
+ * dot products are kept up to a small random error, and projecting costs a
+ * few additions per output instead of in multiplications. Nothing to fit.
+ *
+ * @author Walter Stroebel
+ */
+public class RandomProjection extends Projection {
+
+    /**
+     * Per output the inputs that are added and those that are subtracted.
+     */
+    private final int[][] plus;
+    private final int[][] minus;
+    private final float scale;
+
+    /**
+     * New projection.
+     *
+     * @param in Input dimension.
+     * @param out Output dimension.
+     * @param seed Seed, the same seed gives the same projection.
+     */
+    public RandomProjection(int in, int out, long seed) {
+        super(in, out);
+        double s = 1.0 / Math.sqrt(in);
+        scale = (float) Math.sqrt(1.0 / (s * out));
+        plus = new int[out][];
+        minus = new int[out][];
+        Random rnd = new Random(seed);
+        int[] p = new int[in];
+        int[] m = new int[in];
+        for (int o = 0; o < out; o++) {
+            int np = 0;
+            int nm = 0;
+            for (int i = 0; i < in; i++) {
+                double r = rnd.nextDouble();
+                if (r < s / 2) {
+                    p[np++] = i;
+                } else if (r < s) {
+                    m[nm++] = i;
+                }
+            }
+            plus[o] = Arrays.copyOf(p, np);
+            minus[o] = Arrays.copyOf(m, nm);
+        }
+    }
+
+    @Override
+    public void project(float[] src, int so, float[] dst, int doff) {
+        for (int o = 0; o < out; o++) {
+            float sum = 0;
+            for (int i : plus[o]) {
+                sum += src[so + i];
+            }
+            for (int i : minus[o]) {
+                sum -= src[so + i];
+            }
+            dst[doff + o] = scale * sum;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RandomProjection{" + "in=" + in + ", out=" + out + '}';
+    }
+}
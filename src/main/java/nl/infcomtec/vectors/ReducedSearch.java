@@ -0,0 +1,77 @@
+package nl.infcomtec.vectors;
+
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Two step search: candidates from a projected copy of the store, scanned at
+ * a fraction of the cost, then exact re-ranking of those candidates against
+ * the full vectors.
+ *
+ * @author Walter Stroebel
+ */
+public class ReducedSearch {
+
+    public final VectorStore full;
+    public final Projection projection;
+    public final Similarity.Metric metric;
+    public final VectorStore reduced;
+    private final ExactSearch candidates;
+    private final ForkJoinPool pool;
+    private final ThreadLocal<Similarity> sims = new ThreadLocal<Similarity>() {
+        @Override
+        protected Similarity initialValue() {
+            return new Similarity(full, metric);
+        }
+    };
+
+    /**
+     * Project a store and search it.
+     *
+     * @param full The store.
+     * @param projection The projection, its input dimension that of the store.
+     * @param metric How to compare the full vectors.
+     * @param mapDir Directory for the projected store, null for direct memory.
+     * @param pool Pool for projecting and scanning, null for the common pool.
+     */
+    public ReducedSearch(VectorStore full, Projection projection, Similarity.Metric metric, File mapDir, ForkJoinPool pool) {
+        this.full = full;
+        this.projection = projection;
+        this.metric = metric;
+        this.pool = pool;
+        this.reduced = projection.project(full, mapDir, pool);
+        this.candidates = new ExactSearch(reduced, projection.reducedMetric(metric), pool);
+    }
+
+    /**
+     * Project the vectors added to the full store since the last call.
+     */
+    public synchronized void sync() {
+        projection.project(full, reduced, pool);
+    }
+
+    /**
+     * The k nearest vectors.
+     *
+     * @param query The query.
+     * @param k How many.
+     * @param rerank Candidates from the projected store to re-rank, at least
+     * k; a few times k is usually enough.
+     * @return The hits, nearest first, with exact scores.
+     */
+    public Hits search(float[] query, int k, int rerank) {
+        Hits c = candidates.search(projection.project(query), Math.max(k, rerank));
+        Similarity sim = sims.get();
+        Similarity.Query q = sim.prepare(query);
+        NodeHeap heap = new NodeHeap(true, k);
+        for (int i = 0; i < c.size(); i++) {
+            heap.offer(Similarity.toDistance(metric, sim.score(q, c.ids[i])), c.ids[i], k);
+        }
+        return Hits.from(heap, metric);
+    }
+
+    @Override
+    public String toString() {
+        return "ReducedSearch{" + "projection=" + projection + ", metric=" + metric + ", size=" + reduced.size() + '}';
+    }
+}
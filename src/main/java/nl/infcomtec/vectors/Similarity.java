@@ -0,0 +1,422 @@
+package nl.infcomtec.vectors;
+
+/**
+ * Similarity and distance kernels, for one pair, one query against a whole
+ * VectorStore or a block of queries against a block of stored vectors.
+ *
+ * Norms and means of stored vectors are cached by the store and those of a
+ * query are computed once per query, so every metric comes down to a single
+ * pass over the components. Stored vectors are copied in tiles to a float array
+ * that stays in cache, the kernels are plain unrolled loops over arrays with
+ * independent accumulators which the JIT compiles to tight (and on recent JVMs
+ * SIMD) code.
+ *
+ * An instance holds scratch space and is not thread safe, use one per thread.
+ *
+ * @author Walter Stroebel
+ */
+public class Similarity {
+
+    /**
+     * Tile size in floats, 64KB fits comfortably in L2.
+     */
+    public static final int TILE_FLOATS = 16 << 10;
+    /**
+     * Number of queries scored against one tile in many-vs-many scoring.
+     */
+    public static final int QUERY_BLOCK = 32;
+
+    /**
+     * The supported metrics.
+     */
+    public enum Metric {
+        /**
+         * Cosine similarity, -1 to 1, higher is closer.
+         */
+        COSINE(false),
+        /**
+         * Plain dot product, higher is closer.
+         */
+        DOT(false),
+        /**
+         * Pearson correlation, -1 to 1, higher is closer.
+         */
+        PEARSON(false),
+        /**
+         * Euclidean (L2) distance, lower is closer.
+         */
+        L2(true),
+        /**
+         * Manhattan (L1) distance, lower is closer.
+         */
+        L1(true);
+        /**
+         * True if lower scores are closer.
+         */
+        public final boolean distance;
+
+        private Metric(boolean distance) {
+            this.distance = distance;
+        }
+
+        /**
+         * @param a A score.
+         * @param b Another score.
+         * @return true if a is closer than b.
+         */
+        public boolean better(float a, float b) {
+            return distance ? a < b : a > b;
+        }
+    }
+
+    public final VectorStore store;
+    public final Metric metric;
+    private final int dim;
+    private final int tile;
+    private final float[] buf;
+
+    /**
+     * Kernels for a store.
+     *
+     * @param store The vectors.
+     * @param metric How to compare.
+     */
+    public Similarity(VectorStore store, Metric metric) {
+        this.store = store;
+        this.metric = metric;
+        this.dim = store.dimension();
+        this.tile = Math.max(1, TILE_FLOATS / dim);
+        this.buf = new float[tile * dim];
+    }
+
+    /**
+     * Score one query against one stored vector.
+     *
+     * @param query The query.
+     * @param id The stored vector.
+     * @return The score.
+     */
+    public float score(float[] query, int id) {
+        return score(prepare(query), id);
+    }
+
+    /**
+     * Prepare a query for repeated scoring.
+     *
+     * @param query The query vector, must not change while in use.
+     * @return The prepared query.
+     */
+    public Query prepare(float[] query) {
+        store.check(null, query.length);
+        return new Query(query);
+    }
+
+    /**
+     * Score a prepared query against one stored vector.
+     *
+     * @param q The query.
+     * @param id The stored vector.
+     * @return The score.
+     */
+    public float score(Query q, int id) {
+        store.read(id, 1, buf);
+        return q.score(buf, 0, id);
+    }
+
+    /**
+     * Internal distance, lower is always closer, so search code need not care
+     * about the metric: the score for distance metrics, minus the score for
+     * the others.
+     *
+     * @param metric The metric.
+     * @param score A score.
+     * @return The distance.
+     */
+    public static float toDistance(Metric metric, float score) {
+        return metric.distance ? score : -score;
+    }
+
+    /**
+     * Undo toDistance.
+     *
+     * @param metric The metric.
+     * @param distance An internal distance.
+     * @return The score.
+     */
+    public static float fromDistance(Metric metric, float distance) {
+        return metric.distance ? distance : -distance;
+    }
+
+    /**
+     * Score one query against all stored vectors.
+     *
+     * @param query The query.
+     * @return One score per id.
+     */
+    public float[] scoreAll(float[] query) {
+        int n = store.size();
+        float[] out = new float[n];
+        score(query, 0, n, out, 0);
+        return out;
+    }
+
+    /**
+     * Score one query against a range of stored vectors.
+     *
+     * @param query The query.
+     * @param from First id.
+     * @param to One past the last id.
+     * @param out Receives the scores.
+     * @param outOff Where the score for from goes in out.
+     */
+    public void score(float[] query, int from, int to, float[] out, int outOff) {
+        store.check(null, query.length);
+        Query q = new Query(query);
+        for (int t = from; t < to; t += tile) {
+            int n = Math.min(tile, to - t);
+            store.read(t, n, buf);
+            for (int i = 0; i < n; i++) {
+                out[outOff + t - from + i] = q.score(buf, i * dim, t + i);
+            }
+        }
+    }
+
+    /**
+     * Score many queries against a range of stored vectors. The stored vectors
+     * are read once per block of queries instead of once per query.
+     *
+     * @param queries The queries.
+     * @param from First id.
+     * @param to One past the last id.
+     * @return scores[query][id - from].
+     */
+    public float[][] score(float[][] queries, int from, int to) {
+        float[][] out = new float[queries.length][to - from];
+        Query[] qs = new Query[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            store.check(null, queries[i].length);
+            qs[i] = new Query(queries[i]);
+        }
+        for (int qb = 0; qb < qs.length; qb += QUERY_BLOCK) {
+            int qe = Math.min(qs.length, qb + QUERY_BLOCK);
+            for (int t = from; t < to; t += tile) {
+                int n = Math.min(tile, to - t);
+                store.read(t, n, buf);
+                for (int qi = qb; qi < qe; qi++) {
+                    Query q = qs[qi];
+                    float[] row = out[qi];
+                    for (int i = 0; i < n; i++) {
+                        row[t - from + i] = q.score(buf, i * dim, t + i);
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * A query with its norm and mean computed once.
+     */
+    public class Query {
+
+        public final float[] v;
+        final float norm, mean, centered;
+
+        private Query(float[] v) {
+            this.v = v;
+            double sum = 0;
+            double sumSq = 0;
+            for (float f : v) {
+                sum += f;
+                sumSq += f * f;
+            }
+            double m = sum / v.length;
+            norm = (float) Math.sqrt(sumSq);
+            mean = (float) m;
+            centered = (float) Math.sqrt(Math.max(0, sumSq - v.length * m * m));
+        }
+
+        /**
+         * Score against a stored vector that was copied to an array. Zero
+         * norms give a similarity of 0 rather than an exception, one empty
+         * vector should not abort a scan.
+         *
+         * @param b Array holding the stored vector.
+         * @param off Where it starts in b.
+         * @param id Its id, for the cached norms.
+         * @return The score.
+         */
+        public float score(float[] b, int off, int id) {
+            switch (metric) {
+                case COSINE: {
+                    float d = norm * store.norm(id);
+                    return d == 0 ? 0 : dot(v, 0, b, off, dim) / d;
+                }
+                case DOT:
+                    return dot(v, 0, b, off, dim);
+                case PEARSON: {
+                    float d = centered * store.centeredNorm(id);
+                    return d == 0 ? 0 : (dot(v, 0, b, off, dim) - dim * mean * store.mean(id)) / d;
+                }
+                case L2:
+                    return (float) Math.sqrt(l2sq(v, 0, b, off, dim));
+                case L1:
+                    return l1(v, 0, b, off, dim);
+            }
+            throw new RuntimeException("Unknown metric " + metric);
+        }
+    }
+
+    /**
+     * Dot product.
+     *
+     * @param a First array.
+     * @param ao Offset in a.
+     * @param b Second array.
+     * @param bo Offset in b.
+     * @param n Number of components.
+     * @return The dot product.
+     */
+    public static float dot(float[] a, int ao, float[] b, int bo, int n) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0, s4 = 0, s5 = 0, s6 = 0, s7 = 0;
+        int i = 0;
+        for (int e = n & ~7; i < e; i += 8) {
+            int x = ao + i;
+            int y = bo + i;
+            s0 += a[x] * b[y];
+            s1 += a[x + 1] * b[y + 1];
+            s2 += a[x + 2] * b[y + 2];
+            s3 += a[x + 3] * b[y + 3];
+            s4 += a[x + 4] * b[y + 4];
+            s5 += a[x + 5] * b[y + 5];
+            s6 += a[x + 6] * b[y + 6];
+            s7 += a[x + 7] * b[y + 7];
+        }
+        for (; i < n; i++) {
+            s0 += a[ao + i] * b[bo + i];
+        }
+        return ((s0 + s1) + (s2 + s3)) + ((s4 + s5) + (s6 + s7));
+    }
+
+    /**
+     * Squared Euclidean distance.
+     *
+     * @param a First array.
+     * @param ao Offset in a.
+     * @param b Second array.
+     * @param bo Offset in b.
+     * @param n Number of components.
+     * @return The sum of the squared differences.
+     */
+    public static float l2sq(float[] a, int ao, float[] b, int bo, int n) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0, s4 = 0, s5 = 0, s6 = 0, s7 = 0;
+        int i = 0;
+        for (int e = n & ~7; i < e; i += 8) {
+            int x = ao + i;
+            int y = bo + i;
+            float d0 = a[x] - b[y];
+            float d1 = a[x + 1] - b[y + 1];
+            float d2 = a[x + 2] - b[y + 2];
+            float d3 = a[x + 3] - b[y + 3];
+            float d4 = a[x + 4] - b[y + 4];
+            float d5 = a[x + 5] - b[y + 5];
+            float d6 = a[x + 6] - b[y + 6];
+            float d7 = a[x + 7] - b[y + 7];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+            s4 += d4 * d4;
+            s5 += d5 * d5;
+            s6 += d6 * d6;
+            s7 += d7 * d7;
+        }
+        for (; i < n; i++) {
+            float d = a[ao + i] - b[bo + i];
+            s0 += d * d;
+        }
+        return ((s0 + s1) + (s2 + s3)) + ((s4 + s5) + (s6 + s7));
+    }
+
+    /**
+     * Manhattan distance.
+     *
+     * @param a First array.
+     * @param ao Offset in a.
+     * @param b Second array.
+     * @param bo Offset in b.
+     * @param n Number of components.
+     * @return The sum of the absolute differences.
+     */
+    public static float l1(float[] a, int ao, float[] b, int bo, int n) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0, s4 = 0, s5 = 0, s6 = 0, s7 = 0;
+        int i = 0;
+        for (int e = n & ~7; i < e; i += 8) {
+            int x = ao + i;
+            int y = bo + i;
+            s0 += Math.abs(a[x] - b[y]);
+            s1 += Math.abs(a[x + 1] - b[y + 1]);
+            s2 += Math.abs(a[x + 2] - b[y + 2]);
+            s3 += Math.abs(a[x + 3] - b[y + 3]);
+            s4 += Math.abs(a[x + 4] - b[y + 4]);
+            s5 += Math.abs(a[x + 5] - b[y + 5]);
+            s6 += Math.abs(a[x + 6] - b[y + 6]);
+            s7 += Math.abs(a[x + 7] - b[y + 7]);
+        }
+        for (; i < n; i++) {
+            s0 += Math.abs(a[ao + i] - b[bo + i]);
+        }
+        return ((s0 + s1) + (s2 + s3)) + ((s4 + s5) + (s6 + s7));
+    }
+
+    /**
+     * Dot product of two double vectors.
+     *
+     * @param a First vector.
+     * @param b Second vector, same length.
+     * @return The dot product.
+     */
+    public static double dot(double[] a, double[] b) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int n = a.length;
+        int i = 0;
+        for (int e = n & ~3; i < e; i += 4) {
+            s0 += a[i] * b[i];
+            s1 += a[i + 1] * b[i + 1];
+            s2 += a[i + 2] * b[i + 2];
+            s3 += a[i + 3] * b[i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += a[i] * b[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Squared Euclidean distance of two double vectors.
+     *
+     * @param a First vector.
+     * @param b Second vector, same length.
+     * @return The sum of the squared differences.
+     */
+    public static double l2sq(double[] a, double[] b) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int n = a.length;
+        int i = 0;
+        for (int e = n & ~3; i < e; i += 4) {
+            double d0 = a[i] - b[i];
+            double d1 = a[i + 1] - b[i + 1];
+            double d2 = a[i + 2] - b[i + 2];
+            double d3 = a[i + 3] - b[i + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; i < n; i++) {
+            double d = a[i] - b[i];
+            s0 += d * d;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+}
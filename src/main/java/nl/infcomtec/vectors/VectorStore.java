@@ -0,0 +1,437 @@
+package nl.infcomtec.vectors;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Embedding vectors stored as packed float32 outside the Java heap.
+ *
+ * Vectors get consecutive int ids starting at 0. They live in fixed size
+ * segments of direct or memory-mapped ByteBuffers, little endian, dimension
+ * floats per vector without any padding. Metadata (the prompt text, where it
+ * came from, dates) is kept in a side table on the heap.
+ *
+ * All vectors in a store come from the same model and have the same
+ * dimension, this is checked when adding so the search code never has to.
+ *
+ * Appending is synchronized, reading vectors that were already added needs no
+ * locking. The L2 norm, mean and centered norm of each vector are computed
+ * once when it is added, so the similarity kernels only need a dot product.
+ *
+ * @author Walter Stroebel
+ */
+public class VectorStore {
+
+    /**
+     * Target size of a segment in bytes.
+     */
+    public static final int SEGMENT_BYTES = 64 << 20;
+
+    /**
+     * Everything about a vector that is not the vector.
+     */
+    public static class Metadata {
+
+        /**
+         * The text that was embedded.
+         */
+        public String text;
+        /**
+         * Where the text came from, for instance a file name.
+         */
+        public String source;
+        /**
+         * Creation and modification time, milliseconds since the epoch.
+         */
+        public long created, lastMod;
+        /**
+         * Optional keywords.
+         */
+        public String[] keywords;
+
+        public Metadata() {
+        }
+
+        public Metadata(String text, String source) {
+            this.text = text;
+            this.source = source;
+            this.created = this.lastMod = System.currentTimeMillis();
+        }
+
+        @Override
+        public String toString() {
+            return "Metadata{" + "source=" + source + ", created=" + created + ", keywords=" + Arrays.toString(keywords) + '}';
+        }
+    }
+
+    private final String model;
+    private final int dim;
+    private final int perSegment;
+    private final int segmentBytes;
+    private final File mapDir;
+    private volatile ByteBuffer[] segments = new ByteBuffer[0];
+    private volatile FloatBuffer[] floats = new FloatBuffer[0];
+    private final ArrayList<Metadata> meta = new ArrayList<>();
+    /**
+     * Vectors that were already there when the store was reopened, their
+     * statistics and metadata come from the caller.
+     */
+    private final int baseCount;
+    private final FloatBuffer baseStats;
+    private final List<Metadata> baseMeta;
+    private volatile float[] norms = new float[16];
+    private volatile float[] means = new float[16];
+    private volatile float[] centered = new float[16];
+    private volatile int size;
+
+    /**
+     * A store in direct (off-heap) memory.
+     *
+     * @param model The embedding model.
+     * @param dim The vector dimension.
+     */
+    public VectorStore(String model, int dim) {
+        this(model, dim, null);
+    }
+
+    /**
+     * A store in direct memory or in memory-mapped segment files.
+     *
+     * @param model The embedding model.
+     * @param dim The vector dimension.
+     * @param mapDir Directory for the segment files, null for direct memory.
+     */
+    public VectorStore(String model, int dim, File mapDir) {
+        this(model, dim, mapDir, 0, null, null);
+    }
+
+    /**
+     * Reopen a store in memory-mapped segment files that an earlier store
+     * with the same model, dimension and mapDir wrote. Nothing is read or
+     * copied, the segments are mapped and the statistics and metadata of the
+     * existing vectors are supplied by the caller, typically as views of
+     * another mapped file.
+     *
+     * @param model The embedding model.
+     * @param dim The vector dimension.
+     * @param mapDir Directory with the segment files.
+     * @param count Number of vectors already in the segments.
+     * @param stats Norm, mean and centered norm of each existing vector, 3 *
+     * count floats; only absolute gets are used.
+     * @param meta Metadata of each existing vector, may decode lazily.
+     */
+    public VectorStore(String model, int dim, File mapDir, int count, FloatBuffer stats, List<Metadata> meta) {
+        if (dim <= 0) {
+            throw new IllegalArgumentException("Dimension must be positive: " + dim);
+        }
+        if (count > 0 && (null == mapDir || null == stats || null == meta)) {
+            throw new IllegalArgumentException("Reopening needs the directory, statistics and metadata");
+        }
+        this.model = model;
+        this.dim = dim;
+        this.perSegment = Math.max(1, SEGMENT_BYTES / (dim * 4));
+        this.segmentBytes = perSegment * dim * 4;
+        this.mapDir = mapDir;
+        if (null != mapDir) {
+            mapDir.mkdirs();
+        }
+        this.baseCount = count;
+        this.baseStats = stats;
+        this.baseMeta = meta;
+        if (count > 0) {
+            int n = (count + perSegment - 1) / perSegment;
+            ByteBuffer[] segs = new ByteBuffer[n];
+            FloatBuffer[] views = new FloatBuffer[n];
+            for (int seg = 0; seg < n; seg++) {
+                segs[seg] = allocate(seg);
+                views[seg] = segs[seg].duplicate().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+            floats = views;
+            segments = segs;
+            size = count;
+        }
+    }
+
+    /**
+     * @return The embedding model.
+     */
+    public String getModel() {
+        return model;
+    }
+
+    /**
+     * @return The vector dimension.
+     */
+    public int dimension() {
+        return dim;
+    }
+
+    /**
+     * @return Number of vectors.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Directory of the segment files, null for direct memory.
+     */
+    public File getMapDir() {
+        return mapDir;
+    }
+
+    /**
+     * @return Number of vectors per segment.
+     */
+    public int vectorsPerSegment() {
+        return perSegment;
+    }
+
+    /**
+     * Check a vector belongs in this store.
+     *
+     * @param model The model that produced it.
+     * @param length Its length.
+     */
+    public void check(String model, int length) {
+        if (null != this.model && null != model && !this.model.equals(model)) {
+            throw new RuntimeException("Not the same model: " + model + " vs " + this.model);
+        }
+        if (length != dim) {
+            throw new RuntimeException("Vector length " + length + " does not match dimension " + dim);
+        }
+    }
+
+    /**
+     * Add a vector.
+     *
+     * @param vector The vector, will be converted to float.
+     * @param metadata Its metadata, may be null.
+     * @return The id of the vector.
+     */
+    public int add(double[] vector, Metadata metadata) {
+        float[] f = new float[vector.length];
+        for (int i = 0; i < f.length; i++) {
+            f[i] = (float) vector[i];
+        }
+        return add(f, metadata);
+    }
+
+    /**
+     * Add a vector.
+     *
+     * @param vector The vector.
+     * @param metadata Its metadata, may be null.
+     * @return The id of the vector.
+     */
+    public synchronized int add(float[] vector, Metadata metadata) {
+        check(null, vector.length);
+        int id = size;
+        int seg = id / perSegment;
+        if (seg >= segments.length) {
+            ByteBuffer[] grown = Arrays.copyOf(segments, seg + 1);
+            grown[seg] = allocate(seg);
+            FloatBuffer[] grownFloats = Arrays.copyOf(floats, seg + 1);
+            grownFloats[seg] = grown[seg].duplicate().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            floats = grownFloats;
+            segments = grown;
+        }
+        ByteBuffer b = segments[seg];
+        int base = (id % perSegment) * dim * 4;
+        double sum = 0;
+        double sumSq = 0;
+        for (int i = 0; i < dim; i++) {
+            float f = vector[i];
+            b.putFloat(base + i * 4, f);
+            sum += f;
+            sumSq += f * f;
+        }
+        int at = id - baseCount;
+        if (at >= norms.length) {
+            int n = norms.length * 2;
+            means = Arrays.copyOf(means, n);
+            centered = Arrays.copyOf(centered, n);
+            norms = Arrays.copyOf(norms, n);
+        }
+        double mean = sum / dim;
+        norms[at] = (float) Math.sqrt(sumSq);
+        means[at] = (float) mean;
+        centered[at] = (float) Math.sqrt(Math.max(0, sumSq - dim * mean * mean));
+        meta.add(metadata);
+        size = id + 1;
+        return id;
+    }
+
+    private ByteBuffer allocate(int seg) {
+        if (null == mapDir) {
+            return ByteBuffer.allocateDirect(segmentBytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        File f = new File(mapDir, String.format("segment-%05d.f32", seg));
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw");
+                FileChannel ch = raf.getChannel()) {
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes).order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException ex) {
+            throw new RuntimeException("Cannot map " + f, ex);
+        }
+    }
+
+    /**
+     * Zero-copy view of a vector.
+     *
+     * @param id The id.
+     * @return A read-only view, dimension floats long.
+     */
+    public FloatBuffer vector(int id) {
+        checkId(id);
+        ByteBuffer b = segments[id / perSegment].duplicate();
+        int base = (id % perSegment) * dim * 4;
+        b.position(base).limit(base + dim * 4);
+        return b.slice().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    }
+
+    /**
+     * The segment holding a vector, for kernels that read it directly with
+     * absolute gets. Do not modify.
+     *
+     * @param id The id.
+     * @return The segment buffer.
+     */
+    public ByteBuffer segmentOf(int id) {
+        checkId(id);
+        return segments[id / perSegment];
+    }
+
+    /**
+     * Byte offset of a vector within its segment.
+     *
+     * @param id The id.
+     * @return The offset.
+     */
+    public int offsetOf(int id) {
+        return (id % perSegment) * dim * 4;
+    }
+
+    /**
+     * One component of a vector.
+     *
+     * @param id The id.
+     * @param d The component index.
+     * @return The value.
+     */
+    public float get(int id, int d) {
+        return segments[id / perSegment].getFloat((id % perSegment) * dim * 4 + d * 4);
+    }
+
+    /**
+     * Copy a vector to the heap.
+     *
+     * @param id The id.
+     * @param dst Receives the vector, at least dimension long.
+     * @return dst.
+     */
+    public float[] copy(int id, float[] dst) {
+        checkId(id);
+        ByteBuffer b = segments[id / perSegment];
+        int base = (id % perSegment) * dim * 4;
+        for (int i = 0; i < dim; i++) {
+            dst[i] = b.getFloat(base + i * 4);
+        }
+        return dst;
+    }
+
+    /**
+     * Bulk copy of consecutive vectors to the heap, the fast way to feed the
+     * similarity kernels.
+     *
+     * @param from The first id.
+     * @param count Number of vectors.
+     * @param dst Receives the vectors back to back, at least count * dimension
+     * long.
+     */
+    public void read(int from, int count, float[] dst) {
+        if (count <= 0) {
+            return;
+        }
+        checkId(from);
+        checkId(from + count - 1);
+        int off = 0;
+        FloatBuffer[] views = floats;
+        while (count > 0) {
+            int seg = from / perSegment;
+            int inSeg = from % perSegment;
+            int n = Math.min(count, perSegment - inSeg);
+            FloatBuffer fb = views[seg].duplicate();
+            fb.position(inSeg * dim);
+            fb.get(dst, off, n * dim);
+            off += n * dim;
+            from += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * @param id The id.
+     * @return The L2 norm of the vector.
+     */
+    public float norm(int id) {
+        return id < baseCount ? baseStats.get(id * 3) : norms[id - baseCount];
+    }
+
+    /**
+     * @param id The id.
+     * @return The mean of the vector components.
+     */
+    public float mean(int id) {
+        return id < baseCount ? baseStats.get(id * 3 + 1) : means[id - baseCount];
+    }
+
+    /**
+     * @param id The id.
+     * @return The L2 norm of the vector after subtracting its mean.
+     */
+    public float centeredNorm(int id) {
+        return id < baseCount ? baseStats.get(id * 3 + 2) : centered[id - baseCount];
+    }
+
+    /**
+     * @param id The id.
+     * @return The metadata, may be null.
+     */
+    public Metadata getMetadata(int id) {
+        checkId(id);
+        synchronized (this) {
+            return id < baseCount ? baseMeta.get(id) : meta.get(id - baseCount);
+        }
+    }
+
+    private void checkId(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("No vector " + id + ", size is " + size);
+        }
+    }
+
+    /**
+     * Push memory-mapped segments to disk.
+     */
+    public void force() {
+        for (ByteBuffer b : segments) {
+            if (b instanceof MappedByteBuffer) {
+                ((MappedByteBuffer) b).force();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "VectorStore{" + "model=" + model + ", dim=" + dim + ", size=" + size + ", segments=" + segments.length + '}';
+    }
+}